@@ -1,5 +1,6 @@
 package app_kvEcs;
 
+import common.ServerInfo;
 import common.messages.TextMessage;
 import helpers.Constants;
 import org.apache.log4j.Logger;
@@ -7,6 +8,7 @@ import org.apache.log4j.PropertyConfigurator;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Map;
 
 public class ECSClient {
 
@@ -49,11 +51,14 @@ public class ECSClient {
                 this.ECSStart();
                 break;
             case INIT:
-                if(tokens.length == 4) {
-                    if ( validator.isValidPolicy(tokens[3]) )
-                        this.ECSinit(tokens[1], tokens[2], tokens[3]);
-                    else
+                if(tokens.length == 4 || tokens.length == 5) {
+                    String storageEngine = tokens.length == 5 ? tokens[4] : null;
+                    if ( !validator.isValidPolicy(tokens[3]) )
                         printError("Invalid replacement policy.");
+                    else if ( storageEngine != null && !validator.isValidStorageEngine(storageEngine) )
+                        printError("Invalid storage engine.");
+                    else
+                        this.ECSinit(tokens[1], tokens[2], tokens[3], storageEngine);
                 } else {
                     printError("Invalid number of parameters.");
                 }
@@ -81,6 +86,10 @@ public class ECSClient {
                 this.ECSRemoveServer();
                 break;
 
+            case STATS:
+                this.ECSStats();
+                break;
+
             case SHUT_DOWN:{
                 this.ECSShutDown();
             }
@@ -116,15 +125,26 @@ public class ECSClient {
     }
 
     /**
-     * Initializes ECSCore server, check ECSCore' initService function
+     * Initializes ECSCore server with the servers' configured storage engine
      * @param numNodes
      * @param cacheSize
      * @param displacementStrategy
      */
     public void ECSinit(String numNodes,String cacheSize, String displacementStrategy) {
+        ECSinit(numNodes, cacheSize, displacementStrategy, null);
+    }
+
+    /**
+     * Initializes ECSCore server, check ECSCore' initService function
+     * @param numNodes
+     * @param cacheSize
+     * @param displacementStrategy
+     * @param storageEngine storage engine of the servers, null for their configured one
+     */
+    public void ECSinit(String numNodes,String cacheSize, String displacementStrategy, String storageEngine) {
         try {
             ECServer = new ECSCore(fileName);
-            if (ECServer.initService(Integer.parseInt(numNodes), Integer.parseInt(cacheSize), displacementStrategy)) {
+            if (ECServer.initService(Integer.parseInt(numNodes), Integer.parseInt(cacheSize), displacementStrategy, storageEngine)) {
                 initialized = true;
             }
             else{
@@ -172,6 +192,20 @@ public class ECSClient {
         }
     }
 
+    /**
+     * Print the statistics of the servers
+     */
+    private void ECSStats() {
+        if ( !initialized ) {
+            System.out.println(PROMPT + "ECSInterface Service is not initialized. First initialize the server.");
+            return;
+        }
+        for (Map.Entry<ServerInfo, String> stats : ECServer.stats().entrySet()) {
+            System.out.println(PROMPT + stats.getKey().getAddress() + ":" + stats.getKey().getServerPort()
+                    + " " + stats.getValue());
+        }
+    }
+
     /**
      * Shutdown ECSCore
      */
@@ -31,6 +31,7 @@ public class ECSCore implements ECSInterface {
     private MD5Hash md5Hasher;
     private int cacheSize;
     private String displacementStrategy;
+    private String storageEngine;
     private boolean runLocal=true;
     private CallRemoteInterface runProcess;
     private FailDetection failHandler;
@@ -63,6 +64,20 @@ public class ECSCore implements ECSInterface {
      * @return true if succeeded else false
      */
     public boolean initService(int numberOfNodes, int cacheSize, String displacementStrategy) {
+        return initService(numberOfNodes, cacheSize, displacementStrategy, null);
+    }
+
+    /**
+     * Same as initService(numberOfNodes, cacheSize, displacementStrategy), but the
+     * servers, including the ones added later on, use the given storage engine
+     * @param numberOfNodes
+     * @param cacheSize
+     * @param displacementStrategy
+     * @param storageEngine the storage engine, null for the servers' configured one
+     * @return true if succeeded else false
+     */
+    public boolean initService(int numberOfNodes, int cacheSize, String displacementStrategy, String storageEngine) {
+        this.storageEngine = storageEngine;
 
         boolean initSuccess=false;
         Random rand = new Random();
@@ -128,7 +143,7 @@ public class ECSCore implements ECSInterface {
         startServers = Helper.generateMetaData(startServers, md5Hasher);
         activeServers = startServers;
         // communicate with servers and send call initialize command
-        KVAdminMessageImpl initMsg = Helper.InitMsg(activeServers, cacheSize, displacementStrategy);
+        KVAdminMessageImpl initMsg = Helper.InitMsg(activeServers, cacheSize, displacementStrategy, storageEngine);
         // create server connection for further communication with the servers
         for (ServerInfo server : this.activeServers) {
             KVConnection connection = new KVConnection(server);
@@ -207,6 +222,26 @@ public class ECSCore implements ECSInterface {
         return stopSuccess;
     }
 
+    /**
+     * Collects the statistics of the active servers
+     * @return the statistics of every server that answered
+     */
+    @Override
+    public Map<ServerInfo, String> stats() {
+        Map<ServerInfo, String> stats = new LinkedHashMap<>();
+        for (ServerInfo server : this.activeServers) {
+            try {
+                String serverStats = Helper.ECSStats(KVConnections.get(server), server);
+                if (serverStats != null)
+                    stats.put(server, serverStats);
+            } catch (CannotConnectException e) {
+                KVConnections.get(server).disconnect();
+                logger.info(e.getMessage());
+            }
+        }
+        return stats;
+    }
+
     /**
      * Stops all server instances and exits the remote processes.
      * @return true if succeeded else false
@@ -279,7 +314,7 @@ public class ECSCore implements ECSInterface {
         List<ServerInfo> coordinators = new ArrayList<>();
 
         //initialize the new Server
-        KVAdminMessageImpl initMsg = Helper.InitMsg(activeServers, cacheSize, displacementStrategy);
+        KVAdminMessageImpl initMsg = Helper.InitMsg(activeServers, cacheSize, displacementStrategy, storageEngine);
         KVConnection kvconnection = new KVConnection(newServer);
         byte[] byteMessage;
 
@@ -212,6 +212,27 @@ public class ECSHelpers {
         }
     }
 
+    /**
+     * Asks a server for its statistics
+     * @param channel the connection to the server
+     * @param server the server
+     * @return the statistics as comma separated name=value pairs, or null if the server has none
+     * @throws CannotConnectException
+     */
+    public String ECSStats(KVConnection channel, ServerInfo server) throws CannotConnectException {
+        try {
+            channel.connect();
+            channel.sendMessage(new KVAdminMessageImpl(KVAdminMessage.StatusType.STATS));
+            byte[] byteMessage = Utilities.receive(channel.getInput());
+            KVAdminMessageImpl result = (KVAdminMessageImpl) Serializer.toObject(byteMessage);
+            channel.disconnect();
+            return result.getStatus().equals(KVAdminMessage.StatusType.STATS) ? result.getStats() : null;
+        } catch (IOException e) {
+            throw new CannotConnectException("STATS operation on server " + server.getAddress() + ":"
+                    + server.getServerPort() + " failed due to Connection problem");
+        }
+    }
+
     /**
      * Get Random number in range
      *
@@ -314,13 +335,16 @@ public class ECSHelpers {
      * @param startServers
      * @param cacheSize
      * @param displacementStrategy
+     * @param storageEngine the storage engine, null for the servers' configured one
      * @return
      */
-    public KVAdminMessageImpl InitMsg(List<ServerInfo> startServers, int cacheSize, String displacementStrategy) {
+    public KVAdminMessageImpl InitMsg(List<ServerInfo> startServers, int cacheSize, String displacementStrategy,
+                                      String storageEngine) {
         KVAdminMessageImpl initMsg = new KVAdminMessageImpl();
         initMsg.setStatus(KVAdminMessage.StatusType.INIT);
         initMsg.setCacheSize(cacheSize);
         initMsg.setDisplacementStrategy(displacementStrategy);
+        initMsg.setStorageEngine(storageEngine);
         initMsg.setMetadata(startServers);
         return initMsg;
     }
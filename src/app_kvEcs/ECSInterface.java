@@ -1,5 +1,9 @@
 package app_kvEcs;
 
+import common.ServerInfo;
+
+import java.util.Map;
+
 
 public interface ECSInterface {
 
@@ -9,6 +13,13 @@ public interface ECSInterface {
      */
     public boolean initService(int numberOfNodes, int cacheSize, String displacementStrategy);
 
+    /** Launch servers,
+     * Send an INIT message to hand meta-data etc. including the storage engine
+     * that these and all nodes added later use
+     * @param numberOfNodes
+     */
+    public boolean initService(int numberOfNodes, int cacheSize, String displacementStrategy, String storageEngine);
+
     /**
      * Called by the ECSInterface client starting all the services
      */
@@ -36,4 +47,10 @@ public interface ECSInterface {
      */
     public boolean removeNode();
 
+    /**
+     * Collects the statistics of the active servers
+     * @return the statistics of every server that answered, as comma separated name=value pairs
+     */
+    public Map<ServerInfo, String> stats();
+
 }
@@ -8,7 +8,7 @@ public enum ECSUI {
     MOVE_DATA("moveData"), SEND_METADATA("sendMetadata"),
     ADD("add"), REMOVE("remove"),
     LOG_LEVEL("logLevel"), HELP("help"), QUIT("quit"),
-    REMOVE_DATA("removeData"), UNSUPPORTED( "unSupported"),;
+    REMOVE_DATA("removeData"), STATS("stats"), UNSUPPORTED( "unSupported"),;
 
     private String commandText;
 
@@ -3,7 +3,6 @@ package app_kvEcs;
 import common.Serializer;
 import common.messages.*;
 import common.utils.Utilities;
-import helpers.CannotConnectException;
 import org.apache.log4j.Logger;
 
 import java.io.*;
@@ -44,7 +43,7 @@ public class FailDetection implements Runnable {
         try {
             running = true;
             boolean clientConnected = true;
-            in = clientSocket.getInputStream();
+            in = new BufferedInputStream(clientSocket.getInputStream());
             out = clientSocket.getOutputStream();
             byte[] byteMessage = new byte[0];
             KVAdminMessageImpl kvAdminMessage;
@@ -68,7 +67,7 @@ public class FailDetection implements Runnable {
                             }
                         }
                     }
-                } catch (CannotConnectException e) {
+                } catch (IOException e) {
                     logger.error("Error! Connection lost!");
                     running = false;
                 }
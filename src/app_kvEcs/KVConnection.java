@@ -6,6 +6,7 @@ import common.messages.*;
 import common.utils.Utilities;
 import helpers.CannotConnectException;
 import org.apache.log4j.Logger;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,7 +45,7 @@ public class KVConnection{
         try {
             connection = new Socket(server.getAddress(), server.getServerPort());
             output = connection.getOutputStream();
-            input = connection.getInputStream();
+            input = new BufferedInputStream(connection.getInputStream());
             connected = true;
             logger.info("CREATED Socket connection with server");
         } catch (IOException ioe) {
@@ -14,12 +14,14 @@ public class UIInteractMsg {
 
     public static final String ECS_HELP_TEXT = "ECSInterface:  Cloud databases MS3 ECSInterface Service."
             + "\nUsage:"
-            + "\nInit <NumberOfNodes> <cacheSize> <displacementStrategy>: Initialize the service with N random nodes"
+            + "\nInit <NumberOfNodes> <cacheSize> <displacementStrategy> [storageEngine]: Initialize the service with N random nodes"
+            + "\n     storageEngine is one of log, lsm, memory, properties (default: storage.engine of conf/storage.config)"
             + "\nStart: Sends a start signal to all the servers using ECSInterface Service.\n"
             + "Stop:  Sends a stop signal to all the servers using ECSInterface Service.\n"
             + "Shutdown:  Sends a Shutdown signal to all the servers using ECSInterface Service.\n"
             + "Add <cacheSize> <displacementStrategy>:  Adds a Store Server to the Ring and performs respective data Re-Arrangements.\n"
             + "Remove:  Removes a Store Server from the Ring and performs related data Re-Arrangements.\n"
+            + "Stats:  Prints the statistics of every server, e.g. the weight and capacity of its cache.\n"
             + "\nlogLevel <level>: Sets the logger to the desired Logging Level."
             + "\nHelp: Prints the help guide."
             + "\nquit: Shuts down servers and exit application.";
@@ -1,5 +1,6 @@
 package app_kvEcs;
 
+import app_kvServer.dataStorage.StorageEngines;
 import java.util.Arrays;
 import java.util.List;
 
@@ -29,7 +30,12 @@ public class Validator {
      */
     public boolean isValidPolicy( String policy ){
         String Dpolicy = policy.toUpperCase();
-        return ( Dpolicy.equals("FIFO") || Dpolicy.equals("LRU") || Dpolicy.equals("LFU") );
+        return ( Dpolicy.equals("FIFO") || Dpolicy.equals("LRU") || Dpolicy.equals("LFU") || Dpolicy.equals("TINYLFU")
+                || Dpolicy.equals("ARC") || Dpolicy.equals("CLOCKPRO") );
+    }
+
+    public boolean isValidStorageEngine( String engine ){
+        return StorageEngines.isKnown(engine);
     }
 
     public static Validator getInstance () {
@@ -5,9 +5,12 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ConnectionHandler asynchronously handles the socket connections.
@@ -19,7 +22,8 @@ public class KVConnectionHandler implements ConnectionHandler {
 
     private SocketServer server;
     private ExecutorService threadpool = null;
-    private ArrayList<KVRequestHandler> currentRunnables;
+    // Added by the accepting thread, removed by the handlers themselves
+    private Set<KVRequestHandler> currentRunnables;
     private static Logger logger = Logger.getLogger(KVConnectionHandler.class);
 
 
@@ -28,9 +32,18 @@ public class KVConnectionHandler implements ConnectionHandler {
      * @param server the SocketServer instance that carries this handler
      */
     public KVConnectionHandler(SocketServer server) {
+        this(server, Executors.newCachedThreadPool());
+    }
+
+    /**
+     *
+     * @param server the SocketServer instance that carries this handler
+     * @param threadpool the executor running a KVRequestHandler per connection
+     */
+    protected KVConnectionHandler(SocketServer server, ExecutorService threadpool) {
         this.server = server;
-        this.currentRunnables = new ArrayList<>();
-        threadpool = Executors.newCachedThreadPool();
+        this.currentRunnables = Collections.newSetFromMap(new ConcurrentHashMap<KVRequestHandler, Boolean>());
+        this.threadpool = threadpool;
     }
 
     /**
@@ -58,6 +71,16 @@ public class KVConnectionHandler implements ConnectionHandler {
             ConnectionHelper.connectionTearDown(r.inputStream, r.outputStream, r.clientSocket, logger);
             currentRunnables.remove(r);
         }
+        // Let the running requests finish their storage writes before the
+        // cache is closed; interrupting them could close a segment channel
+        threadpool.shutdown();
+        try {
+            if (!threadpool.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Client handlers still running after 10 seconds, interrupting them");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         threadpool.shutdownNow();
     }
 
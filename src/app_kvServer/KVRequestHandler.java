@@ -1,16 +1,21 @@
 package app_kvServer;
 
-import common.Serializer;
+import app_kvServer.dataStorage.Expiry;
+import common.UnsupportedDataTypeException;
 import common.messages.*;
 import common.messages.KVAdminMessage.StatusType;
+import common.utils.MessageStream;
 import common.utils.Utilities;
 import helpers.Constants;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Arrays;
 
 
 /**
@@ -25,9 +30,12 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
     int clientNumber;
     InputStream inputStream;
     OutputStream outputStream;
+    MessageStream messageStream;
     InputStream notInputStream;
     OutputStream notOutputStream;
     volatile boolean stop;
+    // The client messages of the connection are decoded into this one, as they are handled one at a time
+    private final KVMessageImpl request = new KVMessageImpl(KVMessage.StatusType.GET);
     private static Logger logger = Logger.getLogger(KVRequestHandler.class);
 
     public KVRequestHandler(KVConnectionHandler handler, SocketServer server, Socket clientSocket, int clientNumber) throws IOException {
@@ -41,6 +49,7 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
         try {
             inputStream = clientSocket.getInputStream();
             outputStream = clientSocket.getOutputStream();
+            messageStream = new MessageStream(inputStream, outputStream);
         } catch (IOException e) {
             logger.error(String.format("Client: %d. Unable to initialize streams.", clientNumber), e);
             throw new IOException("Unable to initialize streams from socket");
@@ -48,59 +57,45 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
 //        logger.info(String.format("Client: %d connected", clientNumber));
     }
 
+    /**
+     * Constructor of a handler that only processes messages, for connections
+     * whose I/O is done elsewhere (see NioConnectionHandler)
+     * @param server the SocketServer instance that carries the connection
+     * @param clientNumber Number of the Client (for debugging purposes)
+     */
+    public KVRequestHandler(SocketServer server, int clientNumber) {
+        this.server = server;
+        this.clientNumber = clientNumber;
+        this.stop = false;
+    }
+
     /**
      * run function handles the incoming client's request
      */
     @Override
     public void run() {
         try {
-            KVMessage kvMessage;
-            KVAdminMessage kvAdminMessage;
-            KVServerMessage kvServerMessage;
-            KVMessageImpl kvResponse;
-            KVAdminMessageImpl kvAdminResponse;
-            KVServerMessageImpl kvServerResponse;
             byte[] byteMessage = new byte[0];
+            int length = 0;
             boolean clientConnected = true;
+            boolean firstMessage = true;
             while (clientConnected && server.isOpen() && !stop) {
                 try {
-                    // Get a new message
-                    byteMessage = Utilities.receive(inputStream);
+                    // Get a new message, into the buffer of the stream
+                    length = messageStream.receiveFrame();
+                    byteMessage = messageStream.getFrame();
                     if (!Thread.currentThread().isInterrupted() && !stop) {
 
-                        if (byteMessage[0] == -1) {
+                        if (length < 0) {
                             clientConnected = false;
+                        } else if (firstMessage && messageStream.answer(Arrays.copyOf(byteMessage, length))) {
+                            firstMessage = false;
                         } else {
+                            firstMessage = false;
 //                            logger.info(server.getInfo().getID() + " : Received message: " + new String(byteMessage).trim());
-                            AbstractMessage abstractMessage = Serializer.toObject(byteMessage);
-                            if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.CLIENT_MESSAGE)) {
-
-                                kvMessage = (KVMessageImpl) abstractMessage;
-
-
-                                kvResponse = processMessage(kvMessage);
-                      /*          if (kvResponse.getStatus().equals(KVMessage.StatusType.SUBSCRIBE_SUCCESS) || kvResponse.getStatus().equals(KVMessage.StatusType.SUBSCRIBE_ERROR)
-                                        || kvResponse.getStatus().equals(KVMessage.StatusType.UNSUBSCRIBE_SUCCESS) || kvResponse.getStatus().equals(KVMessage.StatusType.UNSUBSCRIBE_ERROR)) {
-                                    NotClientSocket = new Socket(kvMessage.getAddress(), kvMessage.getPort());
-                                    notInputStream = NotClientSocket.getInputStream();
-                                    notOutputStream = NotClientSocket.getOutputStream();
-                                    Utilities.send(kvResponse, notOutputStream);
-                                }*/
-                                // else
-                                    Utilities.send(kvResponse, outputStream);
-                            } else if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.ECS_MESSAGE)) {
-                                server.registerECS(clientSocket.getInetAddress());
-                                kvAdminMessage = (KVAdminMessageImpl) abstractMessage;
-                                kvAdminResponse = processAdminMessage(kvAdminMessage);
-                                Utilities.send(kvAdminResponse, outputStream);
-                            } else if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.SERVER_MESSAGE)) {
-                                kvServerMessage = (KVServerMessageImpl) abstractMessage;
-                                kvServerResponse = processServerMessage(kvServerMessage);
-                                if (kvServerResponse != null) {
-                                    Utilities.send(kvServerResponse, outputStream);
-                                }
-                            } else {
-                                Utilities.send(new KVMessageImpl(KVMessage.StatusType.GENERAL_ERROR), outputStream);
+                            byte[] response = respond(byteMessage, length, clientSocket.getInetAddress(), messageStream.getVersion());
+                            if (response != null) {
+                                messageStream.send(response);
                             }
                         }
                     }
@@ -110,7 +105,7 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
                     logger.error(server.getInfo().getID() + " : Error! Connection lost!");
                     clientConnected = false;
                 } catch (Exception e) {
-                    logger.error(server.getInfo().getID() + " : Unable to parse string "+ new String(byteMessage,"UTF-8") +" message from client " +e);
+                    logger.error(server.getInfo().getID() + " : Unable to parse string "+ new String(byteMessage, 0, Math.max(0, length), "UTF-8") +" message from client " +e);
                     clientConnected = false;
                 }
             }
@@ -125,6 +120,51 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
         }
     }
 
+    /**
+     * Processes one message of the connection
+     * @param byteMessage the message, without its framing
+     * @param address the address of the peer, registered if it is the ECS
+     * @param version the protocol version of the connection (see MessageStream)
+     * @return the response serialized for the version, or null if there is none
+     * @throws UnsupportedDataTypeException if the message cannot be parsed
+     */
+    byte[] respond(byte[] byteMessage, InetAddress address, int version) throws UnsupportedDataTypeException {
+        return respond(byteMessage, byteMessage.length, address, version);
+    }
+
+    /**
+     * Processes one message of the connection, held at the start of a buffer
+     * @param buffer the buffer holding the message, without its framing
+     * @param length the length of the message
+     * @param address the address of the peer, registered if it is the ECS
+     * @param version the protocol version of the connection (see MessageStream)
+     * @return the response serialized for the version, or null if there is none
+     * @throws UnsupportedDataTypeException if the message cannot be parsed
+     */
+    byte[] respond(byte[] buffer, int length, InetAddress address, int version) throws UnsupportedDataTypeException {
+        AbstractMessage abstractMessage = MessageStream.deserialize(buffer, length, version, request);
+        if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.CLIENT_MESSAGE)) {
+            KVMessageImpl kvResponse = processMessage((KVMessageImpl) abstractMessage);
+      /*          if (kvResponse.getStatus().equals(KVMessage.StatusType.SUBSCRIBE_SUCCESS) || kvResponse.getStatus().equals(KVMessage.StatusType.SUBSCRIBE_ERROR)
+                        || kvResponse.getStatus().equals(KVMessage.StatusType.UNSUBSCRIBE_SUCCESS) || kvResponse.getStatus().equals(KVMessage.StatusType.UNSUBSCRIBE_ERROR)) {
+                    NotClientSocket = new Socket(kvMessage.getAddress(), kvMessage.getPort());
+                    notInputStream = NotClientSocket.getInputStream();
+                    notOutputStream = NotClientSocket.getOutputStream();
+                    Utilities.send(kvResponse, notOutputStream);
+                }*/
+            return MessageStream.serialize(kvResponse, version);
+        } else if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.ECS_MESSAGE)) {
+            server.registerECS(address);
+            KVAdminMessageImpl kvAdminResponse = processAdminMessage((KVAdminMessageImpl) abstractMessage);
+            return MessageStream.serialize(kvAdminResponse, version);
+        } else if (abstractMessage.getMessageType().equals(AbstractMessage.MessageType.SERVER_MESSAGE)) {
+            KVServerMessageImpl kvServerResponse = processServerMessage((KVServerMessageImpl) abstractMessage);
+            return kvServerResponse == null ? null : MessageStream.serialize(kvServerResponse, version);
+        } else {
+            return MessageStream.serialize(new KVMessageImpl(KVMessage.StatusType.GENERAL_ERROR), version);
+        }
+    }
+
 
     /**
      * Process of the KVAdminMessage (message from the ECSInterface) and configure the server
@@ -136,7 +176,7 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
         KVAdminMessageImpl response;
         if (kvAdminMessage.getStatus().equals(StatusType.INIT)) {
             logger.info("Got INIT message from ECSInterface!!");
-            return server.initKVServer(kvAdminMessage.getMetadata(), kvAdminMessage.getCacheSize(), kvAdminMessage.getDisplacementStrategy());
+            return server.initKVServer(kvAdminMessage.getMetadata(), kvAdminMessage.getCacheSize(), kvAdminMessage.getDisplacementStrategy(), kvAdminMessage.getStorageEngine());
         } else if (kvAdminMessage.getStatus().equals(StatusType.START)) {
             return server.startServing();
         } else if (kvAdminMessage.getStatus().equals(StatusType.STOP)) {
@@ -157,6 +197,8 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
             return server.restoreData(kvAdminMessage.getRange());
         } else if (kvAdminMessage.getStatus().equals(StatusType.UPDATE_METADATA)) {
             return server.update(kvAdminMessage.getMetadata());
+        } else if (kvAdminMessage.getStatus().equals(StatusType.STATS)) {
+            return server.getStats();
         } else {
             logger.error(String.format("ECSCore: Invalid message from ECSCore: %s", kvAdminMessage.toString()));
             response = new KVAdminMessageImpl(StatusType.GENERAL_ERROR);
@@ -173,7 +215,8 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
     private KVServerMessageImpl processServerMessage(KVServerMessage kvServerMessage) {
         KVServerMessageImpl response;
         if (kvServerMessage.getStatus().equals(KVServerMessage.StatusType.MOVE_DATA)) {
-            return server.insertNewDataToCache(kvServerMessage.getKVPairs(), kvServerMessage.getSubscriptions());
+            return server.insertNewDataToCache(kvServerMessage.getKVPairs(),
+                    kvServerMessage.getHotCount(), kvServerMessage.getSubscriptions());
         } else if (kvServerMessage.getStatus().equals(KVServerMessage.StatusType.REPLICATE)) {
             return server.newReplicatedData(kvServerMessage.getKVPairs(), kvServerMessage.getSubscriptions());
         } else if (kvServerMessage.getStatus().equals(KVServerMessage.StatusType.GOSSIP)) {
@@ -194,36 +237,25 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
      * @return resulting KVMessageImpl
      */
     private KVMessageImpl processMessage(KVMessage kvMessage) {
-        logger.info(server.getInfo().getID() + " : Got client message before initialized ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^");
         if (!server.isInitialized()) {
             return new KVMessageImpl(KVMessage.StatusType.GENERAL_ERROR);
         }
         // Server is properly initialized
-        logger.info(server.getInfo().getID() + " : Got client message before stopped ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^");
         if (server.isStopped()) {
             return new KVMessageImpl(KVMessage.StatusType.SERVER_STOPPED);
         }
-        logger.info(server.getInfo().getID() + " : Got client message ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^");
-//        logger.info("My Address is: " + server.getInfo().getAddress());
-//        logger.info("My Port is: " + server.getInfo().getServerPort());
-//        logger.info("My Range is: " + server.getInfo().getFromIndex() + ":" + server.getInfo().getToIndex());
-        logger.info(server.getInfo().getID() + " : Message: " + kvMessage.getStatus() + ", " + kvMessage.getKey() + " (" + kvMessage.getHash() + ")"
-                + " Value: " + kvMessage.getValue() );
-        if (server.getInfo().getServerRange().isIndexInRange(kvMessage.getHash())) {
-            logger.info("Index is ours!");
-        }
-        else {
-            logger.info("Index is NOT ours!");
-        }
         // Server is not stopped
-        logger.info("Got key " + kvMessage.getKey() + " with Hash " + kvMessage.getHash() +".My Range is " + server.getInfo().getFromIndex() + ":" + server.getInfo().getToIndex());
-        if (server.getInfo().getServerRange().isIndexInRange(kvMessage.getHash())) {
+        String hash = kvMessage.getHash();
+        boolean responsible = server.getInfo().getServerRange().isIndexInRange(hash);
+        if (logger.isDebugEnabled()) {
+            logger.debug(server.getInfo().getID() + " : Message: " + kvMessage.getStatus() + ", " + kvMessage.getKey() + " (" + hash + ")"
+                    + " Value: " + kvMessage.getValue() + ". My Range is " + server.getInfo().getFromIndex() + ":" + server.getInfo().getToIndex()
+                    + (responsible ? ", index is ours" : ", index is NOT ours"));
+        }
+        if (responsible) {
             // Server IS responsible for key
-            logger.info("I am responsible for the key");
             if (kvMessage.getStatus().equals(KVMessage.StatusType.GET)) {
                 KVMessageImpl answer = server.getKvCache().get(kvMessage.getKey());
-                logger.info("Answer: " + answer.getStatus() + ", " + answer.getKey() + " (" + answer.getHash() + ")"
-                        + " Value: " + answer.getValue() );
                 // Do the GET
                 return answer;
             } else if (kvMessage.getStatus().equals(KVMessage.StatusType.PUT)) {
@@ -233,8 +265,8 @@ public class KVRequestHandler implements Runnable/*, ServerActionListener*/ {
                     return new KVMessageImpl(KVMessage.StatusType.SERVER_WRITE_LOCK);
                 } else {
                     // Do the PUT
-                    logger.info("OOOOOPAPPA got message key: " + kvMessage.getKey() + " value: " +kvMessage.getValue());
-                    KVMessageImpl response = server.getKvCache().put(kvMessage.getKey(), kvMessage.getValue());
+                    long expiresAt = Expiry.fromTtl(kvMessage.getTtl(), System.currentTimeMillis());
+                    KVMessageImpl response = server.getKvCache().put(kvMessage.getKey(), kvMessage.getValue(), expiresAt);
                     // TODO: Call enqueuePutEvent to replicationHandler, server.getReplicationHandler()
                     return response;
                 }
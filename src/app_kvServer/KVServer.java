@@ -33,7 +33,7 @@ public class KVServer {
         // TODO: Add info name??
         this.server = new SocketServer(this.info);
 
-        ConnectionHandler handler = new KVConnectionHandler(server);
+        ConnectionHandler handler = newConnectionHandler(server);
         server.addConnectionHandler(handler);
 
         try {
@@ -53,7 +53,7 @@ public class KVServer {
 //        ArrayList<ServerInfo> metadata = new ArrayList<>();
 //        metadata.add(new ServerInfo(address, port, new KVRange(0, Long.MAX_VALUE)));
 
-        ConnectionHandler handler = new KVConnectionHandler(server);
+        ConnectionHandler handler = newConnectionHandler(server);
         server.addConnectionHandler(handler);
 //        server.initKVServer(metadata, cacheSize, displacementStrategy);
 
@@ -76,7 +76,7 @@ public class KVServer {
 //        ArrayList<ServerInfo> metadata = new ArrayList<>();
 //        metadata.add(new ServerInfo(address, port, new KVRange(0, Long.MAX_VALUE)));
 
-        ConnectionHandler handler = new KVConnectionHandler(server);
+        ConnectionHandler handler = newConnectionHandler(server);
         server.addConnectionHandler(handler);
 
         ArrayList<ServerInfo> metadata = new ArrayList<>();
@@ -97,6 +97,31 @@ public class KVServer {
 
 
 
+    /**
+     * Creates the connection handler selected by the server.handler option
+     * of the server's configuration
+     * @param server the server
+     * @return a NioConnectionHandler for "nio", a VirtualConnectionHandler for
+     *         "virtual" on a JVM with virtual threads, else a KVConnectionHandler
+     */
+    private static ConnectionHandler newConnectionHandler(SocketServer server) {
+        ServerConfig config = server.getServerConfig();
+        if (config.getConnectionHandler().equals(ServerConfig.HANDLER_VIRTUAL)) {
+            if (VirtualConnectionHandler.isSupported()) {
+                return new VirtualConnectionHandler(server);
+            }
+            logger.error("No virtual threads in this JVM, using a thread per connection");
+        }
+        if (config.getConnectionHandler().equals(ServerConfig.HANDLER_NIO)) {
+            try {
+                return new NioConnectionHandler(server, config.getIoThreads(), config.getWorkers());
+            } catch (IOException e) {
+                logger.error("Cannot start nio connection handler, using a thread per connection", e);
+            }
+        }
+        return new KVConnectionHandler(server);
+    }
+
     /**
      * @param args <Port> <Cachesize> <CachePolicy>
      * @throws IOException
@@ -148,7 +173,9 @@ public class KVServer {
      * @param displacementStrategy the cache displacement strategy to adopt
      */
     public synchronized void initKVServer(List<ServerInfo> metadata, Integer cacheSize, String displacementStrategy){
-        if ((displacementStrategy.equals("FIFO") || displacementStrategy.equals("LRU") || displacementStrategy.equals("LFU"))
+        if ((displacementStrategy.equals("FIFO") || displacementStrategy.equals("LRU") || displacementStrategy.equals("LFU")
+                || displacementStrategy.equals("TINYLFU") || displacementStrategy.equals("ARC")
+                || displacementStrategy.equals("CLOCKPRO"))
                 && cacheSize > 0 && metadata != null) {
             System.out.println("Binding KVServer:");
             server.initKVServer(metadata, cacheSize, displacementStrategy);
@@ -246,6 +273,6 @@ public class KVServer {
      */
     private static void printHelp() {
         System.out.println("Usage: KVServer <port> <cache size> <displacement strategy>\n" +
-                "    Strategy can be: FIFO, LRU, LFU");
+                "    Strategy can be: FIFO, LRU, LFU, TINYLFU, ARC, CLOCKPRO");
     }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import helpers.CannotConnectException;
 import helpers.Constants;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,10 +37,11 @@ public class Messenger {
     /**
      * MOVE_DATA admin operation implementation
      * @param pairsToSend the key-value pairs to send to the other server
+     * @param hotCount the number of leading pairs the other server should cache
      * @param server the server to send the data to
      * @return the admin message response (to the admin command MOVE_DATA)
      */
-    public KVAdminMessageImpl sendToServer(ArrayList<KVPair> pairsToSend, HashMap<String, ArrayList<ClientSubscription>> subscriptions, ServerInfo server) {
+    public KVAdminMessageImpl sendToServer(ArrayList<KVPair> pairsToSend, int hotCount, HashMap<String, ArrayList<ClientSubscription>> subscriptions, ServerInfo server) {
         // Send ServerMessage "MOVE_DATA" message to "server" and wait for answer from that server
         // If it's MOVE_DATA_SUCCESS => send back OPERATION_SUCCESS
         // If it's MOVE_DATA_FAILURE => send back OPERATION_FAILED
@@ -54,7 +56,7 @@ public class Messenger {
 
             InetAddress address = InetAddress.getByName(server.getAddress());
             clientSocket = new Socket(address, server.getServerPort());
-            inStream = clientSocket.getInputStream();
+            inStream = new BufferedInputStream(clientSocket.getInputStream());
             outStream = clientSocket.getOutputStream();
 
             /*****************************************************/
@@ -62,6 +64,7 @@ public class Messenger {
             /*****************************************************/
 
             KVServerMessageImpl bulkPutMessage = new KVServerMessageImpl(pairsToSend, subscriptions, KVServerMessage.StatusType.MOVE_DATA);
+            bulkPutMessage.setHotCount(hotCount);
             Utilities.send(bulkPutMessage, outStream);
             byte[] bulkPutAnswerBytes = Utilities.receive(inStream);
             KVServerMessageImpl bulkPutAnswer = (KVServerMessageImpl) Serializer.toObject(bulkPutAnswerBytes);
@@ -108,7 +111,7 @@ public class Messenger {
 
             InetAddress address = InetAddress.getByName(server.getAddress());
             clientSocket = new Socket(address, server.getServerPort());
-            inStream = clientSocket.getInputStream();
+            inStream = new BufferedInputStream(clientSocket.getInputStream());
             outStream = clientSocket.getOutputStream();
 
             /*****************************************************/
@@ -203,7 +206,7 @@ public class Messenger {
 
             InetAddress address = InetAddress.getByName(serverInfo.getAddress());
             clientSocket = new Socket(address, serverInfo.getServerPort());
-            inStream = clientSocket.getInputStream();
+            inStream = new BufferedInputStream(clientSocket.getInputStream());
             outStream = clientSocket.getOutputStream();
 
             /*****************************************************/
@@ -264,7 +267,7 @@ public class Messenger {
 
             InetAddress address = InetAddress.getByName(replicaInfo.getAddress());
             clientSocket = new Socket(address, replicaInfo.getServerPort());
-            inStream = clientSocket.getInputStream();
+            inStream = new BufferedInputStream(clientSocket.getInputStream());
             outStream = clientSocket.getOutputStream();
 
             /********************************************************/
@@ -0,0 +1,437 @@
+package app_kvServer;
+
+import common.utils.MessageStream;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConnectionHandler on non-blocking channels, so that the number of
+ * connections does not decide the number of threads.
+ *
+ * Every connection is registered with the Selector of one of a few I/O
+ * threads, which read messages up to their terminating carriage return
+ * and write the responses back without blocking. The messages are
+ * processed by a fixed pool of workers (see KVRequestHandler.respond).
+ * A connection stops reading while a message of it is queued or being
+ * processed, so its messages are processed and answered in order, and a
+ * client sending faster than the workers keep up is held back by TCP
+ * instead of filling the queue: the queue holds at most one task per
+ * connection. Like a MessageStream, a connection starts in the text
+ * framing and switches to length-prefixed frames if its first message
+ * is a protocol offer.
+ *
+ * The sockets must be accepted from a ServerSocketChannel, see
+ * SocketServer.connect.
+ */
+public class NioConnectionHandler implements ConnectionHandler {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final byte RETURN = 0x0D;
+
+    private final SocketServer server;
+    private final IoThread[] ioThreads;
+    private final ExecutorService workers;
+    private int nextIoThread = 0;
+    private volatile boolean stopped = false;
+    private static Logger logger = Logger.getLogger(NioConnectionHandler.class);
+
+    /**
+     * Constructor
+     * @param server the SocketServer instance that carries this handler
+     * @param ioThreads the number of threads doing the I/O of all connections
+     * @param workers the number of threads processing the messages
+     * @throws IOException if a Selector cannot be opened
+     */
+    public NioConnectionHandler(SocketServer server, int ioThreads, int workers) throws IOException {
+        this.server = server;
+        final String name = String.valueOf(server.getInfo().getServerPort());
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Worker-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ioThreads = new IoThread[Math.max(1, ioThreads)];
+        for (int i = 0; i < this.ioThreads.length; i++) {
+            this.ioThreads[i] = new IoThread("IO-" + name + "-" + (i + 1));
+            this.ioThreads[i].start();
+        }
+    }
+
+    /**
+     * Registers a connection with one of the I/O threads, in turn
+     * @param client Client Socket for connection, accepted from a ServerSocketChannel
+     * @param numOfClients Number of Clients (for debugging purposes)
+     * @throws IOException if the socket has no channel or cannot be made non-blocking
+     */
+    @Override
+    public void handle(Socket client, int numOfClients) throws IOException {
+        SocketChannel channel = client.getChannel();
+        if (channel == null) {
+            client.close();
+            throw new IOException("Socket was not accepted from a channel");
+        }
+        channel.configureBlocking(false);
+        client.setTcpNoDelay(true);
+        IoThread ioThread;
+        synchronized (this) {
+            ioThread = ioThreads[nextIoThread];
+            nextIoThread = (nextIoThread + 1) % ioThreads.length;
+        }
+        ioThread.update(new Connection(channel, numOfClients, ioThread));
+    }
+
+    /**
+     * Stops the I/O threads and the workers and closes all connections
+     */
+    @Override
+    public void shutDown() {
+        logger.info("Shutting down all connections");
+        stopped = true;
+        for (IoThread ioThread : ioThreads) {
+            ioThread.selector.wakeup();
+        }
+        for (IoThread ioThread : ioThreads) {
+            try {
+                ioThread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Let the queued and running requests finish their storage writes
+        // before the cache is closed
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Workers still running after 10 seconds, interrupting them");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Connections of this handler are not KVRequestHandler runnables, so
+     * there is nothing to unsubscribe
+     * @param r the runnable client to be unsubscribed
+     */
+    @Override
+    public void unsubscribe(KVRequestHandler r) {
+    }
+
+    /**
+     * A thread doing the I/O of its connections on one Selector
+     */
+    private class IoThread extends Thread {
+
+        final Selector selector;
+        // New connections, and connections whose responses or state changed
+        private final ConcurrentLinkedQueue<Connection> updates = new ConcurrentLinkedQueue<>();
+
+        IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Lets the thread register a connection or update its interest
+         */
+        void update(Connection connection) {
+            updates.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select();
+                    Connection connection;
+                    while ((connection = updates.poll()) != null) {
+                        connection.updateInterest(selector);
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by a worker in the meantime
+                            continue;
+                        }
+                        connection.updateInterest(selector);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.error(getName() + " : Selector failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                Connection connection;
+                while ((connection = updates.poll()) != null) {
+                    connection.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error(getName() + " : Cannot close selector", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A client connection. Reading and the selection key belong to its
+     * I/O thread; the queues are shared with the workers under the
+     * connection's monitor.
+     */
+    private class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private final InetAddress address;
+        private final KVRequestHandler processor;
+        private final IoThread ioThread;
+        private SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Written by the I/O thread before it queues the messages in the new version
+        private volatile int version = MessageStream.VERSION_TEXT;
+        private boolean firstMessage = true;
+        // The text message read so far, up to its carriage return
+        private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        // The frame read so far: its length, then its bytes
+        private final byte[] header = new byte[4];
+        private int headerRead = 0;
+        private byte[] frame;
+        private int frameRead = 0;
+        private final ArrayDeque<byte[]> requests = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+        private boolean processing = false;
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel, int clientNumber, IoThread ioThread) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+            this.processor = new KVRequestHandler(server, clientNumber);
+            this.ioThread = ioThread;
+        }
+
+        /**
+         * Reads what is available, queueing every complete message
+         */
+        void read() {
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                /* connection either terminated by the client or lost due to
+                 * network problems*/
+                logger.error(server.getInfo().getID() + " : Error! Connection lost!");
+                close();
+                return;
+            }
+            if (read == -1) {
+                close();
+                return;
+            }
+            byte[] bytes = readBuffer.array();
+            int limit = readBuffer.position();
+            int start = 0;
+            while (start < limit) {
+                byte[] request;
+                if (version == MessageStream.VERSION_TEXT) {
+                    int end = start;
+                    while (end < limit && bytes[end] != RETURN) {
+                        end++;
+                    }
+                    message.write(bytes, start, end - start);
+                    if (end == limit) {
+                        break;
+                    }
+                    request = message.toByteArray();
+                    message.reset();
+                    start = end + 1;
+                } else {
+                    if (frame == null) {
+                        int count = Math.min(header.length - headerRead, limit - start);
+                        System.arraycopy(bytes, start, header, headerRead, count);
+                        headerRead += count;
+                        start += count;
+                        if (headerRead < header.length) {
+                            break;
+                        }
+                        headerRead = 0;
+                        int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16)
+                                | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                        if (length < 0 || length > MessageStream.MAX_MESSAGE_SIZE) {
+                            logger.error(server.getInfo().getID() + " : Frame of " + length + " bytes, closing connection");
+                            close();
+                            return;
+                        }
+                        frame = new byte[length];
+                        frameRead = 0;
+                    }
+                    int count = Math.min(frame.length - frameRead, limit - start);
+                    System.arraycopy(bytes, start, frame, frameRead, count);
+                    frameRead += count;
+                    start += count;
+                    if (frameRead < frame.length) {
+                        break;
+                    }
+                    request = frame;
+                    frame = null;
+                }
+                if (firstMessage) {
+                    firstMessage = false;
+                    int offered = MessageStream.offeredVersion(request);
+                    if (offered >= 0) {
+                        // Answered in the text framing, before any other response
+                        int accepted = MessageStream.acceptedVersion(offered);
+                        synchronized (this) {
+                            responses.add(ByteBuffer.wrap(MessageStream.protocolMessage(accepted)));
+                        }
+                        version = accepted;
+                        continue;
+                    }
+                }
+                synchronized (this) {
+                    requests.add(request);
+                }
+            }
+            readBuffer.clear();
+            if (message.size() > MessageStream.MAX_MESSAGE_SIZE) {
+                logger.error(server.getInfo().getID() + " : Message of more than " + MessageStream.MAX_MESSAGE_SIZE + " bytes, closing connection");
+                close();
+                return;
+            }
+            synchronized (this) {
+                if (processing || requests.isEmpty()) {
+                    return;
+                }
+                processing = true;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Processes the queued messages on a worker
+         */
+        @Override
+        public void run() {
+            while (!closed) {
+                byte[] request;
+                synchronized (this) {
+                    request = requests.poll();
+                    if (request == null) {
+                        break;
+                    }
+                }
+                byte[] response;
+                try {
+                    response = processor.respond(request, address, version);
+                } catch (Exception e) {
+                    logger.error(server.getInfo().getID() + " : Unable to parse string " + new String(request)
+                            + " message from client " + e);
+                    close();
+                    return;
+                }
+                if (response != null) {
+                    synchronized (this) {
+                        responses.add(ByteBuffer.wrap(MessageStream.frame(response, version)));
+                    }
+                    ioThread.update(this);
+                }
+            }
+            synchronized (this) {
+                processing = false;
+            }
+            ioThread.update(this);
+        }
+
+        /**
+         * Writes queued responses until the socket buffer is full
+         */
+        void write() {
+            try {
+                synchronized (this) {
+                    while (!responses.isEmpty()) {
+                        ByteBuffer response = responses.peek();
+                        channel.write(response);
+                        if (response.hasRemaining()) {
+                            return;
+                        }
+                        responses.poll();
+                    }
+                }
+            } catch (IOException e) {
+                logger.error(server.getInfo().getID() + " : Error! Connection lost!");
+                close();
+            }
+        }
+
+        /**
+         * Registers the connection if needed and selects what it waits for:
+         * writing while responses are queued, reading while no message is
+         * queued or processed
+         */
+        void updateInterest(Selector selector) {
+            if (closed) {
+                return;
+            }
+            int ops;
+            synchronized (this) {
+                ops = (processing || !requests.isEmpty() ? 0 : SelectionKey.OP_READ)
+                        | (responses.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            }
+            try {
+                if (key == null) {
+                    key = channel.register(selector, ops, this);
+                } else if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                logger.error(server.getInfo().getID() + " : Cannot register connection", e);
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error(server.getInfo().getID() + " : Cannot close connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package app_kvServer;
+
+import common.utils.Utilities;
+import helpers.Constants;
+import org.apache.log4j.Logger;
+
+import java.util.Properties;
+
+/**
+ * Connection handling options of a server.
+ *
+ * The options are read from conf/server.config. A server may override
+ * any of them in conf/server-[port].config. Missing options fall back to
+ * the defaults below.
+ */
+public class ServerConfig {
+
+    public static final String HANDLER = "server.handler";
+    public static final String IO_THREADS = "server.io.threads";
+    public static final String WORKERS = "server.workers";
+
+    public static final String HANDLER_THREADS = "threads";
+    public static final String HANDLER_NIO = "nio";
+    public static final String HANDLER_VIRTUAL = "virtual";
+
+    private final Properties properties;
+    private static Logger logger = Logger.getLogger(ServerConfig.class);
+
+    /**
+     * Constructor
+     * @param properties the server options
+     */
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Creates a configuration holding only the defaults
+     * @return the default server configuration
+     */
+    public static ServerConfig defaults() {
+        return new ServerConfig(new Properties());
+    }
+
+    /**
+     * Loads the configuration of a server
+     * @param port the port of the server, used to find its override file
+     * @return the server configuration
+     */
+    public static ServerConfig load(int port) {
+        Properties properties = Utilities.loadConfig(Constants.SERVER_CONFIG, port);
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Connection handler getter
+     * @return HANDLER_THREADS for a thread per connection (KVConnectionHandler),
+     *         HANDLER_NIO for a few I/O threads and a pool of workers (NioConnectionHandler),
+     *         or HANDLER_VIRTUAL for a virtual thread per connection (VirtualConnectionHandler)
+     */
+    public String getConnectionHandler() {
+        String value = properties.getProperty(HANDLER);
+        return value == null ? HANDLER_THREADS : value.trim().toLowerCase();
+    }
+
+    /**
+     * I/O thread count getter
+     * @return the number of threads doing the I/O of all connections in nio mode
+     */
+    public int getIoThreads() {
+        return getInt(IO_THREADS, 2);
+    }
+
+    /**
+     * Worker count getter
+     * @return the number of threads processing messages in nio mode
+     */
+    public int getWorkers() {
+        return getInt(WORKERS, 32);
+    }
+
+    /**
+     * Generic option setter, mostly useful for tests
+     * @param key the option name
+     * @param value the option value
+     * @return this configuration
+     */
+    public ServerConfig set(String key, String value) {
+        properties.setProperty(key, value);
+        return this;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid value for server option " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
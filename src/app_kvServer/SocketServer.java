@@ -3,6 +3,9 @@ package app_kvServer;
 import app_kvServer.replication.Coordinator;
 import app_kvServer.replication.ReplicationHandler;
 import app_kvServer.dataStorage.KVCache;
+import app_kvServer.dataStorage.KVPersistenceEngine;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngine;
 import common.ServerInfo;
 import common.messages.*;
 import common.utils.KVRange;
@@ -12,6 +15,7 @@ import org.apache.log4j.lf5.util.StreamUtils;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 
 /**
@@ -29,6 +33,8 @@ public class SocketServer {
     private int numOfClients;
     private List<ServerInfo> metadata;
     private ReplicationHandler replicationHandler;
+    private final StorageConfig storageConfig;
+    private final ServerConfig serverConfig;
     Messenger messenger;
     final long heartbeatPeriod = 2000; // In milliseconds
 //    private CopyOnWriteArraySet<ServerActionListener> runnableListeners;
@@ -54,6 +60,8 @@ public class SocketServer {
         );
         messenger = new Messenger(this);
         subscriptions = new HashMap<>();
+        storageConfig = StorageConfig.load(info.getServerPort());
+        serverConfig = ServerConfig.load(info.getServerPort());
 //        this.runnableListeners = new CopyOnWriteArraySet<>();//Collections.synchronizedList(new ArrayList<>());
     }
 
@@ -63,7 +71,8 @@ public class SocketServer {
      */
     public void connect() throws IOException {
         if (state.isOpen()) return;
-        server = new ServerSocket();
+        // Sockets accepted from a channel can be made non-blocking
+        server = handler instanceof NioConnectionHandler ? ServerSocketChannel.open().socket() : new ServerSocket();
         server.bind(new InetSocketAddress(info.getAddress(), info.getServerPort()));
         state.setIsOpen(true);
     }
@@ -88,6 +97,12 @@ public class SocketServer {
      */
     public void addConnectionHandler(ConnectionHandler handler) { this.handler = handler; }
 
+    /**
+     * Connection handler getter
+     * @return the connection handler of this server
+     */
+    public ConnectionHandler getConnectionHandler() { return handler; }
+
     /**
      * Stop the ServerSocket
      */
@@ -121,13 +136,29 @@ public class SocketServer {
         }
     }
     /**
-     * Initializes the server
+     * Initializes the server with the storage engine of its storage configuration
      * @param metadata metadata for initialization
      * @param cacheSize cache size for initialization
      * @param displacementStrategy displacement strategy for initialization
      * @return a status message
      */
     public synchronized KVAdminMessageImpl initKVServer(List<ServerInfo> metadata, Integer cacheSize, String displacementStrategy){
+        return initKVServer(metadata, cacheSize, displacementStrategy, null);
+    }
+
+    /**
+     * Initializes the server
+     * @param metadata metadata for initialization
+     * @param cacheSize cache size for initialization
+     * @param displacementStrategy displacement strategy for initialization
+     * @param storageEngine storage engine for initialization, null to keep the configured one
+     * @return a status message
+     */
+    public synchronized KVAdminMessageImpl initKVServer(List<ServerInfo> metadata, Integer cacheSize,
+                                                        String displacementStrategy, String storageEngine){
+        if (storageEngine != null) {
+            storageConfig.set(StorageConfig.ENGINE, storageEngine);
+        }
         try {
             this.kvCache = new KVCache(cacheSize, displacementStrategy, this);
         } catch (StorageException e) {
@@ -186,6 +217,41 @@ public class SocketServer {
         return new KVAdminMessageImpl(KVAdminMessage.StatusType.OPERATION_SUCCESS);
     }
 
+    /**
+     * Collects the statistics of the server
+     * @return a STATS message with the statistics, or OPERATION_FAILED
+     *         if the server is not initialized yet
+     */
+    public KVAdminMessageImpl getStats() {
+        KVCache cache = kvCache;
+        if (cache == null) {
+            return new KVAdminMessageImpl(KVAdminMessage.StatusType.OPERATION_FAILED);
+        }
+        KVAdminMessageImpl stats = new KVAdminMessageImpl(KVAdminMessage.StatusType.STATS);
+        stats.setStats("cache.policy=" + cache.getPolicy()
+                + ",cache.unit=" + (cache.isBoundedInBytes() ? "bytes" : "entries")
+                + ",cache.capacity=" + cache.getCapacity()
+                + ",cache.weight=" + cache.getWeight()
+                + ",cache.negative.hits=" + cache.getNegativeHits()
+                + storageStats(cache.getPersistence()));
+        return stats;
+    }
+
+    /**
+     * @param persistence the storage engine of the server
+     * @return the statistics of the engine, each preceded by a comma
+     */
+    private static String storageStats(StorageEngine persistence) {
+        if (!(persistence instanceof KVPersistenceEngine)) {
+            return "";
+        }
+        KVPersistenceEngine engine = (KVPersistenceEngine) persistence;
+        return ",storage.disk.bytes=" + engine.getDiskBytes()
+                + ",storage.live.bytes=" + engine.getLiveBytes()
+                + ",storage.space.amplification=" + String.format(Locale.ROOT, "%.2f", engine.getSpaceAmplification())
+                + ",storage.reclaimed.bytes=" + engine.getCompactor().getReclaimedBytes();
+    }
+
     /**
      * Shuts down the server
      * @return a status message
@@ -195,6 +261,12 @@ public class SocketServer {
         this.closeSocket();
         this.handler.shutDown();
         this.subscriptions.clear();
+        if (kvCache != null) {
+            kvCache.close();
+        }
+        if (replicationHandler != null) {
+            replicationHandler.close();
+        }
 //        logger.info("SHUTTING DOWN: ");
 //        logger.info("My Address is: " + this.info.getAddress());
 //        logger.info("My Port is: " + this.info.getServerPort());
@@ -210,6 +282,8 @@ public class SocketServer {
      */
     public synchronized KVAdminMessageImpl moveData(KVRange range, ServerInfo server) {
         ArrayList<KVPair> pairsToSend = kvCache.getPairsInRange(range);
+        // Tag the pairs hot here, before the deletes below drop them from the cache
+        int hotCount = kvCache.moveHotFirst(pairsToSend);
         HashMap<String, ArrayList<ClientSubscription>> subscribersToSend = new HashMap<>();
         for (KVPair pair : pairsToSend) {
             // Delete it from our storage
@@ -221,7 +295,7 @@ public class SocketServer {
             }
             subscriptions.remove(pair.getKey());
         }
-        return messenger.sendToServer(pairsToSend, subscribersToSend, server);
+        return messenger.sendToServer(pairsToSend, hotCount, subscribersToSend, server);
     }
 
     /**
@@ -250,15 +324,19 @@ public class SocketServer {
     /*                          Server Requests                         */
     /********************************************************************/
     /**
-     * Inserts new key-value pairs to cache
+     * Inserts new key-value pairs to cache. Only the leading hot pairs are
+     * cached, the others are written to the persistence only.
      *
-     * @param kvPairs the key-value pairs to be inserted
+     * @param kvPairs the key-value pairs to be inserted, hottest first
+     * @param hotCount the number of leading pairs that were hot at the sender
      * @param subscribers the subscriptions to be inserted
      * @return the server message response
      */
-    public synchronized KVServerMessageImpl insertNewDataToCache(List<KVPair> kvPairs, Map<String, ArrayList<ClientSubscription>> subscribers) {
-        for (KVPair kv : kvPairs) {
-            KVMessageImpl response = kvCache.put(kv.getKey(), kv.getValue());
+    public synchronized KVServerMessageImpl insertNewDataToCache(List<KVPair> kvPairs, int hotCount, Map<String, ArrayList<ClientSubscription>> subscribers) {
+        // Backwards, so that the hottest pairs are cached last, as the most recently used
+        for (int i = kvPairs.size() - 1; i >= 0; i--) {
+            KVPair kv = kvPairs.get(i);
+            KVMessageImpl response = kvCache.put(kv.getKey(), kv.getValue(), kv.getExpiresAt(), i < hotCount);
             if (response.getStatus().equals(KVMessage.StatusType.PUT_ERROR)) {
                 return new KVServerMessageImpl(KVServerMessage.StatusType.MOVE_DATA_FAILURE);
             }
@@ -395,6 +473,22 @@ public class SocketServer {
         this.kvCache = kvCache;
     }
 
+    /**
+     * Storage configuration getter
+     * @return the storage options of this server
+     */
+    public StorageConfig getStorageConfig() {
+        return storageConfig;
+    }
+
+    /**
+     * Server configuration getter
+     * @return the connection handling options of this server
+     */
+    public ServerConfig getServerConfig() {
+        return serverConfig;
+    }
+
     public ReplicationHandler getReplicationHandler() {
         return this.replicationHandler;
     }
@@ -468,7 +562,8 @@ public class SocketServer {
             return new KVAdminMessageImpl(KVAdminMessage.StatusType.OPERATION_FAILED);
         }
         // Insert the restored data to the cache
-        KVServerMessageImpl response2 = this.insertNewDataToCache(pairsToRestore, new HashMap<String, ArrayList<ClientSubscription>>());
+        // No heat is known for replicated data, so none of it is cached
+        KVServerMessageImpl response2 = this.insertNewDataToCache(pairsToRestore, 0, new HashMap<String, ArrayList<ClientSubscription>>());
         if (response2.getStatus().equals(KVServerMessage.StatusType.MOVE_DATA_FAILURE)) {
             logger.info(getInfo().getID() + " : Insertion error on restoring data");
             return new KVAdminMessageImpl(KVAdminMessage.StatusType.OPERATION_FAILED);
@@ -0,0 +1,60 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ConnectionHandler running every KVRequestHandler on a virtual thread.
+ *
+ * The blocking request handling stays as it is, but a connection costs a
+ * virtual thread instead of a platform thread, so idle clients are cheap.
+ * Virtual threads need a Java 21 runtime, while the server is built for
+ * Java 7, so the executor is looked up by reflection; isSupported tells
+ * whether the running JVM has it. The locks held across disk and network
+ * I/O (the write locks of the KVCache and the GroupCommitter) are
+ * ReentrantLocks, so a blocked virtual thread does not pin its carrier.
+ */
+public class VirtualConnectionHandler extends KVConnectionHandler {
+
+    private static Logger logger = Logger.getLogger(VirtualConnectionHandler.class);
+
+    /**
+     *
+     * @param server the SocketServer instance that carries this handler
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public VirtualConnectionHandler(SocketServer server) {
+        super(server, newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads
+     */
+    public static boolean isSupported() {
+        return virtualThreadFactory() != null;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method factory = virtualThreadFactory();
+        if (factory == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            logger.debug("No virtual threads in this JVM");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package app_kvServer.dataStorage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * ARC cache segment (Megiddo and Modha, FAST 2003).
+ *
+ * Entries seen once are in the LRU list recent, entries seen again move
+ * to the LRU list frequent. Both lists have a ghost list that remembers
+ * only the keys they dropped last. A put of a key on the recent ghost
+ * list means recent was too small, so its target size grows; a put of a
+ * key on the frequent ghost list shrinks it. When full, the segment drops
+ * the least recently used entry of recent if recent is above its target,
+ * else that of frequent. So the segment shifts by itself between recency
+ * and frequency.
+ *
+ * Sizes and targets are weights, so that with Weigher.ENTRIES this is
+ * plain ARC; the target moves by the weight of the key that hit a ghost
+ * list.
+ */
+public class ArcCacheSegment implements CacheSegment {
+
+    private final long capacity;
+    private final Weigher weigher;
+    private final LinkedHashMap<String, String> recent = new LinkedHashMap<>(16, 0.75F, true);
+    private final LinkedHashMap<String, String> frequent = new LinkedHashMap<>(16, 0.75F, true);
+    // Ghost lists, from the keys to their weights
+    private final LinkedHashMap<String, Integer> recentGhosts = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Integer> frequentGhosts = new LinkedHashMap<>();
+    private long recentWeight = 0, frequentWeight = 0, recentGhostWeight = 0, frequentGhostWeight = 0;
+    // Target weight of recent
+    private long recentTarget = 0;
+
+    /**
+     * Constructor
+     * @param capacity the maximum number of entries
+     */
+    public ArcCacheSegment(int capacity) {
+        this(Math.max(1, capacity), Weigher.ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the maximum total weight of the entries
+     * @param weigher the weight of an entry
+     */
+    public ArcCacheSegment(long capacity, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    @Override
+    public String get(String key) {
+        String value = recent.remove(key);
+        if (value != null) {
+            int entryWeight = weigher.weigh(key, value);
+            recentWeight -= entryWeight;
+            frequent.put(key, value);
+            frequentWeight += entryWeight;
+            return value;
+        }
+        return frequent.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        int entryWeight = weigher.weigh(key, value);
+        if (entryWeight > capacity) {
+            remove(key);
+            return;
+        }
+        String old = recent.remove(key);
+        if (old != null) {
+            recentWeight -= weigher.weigh(key, old);
+        } else if ((old = frequent.remove(key)) != null) {
+            frequentWeight -= weigher.weigh(key, old);
+        }
+        if (old != null) {
+            addFrequent(key, value, entryWeight, false);
+            return;
+        }
+        Integer ghostWeight = recentGhosts.remove(key);
+        if (ghostWeight != null) {
+            recentGhostWeight -= ghostWeight;
+            recentTarget = Math.min(capacity, recentTarget
+                    + entryWeight * Math.max(1, frequentGhostWeight / Math.max(1, recentGhostWeight + ghostWeight)));
+            addFrequent(key, value, entryWeight, false);
+            return;
+        }
+        if ((ghostWeight = frequentGhosts.remove(key)) != null) {
+            frequentGhostWeight -= ghostWeight;
+            recentTarget = Math.max(0, recentTarget
+                    - entryWeight * Math.max(1, recentGhostWeight / Math.max(1, frequentGhostWeight + ghostWeight)));
+            addFrequent(key, value, entryWeight, true);
+            return;
+        }
+        if (recentWeight + recentGhostWeight + entryWeight > capacity) {
+            // The recent side holds a full cache worth of keys
+            while (!recentGhosts.isEmpty() && recentWeight + recentGhostWeight + entryWeight > capacity) {
+                recentGhostWeight -= removeEldest(recentGhosts);
+            }
+            while (recentWeight + recentGhostWeight + entryWeight > capacity) {
+                String victim = eldest(recent.keySet());
+                recentWeight -= weigher.weigh(victim, recent.remove(victim));
+            }
+        } else {
+            while (!frequentGhosts.isEmpty() && recentWeight + frequentWeight + recentGhostWeight
+                    + frequentGhostWeight + entryWeight > 2 * capacity) {
+                frequentGhostWeight -= removeEldest(frequentGhosts);
+            }
+        }
+        while (recentWeight + frequentWeight + entryWeight > capacity) {
+            replace(false);
+        }
+        recent.put(key, value);
+        recentWeight += entryWeight;
+    }
+
+    @Override
+    public void remove(String key) {
+        String old;
+        Integer ghostWeight;
+        if ((old = recent.remove(key)) != null) {
+            recentWeight -= weigher.weigh(key, old);
+        } else if ((old = frequent.remove(key)) != null) {
+            frequentWeight -= weigher.weigh(key, old);
+        } else if ((ghostWeight = recentGhosts.remove(key)) != null) {
+            recentGhostWeight -= ghostWeight;
+        } else if ((ghostWeight = frequentGhosts.remove(key)) != null) {
+            frequentGhostWeight -= ghostWeight;
+        }
+    }
+
+    @Override
+    public boolean isFull() {
+        return weight() >= capacity;
+    }
+
+    @Override
+    public long weight() {
+        return recentWeight + frequentWeight;
+    }
+
+    /**
+     * Copies the entries: recent, then frequent, each from least to most
+     * recently used
+     * @return the entries
+     */
+    @Override
+    public LinkedHashMap<String, String> snapshot() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>(recent);
+        entries.putAll(frequent);
+        return entries;
+    }
+
+    @Override
+    public void clear() {
+        recent.clear();
+        frequent.clear();
+        recentGhosts.clear();
+        frequentGhosts.clear();
+        recentWeight = frequentWeight = recentGhostWeight = frequentGhostWeight = 0;
+        recentTarget = 0;
+    }
+
+    /**
+     * Makes room for an entry and adds it to frequent
+     */
+    private void addFrequent(String key, String value, int entryWeight, boolean frequentGhostHit) {
+        while (recentWeight + frequentWeight + entryWeight > capacity) {
+            replace(frequentGhostHit);
+        }
+        frequent.put(key, value);
+        frequentWeight += entryWeight;
+    }
+
+    /**
+     * Drops the least recently used entry of recent or frequent to its ghost list
+     * @param frequentGhostHit whether the key being put is on the frequent ghost list
+     */
+    private void replace(boolean frequentGhostHit) {
+        if (!recent.isEmpty() && (recentWeight > recentTarget
+                || (frequentGhostHit && recentWeight == recentTarget) || frequent.isEmpty())) {
+            String key = eldest(recent.keySet());
+            int entryWeight = weigher.weigh(key, recent.remove(key));
+            recentWeight -= entryWeight;
+            recentGhosts.put(key, entryWeight);
+            recentGhostWeight += entryWeight;
+        } else {
+            String key = eldest(frequent.keySet());
+            int entryWeight = weigher.weigh(key, frequent.remove(key));
+            frequentWeight -= entryWeight;
+            frequentGhosts.put(key, entryWeight);
+            frequentGhostWeight += entryWeight;
+        }
+    }
+
+    /**
+     * Drops the eldest key of a ghost list
+     * @return its weight
+     */
+    private static int removeEldest(LinkedHashMap<String, Integer> ghosts) {
+        return ghosts.remove(eldest(ghosts.keySet()));
+    }
+
+    private static String eldest(Iterable<String> keys) {
+        Iterator<String> iterator = keys.iterator();
+        return iterator.next();
+    }
+}
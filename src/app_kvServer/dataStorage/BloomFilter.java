@@ -0,0 +1,104 @@
+package app_kvServer.dataStorage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over string keys.
+ *
+ * Answers "certainly absent" or "maybe present" for a key. Keys can be
+ * added concurrently with lookups and a key is visible to every lookup
+ * that starts after add() returned, so the filter can be queried without
+ * holding any lock. Keys cannot be removed; the owner rebuilds the filter
+ * once too many removed keys make it imprecise.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long capacity;
+
+    /**
+     * Constructor
+     * @param capacity the number of keys the filter is sized for
+     * @param falsePositiveRate the expected false positive rate at capacity
+     */
+    public BloomFilter(long capacity, double falsePositiveRate) {
+        this.capacity = Math.max(1, capacity);
+        long size = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = Math.max(64, (size + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / this.capacity * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitCount / 64));
+    }
+
+    /**
+     * Adds a key
+     * @param key the key to add
+     */
+    public void add(String key) {
+        long hash1 = hash1(key);
+        long hash2 = hash2(key);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash1 + i * hash2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    /**
+     * Checks a key
+     * @param key the key to check
+     * @return false if the key was certainly never added
+     */
+    public boolean mightContain(String key) {
+        long hash1 = hash1(key);
+        long hash2 = hash2(key);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash1 + i * hash2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Capacity getter
+     * @return the number of keys the filter is sized for
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Size getter
+     * @return the size of the filter in bytes
+     */
+    public long getSizeInBytes() {
+        return bitCount / 8;
+    }
+
+    private long index(long hash) {
+        return (hash & Long.MAX_VALUE) % bitCount;
+    }
+
+    private static long hash1(String key) {
+        // 64 bit mix of the cached String hash code
+        long hash = key.hashCode() * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static long hash2(String key) {
+        // FNV-1a over the characters, forced odd so that probes never repeat
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash | 1;
+    }
+}
@@ -3,8 +3,12 @@ package app_kvServer.dataStorage;
 /**
  * enumeration for available
  * Cache policies
+ *
+ * TINYLFU is W-TinyLFU, see TinyLfuCacheSegment.
+ * ARC and CLOCKPRO adapt between recency and frequency,
+ * see ArcCacheSegment and ClockProCacheSegment.
  */
 public enum CachePolicy {
-    LRU, FIFO, LFU
+    LRU, FIFO, LFU, TINYLFU, ARC, CLOCKPRO
 }
 
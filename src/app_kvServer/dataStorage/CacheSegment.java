@@ -0,0 +1,59 @@
+package app_kvServer.dataStorage;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Entries of one segment of the KVCache, kept under a replacement policy.
+ *
+ * A segment only holds values; the KVCache writes them through to the
+ * persistence. Its capacity bounds the total weight of the entries under
+ * a Weigher, by default the number of entries; an entry heavier than the
+ * whole capacity is not kept. Implementations are not thread-safe, the KVCache locks
+ * the segment around every call.
+ */
+public interface CacheSegment {
+
+    /**
+     * Looks a key up, counting the access for the replacement policy
+     * @param key the key
+     * @return the cached value, or null on a miss
+     */
+    String get(String key);
+
+    /**
+     * Adds or updates an entry, dropping victims until it fits.
+     * The persistence already holds every victim.
+     * @param key the key
+     * @param value the value
+     */
+    void put(String key, String value);
+
+    /**
+     * Drops an entry
+     * @param key the key
+     */
+    void remove(String key);
+
+    /**
+     * @return true if the segment reached its capacity
+     */
+    boolean isFull();
+
+    /**
+     * @return the total weight of the entries
+     */
+    long weight();
+
+    /**
+     * Copies the entries, without counting accesses
+     * @return the entries, in the order the policy keeps them: roughly from
+     *         the next victim to the most valuable entry, which the KVCache
+     *         takes as their heat when warming up another cache
+     */
+    LinkedHashMap<String, String> snapshot();
+
+    /**
+     * Drops all entries
+     */
+    void clear();
+}
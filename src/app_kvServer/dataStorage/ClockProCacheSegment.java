@@ -0,0 +1,304 @@
+package app_kvServer.dataStorage;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK-Pro cache segment (Jiang, Chen and Zhang, USENIX 2005).
+ *
+ * Entries are hot or cold, and cold entries that were dropped stay for a
+ * while as non-resident test entries that remember only their key. All
+ * of them sit on one clock, swept by three hands: the cold hand drops
+ * unreferenced cold entries, turning them into test entries, and
+ * promotes referenced ones to hot; the hot hand demotes unreferenced hot
+ * entries to cold; the test hand, and the hot hand as it passes, forget
+ * test entries. A put of a key still on test was dropped too early, so
+ * the target share of cold entries grows and the key comes back hot; a
+ * test entry forgotten without coming back shrinks the cold share. So the segment shifts by
+ * itself between recency (many cold entries, like LRU) and frequency
+ * (many hot entries).
+ *
+ * Counts and targets are weights, so that with Weigher.ENTRIES this is
+ * plain CLOCK-Pro.
+ *
+ * A hit only sets the reference bit of its entry; the hands move on
+ * puts. The keys are in a ConcurrentHashMap and the bit and value are
+ * volatile, so get needs no lock (see ConcurrentCacheSegment). All other
+ * calls must hold the segment lock.
+ */
+public class ClockProCacheSegment implements ConcurrentCacheSegment {
+
+    private enum Type { HOT, COLD, TEST }
+
+    /**
+     * An entry on the clock
+     */
+    private static class Node {
+        final String key;
+        volatile String value;
+        volatile boolean referenced;
+        Type type;
+        int weight;
+        Node prev, next;
+
+        Node(String key, String value, Type type, int weight) {
+            this.key = key;
+            this.value = value;
+            this.type = type;
+            this.weight = weight;
+        }
+    }
+
+    private final long capacity;
+    private final Weigher weigher;
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private Node handHot, handCold, handTest;
+    private long countHot = 0, countCold = 0, countTest = 0;
+    // Target weight of cold entries, adapted on test hits and test expiries
+    private long coldTarget;
+
+    /**
+     * Constructor
+     * @param capacity the maximum number of resident entries
+     */
+    public ClockProCacheSegment(int capacity) {
+        this(Math.max(1, capacity), Weigher.ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the maximum total weight of the resident entries
+     * @param weigher the weight of an entry
+     */
+    public ClockProCacheSegment(long capacity, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.coldTarget = capacity;
+    }
+
+    @Override
+    public String get(String key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return null;
+        }
+        String value = node.value;
+        if (value != null) {
+            node.referenced = true;
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        int weight = weigher.weigh(key, value);
+        Node node = nodes.get(key);
+        if (weight > capacity) {
+            remove(key);
+            return;
+        }
+        if (node == null) {
+            add(new Node(key, value, Type.COLD, weight));
+            countCold += weight;
+            return;
+        }
+        if (node.type != Type.TEST) {
+            if (node.type == Type.HOT) {
+                countHot += weight - node.weight;
+            } else {
+                countCold += weight - node.weight;
+            }
+            node.weight = weight;
+            node.value = value;
+            node.referenced = true;
+            while (capacity < countHot + countCold) {
+                if (countCold == 0) {
+                    runHandHot();
+                } else {
+                    runHandCold();
+                }
+            }
+            return;
+        }
+        // Reused during its test period: cold entries need more room
+        coldTarget = Math.min(capacity, coldTarget + node.weight);
+        countTest -= node.weight;
+        delete(node);
+        add(new Node(key, value, Type.HOT, weight));
+        countHot += weight;
+    }
+
+    @Override
+    public void remove(String key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        if (node.type == Type.HOT) {
+            countHot -= node.weight;
+        } else if (node.type == Type.COLD) {
+            countCold -= node.weight;
+        } else {
+            countTest -= node.weight;
+        }
+        delete(node);
+    }
+
+    @Override
+    public boolean isFull() {
+        return countHot + countCold >= capacity;
+    }
+
+    @Override
+    public long weight() {
+        return countHot + countCold;
+    }
+
+    /**
+     * Copies the resident entries: the cold ones, then the hot ones, each
+     * in clock order from the hot hand
+     * @return the entries
+     */
+    @Override
+    public LinkedHashMap<String, String> snapshot() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        if (handHot == null) {
+            return entries;
+        }
+        for (Type type : new Type[] { Type.COLD, Type.HOT }) {
+            Node node = handHot;
+            do {
+                String value = node.value;
+                if (node.type == type && value != null) {
+                    entries.put(node.key, value);
+                }
+                node = node.next;
+            } while (node != handHot);
+        }
+        return entries;
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+        handHot = handCold = handTest = null;
+        countHot = countCold = countTest = 0;
+        coldTarget = capacity;
+    }
+
+    /**
+     * Makes room if needed, then puts a node on the clock behind the hot hand
+     */
+    private void add(Node node) {
+        while (capacity < countHot + countCold + node.weight) {
+            if (countCold == 0) {
+                // Hot entries within their share but too heavy for the node
+                runHandHot();
+            } else {
+                runHandCold();
+            }
+        }
+        if (handHot == null) {
+            node.prev = node.next = node;
+            handHot = handCold = handTest = node;
+        } else {
+            node.next = handHot;
+            node.prev = handHot.prev;
+            handHot.prev.next = node;
+            handHot.prev = node;
+        }
+        if (handCold == handHot) {
+            handCold = handCold.prev;
+        }
+        nodes.put(node.key, node);
+    }
+
+    /**
+     * Takes a node off the clock, moving hands on it back by one
+     */
+    private void delete(Node node) {
+        nodes.remove(node.key);
+        node.value = null;
+        if (node.next == node) {
+            handHot = handCold = handTest = null;
+            return;
+        }
+        if (node == handHot) {
+            handHot = node.prev;
+        }
+        if (node == handCold) {
+            handCold = node.prev;
+        }
+        if (node == handTest) {
+            handTest = node.prev;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+    }
+
+    /**
+     * Moves the cold hand by one entry, then lets the hot hand demote
+     * entries until hot ones are within their share
+     */
+    private void runHandCold() {
+        Node node = handCold;
+        if (node.type == Type.COLD) {
+            if (node.referenced) {
+                node.type = Type.HOT;
+                node.referenced = false;
+                countCold -= node.weight;
+                countHot += node.weight;
+            } else {
+                node.type = Type.TEST;
+                node.value = null;
+                countCold -= node.weight;
+                countTest += node.weight;
+                while (capacity < countTest) {
+                    runHandTest();
+                }
+            }
+        }
+        handCold = handCold.next;
+        while (capacity - coldTarget < countHot) {
+            runHandHot();
+        }
+    }
+
+    /**
+     * Moves the hot hand by one entry, also ending the test period of a
+     * test entry it passes
+     */
+    private void runHandHot() {
+        Node node = handHot;
+        if (node.type == Type.HOT) {
+            if (node.referenced) {
+                node.referenced = false;
+            } else {
+                node.type = Type.COLD;
+                countHot -= node.weight;
+                countCold += node.weight;
+            }
+        } else if (node.type == Type.TEST) {
+            forget(node);
+        }
+        handHot = handHot.next;
+    }
+
+    /**
+     * Moves the test hand by one entry
+     */
+    private void runHandTest() {
+        Node node = handTest;
+        if (node.type == Type.TEST) {
+            forget(node);
+        }
+        handTest = handTest.next;
+    }
+
+    private void forget(Node node) {
+        delete(node);
+        countTest -= node.weight;
+        // Forgotten without coming back: cold entries need less room
+        coldTarget = Math.max(1, coldTarget - node.weight);
+    }
+}
@@ -0,0 +1,126 @@
+package app_kvServer.dataStorage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs for stored data, selected with the storage.compression option.
+ *
+ * DEFLATE uses the JDK zlib binding at its fastest level: stored values
+ * are read far more often than written, and decompression speed does not
+ * depend on the level. Every thread keeps its own Deflater and Inflater,
+ * as they hold native buffers that are costly to allocate per call.
+ */
+public enum Compression {
+    NONE,
+    DEFLATE;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * Parses a codec name
+     * @param name the name, in any case
+     * @return the codec
+     * @throws IllegalArgumentException if there is no codec of that name
+     */
+    public static Compression parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Codec lookup by the code stored in a file
+     * @param code the code written by code()
+     * @return the codec
+     * @throws IOException if the code is not valid
+     */
+    static Compression fromCode(int code) throws IOException {
+        if (code < 0 || code >= values().length) {
+            throw new IOException("Unknown compression code " + code);
+        }
+        return values()[code];
+    }
+
+    /**
+     * Code of the codec, as stored in a file
+     * @return the code
+     */
+    byte code() {
+        return (byte) ordinal();
+    }
+
+    /**
+     * Compresses bytes
+     * @param bytes the array holding the data
+     * @param offset the start of the data
+     * @param length the length of the data
+     * @return the compressed data, or null if the codec does not make it smaller
+     */
+    byte[] compress(byte[] bytes, int offset, int length) {
+        if (this == NONE || length == 0) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+        byte[] output = new byte[length];
+        int size = 0;
+        while (!deflater.finished() && size < output.length) {
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return deflater.finished() && size < length ? Arrays.copyOf(output, size) : null;
+    }
+
+    /**
+     * Decompresses bytes produced by compress()
+     * @param bytes the array holding the compressed data
+     * @param offset the start of the compressed data
+     * @param length the length of the compressed data
+     * @param rawLength the length of the data before compression
+     * @return the data
+     * @throws IOException if the compressed data is corrupted
+     */
+    byte[] decompress(byte[] bytes, int offset, int length, int rawLength) throws IOException {
+        if (this == NONE) {
+            if (length != rawLength) {
+                throw new IOException("Stored length " + length + " does not match " + rawLength);
+            }
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        byte[] output = new byte[rawLength];
+        int size = 0;
+        try {
+            while (size < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(output, size, rawLength - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed data", e);
+        }
+        if (size != rawLength) {
+            throw new IOException("Corrupted compressed data");
+        }
+        return output;
+    }
+}
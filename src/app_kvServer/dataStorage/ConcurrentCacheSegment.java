@@ -0,0 +1,12 @@
+package app_kvServer.dataStorage;
+
+/**
+ * A cache segment whose get may be called without the segment lock.
+ *
+ * A hit of such a segment only marks the entry, so the KVCache lets GETs
+ * run concurrently with each other and with the locked calls that change
+ * the segment. A get racing with a change may miss an entry that is
+ * just being added or see the value it replaces.
+ */
+public interface ConcurrentCacheSegment extends CacheSegment {
+}
@@ -0,0 +1,108 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVPair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expiry times of stored values.
+ *
+ * A value put with a TTL is stored as MARK expiresAt MARK value, with
+ * expiresAt in milliseconds since the epoch, so every storage engine
+ * keeps it, compresses it and recovers it like any other value. A value
+ * without a TTL is stored as it is, unless it starts with MARK itself,
+ * in which case it is wrapped with expiresAt 0, so that stored values are
+ * never ambiguous.
+ */
+public final class Expiry {
+
+    /**
+     * Expiry time of values that never expire
+     */
+    public static final long NEVER = 0;
+
+    private static final char MARK = '\u0000';
+
+    private Expiry() {
+    }
+
+    /**
+     * Expiry time of a value put with a TTL
+     * @param ttl the time to live in seconds, 0 for none
+     * @param now the current time in milliseconds
+     * @return the expiry time, or NEVER
+     */
+    public static long fromTtl(long ttl, long now) {
+        return ttl > 0 ? now + ttl * 1000 : NEVER;
+    }
+
+    /**
+     * Stored form of a value
+     * @param value the value
+     * @param expiresAt the expiry time, or NEVER
+     * @return the value to store
+     */
+    public static String wrap(String value, long expiresAt) {
+        if (expiresAt == NEVER && (value.isEmpty() || value.charAt(0) != MARK)) {
+            return value;
+        }
+        return MARK + Long.toString(expiresAt) + MARK + value;
+    }
+
+    /**
+     * Value of a stored value
+     * @param stored the stored value
+     * @return the value as it was put
+     */
+    public static String unwrap(String stored) {
+        if (!isWrapped(stored)) {
+            return stored;
+        }
+        return stored.substring(stored.indexOf(MARK, 1) + 1);
+    }
+
+    /**
+     * Expiry time of a stored value
+     * @param stored the stored value
+     * @return the expiry time, or NEVER
+     */
+    public static long expiresAt(String stored) {
+        if (!isWrapped(stored)) {
+            return NEVER;
+        }
+        return Long.parseLong(stored.substring(1, stored.indexOf(MARK, 1)));
+    }
+
+    /**
+     * Checks whether a stored value has expired
+     * @param stored the stored value
+     * @param now the current time in milliseconds
+     * @return true if the value must no longer be visible
+     */
+    public static boolean isExpired(String stored, long now) {
+        long expiresAt = expiresAt(stored);
+        return expiresAt != NEVER && expiresAt <= now;
+    }
+
+    /**
+     * Pairs as they were put, without the expired ones
+     * @param stored pairs holding stored values
+     * @param now the current time in milliseconds
+     * @return the pairs that have not expired, with their expiry times
+     */
+    public static ArrayList<KVPair> visible(List<KVPair> stored, long now) {
+        ArrayList<KVPair> pairs = new ArrayList<>(stored.size());
+        for (KVPair pair : stored) {
+            long expiresAt = expiresAt(pair.getValue());
+            if (expiresAt == NEVER || expiresAt > now) {
+                pairs.add(new KVPair(pair.getKey(), unwrap(pair.getValue()), expiresAt));
+            }
+        }
+        return pairs;
+    }
+
+    private static boolean isWrapped(String stored) {
+        return !stored.isEmpty() && stored.charAt(0) == MARK;
+    }
+}
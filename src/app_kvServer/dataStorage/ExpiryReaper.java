@@ -0,0 +1,149 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVMessage;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background removal of expired values.
+ *
+ * Expired values are invisible as soon as they expire; the reaper only
+ * reclaims their space. It walks the hash ring in SLICES slices, one
+ * slice per run on a low priority thread, so every run only touches the
+ * keys of one slice and holds the locks of the store for a short time.
+ * A whole ring is walked every SLICES runs.
+ */
+public class ExpiryReaper implements Runnable {
+
+    /**
+     * A store whose expired values can be reaped
+     */
+    public interface Target {
+
+        /**
+         * Removes the values of a slice of the ring that have expired
+         * @param slice the slice of the ring to walk
+         * @param now the current time in milliseconds
+         * @return the number of removed values
+         */
+        int reapExpired(KVRange slice, long now);
+    }
+
+    static final int SLICES = 256;
+    private static final int HASH_LENGTH = 32;
+
+    private final String name;
+    private final Target target;
+    private ScheduledExecutorService executor;
+    private int nextSlice = 0;
+    private static Logger logger = Logger.getLogger(ExpiryReaper.class);
+
+    /**
+     * Constructor
+     * @param name the name of the store, used for the thread name
+     * @param target the store to reap
+     */
+    public ExpiryReaper(String name, Target target) {
+        this.name = name;
+        this.target = target;
+    }
+
+    /**
+     * Starts reaping in the background
+     * @param interval the milliseconds between two runs, 0 to disable reaping
+     */
+    public synchronized void start(long interval) {
+        if (interval <= 0 || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Reaper-" + name);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reaping, waiting for a running slice to finish
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Reaps the next slice of the ring
+     */
+    @Override
+    public void run() {
+        KVRange slice = slice(nextSlice);
+        nextSlice = (nextSlice + 1) % SLICES;
+        try {
+            int reaped = target.reapExpired(slice, System.currentTimeMillis());
+            if (reaped > 0) {
+                logger.debug("Reaped " + reaped + " expired values of " + name + " in " + slice);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Cannot reap expired values of " + name, e);
+        }
+    }
+
+    /**
+     * Removes the expired values of a slice of the ring from a store.
+     * The caller must keep other writers of the store out meanwhile.
+     * @param store the store, holding values in the form of Expiry.wrap
+     * @param slice the slice of the ring to walk
+     * @param now the current time in milliseconds
+     * @return the keys of the removed values
+     */
+    public static List<String> reap(StorageEngine store, KVRange slice, long now) {
+        List<String> reaped = new ArrayList<>();
+        for (KVPair pair : store.get(slice)) {
+            if (Expiry.isExpired(pair.getValue(), now)
+                    && store.remove(pair.getKey()).getStatus() == KVMessage.StatusType.DELETE_SUCCESS) {
+                reaped.add(pair.getKey());
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Slice of the ring
+     * @param index the index of the slice, below SLICES
+     * @return the range of the hashes starting with the two hex digits of the index
+     */
+    static KVRange slice(int index) {
+        String prefix = String.format("%02X", index);
+        return new KVRange(pad(prefix, '0'), pad(prefix, 'F'));
+    }
+
+    private static String pad(String prefix, char digit) {
+        StringBuilder hash = new StringBuilder(prefix);
+        while (hash.length() < HASH_LENGTH) {
+            hash.append(digit);
+        }
+        return MD5Hash.normalize(hash.toString(), HASH_LENGTH);
+    }
+}
@@ -0,0 +1,98 @@
+package app_kvServer.dataStorage;
+
+/**
+ * Count-Min sketch of the access frequencies of keys, for TinyLFU.
+ *
+ * Every key is counted in four 4-bit counters, one per row, and its
+ * frequency is the smallest of them, so a frequency is at most 15 and
+ * only overestimated by collisions. The counters of a key are packed
+ * into different longs of one table. Once 10 times the cache capacity
+ * accesses were counted, all counters are halved (the reset of TinyLFU),
+ * so the sketch follows changes of the popular keys.
+ *
+ * This class is not thread-safe, the cache segment owning it is locked.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Constructor
+     * @param capacity the number of entries of the cache
+     */
+    public FrequencySketch(int capacity) {
+        int size = 16;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        table = new long[size];
+        sampleSize = 10 * Math.max(capacity, 1);
+    }
+
+    /**
+     * Estimated frequency of a key
+     * @param key the key
+     * @return the estimate, from 0 to 15
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int offset = (start + row) << 2;
+            int count = (int) ((table[indexOf(hash, row)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts an access to a key
+     * @param key the key
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = indexOf(hash, row);
+            int offset = (start + row) << 2;
+            if (((table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all counters
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long index = (hash + SEEDS[row]) * SEEDS[row];
+        index += index >>> 32;
+        return ((int) index) & (table.length - 1);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
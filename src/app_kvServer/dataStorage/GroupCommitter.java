@@ -0,0 +1,212 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background thread making the appended log records durable.
+ *
+ * Writers append their records to the buffered active segment and then
+ * wait here. The committer writes and fsyncs everything appended so far
+ * in one go, so all writers that arrived while the previous fsync was
+ * running share the next one (group commit).
+ *
+ * The policy decides when records are considered durable:
+ * NONE never forces the log (the OS writes it back on its own),
+ * INTERVAL forces it every few milliseconds without making writers wait,
+ * BATCH forces it as soon as there is something to write and writers
+ * only return once their records are on disk.
+ *
+ * Writers wait on a Condition rather than a monitor, so that a virtual
+ * thread waiting for the fsync does not pin its carrier.
+ *
+ * Once an fsync fails the log is in an unknown state: the committer stops
+ * syncing and the engine refuses further appends (see getFailure()).
+ */
+public class GroupCommitter implements Runnable {
+
+    public enum Policy { NONE, INTERVAL, BATCH }
+
+    private final Policy policy;
+    private final long intervalMillis;
+    private final String name;
+    private LogSegment segment;
+    private long appended;
+    private long durable;
+    private IOException failure;
+    private boolean running;
+    private Thread thread;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when records are appended or made durable, or the committer stops
+    private final Condition changed = lock.newCondition();
+    private static Logger logger = Logger.getLogger(GroupCommitter.class);
+
+    /**
+     * Constructor
+     * @param policy the sync policy
+     * @param intervalMillis the time between two syncs under the INTERVAL policy
+     * @param name the name of the log, used for the thread name
+     * @param lastSequence the sequence number of the last record already on disk
+     */
+    public GroupCommitter(Policy policy, long intervalMillis, String name, long lastSequence) {
+        this.policy = policy;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.name = name;
+        this.appended = lastSequence;
+        this.durable = lastSequence;
+    }
+
+    /**
+     * Starts the committer thread, unless the policy never syncs
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (policy == Policy.NONE || running) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this, "GroupCommitter-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the engine after each append
+     * @param segment the segment the record was appended to
+     * @param sequence the sequence number of the record
+     */
+    public void appended(LogSegment segment, long sequence) {
+        lock.lock();
+        try {
+            this.segment = segment;
+            this.appended = sequence;
+            if (policy == Policy.BATCH) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Failure getter
+     * @return the error of the fsync that failed, or null if none did
+     */
+    public IOException getFailure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every record appended before the call is durable.
+     * Only the BATCH policy makes the caller wait.
+     * @return false if the log could not be synced
+     */
+    public boolean awaitDurable() {
+        lock.lock();
+        try {
+            if (policy != Policy.BATCH || !running) {
+                return failure == null;
+            }
+            long target = appended;
+            while (durable < target && failure == null && running) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return durable >= target;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LogSegment toSync;
+            long target;
+            lock.lock();
+            try {
+                try {
+                    if (policy == Policy.BATCH) {
+                        // After a failure there is nothing left to sync until close
+                        while (running && (appended == durable || failure != null)) {
+                            changed.await();
+                        }
+                    } else if (running) {
+                        changed.await(intervalMillis, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (appended == durable || failure != null) {
+                    if (!running) {
+                        changed.signalAll();
+                        return;
+                    }
+                    continue;
+                }
+                toSync = segment;
+                target = appended;
+            } finally {
+                lock.unlock();
+            }
+            // Older segments were synced when the engine rolled over them
+            try {
+                toSync.sync();
+                lock.lock();
+                try {
+                    durable = Math.max(durable, target);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                logger.error("Cannot sync " + toSync.getFile().getName() + ", rejecting further writes", e);
+                lock.lock();
+                try {
+                    failure = e;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the committer after a last sync of the pending records
+     */
+    public void close() {
+        Thread toJoin;
+        lock.lock();
+        try {
+            running = false;
+            changed.signalAll();
+            toJoin = thread;
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toJoin != null) try {
+            toJoin.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The hot keys of a KVCache, saved when the server shuts down so that the
+ * cache can be warmed up when it starts again.
+ *
+ * Only keys are saved, hottest first; their values are read back from the
+ * persistence, which may have changed since. Like an IndexCheckpoint, the
+ * file is written to a temporary name and renamed, and a missing, partial
+ * or corrupt file just leaves the cache cold.
+ */
+public class HotKeyFile {
+
+    private static final int MAGIC = 0x4B56484B;
+    private static final int VERSION = 1;
+    private static Logger logger = Logger.getLogger(HotKeyFile.class);
+
+    /**
+     * Writes the hot keys atomically
+     * @param file the file
+     * @param keys the keys, hottest first
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(File file, List<String> keys) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tmp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32());
+        DataOutputStream output = new DataOutputStream(checked);
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(keys.size());
+            for (String key : keys) {
+                byte[] bytes = key.getBytes(LogRecord.CHARSET);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+            output.writeLong(checked.getChecksum().getValue());
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot install hot keys " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Reads the hot keys
+     * @param file the file
+     * @return the keys, hottest first, or no keys if there is no valid file
+     */
+    public static List<String> read(File file) {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        CheckedInputStream checked = null;
+        try {
+            checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+            DataInputStream input = new DataInputStream(checked);
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                logger.warn("Ignoring hot keys with unknown format " + file.getName());
+                return Collections.emptyList();
+            }
+            int count = input.readInt();
+            List<String> keys = new ArrayList<>(Math.max(0, Math.min(count, 1 << 16)));
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[input.readInt()];
+                input.readFully(key);
+                keys.add(new String(key, LogRecord.CHARSET));
+            }
+            long computed = checked.getChecksum().getValue();
+            if (input.readLong() != computed) {
+                logger.warn("Ignoring hot keys with bad checksum " + file.getName());
+                return Collections.emptyList();
+            }
+            return keys;
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable hot keys " + file.getName(), e);
+            return Collections.emptyList();
+        } finally {
+            if (checked != null) try {
+                checked.close();
+            } catch (IOException e) {
+                logger.error("Cannot close hot keys " + file.getName(), e);
+            }
+        }
+    }
+}
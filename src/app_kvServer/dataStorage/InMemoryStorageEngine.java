@@ -0,0 +1,97 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage engine keeping all entries on the heap only.
+ *
+ * Nothing is written to disk, so the store is lost on shutdown. Useful as
+ * a baseline in benchmarks and for servers whose data is fully replicated.
+ * Lookups do not lock; writes are serialized to keep the ring index in
+ * step with the entries.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+
+    private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+    private final RingIndex ring = new RingIndex();
+    private static Logger logger = Logger.getLogger(InMemoryStorageEngine.class);
+
+    @Override
+    public KVMessageImpl get(String key) {
+        String value = entries.get(key);
+        if (value != null)
+            return new KVMessageImpl(key, value, KVMessage.StatusType.GET_SUCCESS);
+        return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+    }
+
+    @Override
+    public synchronized KVMessageImpl put(String key, String value) {
+        String oldValue = entries.put(key, value);
+        if (oldValue == null) {
+            ring.add(key);
+            return new KVMessageImpl(key, value, KVMessage.StatusType.PUT_SUCCESS);
+        }
+        return new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
+    }
+
+    @Override
+    public synchronized KVMessageImpl remove(String key) {
+        String oldValue = entries.remove(key);
+        if (oldValue == null)
+            return new KVMessageImpl(key, null, KVMessage.StatusType.DELETE_ERROR);
+        ring.remove(key);
+        return new KVMessageImpl(key, oldValue, KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    @Override
+    public synchronized KVMessageImpl remove(KVRange range) {
+        logger.info("Starting range removal for range " + range.getLow() + ":" + range.getHigh());
+        for (String key : ring.keysIn(range)) {
+            entries.remove(key);
+            ring.remove(key);
+        }
+        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    @Override
+    public synchronized List<KVPair> get(KVRange range) {
+        List<KVPair> pairs = new ArrayList<>();
+        for (String key : ring.keysIn(range)) {
+            pairs.add(new KVPair(key, entries.get(key)));
+        }
+        return pairs;
+    }
+
+    @Override
+    public boolean mightContain(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public boolean awaitDurable() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized void cleanUp() {
+        entries.clear();
+        ring.clear();
+    }
+}
@@ -0,0 +1,163 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the storage index written next to the log segments.
+ *
+ * On restart the index is loaded from the checkpoint and only the log
+ * written after the checkpoint mark (the tail) has to be replayed, instead
+ * of every segment. The file is written to a temporary name and renamed
+ * over the previous checkpoint, so a crash never leaves a half-written one.
+ */
+public class IndexCheckpoint {
+
+    private static final int MAGIC = 0x4B56434B;
+    private static final int VERSION = 1;
+
+    private final Map<String, RecordPointer> index;
+    private final long nextSequence;
+    private final int markSegmentId;
+    private final long markOffset;
+    private static Logger logger = Logger.getLogger(IndexCheckpoint.class);
+
+    /**
+     * Constructor
+     * @param index the key to record mapping at the time of the checkpoint
+     * @param nextSequence the next sequence number to be assigned
+     * @param markSegmentId the active segment at the time of the checkpoint
+     * @param markOffset the size of the active segment at the time of the checkpoint
+     */
+    public IndexCheckpoint(Map<String, RecordPointer> index, long nextSequence, int markSegmentId, long markOffset) {
+        this.index = index;
+        this.nextSequence = nextSequence;
+        this.markSegmentId = markSegmentId;
+        this.markOffset = markOffset;
+    }
+
+    /**
+     * Writes the checkpoint atomically
+     * @param file the checkpoint file
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tmp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32());
+        DataOutputStream output = new DataOutputStream(checked);
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(nextSequence);
+            output.writeInt(markSegmentId);
+            output.writeLong(markOffset);
+            output.writeInt(index.size());
+            for (Map.Entry<String, RecordPointer> entry : index.entrySet()) {
+                byte[] key = entry.getKey().getBytes(LogRecord.CHARSET);
+                RecordPointer pointer = entry.getValue();
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeInt(pointer.getSegmentId());
+                output.writeLong(pointer.getOffset());
+                output.writeInt(pointer.getLength());
+                output.writeLong(pointer.getSequence());
+            }
+            output.writeLong(checked.getChecksum().getValue());
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot install checkpoint " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint
+     * @param file the checkpoint file
+     * @return the checkpoint, or null if there is none or it is not valid
+     */
+    public static IndexCheckpoint read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        CheckedInputStream checked = null;
+        try {
+            checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+            DataInputStream input = new DataInputStream(checked);
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                logger.warn("Ignoring checkpoint with unknown format " + file.getName());
+                return null;
+            }
+            long nextSequence = input.readLong();
+            int markSegmentId = input.readInt();
+            long markOffset = input.readLong();
+            int entries = input.readInt();
+            HashMap<String, RecordPointer> index = new HashMap<>(Math.max(16, entries * 4 / 3 + 1));
+            for (int i = 0; i < entries; i++) {
+                byte[] key = new byte[input.readInt()];
+                input.readFully(key);
+                index.put(new String(key, LogRecord.CHARSET),
+                        new RecordPointer(input.readInt(), input.readLong(), input.readInt(), input.readLong()));
+            }
+            long computed = checked.getChecksum().getValue();
+            if (input.readLong() != computed) {
+                logger.warn("Ignoring checkpoint with bad checksum " + file.getName());
+                return null;
+            }
+            return new IndexCheckpoint(index, nextSequence, markSegmentId, markOffset);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable checkpoint " + file.getName(), e);
+            return null;
+        } finally {
+            if (checked != null) try {
+                checked.close();
+            } catch (IOException e) {
+                logger.error("Cannot close checkpoint " + file.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Index getter
+     * @return the key to record mapping of the checkpoint
+     */
+    public Map<String, RecordPointer> getIndex() {
+        return index;
+    }
+
+    /**
+     * Sequence getter
+     * @return the next sequence number at the time of the checkpoint
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Mark segment getter
+     * @return the active segment at the time of the checkpoint
+     */
+    public int getMarkSegmentId() {
+        return markSegmentId;
+    }
+
+    /**
+     * Mark offset getter
+     * @return the size of the active segment at the time of the checkpoint
+     */
+    public long getMarkOffset() {
+        return markOffset;
+    }
+}
@@ -2,229 +2,447 @@ package app_kvServer.dataStorage;
 
 import app_kvServer.ClientSubscription;
 import app_kvServer.SocketServer;
-import common.ServerInfo;
 import common.messages.KVMessage;
 import common.messages.KVMessageImpl;
 import common.messages.KVPair;
 import common.utils.KVRange;
-import hashing.MD5Hash;
 import helpers.StorageException;
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static app_kvServer.dataStorage.CachePolicy.*;
 
 /**
- * A KV cache implementation, based on LinkedHashMap.
+ * A KV cache implementation, split into lock-striped segments.
  *
- * The cache has a fixed maximum number of elements (cacheSize).
- * If the cache is full and another entry is added, according to the policy
- * an entry has to be dropped.
+ * The cache has a fixed maximum number of elements (cacheSize), shared
+ * evenly by its segments, or with cache.max.bytes in the storage
+ * configuration a maximum size in bytes instead, which bounds the sum of
+ * Weigher.BYTES of its entries. Every key belongs to one segment, and if the
+ * segment is full when another entry is added, according to the policy
+ * an entry of that segment has to be dropped (see CacheSegment). Small
+ * caches have a single segment, so that the policy holds exactly; larger
+ * ones up to MAX_SEGMENTS, each of at least MIN_SEGMENT_SIZE entries.
  *
- * This class is thread-safe. All methods of this class are synchronized.
+ * Every segment has two locks. Its monitor only guards the entries, so a
+ * hit takes it for a map lookup and GETs of other segments never wait;
+ * hits of a ConcurrentCacheSegment (CLOCKPRO) take no lock at all.
+ * Its write lock orders the writes of the segment's keys: a write holds
+ * it while it goes through to the persistence and gossips to the
+ * replicas, so writes to different segments proceed in parallel. Being
+ * held across that I/O, it is a ReentrantLock rather than a monitor,
+ * which would pin the carrier of a virtual thread (see
+ * VirtualConnectionHandler). A miss reads the persistence without any
+ * lock and only caches the value if no write to the segment came in
+ * between.
+ *
+ * With cache.writeback in the storage configuration, the cache writes
+ * back instead: a write only marks its key dirty in the segment and
+ * queues it to a WriteBackFlusher, which writes the latest value to the
+ * persistence in the background. A dirty value stays in the dirty map of
+ * its segment, not subject to eviction, until it is flushed, so evicting
+ * any entry never writes, and reads see the dirty value first. A value
+ * the store refuses stays dirty and is retried later. Writes no
+ * longer wait for the disk, and the writes that are still queued are
+ * lost if the server crashes.
+ *
+ * Every segment also remembers its recent misses in a NegativeCache, so
+ * that GETs of keys that do not exist do not probe the persistence each
+ * time. Every write of a key, including data moved in, forgets its miss.
+ *
+ * The snapshots of the segments rank the cached keys by heat. Data moved
+ * to another server is sent hottest first, and the receiver only caches
+ * the pairs tagged as hot (see moveHotFirst), so a MOVE_DATA neither
+ * arrives cold nor floods the receiver's cache. A durable server saves
+ * its hot keys in a HotKeyFile on close and warms up from it on start.
+ *
+ * Values put with a TTL are kept in the cache and the persistence in the
+ * form of Expiry.wrap. They are invisible once expired, and an
+ * ExpiryReaper removes them in the background.
+ *
+ * This class is thread-safe.
  */
-public class KVCache {
+public class KVCache implements ExpiryReaper.Target, WriteBackFlusher.Target {
+
+    static final int MAX_SEGMENTS = 16;
+    static final int MIN_SEGMENT_SIZE = 64;
+    // Entry size assumed to split a cache bounded in bytes into segments
+    static final int EXPECTED_ENTRY_BYTES = 256;
+    // Dirty value of a deleted key, compared by reference
+    private static final String REMOVED = new String("removed");
+    private static final String HOT_KEYS_SUFFIX = ".hot";
 
-    private SocketServer server;
-    private LinkedHashMap<String,String> map;
-    private LFUCache lfu;
-    private KVPersistenceEngine persistence;
+    /**
+     * A segment with its locks
+     */
+    private static class Segment {
+        final CacheSegment entries;
+        final ReentrantLock writeLock = new ReentrantLock();
+        // Writes applied to the entries, changed under the segment monitor
+        volatile long writes = 0;
+        // Values not flushed yet when writing back, guarded by the segment monitor
+        final HashMap<String, String> dirty = new HashMap<>();
+        // Dirty keys whose enqueue was interrupted, queued by their next write
+        final HashSet<String> unqueued = new HashSet<>();
+        // Recent misses, invalidated under the segment monitor by every write
+        final NegativeCache misses;
+
+        Segment(CacheSegment entries, int missCapacity) {
+            this.entries = entries;
+            this.misses = new NegativeCache(missCapacity);
+        }
+    }
+
+    private final SocketServer server;
+    private final Segment[] segments;
+    private final StorageEngine persistence;
+    private final ExpiryReaper reaper;
+    // Null when writing through
+    private final WriteBackFlusher flusher;
+    private final ReentrantLock flushLock = new ReentrantLock();
     final Integer cacheSize;
+    private final long capacity;
+    private final Weigher weigher;
+    private final int warmUpSize;
+    // Null unless the hot keys are saved for a restart
+    private final File hotKeyFile;
     CachePolicy policy;
     private static Logger logger = Logger.getLogger(KVCache.class);
 
 
     /**
-     * Creates a new LRU or FIFO or LFU cache according to the cache replacing policy.
+     * Creates a new LRU or FIFO or LFU or TINYLFU or ARC or CLOCKPRO cache according to the cache replacing policy,
+     * in front of a store of its own that is neither durable nor replicated.
      * @param cacheSize the maximum number of entries that will be kept in this cache.
      */
     public KVCache (final int cacheSize, String Policy) throws StorageException {
+        this(cacheSize, Policy, StorageEngines.open("_cache", StorageConfig.defaults()));
+    }
 
-        this.server = null;
-        this.cacheSize = cacheSize;
-        this.persistence = new KVPersistenceEngine(server);
-        switch (policy = valueOf(Policy)) {
-            case LRU:
-                map = new LinkedHashMap<String, String>(cacheSize +1, 1F, true) {
-                    // (an anonymous inner class)
-                    private static final long serialVersionUID = 1;
-                    @Override protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
-                        return size() > KVCache.this.cacheSize; }};
-                break;
-            case FIFO:
-                map = new LinkedHashMap<String, String>(cacheSize +1, 1F, false) {
-                    // (an anonymous inner class)
-                    private static final long serialVersionUID = 1;
-                    @Override protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
-                        return size() > KVCache.this.cacheSize; }};
-                break;
-            case LFU:
-                lfu = new LFUCache(cacheSize, persistence);
-                break;
-            default:
-                System.out.println("No such Cache replacement policy.");
-                break;
-
-        }
-
+    /**
+     * Creates a new LRU or FIFO or LFU or TINYLFU or ARC or CLOCKPRO cache according to the cache replacing policy,
+     * in front of a given store that is not replicated.
+     * @param cacheSize the maximum number of entries that will be kept in this cache.
+     * @param persistence the store behind the cache
+     */
+    public KVCache (final int cacheSize, String Policy, StorageEngine persistence) {
+        this(cacheSize, Policy, persistence, null, StorageConfig.defaults());
     }
 
+    /**
+     * Creates a new LRU or FIFO or LFU or TINYLFU or ARC or CLOCKPRO cache according to the cache replacing policy,
+     * in front of a given store that is not replicated, with the cache options of a storage configuration.
+     * @param cacheSize the maximum number of entries that will be kept in this cache.
+     * @param persistence the store behind the cache
+     * @param config the storage configuration, for cache.max.bytes and cache.writeback
+     */
+    public KVCache (final int cacheSize, String Policy, StorageEngine persistence, StorageConfig config) {
+        this(cacheSize, Policy, persistence, null, config);
+    }
 
     /**
-     * Creates a new LRU or FIFO or LFU cache according to the cache replacing policy.
+     * Creates a new LRU or FIFO or LFU or TINYLFU or ARC or CLOCKPRO cache according to the cache replacing policy.
      * @param cacheSize the maximum number of entries that will be kept in this cache.
      */
     public KVCache (final int cacheSize, String Policy, SocketServer server) throws StorageException {
+        this(cacheSize, Policy, StorageEngines.open(server), server, server.getStorageConfig());
+    }
 
+    private KVCache (int cacheSize, String Policy, StorageEngine persistence, SocketServer server, StorageConfig config) {
         this.server = server;
         this.cacheSize = cacheSize;
-        this.persistence = new KVPersistenceEngine(server);
-        switch (policy = valueOf(Policy)) {
+        this.persistence = persistence;
+        this.policy = valueOf(Policy);
+        long maxBytes = config.getCacheMaxBytes();
+        this.weigher = maxBytes > 0 ? Weigher.BYTES : Weigher.ENTRIES;
+        this.capacity = maxBytes > 0 ? maxBytes : cacheSize;
+        int expectedEntries = maxBytes > 0
+                ? (int) Math.min(Integer.MAX_VALUE, maxBytes / EXPECTED_ENTRY_BYTES) : cacheSize;
+        int count = segmentCount(expectedEntries);
+        int missCapacity = (config.getNegativeCacheSize() + count - 1) / count;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // The first segments take the remainder
+            long segmentCapacity = capacity / count + (i < capacity % count ? 1 : 0);
+            segments[i] = new Segment(newSegment(policy, segmentCapacity, Math.max(1, expectedEntries / count), weigher),
+                    missCapacity);
+        }
+        String name = server == null ? "cache" : String.valueOf(server.getInfo().getServerPort());
+        this.reaper = new ExpiryReaper(name, this);
+        this.reaper.start(config.getReapInterval());
+        if (config.isCacheWriteBack()) {
+            this.flusher = new WriteBackFlusher(name, this, config.getWriteBackQueueSize());
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+        this.warmUpSize = config.getWarmUpSize();
+        if (server != null && config.isDurable() && warmUpSize > 0) {
+            this.hotKeyFile = new File("data.store" + name + HOT_KEYS_SUFFIX);
+            long start = System.currentTimeMillis();
+            int loaded = warmUp(HotKeyFile.read(hotKeyFile));
+            if (loaded > 0) {
+                logger.info("Warmed up cache " + name + " with " + loaded + " hot keys in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        } else {
+            this.hotKeyFile = null;
+        }
+    }
+
+    /**
+     * Number of segments of a cache
+     * @param cacheSize the maximum number of entries of the cache
+     * @return a power of two, so that MIN_SEGMENT_SIZE entries fit in every segment
+     */
+    static int segmentCount(int cacheSize) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && cacheSize / (count * 2) >= MIN_SEGMENT_SIZE) {
+            count *= 2;
+        }
+        return count;
+    }
+
+    private static CacheSegment newSegment(CachePolicy policy, long capacity, int expectedEntries, Weigher weigher) {
+        switch (policy) {
             case LRU:
-                map = new LinkedHashMap<String, String>(cacheSize +1, 1F, true) {
-                    // (an anonymous inner class)
-                    private static final long serialVersionUID = 1;
-                    @Override protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
-                        return size() > KVCache.this.cacheSize; }};
-                break;
+                return new LinkedCacheSegment(capacity, true, weigher);
             case FIFO:
-                map = new LinkedHashMap<String, String>(cacheSize +1, 1F, false) {
-                    // (an anonymous inner class)
-                    private static final long serialVersionUID = 1;
-                    @Override protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
-                        return size() > KVCache.this.cacheSize; }};
-                break;
+                return new LinkedCacheSegment(capacity, false, weigher);
             case LFU:
-                lfu = new LFUCache(cacheSize, persistence);
-                break;
+                return new LFUCache(capacity, weigher);
+            case TINYLFU:
+                return new TinyLfuCacheSegment(capacity, expectedEntries, weigher);
+            case ARC:
+                return new ArcCacheSegment(capacity, weigher);
+            case CLOCKPRO:
+                return new ClockProCacheSegment(capacity, weigher);
             default:
-                System.out.println("No such Cache replacement policy.");
-                break;
-
+                throw new IllegalArgumentException("No such Cache replacement policy " + policy);
         }
+    }
 
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
     }
 
     /**
      * Retrieves an entry from the cache.
-     * e.g. If we use LRU policy: The retrieved entry becomes the MRU (most recently used) entry.
+     * e.g. If we use LRU policy: The retrieved entry becomes the MRU (most recently used) entry
+     * of its segment.
      * @param key the key whose the associated KVMessage is to be returned by the function.
      * @return    KVMessage representation of KV found, retrieved from Cache or Disk (File)
      */
-    public synchronized KVMessageImpl get (String key) {
-
-        if (policy == LFU) {
-            // LFU does the job
-            return lfu.getLfuCacheEntry(key); // Just forward the request to the other cache
+    public KVMessageImpl get (String key) {
+        Segment segment = segmentFor(key);
+        // The cache only holds stored keys, so a key the store certainly
+        // lacks is answered without taking any lock, unless it is not flushed yet
+        if (!persistence.mightContain(key) && (flusher == null || dirtyValue(segment, key) == null)) {
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
         }
-        else {
-            // "This" does the job
-            if (map.containsKey(key)) {
-                // Cache has the key
-                return new KVMessageImpl(key, map.get(key), KVMessage.StatusType.GET_SUCCESS);
+        String stored;
+        long writes;
+        if (segment.entries instanceof ConcurrentCacheSegment) {
+            // Read the counter first, so that a write racing with the lookup is noticed
+            writes = segment.writes;
+            stored = segment.entries.get(key);
+        } else {
+            synchronized (segment) {
+                stored = segment.entries.get(key);
+                writes = segment.writes;
             }
-            else {
-                // Cache miss.... Forward request to KVPersistenceEngine.
+        }
+        if (stored == null) {
+            // Taken before the lookup, so that a write racing with it keeps the miss from being remembered
+            long missVersion = segment.misses.version();
+            if (flusher != null) {
+                // An evicted value that is not flushed yet
+                stored = dirtyValue(segment, key);
+                if (stored == REMOVED) {
+                    return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+                }
+            }
+            if (stored == null) {
+                if (segment.misses.contains(key)) {
+                    return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+                }
+                // Cache miss.... Forward request to the persistence.
                 KVMessageImpl result = persistence.get(key);
-                if (result.getStatus().equals(KVMessage.StatusType.GET_SUCCESS)) {
-                    // Key found in persistence file. Put it in cache too.
-                    if (!isFull()) {
-                        map.put(key, result.getValue());
-                    }
-                    else {
-                        // Find victim, write it to persistence and
-                        String victimKey = findVictimKey();
-
-                        // Write victim to persistence
-                        // Then delete it from cache and add new (k,v)
-                        if (!victimKey.isEmpty()) {
-                            String victimValue = map.get(victimKey);
-                            map.remove(victimKey);
-                            map.put(key, result.getValue());
-                            persistence.put(victimKey, victimValue);
-                        }
-                        else {
-                            logger.error("Couldn't find cache victim");
-                            return new KVMessageImpl("", "", KVMessage.StatusType.GET_ERROR);
-                        }
-                    }
+                if (!result.getStatus().equals(KVMessage.StatusType.GET_SUCCESS)) {
+                    segment.misses.add(key, missVersion);
+                    return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
                 }
-                else {
-                    result = new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR );
+                stored = result.getValue();
+            }
+            synchronized (segment) {
+                // A write in the meantime may have changed the value
+                if (segment.writes == writes) {
+                    segment.entries.put(key, stored);
                 }
-
-                return result;
-
             }
-
         }
+        if (Expiry.isExpired(stored, System.currentTimeMillis())) {
+            // Not reaped yet
+            synchronized (segment) {
+                segment.entries.remove(key);
+            }
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        }
+        return new KVMessageImpl(key, Expiry.unwrap(stored), KVMessage.StatusType.GET_SUCCESS);
+    }
 
+    /**
+     * Adds an entry to the Cache.
+     * We are using Write-Through and Write-Allocate policies, so that
+     * the persistent store always holds the latest value of every key.
+     * The response is returned once the write is durable under the
+     * sync policy of the store. When writing back, it is returned at once.
+     * If the sync fails the answer is PUT_ERROR, but the write was already
+     * applied and may or may not survive a restart; the store refuses any
+     * further write from then on.
+     * @param key    Key of the KV pair to be stored
+     * @param value Value of the KV pair to be stored
+     */
+    public KVMessageImpl put(String key, String value) {
+        return put(key, value, Expiry.NEVER);
+    }
 
+    /**
+     * Adds an entry to the Cache that expires at a given time.
+     * @param key    Key of the KV pair to be stored
+     * @param value Value of the KV pair to be stored
+     * @param expiresAt the time the entry expires in milliseconds since the epoch, or Expiry.NEVER
+     */
+    public KVMessageImpl put(String key, String value, long expiresAt) {
+        return put(key, value, expiresAt, true);
     }
 
     /**
-     * Adds an entry to the Cache.
-     * We are using Write-Back and Write-Allocate policies for
-     * the case of Cache Hit and Miss respectively
+     * Adds an entry to the persistence, caching it only if asked to. Used
+     * for moved data, most of which is cold.
      * @param key    Key of the KV pair to be stored
      * @param value Value of the KV pair to be stored
+     * @param expiresAt the time the entry expires in milliseconds since the epoch, or Expiry.NEVER
+     * @param allocate true to cache the entry, false to drop it from the cache
      */
-    public synchronized KVMessageImpl put(String key, String value) {
-        KVMessageImpl response;
-        if (policy == LFU) {
-            response = lfu.addLfuCacheEntry(key, value); // Just forward the request to the LFU cache
+    public KVMessageImpl put(String key, String value, long expiresAt, boolean allocate) {
+        KVMessageImpl response = write(key, value, expiresAt, allocate);
+        // Wait outside the write lock, so that concurrent puts share one sync
+        if (flusher == null && !persistence.awaitDurable()) {
+            logger.error("Write of key " + key + " could not be made durable");
+            if (response.getStatus() == KVMessage.StatusType.DELETE_SUCCESS)
+                response = new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
+            else if (response.getStatus() != KVMessage.StatusType.DELETE_ERROR)
+                response = new KVMessageImpl(KVMessage.StatusType.PUT_ERROR);
         }
-        else {
-            // "This" does the job
-            if (value.equals("null")) {
-                map.remove(key);
+        return response;
+    }
+
+    /**
+     * Applies a put or delete to the cache and the persistence
+     * @param key    Key of the KV pair to be stored
+     * @param value Value of the KV pair to be stored, "null" to delete it
+     * @param expiresAt the time the entry expires, or Expiry.NEVER
+     * @param allocate false to leave a put value out of the cache
+     */
+    private KVMessageImpl write(String key, String value, long expiresAt, boolean allocate) {
+        KVMessageImpl response;
+        Segment segment = segmentFor(key);
+        boolean newlyDirty = false;
+        segment.writeLock.lock();
+        try {
+            if (flusher != null) {
+                // Write-back: only the cache changes, the flusher writes the store
+                String old = currentValue(segment, key);
+                String stored;
+                if (value.equals("null")) {
+                    stored = old == null ? null : REMOVED;
+                    if (old == null || Expiry.isExpired(old, System.currentTimeMillis()))
+                        response = new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
+                    else
+                        response = new KVMessageImpl(key, Expiry.unwrap(old), KVMessage.StatusType.DELETE_SUCCESS);
+                } else {
+                    stored = Expiry.wrap(value, expiresAt);
+                    response = new KVMessageImpl(key, value,
+                            old == null ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE);
+                }
+                if (stored != null) {
+                    synchronized (segment) {
+                        segment.writes++;
+                        segment.misses.invalidate(key);
+                        boolean wasUnqueued = segment.unqueued.remove(key);
+                        newlyDirty = segment.dirty.put(key, stored) == null || wasUnqueued;
+                        if (stored == REMOVED || !allocate)
+                            segment.entries.remove(key);
+                        else
+                            segment.entries.put(key, stored);
+                    }
+                }
+            }
+            else if (value.equals("null")) {
                 response = persistence.remove(key);
+                synchronized (segment) {
+                    segment.writes++;
+                    segment.misses.invalidate(key);
+                    segment.entries.remove(key);
+                }
+                if (response.getStatus() == KVMessage.StatusType.DELETE_SUCCESS) {
+                    // The old value of a delete
+                    if (Expiry.isExpired(response.getValue(), System.currentTimeMillis()))
+                        response = new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
+                    else
+                        response.setValue(Expiry.unwrap(response.getValue()));
+                }
             }
             else {
-                if (map.containsKey(key)) {
-                    map.put(key, value);
-                    //return persistence.put(key, value); // Write-through policy
-                    response = new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
-                } else {
-                    // Cache miss.... Forward request to KVPersistenceEngine.
-                    response = persistence.put(key, value);
+                // Write-through: the store always holds the latest value.
+                String stored = Expiry.wrap(value, expiresAt);
+                response = persistence.put(key, stored);
+                synchronized (segment) {
+                    segment.writes++;
+                    segment.misses.invalidate(key);
                     if (response.getStatus().equals(KVMessage.StatusType.PUT_SUCCESS) || response.getStatus().equals(KVMessage.StatusType.PUT_UPDATE)) {
-                        // Key was written in persistence file. Put it in cache too.
-                        // Or key found and updated in persistence file. Put it in cache too. :-)
-                        // The rest for Write-allocate policy
-                        if (!isFull()) {
-                            map.put(key, value);
-                        } else {
-                            // Find victim, write it to persistence and
-                            String victimKey = findVictimKey();
-
-                            // Write victim to persistence
-                            // Then delete it from cache and add new (k,v)
-                            if (!key.isEmpty()) {
-                                String victimValue = map.get(victimKey);
-                                map.remove(victimKey);
-                                map.put(key, response.getValue());
-                                persistence.put(victimKey, victimValue);
-                            } else {
-                                logger.error("Couldn't find cache victim");
-                                response = new KVMessageImpl(KVMessage.StatusType.PUT_ERROR);
-                            }
-                        }
+                        // Key was written in persistence file. Put it in cache too (Write-allocate),
+                        // dropping a victim of the segment if needed, it is already persisted.
+                        if (allocate)
+                            segment.entries.put(key, stored);
+                        else
+                            segment.entries.remove(key);
                     } else {
+                        segment.entries.remove(key);
                         logger.error("Error while putting value to persistence");
                     }
                 }
             }
+            // Gossip under the write lock, so that replicas see the writes of a key in order
+            if (server != null && !response.getStatus().equals(KVMessage.StatusType.PUT_ERROR)
+                    && !response.getStatus().equals(KVMessage.StatusType.DELETE_ERROR)) {
+                logger.info(server.getInfo().getID() + " : Triggering gossip");
+                // PUT was SUCCESSFUL
+                ArrayList<KVPair> forReplicas = new ArrayList<>();
+                forReplicas.add(new KVPair(key, value, expiresAt));
+                if (!server.getReplicationHandler().gossipToReplicas(forReplicas))
+                    response = new KVMessageImpl(KVMessage.StatusType.PUT_ERROR);
+            }
+        } finally {
+            segment.writeLock.unlock();
         }
-        // TODO: Add call to server.replicationServer.gossipToReplicas
-        if (!response.getStatus().equals(KVMessage.StatusType.PUT_ERROR)) {
-            logger.info(server.getInfo().getID() + " : Triggering gossip");
-            // PUT was SUCCESSFUL
-            ArrayList<KVPair> forReplicas = new ArrayList<>();
-            forReplicas.add(new KVPair(key, value));
-            if (!server.getReplicationHandler().gossipToReplicas(forReplicas))
-                response = new KVMessageImpl(KVMessage.StatusType.PUT_ERROR);
+        if (newlyDirty) {
+            // Outside the write lock, since it waits while the queue is full
+            if (!flusher.enqueue(key)) {
+                synchronized (segment) {
+                    if (segment.dirty.containsKey(key))
+                        segment.unqueued.add(key);
+                }
+            }
+        }
+        if (server == null) {
+            return response;
         }
         if (response.getStatus() == KVMessage.StatusType.PUT_SUCCESS ||
             response.getStatus() == KVMessage.StatusType.PUT_UPDATE) {
@@ -238,35 +456,156 @@ public class KVCache {
     }
 
     /**
-     *
-     * @return the Key of the victim to throw from Cache
+     * Value of a key that is not flushed yet
+     * @return the dirty value, REMOVED if the key was deleted, or null if it is clean
      */
-    private String findVictimKey() {
-        String victimKey;
-        Iterator it = map.entrySet().iterator();
-        Map.Entry pair = (Map.Entry)it.next();
-        victimKey = pair.getKey().toString();
-        return victimKey;
+    private String dirtyValue(Segment segment, String key) {
+        synchronized (segment) {
+            return segment.dirty.get(key);
+        }
     }
 
     /**
-     * Simple print function
+     * Current value of a key, looked up under its write lock
+     * @return the value in stored form, or null if there is none
      */
-    public void prettyPrintCache() {
+    private String currentValue(Segment segment, String key) {
+        String stored;
+        synchronized (segment) {
+            stored = segment.dirty.get(key);
+            if (stored == null) {
+                stored = segment.entries.get(key);
+            }
+        }
+        if (stored == REMOVED) {
+            return null;
+        }
+        if (stored == null && persistence.mightContain(key)) {
+            KVMessageImpl result = persistence.get(key);
+            if (result.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+                stored = result.getValue();
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the dirty value of a key to the persistence. A value written
+     * again in the meantime is written once more, so the persistence ends
+     * up with the latest one before the key is clean. A value that cannot
+     * be written stays dirty.
+     * @param key the key
+     * @return false if the value could not be written
+     */
+    @Override
+    public boolean flush(String key) {
+        Segment segment = segmentFor(key);
+        // One flush at a time, so that the writes of a key reach the store in order
+        flushLock.lock();
+        try {
+            while (true) {
+                String stored = dirtyValue(segment, key);
+                if (stored == null) {
+                    return true;
+                }
+                boolean written;
+                if (stored == REMOVED) {
+                    // A key deleted before it was ever written back is not in the store
+                    written = persistence.remove(key).getStatus() == KVMessage.StatusType.DELETE_SUCCESS
+                            || !persistence.mightContain(key)
+                            || persistence.get(key).getStatus() == KVMessage.StatusType.GET_ERROR;
+                } else {
+                    written = persistence.put(key, stored).getStatus() != KVMessage.StatusType.PUT_ERROR;
+                }
+                if (!written) {
+                    logger.error("Cannot write back key " + key);
+                    return false;
+                }
+                synchronized (segment) {
+                    if (segment.dirty.get(key) == stored) {
+                        segment.dirty.remove(key);
+                        return true;
+                    }
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() {
+        if (!persistence.awaitDurable()) {
+            logger.error("Written back values could not be made durable");
+        }
+    }
+
+    /**
+     * Writes all dirty values to the persistence and waits until they are durable
+     */
+    public void flushAll() {
+        if (flusher == null) {
+            return;
+        }
+        for (Segment segment : segments) {
+            ArrayList<String> keys;
+            synchronized (segment) {
+                keys = new ArrayList<>(segment.dirty.keySet());
+            }
+            for (String key : keys) {
+                flush(key);
+            }
+        }
+        sync();
+    }
 
-        if (policy == LFU)
-            lfu.printLFUCache();
-        else {
-            Set set = map.entrySet();
-            Iterator i = set.iterator();
-            // Display elements
-            while(i.hasNext()) {
-                Map.Entry me = (Map.Entry)i.next();
-                System.out.print(me.getKey() + ": ");
-                System.out.println(me.getValue());
+    /**
+     * Removes the expired values of a slice of the ring from the
+     * persistence and the cache. Every key is checked again under the
+     * write lock of its segment, so a concurrent put is never lost.
+     * @param slice the slice of the ring to walk
+     * @param now the current time in milliseconds
+     * @return the number of removed values
+     */
+    @Override
+    public int reapExpired(KVRange slice, long now) {
+        int reaped = 0;
+        for (KVPair pair : persistence.get(slice)) {
+            if (!Expiry.isExpired(pair.getValue(), now)) {
+                continue;
+            }
+            Segment segment = segmentFor(pair.getKey());
+            segment.writeLock.lock();
+            try {
+                if (flusher != null && dirtyValue(segment, pair.getKey()) != null) {
+                    // Overwritten or deleted by a write not flushed yet
+                    continue;
+                }
+                KVMessageImpl current = persistence.get(pair.getKey());
+                if (current.getStatus() == KVMessage.StatusType.GET_SUCCESS
+                        && Expiry.isExpired(current.getValue(), now)
+                        && persistence.remove(pair.getKey()).getStatus() == KVMessage.StatusType.DELETE_SUCCESS) {
+                    synchronized (segment) {
+                        segment.writes++;
+                        segment.entries.remove(pair.getKey());
+                    }
+                    reaped++;
+                }
+            } finally {
+                segment.writeLock.unlock();
             }
         }
+        return reaped;
+    }
 
+    /**
+     * Simple print function
+     */
+    public void prettyPrintCache() {
+        for (Map.Entry<String, String> me : getCacheMap().entrySet()) {
+            System.out.print(me.getKey() + ": ");
+            System.out.println(me.getValue());
+        }
     }
 
     /**
@@ -274,86 +613,250 @@ public class KVCache {
      * @return True if we reached the Cache's max capacity else False
      */
     public boolean isFull() {
-        if (policy == LFU)
-            return this.lfu.isFull();
-        else
-            return map.size() == cacheSize;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (!segment.entries.isFull())
+                    return false;
+            }
+        }
+        return true;
     }
 
-    public synchronized Collection<Map.Entry<String, String>> getAll() {
+    /**
+     * Policy getter
+     * @return the replacement policy of the segments
+     */
+    public CachePolicy getPolicy() {
+        return policy;
+    }
 
-        return new ArrayList<Map.Entry<String, String>>(map.entrySet());
+    /**
+     * Capacity getter
+     * @return the maximum total weight of the entries: bytes if the cache
+     *         is bounded in bytes, else the number of entries
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Weight getter
+     * @return the total weight of the entries, in the unit of getCapacity
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.entries.weight();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Persistence getter
+     * @return the storage engine behind the cache
+     */
+    public StorageEngine getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Negative cache hits getter
+     * @return the number of GETs answered by a remembered miss
+     */
+    public long getNegativeHits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            hits += segment.misses.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return true if the capacity is in bytes, false if it is a number of entries
+     */
+    public boolean isBoundedInBytes() {
+        return weigher == Weigher.BYTES;
+    }
+
+    public Collection<Map.Entry<String, String>> getAll() {
+
+        return new ArrayList<Map.Entry<String, String>>(getCacheMap().entrySet());
 
     }
 
     /**
      * LFU cache getter
-     * @return the LFU cache instance
+     * @return the LFU cache of the first segment, the only one of a small cache,
+     *         or null for other policies
      */
     public LFUCache getLFU(){
-
-        return this.lfu;
+        CacheSegment first = segments[0].entries;
+        return first instanceof LFUCache ? (LFUCache) first : null;
     }
 
     /**
-     * Hashmap getter
-     * @return the cache hashmap
+     * Copies the entries of all segments
+     * @return the cached entries, with values in stored form
      */
     public LinkedHashMap<String, String> getCacheMap(){
-        return map;
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries.putAll(segment.entries.snapshot());
+            }
+        }
+        return entries;
     }
 
     /**
-     * Computes the key-value pairs of the cache that
-     * belong to the given range
-     * @param range the range that keys should belong to
-     * @return the pairs required
+     * Ranks the cached keys by heat. Every segment ranks its own keys,
+     * and since keys spread evenly over the segments, they take turns.
+     * @param limit the maximum number of keys
+     * @return the keys, hottest first, leaving out expired values
      */
-    public ArrayList<KVPair> getPairsInRange(KVRange range) {
-        ArrayList<KVPair> allCurrentPairs = getAllCurrentPairs();
-        ArrayList<KVPair> filteredPairs = new ArrayList<>();
-        MD5Hash md5Hash = new MD5Hash();
-        for (KVPair pair : allCurrentPairs) {
-            String keyHash = md5Hash.hash(pair.getKey());
-            if (range.isIndexInRange(keyHash)) {
-                filteredPairs.add(pair);
+    public List<String> hotKeys(int limit) {
+        long now = System.currentTimeMillis();
+        List<List<String>> ranked = new ArrayList<>(segments.length);
+        for (Segment segment : segments) {
+            List<String> keys = new ArrayList<>();
+            synchronized (segment) {
+                for (Map.Entry<String, String> entry : segment.entries.snapshot().entrySet()) {
+                    if (!Expiry.isExpired(entry.getValue(), now))
+                        keys.add(entry.getKey());
+                }
+            }
+            // Snapshots start with the next victim
+            Collections.reverse(keys);
+            ranked.add(keys);
+        }
+        List<String> hot = new ArrayList<>();
+        for (int rank = 0; hot.size() < limit; rank++) {
+            boolean more = false;
+            for (List<String> keys : ranked) {
+                if (rank < keys.size() && hot.size() < limit) {
+                    hot.add(keys.get(rank));
+                    more = true;
+                }
+            }
+            if (!more) {
+                break;
             }
         }
-        return filteredPairs;
+        return hot;
     }
 
-    private ArrayList<KVPair> getAllCurrentPairs() {
-        ArrayList<KVPair> currentPairs = new ArrayList<>();
-        if (policy == LFU) {
-            LinkedHashMap<String, LfuCacheEntry> currentMap;
-            synchronized (this) {
-                currentMap = new LinkedHashMap<>(lfu.getCacheMap());
+    /**
+     * Reorders pairs about to be moved to another server: the pairs in
+     * this cache first, hottest first, then the others in their order
+     * @param pairs the pairs, reordered in place
+     * @return the number of leading pairs to cache at the receiver, at most cache.warmup.size
+     */
+    public int moveHotFirst(List<KVPair> pairs) {
+        if (warmUpSize == 0 || pairs.isEmpty()) {
+            return 0;
+        }
+        final HashMap<String, Integer> ranks = new HashMap<>();
+        for (String key : hotKeys(Integer.MAX_VALUE)) {
+            ranks.put(key, ranks.size());
+        }
+        List<KVPair> hot = new ArrayList<>();
+        List<KVPair> cold = new ArrayList<>();
+        for (KVPair pair : pairs) {
+            (ranks.containsKey(pair.getKey()) ? hot : cold).add(pair);
+        }
+        Collections.sort(hot, new Comparator<KVPair>() {
+            @Override
+            public int compare(KVPair a, KVPair b) {
+                return ranks.get(a.getKey()).compareTo(ranks.get(b.getKey()));
             }
-            for (String key : currentMap.keySet()) {
-                currentPairs.add(new KVPair(key, currentMap.get(key).getValue()));
+        });
+        pairs.clear();
+        pairs.addAll(hot);
+        pairs.addAll(cold);
+        return Math.min(hot.size(), warmUpSize);
+    }
+
+    /**
+     * Loads the values of hot keys from the persistence into the cache.
+     * A key written in the meantime keeps its newer value.
+     * @param keys the keys, hottest first, of which the first cache.warmup.size are loaded
+     * @return the number of loaded keys
+     */
+    public int warmUp(List<String> keys) {
+        int loaded = 0;
+        long now = System.currentTimeMillis();
+        // Coldest first, so that the hottest keys are the most recently used
+        for (int i = Math.min(keys.size(), warmUpSize) - 1; i >= 0; i--) {
+            String key = keys.get(i);
+            Segment segment = segmentFor(key);
+            long writes = segment.writes;
+            KVMessageImpl result = persistence.get(key);
+            if (result.getStatus() != KVMessage.StatusType.GET_SUCCESS || Expiry.isExpired(result.getValue(), now)) {
+                continue;
             }
-        }
-        else {
-            LinkedHashMap<String, String> currentMap;
-            synchronized (this) {
-                currentMap = new LinkedHashMap<>(map);
+            synchronized (segment) {
+                if (segment.writes == writes && !segment.dirty.containsKey(key)) {
+                    segment.entries.put(key, result.getValue());
+                    loaded++;
+                }
             }
-            for (String key : currentMap.keySet()) {
-                currentPairs.add(new KVPair(key, currentMap.get(key)));
+        }
+        return loaded;
+    }
+
+    /**
+     * Computes the key-value pairs of the server that
+     * belong to the given range. The persistence holds every
+     * pair (the cache writes through), so it answers the query.
+     * Expired pairs are left out.
+     * @param range the range that keys should belong to
+     * @return the pairs required, with their expiry times
+     */
+    public ArrayList<KVPair> getPairsInRange(KVRange range) {
+        flushAll();
+        return Expiry.visible(persistence.get(range), System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the persistence, keeping its files
+     */
+    public void close() {
+        reaper.stop();
+        if (flusher != null) {
+            flusher.stop();
+            flushAll();
+        }
+        if (hotKeyFile != null) {
+            try {
+                HotKeyFile.write(hotKeyFile, hotKeys(warmUpSize));
+            } catch (IOException e) {
+                logger.error("Cannot save hot keys to " + hotKeyFile.getName(), e);
             }
         }
-        return currentPairs;
+        this.persistence.close();
     }
 
     /**
      * Clears the cache and the persistence
      */
     public void cleanUp() {
-        if (policy == LFU) {
-            lfu.cleanUp();
+        reaper.stop();
+        if (flusher != null) {
+            flusher.stop();
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.writes++;
+                segment.entries.clear();
+                segment.dirty.clear();
+                segment.unqueued.clear();
+                segment.misses.clear();
+            }
         }
-        else {
-            map.clear();
+        if (hotKeyFile != null) {
+            hotKeyFile.delete();
         }
         this.persistence.cleanUp();
     }
@@ -1,179 +1,1005 @@
-package app_kvServer.dataStorage;
-
-import app_kvServer.SocketServer;
-import common.ServerInfo;
-import common.messages.KVMessage;
-import common.messages.KVMessageImpl;
-import common.messages.KVPair;
-import common.utils.KVRange;
-import hashing.MD5Hash;
-import helpers.StorageException;
-import org.apache.log4j.Logger;
-
-import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-import java.util.Set;
-
-
-/**
- * Class handling the communication with
- * the Store File (Persistant Storage) read/write
- */
-public class KVPersistenceEngine {
-
-    private Properties prop;
-    private final String fileNamePrefix = "data.store";
-    private  String fileName;
-    private InputStream input = null;
-    private OutputStream output = null;
-    private static Logger logger = Logger.getLogger(KVPersistenceEngine.class);
-
-    public KVPersistenceEngine(String suffix) throws StorageException {
-        initialization(fileNamePrefix + suffix);
-    }
-    public KVPersistenceEngine(int replicaNumber) throws StorageException {
-        initialization(fileNamePrefix + "_replica_" + String.valueOf(replicaNumber));
-    }
-    /**
-     *
-     * @throws StorageException
-     * indicating problems accessing the persistant file
-     */
-    public KVPersistenceEngine(SocketServer server) throws StorageException {
-        initialization(fileNamePrefix + String.valueOf(server.getInfo().getServerPort()));
-    }
-
-    /**
-     * Initialization of storage file
-     * @param persistenceFileName name used for the storage file
-     * @throws StorageException
-     */
-    private void initialization(String persistenceFileName) throws StorageException {
-        fileName = persistenceFileName;
-        try {
-            File storeFile = new File(fileName);
-            prop = new Properties();
-            if(storeFile.exists()) {
-                storeFile.delete();
-            }
-            storeFile.createNewFile();
-            input = new FileInputStream(fileName);
-            output = new FileOutputStream(fileName);
-            prop.load(input);
-
-        } catch (IOException e) {
-            logger.error("Cannot initialize persistence file", e);
-            throw new StorageException("Cannot initialize persistence file");
-        }
-    }
-
-    /**
-     * Retrieves an entry from file.
-     * @param key the key of the KV pair to be retrieved from the file.
-     * @return    KVMessage representation of the retrieved KV pair with the respective Status.
-     */
-    public KVMessageImpl get (String key){
-
-        String resultValue = prop.getProperty(key);
-        if (resultValue !=null)
-            return new KVMessageImpl(key, resultValue, KVMessage.StatusType.GET_SUCCESS);
-        else
-            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
-
-    }
-
-    /**
-     * Writes an KV pair entry to file.
-     * @param key the key of the KV pair to be written in the file.
-     * @param value  the value, associated with the specified key.
-     * @return    KVMessage representation of the KV pair written to the file with
-     *            respective Status.
-     */
-    public KVMessageImpl put (String key, String value){
-        try {
-            String oldValue = prop.getProperty(key);
-            prop.setProperty(key, value);
-            prop.put(key, value);
-            output = new FileOutputStream(fileName);
-            prop.store(output, null);
-            String newValue = prop.getProperty(key);
-
-            return oldValue==null ? new KVMessageImpl(key, newValue, KVMessage.StatusType.PUT_SUCCESS)
-                    : new KVMessageImpl(key, newValue, KVMessage.StatusType.PUT_UPDATE);
-
-        } catch (IOException e) {
-            logger.error("Cannot write to persistence file", e);
-            return new KVMessageImpl(key, "", KVMessage.StatusType.PUT_ERROR);
-        }
-
-    }
-
-    /**
-     * Remove an entry from the file representing the persistant space
-     * @param key key of the KV pair to be removed
-     * @return KVMessage representation of the KeyValue pair to be removed including
-     * the Status of the operation
-     */
-    public KVMessageImpl remove (String key){
-
-        try {
-            String resultValue = prop.getProperty(key);
-            if (prop.remove(key) == null)
-                return new KVMessageImpl(key, resultValue, KVMessage.StatusType.DELETE_ERROR);
-            output = new FileOutputStream(fileName);
-            prop.store(output, null);
-            return new KVMessageImpl(key, resultValue, KVMessage.StatusType.DELETE_SUCCESS);
-        }
-        catch (IOException e){
-            logger.error("Cannot remove entry from persistence file", e);
-            return new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
-        }
-
-
-    }
-
-    /**
-     * Removes a whole key range from the persistence file.
-     * @param range the range of keys that need to be removed
-     */
-    public KVMessageImpl remove (KVRange range){
-        KVMessageImpl response;
-        logger.info("Starting range removal for range " + range.getLow() + ":"+range.getHigh());
-        for (String key : prop.stringPropertyNames()) {
-            MD5Hash md5 = new MD5Hash();
-            String hashedKey = md5.hash(key);
-            if (range.isIndexInRange(hashedKey)) {
-                response = this.remove(key);
-                if (response.getStatus().equals(KVMessage.StatusType.DELETE_ERROR))
-                    return new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
-            }
-        }
-        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
-    }
-
-    public List<KVPair> get (KVRange range){
-        List<KVPair> pairs = new ArrayList<>();
-        for (String key : prop.stringPropertyNames()) {
-            MD5Hash md5 = new MD5Hash();
-            String hashedKey = md5.hash(key);
-            if (range.isIndexInRange(hashedKey)) {
-                String resultValue = prop.getProperty(key);
-                if (resultValue != null)
-                    pairs.add(new KVPair(key, resultValue));
-            }
-        }
-        return pairs;
-    }
-
-    /**
-     * Cleans up the persistence file
-     */
-    public void cleanUp() {
-        File storeFile = new File(fileName);
-        if(storeFile.exists()) {
-            storeFile.delete();
-        }
-    }
-}
+package app_kvServer.dataStorage;
+
+import app_kvServer.SocketServer;
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import helpers.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Class handling the communication with
+ * the Store Files (Persistant Storage) read/write
+ *
+ * The storage is an append-only log split into segment files
+ * (data.store[suffix].[segment].log). Every put or remove appends one
+ * record to the active segment and an in-memory index maps each key
+ * to the position of its latest record, so a write costs O(record).
+ * A RingIndex keeps the keys ordered by hash, so range operations only
+ * touch the keys inside the range.
+ *
+ * In durable mode (see StorageConfig) the segments survive restarts: the
+ * index is reloaded from the last checkpoint and only the log written after
+ * it is replayed, so a restarted server is ready without a data migration.
+ *
+ * Writes are made durable by a GroupCommitter according to the sync
+ * policy. Callers that need the durability guarantee call awaitDurable()
+ * after releasing their own locks, so concurrent writers share one fsync.
+ *
+ * Overwritten and deleted records are reclaimed in the background by a
+ * SegmentCompactor. The engine keeps track of the live bytes of every
+ * segment to pick the segments worth compacting and to report the space
+ * amplification (disk bytes / live bytes) of the store.
+ *
+ * Optionally the sealed segments are memory-mapped, so that cache misses
+ * are served from the OS page cache rather than by file reads.
+ *
+ * A Bloom filter over the stored keys lets callers rule out absent keys
+ * through mightContain() without taking any lock. It is rebuilt in the
+ * background when it outgrows its capacity or holds too many removed keys.
+ *
+ * Reads share a read lock and proceed concurrently; writes and the swaps
+ * of the maintenance tasks take it exclusively. It is a ReentrantReadWriteLock
+ * rather than a monitor, since it is held across file I/O and a monitor
+ * would pin the carrier of a virtual thread.
+ */
+public class KVPersistenceEngine implements StorageEngine {
+
+    private static final int CHECKPOINT_EVERY_SEGMENTS = 4;
+    private static final int MAX_KEPT_READ_BUFFER = 1024 * 1024;
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final String fileNamePrefix = "data.store";
+    private String fileName;
+    private StorageConfig config;
+    private long maxSegmentSize;
+    private boolean mapSegments;
+    private Compression compression;
+    private TreeMap<Integer, LogSegment> segments;
+    private LogSegment activeSegment;
+    private HashMap<String, RecordPointer> index;
+    private RingIndex ring;
+    private HashMap<Integer, Long> retainedBytes;
+    private long liveBytes;
+    private long nextSequence;
+    private int segmentsSinceCheckpoint;
+    private ScheduledExecutorService maintenance;
+    private GroupCommitter committer;
+    private SegmentCompactor compactor;
+    private boolean closed;
+    private double filterFalsePositiveRate;
+    private volatile BloomFilter keyFilter;
+    private BloomFilter nextKeyFilter;
+    private long filterRemovals;
+    private boolean filterRebuildScheduled;
+    private final AtomicLong filterNegatives = new AtomicLong();
+    private final AtomicLong filterFalsePositives = new AtomicLong();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static Logger logger = Logger.getLogger(KVPersistenceEngine.class);
+
+    // Reads run concurrently, so every thread keeps its own buffer
+    private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    public KVPersistenceEngine(String suffix) throws StorageException {
+        this(suffix, StorageConfig.defaults());
+    }
+    public KVPersistenceEngine(String suffix, StorageConfig config) throws StorageException {
+        initialization(fileNamePrefix + suffix, config);
+    }
+    public KVPersistenceEngine(int replicaNumber) throws StorageException {
+        initialization(fileNamePrefix + "_replica_" + String.valueOf(replicaNumber), StorageConfig.defaults());
+    }
+    /**
+     *
+     * @throws StorageException
+     * indicating problems accessing the persistant file
+     */
+    public KVPersistenceEngine(SocketServer server) throws StorageException {
+        initialization(fileNamePrefix + String.valueOf(server.getInfo().getServerPort()), server.getStorageConfig());
+    }
+
+    /**
+     * Initialization of storage files
+     * @param persistenceFileName name prefix used for the storage files
+     * @param config the storage options
+     * @throws StorageException
+     */
+    private void initialization(String persistenceFileName, StorageConfig config) throws StorageException {
+        fileName = persistenceFileName;
+        this.config = config;
+        maxSegmentSize = config.getSegmentSize();
+        mapSegments = config.isMemoryMapped();
+        compression = config.getCompression();
+        filterFalsePositiveRate = config.getBloomFalsePositiveRate();
+        segments = new TreeMap<>();
+        index = new HashMap<>();
+        ring = new RingIndex();
+        retainedBytes = new HashMap<>();
+        nextSequence = 1;
+        try {
+            if (config.isDurable()) {
+                long start = System.currentTimeMillis();
+                recover();
+                logger.info("Recovered " + index.size() + " keys from " + segments.size() + " segments of "
+                        + fileName + " in " + (System.currentTimeMillis() - start) + " ms");
+            } else {
+                deleteStoreFiles();
+                rollSegment();
+            }
+            if (filterFalsePositiveRate > 0) {
+                keyFilter = new BloomFilter(Math.max(MIN_FILTER_CAPACITY, 2L * index.size()), filterFalsePositiveRate);
+                for (String key : index.keySet()) {
+                    keyFilter.add(key);
+                }
+            }
+            final String name = new File(fileName).getName();
+            committer = new GroupCommitter(config.getSyncPolicy(), config.getSyncInterval(), name, nextSequence - 1);
+            committer.start();
+            maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Maintenance-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor = new SegmentCompactor(this, config.getCompactionThreshold(), config.getCompactionRate());
+            long interval = config.getCompactionInterval();
+            if (interval > 0) {
+                maintenance.scheduleWithFixedDelay(compactor, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot initialize persistence file", e);
+            throw new StorageException("Cannot initialize persistence file");
+        }
+    }
+
+    /**
+     * Retrieves an entry from file.
+     * @param key the key of the KV pair to be retrieved from the file.
+     * @return    KVMessage representation of the retrieved KV pair with the respective Status.
+     */
+    public KVMessageImpl get (String key){
+        lock.readLock().lock();
+        try {
+            String resultValue = readValue(key);
+            if (resultValue != null)
+                return new KVMessageImpl(key, resultValue, KVMessage.StatusType.GET_SUCCESS);
+            if (keyFilter != null && keyFilter.mightContain(key))
+                filterFalsePositives.incrementAndGet();
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        } catch (IOException e) {
+            logger.error("Cannot read from persistence file", e);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks through the Bloom filter whether the store may hold a key.
+     * Does not take the engine lock, so absent keys can be answered
+     * without waiting for writers.
+     * @param key the key to check
+     * @return false if the store certainly does not hold the key
+     */
+    public boolean mightContain(String key) {
+        BloomFilter filter = keyFilter;
+        if (filter == null || filter.mightContain(key)) {
+            return true;
+        }
+        filterNegatives.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Checks the index, without reading any value
+     * @return true if no key is stored
+     */
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return index.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bloom filter precision getter
+     * @return the share of lookups of absent keys that the filter did not rule out
+     */
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = filterFalsePositives.get();
+        long absent = falsePositives + filterNegatives.get();
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+
+    /**
+     * Writes an KV pair entry to file.
+     * @param key the key of the KV pair to be written in the file.
+     * @param value  the value, associated with the specified key.
+     * @return    KVMessage representation of the KV pair written to the file with
+     *            respective Status.
+     */
+    public KVMessageImpl put (String key, String value){
+        lock.writeLock().lock();
+        try {
+            RecordPointer pointer = append(LogRecord.PUT, key, value);
+            RecordPointer oldPointer = index.put(key, pointer);
+            if (oldPointer == null) {
+                ring.add(key);
+                addToFilter(key);
+            }
+            account(pointer, 1);
+            account(oldPointer, -1);
+
+            return oldPointer==null ? new KVMessageImpl(key, value, KVMessage.StatusType.PUT_SUCCESS)
+                    : new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
+
+        } catch (IOException e) {
+            logger.error("Cannot write to persistence file", e);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.PUT_ERROR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+    /**
+     * Remove an entry from the file representing the persistant space
+     * @param key key of the KV pair to be removed
+     * @return KVMessage representation of the KeyValue pair to be removed including
+     * the Status of the operation
+     */
+    public KVMessageImpl remove (String key){
+        lock.writeLock().lock();
+        try {
+            String resultValue = readValue(key);
+            if (resultValue == null)
+                return new KVMessageImpl(key, null, KVMessage.StatusType.DELETE_ERROR);
+            RecordPointer tombstone = append(LogRecord.DELETE, key, null);
+            addRetained(tombstone.getSegmentId(), tombstone.getLength());
+            account(index.remove(key), -1);
+            ring.remove(key);
+            filterRemovals++;
+            checkFilter();
+            return new KVMessageImpl(key, resultValue, KVMessage.StatusType.DELETE_SUCCESS);
+        }
+        catch (IOException e){
+            logger.error("Cannot remove entry from persistence file", e);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+
+    }
+
+    /**
+     * Removes a whole key range from the persistence file.
+     * @param range the range of keys that need to be removed
+     */
+    public KVMessageImpl remove (KVRange range){
+        KVMessageImpl response;
+        logger.info("Starting range removal for range " + range.getLow() + ":"+range.getHigh());
+        lock.writeLock().lock();
+        try {
+            for (String key : ring.keysIn(range)) {
+                response = this.remove(key);
+                if (response.getStatus().equals(KVMessage.StatusType.DELETE_ERROR))
+                    return new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    /**
+     * Retrieves all entries whose key hash falls into a range
+     * @param range the range of keys to retrieve
+     * @return the key-value pairs of the range, in ring order
+     */
+    public List<KVPair> get (KVRange range){
+        List<KVPair> pairs = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String key : ring.keysIn(range)) {
+                try {
+                    String resultValue = readValue(key);
+                    if (resultValue != null)
+                        pairs.add(new KVPair(key, resultValue));
+                } catch (IOException e) {
+                    logger.error("Cannot read from persistence file", e);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return pairs;
+    }
+
+    /**
+     * Waits until the writes made so far are durable under the sync policy.
+     * Must not be called while holding a lock other writers need, or they
+     * cannot join the batch being synced.
+     * @return false if the writes could not be made durable
+     */
+    public boolean awaitDurable() {
+        return committer.awaitDurable();
+    }
+
+    /**
+     * Cleans up the persistence files
+     */
+    public void cleanUp() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            committer.close();
+            maintenance.shutdown();
+            for (LogSegment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            index.clear();
+            ring.clear();
+            if (keyFilter != null) {
+                keyFilter = new BloomFilter(MIN_FILTER_CAPACITY, filterFalsePositiveRate);
+            }
+            retainedBytes.clear();
+            liveBytes = 0;
+            activeSegment = null;
+            checkpointFile().delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the store files. In durable mode a final checkpoint is
+     * written first, so the next start does not have to replay any log.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            committer.close();
+            maintenance.shutdown();
+            if (config.isDurable() && activeSegment != null) {
+                try {
+                    activeSegment.sync();
+                    snapshot().write(checkpointFile());
+                } catch (IOException e) {
+                    logger.error("Cannot write checkpoint for " + fileName, e);
+                }
+            }
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new
+     * segment when the active one is full
+     * @param type the record type
+     * @param key the key of the record
+     * @param value the value of the record
+     * @return pointer to the appended record
+     * @throws IOException if the record cannot be written, or the log could
+     *         not be synced before (writes are then refused until a restart)
+     */
+    private RecordPointer append(byte type, String key, String value) throws IOException {
+        IOException failure = committer.getFailure();
+        if (failure != null) {
+            throw new IOException("Log of " + fileName + " could not be synced, writes are refused", failure);
+        }
+        if (activeSegment == null || activeSegment.size() >= maxSegmentSize) {
+            rollSegment();
+        }
+        long sequence = nextSequence++;
+        ByteBuffer record = LogRecord.encode(type, sequence, key, value, compression);
+        int length = record.remaining();
+        long offset = activeSegment.append(record);
+        committer.appended(activeSegment, sequence);
+        return new RecordPointer(activeSegment.getId(), offset, length, sequence);
+    }
+
+    /**
+     * Looks up the latest value of a key through the index
+     * @param key the key to look up
+     * @return the value, or null if the key is not stored
+     * @throws IOException if the record cannot be read
+     */
+    private String readValue(String key) throws IOException {
+        RecordPointer pointer = index.get(key);
+        if (pointer == null) {
+            return null;
+        }
+        LogSegment segment = segments.get(pointer.getSegmentId());
+        int length = pointer.getLength();
+        byte[] buffer = readBuffer.get();
+        if (length > buffer.length) {
+            buffer = new byte[length];
+            if (length <= MAX_KEPT_READ_BUFFER) {
+                readBuffer.set(buffer);
+            }
+        }
+        segment.read(pointer.getOffset(), buffer, length);
+        String value = LogRecord.decodeValue(buffer, length);
+        if (value == null) {
+            throw new IOException("Corrupted record for key " + key + " in " + segment.getFile().getName());
+        }
+        return value;
+    }
+
+    /**
+     * Starts a new active segment. The full segment is synced first, so the
+     * committer only ever has to sync the active one. In durable mode a
+     * checkpoint is taken every few segments to keep the log tail to replay short.
+     * @throws IOException if the segment file cannot be created
+     */
+    private void rollSegment() throws IOException {
+        boolean syncing = config.getSyncPolicy() != GroupCommitter.Policy.NONE;
+        if (activeSegment != null && mapSegments) {
+            activeSegment.map();
+        }
+        if (activeSegment != null && (config.isDurable() || syncing)) {
+            activeSegment.sync();
+            if (config.isDurable() && ++segmentsSinceCheckpoint >= CHECKPOINT_EVERY_SEGMENTS) {
+                segmentsSinceCheckpoint = 0;
+                scheduleCheckpoint();
+            }
+        }
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        activeSegment = new LogSegment(segmentFile(id), id, syncing);
+        segments.put(id, activeSegment);
+    }
+
+    /**
+     * Captures the index and the current end of the log
+     * @return the checkpoint to be written
+     */
+    private IndexCheckpoint snapshot() {
+        return new IndexCheckpoint(new HashMap<>(index), nextSequence, activeSegment.getId(), activeSegment.size());
+    }
+
+    /**
+     * Writes a checkpoint in the background, off the request path.
+     * The snapshot is taken when the task runs, so checkpoints and
+     * compactions, which share the maintenance thread, never overlap.
+     */
+    private void scheduleCheckpoint() {
+        maintenance.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeCheckpoint();
+            }
+        });
+    }
+
+    /**
+     * Snapshots the index and writes it as the new checkpoint
+     */
+    private void writeCheckpoint() {
+        IndexCheckpoint checkpoint;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                activeSegment.flush();
+            } catch (IOException e) {
+                logger.error("Cannot flush " + activeSegment.getFile().getName(), e);
+                return;
+            }
+            checkpoint = snapshot();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            checkpoint.write(checkpointFile());
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint for " + fileName, e);
+        }
+    }
+
+    /**
+     * Adds a new key to the Bloom filter, and to the one being built
+     * @param key the new key
+     */
+    private void addToFilter(String key) {
+        if (keyFilter == null) {
+            return;
+        }
+        keyFilter.add(key);
+        if (nextKeyFilter != null) {
+            nextKeyFilter.add(key);
+        }
+        checkFilter();
+    }
+
+    /**
+     * Schedules a rebuild of the Bloom filter once it holds more keys than
+     * it was sized for, or once removed keys make up half of its capacity
+     */
+    private void checkFilter() {
+        if (keyFilter == null || filterRebuildScheduled) {
+            return;
+        }
+        long capacity = keyFilter.getCapacity();
+        if (index.size() > capacity || filterRemovals > capacity / 2) {
+            filterRebuildScheduled = true;
+            maintenance.submit(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildFilter();
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds a new Bloom filter from the index, off the request path.
+     * Keys added meanwhile go to both filters until the new one is swapped in.
+     */
+    private void rebuildFilter() {
+        BloomFilter next;
+        List<String> keys;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            next = new BloomFilter(Math.max(MIN_FILTER_CAPACITY, 2L * index.size()), filterFalsePositiveRate);
+            keys = new ArrayList<>(index.keySet());
+            nextKeyFilter = next;
+            filterRemovals = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (String key : keys) {
+            next.add(key);
+        }
+        lock.writeLock().lock();
+        try {
+            keyFilter = next;
+            nextKeyFilter = null;
+            filterRebuildScheduled = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.debug("Rebuilt key filter of " + fileName + " for " + next.getCapacity() + " keys");
+    }
+
+    /**
+     * Runs one compaction right away, on the calling thread
+     * @return true if segments were compacted
+     * @throws IOException if the segments cannot be read or written
+     */
+    public boolean compact() throws IOException {
+        return compactor.compact();
+    }
+
+    /**
+     * Selects the sealed segments worth compacting: those whose share of
+     * garbage reaches the threshold, oldest first, as long as their live
+     * records fit in one segment.
+     * @param garbageThreshold the minimum share of garbage of a segment
+     * @return the compaction plan, or null if nothing is worth compacting
+     */
+    SegmentCompactor.Plan planCompaction(double garbageThreshold) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            List<LogSegment> victims = new ArrayList<>();
+            long retained = 0;
+            for (LogSegment segment : segments.values()) {
+                if (segment == activeSegment) {
+                    break;
+                }
+                long segmentRetained = getRetained(segment.getId());
+                double garbage = segment.size() == 0 ? 0 : 1 - (double) segmentRetained / segment.size();
+                if (garbage >= garbageThreshold && retained + segmentRetained <= maxSegmentSize) {
+                    victims.add(segment);
+                    retained += segmentRetained;
+                }
+            }
+            if (victims.isEmpty()) {
+                return null;
+            }
+            // Only the tombstones of the oldest segment have no older record in another file
+            int oldest = segments.firstKey();
+            int horizon = victims.get(0).getId() == oldest ? oldest : 0;
+            return new SegmentCompactor.Plan(victims, victims.get(victims.size() - 1).getId(), horizon);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether a record is the latest one of its key
+     * @param key the key of the record
+     * @param pointer the location of the record
+     * @return true if the index points at the record
+     */
+    boolean isCurrent(String key, RecordPointer pointer) {
+        lock.readLock().lock();
+        try {
+            RecordPointer current = index.get(key);
+            return current != null && current.getSegmentId() == pointer.getSegmentId()
+                    && current.getOffset() == pointer.getOffset();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether a key is currently deleted
+     * @param key the key to check
+     * @return true if the store does not hold the key
+     */
+    boolean isDeleted(String key) {
+        lock.readLock().lock();
+        try {
+            return !index.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Swaps a compacted segment in for the segments it was made of. The
+     * merged file takes the place of the newest victim and the remaining
+     * victims are deleted, oldest first. The directory is synced after the
+     * rename, so the moved records are never lost with the deleted files,
+     * and after the deletes, so they are gone before a later compaction
+     * drops the tombstones shadowing them. Keys written while the
+     * compaction was running keep their newer records.
+     * @param plan the compaction plan
+     * @param output the merged segment file
+     * @param moved the old and new location of every copied record, by key
+     * @param tombstoneBytes the size of the tombstones copied over
+     * @return false if the engine was closed in the meantime
+     * @throws IOException if the merged segment cannot be installed
+     */
+    boolean installCompaction(SegmentCompactor.Plan plan, File output,
+                              Map<String, RecordPointer[]> moved, long tombstoneBytes) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            // The checkpoint points into the old segments: drop it, a new one
+            // is written below. Until then a restart replays the whole log.
+            checkpointFile().delete();
+            for (LogSegment victim : plan.victims) {
+                victim.close();
+            }
+            File target = segmentFile(plan.outputId);
+            if (!output.renameTo(target)) {
+                target.delete();
+                if (!output.renameTo(target)) {
+                    throw new IOException("Cannot install compacted segment " + target.getName());
+                }
+            }
+            syncDirectory(target);
+            LogSegment merged = new LogSegment(target, plan.outputId);
+            if (mapSegments) {
+                merged.map();
+            }
+            for (LogSegment victim : plan.victims) {
+                segments.remove(victim.getId());
+                retainedBytes.remove(victim.getId());
+                if (victim.getId() != plan.outputId) {
+                    victim.getFile().delete();
+                }
+            }
+            syncDirectory(target);
+            segments.put(plan.outputId, merged);
+            long retained = tombstoneBytes;
+            for (Map.Entry<String, RecordPointer[]> entry : moved.entrySet()) {
+                RecordPointer[] pointers = entry.getValue();
+                RecordPointer current = index.get(entry.getKey());
+                if (current != null && current.getSegmentId() == pointers[0].getSegmentId()
+                        && current.getOffset() == pointers[0].getOffset()) {
+                    index.put(entry.getKey(), pointers[1]);
+                    retained += pointers[1].getLength();
+                }
+            }
+            retainedBytes.put(plan.outputId, retained);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (config.isDurable()) {
+            writeCheckpoint();
+        }
+        return true;
+    }
+
+    /**
+     * Disk usage getter
+     * @return the total size of the segments, in bytes
+     */
+    public long getDiskBytes() {
+        lock.readLock().lock();
+        try {
+            long total = 0;
+            for (LogSegment segment : segments.values()) {
+                total += segment.size();
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Live data getter
+     * @return the size of the latest record of every stored key, in bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Space amplification getter
+     * @return the disk usage divided by the live data size
+     */
+    public double getSpaceAmplification() {
+        lock.readLock().lock();
+        try {
+            return liveBytes == 0 ? 1.0 : (double) getDiskBytes() / liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compactor getter
+     * @return the compactor of the store, holding the compaction statistics
+     */
+    public SegmentCompactor getCompactor() {
+        return compactor;
+    }
+
+    /**
+     * Adds or removes a live record from the space accounting
+     * @param pointer the record location, may be null
+     * @param sign 1 when the record becomes live, -1 when it becomes garbage
+     */
+    private void account(RecordPointer pointer, int sign) {
+        if (pointer == null) {
+            return;
+        }
+        liveBytes += sign * pointer.getLength();
+        addRetained(pointer.getSegmentId(), sign * pointer.getLength());
+    }
+
+    private void addRetained(int segmentId, long bytes) {
+        retainedBytes.put(segmentId, getRetained(segmentId) + bytes);
+    }
+
+    private long getRetained(int segmentId) {
+        Long retained = retainedBytes.get(segmentId);
+        return retained == null ? 0 : retained;
+    }
+
+    /**
+     * Rebuilds the index from the segment files found on disk, using the
+     * checkpoint when it is consistent with them and replaying the log tail
+     * written after it. A torn record at the end of a segment is cut off.
+     * @throws IOException if the segment files cannot be read
+     */
+    private void recover() throws IOException {
+        // Left over by a compaction interrupted before its swap
+        for (File file : storeFiles(SEGMENT_SUFFIX + SegmentCompactor.OUTPUT_SUFFIX)) {
+            file.delete();
+        }
+        for (File file : storeFiles(SEGMENT_SUFFIX)) {
+            int id = segmentId(file);
+            if (id > 0) {
+                segments.put(id, new LogSegment(file, id));
+            }
+        }
+        IndexCheckpoint checkpoint = IndexCheckpoint.read(checkpointFile());
+        if (checkpoint != null && !isConsistent(checkpoint)) {
+            logger.warn("Checkpoint of " + fileName + " does not match the segments, replaying the whole log");
+            checkpoint = null;
+        }
+        if (checkpoint != null) {
+            index.putAll(checkpoint.getIndex());
+            nextSequence = checkpoint.getNextSequence();
+        }
+        final HashMap<String, Long> tombstones = new HashMap<>();
+        for (LogSegment segment : segments.values()) {
+            long from = 0;
+            if (checkpoint != null) {
+                if (segment.getId() < checkpoint.getMarkSegmentId()) {
+                    continue;
+                }
+                if (segment.getId() == checkpoint.getMarkSegmentId()) {
+                    from = checkpoint.getMarkOffset();
+                }
+            }
+            final int segmentId = segment.getId();
+            long validEnd = segment.scan(from, new LogSegment.RecordVisitor() {
+                @Override
+                public void visit(LogRecord record, long offset, int length) {
+                    replay(record, new RecordPointer(segmentId, offset, length, record.getSequence()), tombstones);
+                }
+            });
+            if (validEnd < segment.size()) {
+                logger.warn("Dropping " + (segment.size() - validEnd) + " trailing bytes of " + segment.getFile().getName());
+                segment.truncate(validEnd);
+            }
+        }
+        for (RecordPointer pointer : index.values()) {
+            account(pointer, 1);
+        }
+        ring.addAll(index.keySet());
+        if (segments.isEmpty()) {
+            rollSegment();
+        } else {
+            if (mapSegments) {
+                for (LogSegment segment : segments.headMap(segments.lastKey()).values()) {
+                    segment.map();
+                }
+            }
+            // Reopen the last segment as the active one, buffered if the log is synced
+            LogSegment last = segments.lastEntry().getValue();
+            last.close();
+            activeSegment = new LogSegment(last.getFile(), last.getId(),
+                    config.getSyncPolicy() != GroupCommitter.Policy.NONE);
+            segments.put(activeSegment.getId(), activeSegment);
+        }
+    }
+
+    /**
+     * Applies one replayed record to the index. Records are resolved by
+     * sequence number, so an older record never overrides a newer one.
+     * @param record the replayed record
+     * @param pointer the location of the record
+     * @param tombstones sequence numbers of the deletions seen so far
+     */
+    private void replay(LogRecord record, RecordPointer pointer, Map<String, Long> tombstones) {
+        long sequence = record.getSequence();
+        nextSequence = Math.max(nextSequence, sequence + 1);
+        RecordPointer current = index.get(record.getKey());
+        Long deleted = tombstones.get(record.getKey());
+        if ((current != null && current.getSequence() > sequence) || (deleted != null && deleted > sequence)) {
+            return;
+        }
+        if (record.isDelete()) {
+            index.remove(record.getKey());
+            tombstones.put(record.getKey(), sequence);
+        } else {
+            index.put(record.getKey(), pointer);
+        }
+    }
+
+    /**
+     * Checks that every record the checkpoint points at is still on disk
+     * @param checkpoint the loaded checkpoint
+     * @return true if the checkpoint can be used for recovery
+     */
+    private boolean isConsistent(IndexCheckpoint checkpoint) {
+        LogSegment mark = segments.get(checkpoint.getMarkSegmentId());
+        if (mark == null || mark.size() < checkpoint.getMarkOffset()) {
+            return false;
+        }
+        for (RecordPointer pointer : checkpoint.getIndex().values()) {
+            LogSegment segment = segments.get(pointer.getSegmentId());
+            if (segment == null || segment.size() < pointer.getOffset() + pointer.getLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the creations, renames and deletions of files in the directory
+     * of a file durable. Not every platform can sync a directory, so a
+     * failure is only logged.
+     * @param file a file of the directory
+     */
+    private static void syncDirectory(File file) {
+        Path directory = file.getAbsoluteFile().getParentFile().toPath();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.warn("Cannot sync directory " + directory, e);
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(String.format("%s.%06d%s", fileName, id, SEGMENT_SUFFIX));
+    }
+
+    private File checkpointFile() {
+        return new File(fileName + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Extracts the segment id out of a segment file name
+     * @param file the segment file
+     * @return the segment id, or -1 if the name is not a segment name
+     */
+    private int segmentId(File file) {
+        String name = file.getName();
+        String id = name.substring(new File(fileName).getName().length() + 1, name.length() - SEGMENT_SUFFIX.length());
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Removes any store file left over by a previous run
+     */
+    private void deleteStoreFiles() {
+        File legacyFile = new File(fileName);
+        if (legacyFile.exists()) {
+            legacyFile.delete();
+        }
+        for (File file : storeFiles(SEGMENT_SUFFIX)) {
+            file.delete();
+        }
+        for (File file : storeFiles(SEGMENT_SUFFIX + SegmentCompactor.OUTPUT_SUFFIX)) {
+            file.delete();
+        }
+        checkpointFile().delete();
+    }
+
+    /**
+     * Lists the files of a kind belonging to this engine
+     * @param suffix the file name suffix of the kind
+     * @return the files found in the working directory
+     */
+    private File[] storeFiles(final String suffix) {
+        final String prefix = new File(fileName).getName() + ".";
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+}
@@ -1,211 +1,284 @@
 package app_kvServer.dataStorage;
 
-import common.messages.KVMessage;
-import common.messages.KVMessageImpl;
-import org.apache.log4j.Logger;
-
 import java.util.*;
 
 /**
  * Class representing the LFU Cache
  * The KV pairs are represented by the LfuCacheEntry class
+ *
+ * Every operation takes constant time. The entries are kept in buckets of
+ * equal priority: a doubly linked list of buckets in ascending priority,
+ * each holding a doubly linked list of its entries in the order they
+ * arrived. A hit moves an entry to the bucket of the next priority, and
+ * the victim is the eldest entry of the lowest bucket.
+ *
+ * Frequencies age with dynamic aging (LFU-DA): the priority of an entry
+ * is its frequency plus the priority of the last victim at the time it
+ * was added. New entries thus start at the level of the current victims,
+ * and keys that were hot long ago but are no longer hit are evicted once
+ * the evictions have caught up with them, instead of staying forever.
+ * Since no entry is below the last victim, a new entry always goes into
+ * or right before the lowest bucket.
  */
-public class LFUCache {
+public class LFUCache implements CacheSegment {
 
+    /**
+     * Entries of one priority, least recently arrived first
+     */
+    static class Bucket {
+        final long priority;
+        Bucket prev, next;
+        LfuCacheEntry head, tail;
 
-    private static int cacheSize = 10;
-    private static LinkedHashMap<String, LfuCacheEntry> map = new LinkedHashMap<String, LfuCacheEntry>();
-    private KVPersistenceEngine persistence;
-    private static Logger logger = Logger.getLogger(KVCache.class);
+        Bucket(long priority) {
+            this.priority = priority;
+        }
+    }
+
+    private final long cacheSize;
+    private final Weigher weigher;
+    private long weight = 0;
+    private final HashMap<String, LfuCacheEntry> map = new HashMap<String, LfuCacheEntry>();
+    private Bucket lowest;
+    // Priority of the last victim
+    private long age = 0;
 
     /**
      *
      * @param cacheSize size of the LFU Cache
-     * @param persistence KVPersistenceEngine instance for accessing the store File
      */
-    public LFUCache(int cacheSize, KVPersistenceEngine persistence) {
-        this.cacheSize = cacheSize;
-        this.persistence = persistence;
+    public LFUCache(int cacheSize) {
+        this(cacheSize, Weigher.ENTRIES);
     }
 
     /**
      *
-     * @param key key of the Cache Entry to be accessed
-     * @return KVMessage representation of the returned KV pair (Cache Entry)
+     * @param capacity maximum total weight of the entries
+     * @param weigher the weight of an entry
      */
-    public KVMessageImpl getLfuCacheEntry(String key) {
-        // "This" does the job
-        if (map.containsKey(key)) {
-            // Cache has the key
-            LfuCacheEntry oldLfuCacheEntry = map.get(key);
-            map.put(key, new LfuCacheEntry(oldLfuCacheEntry.getValue(), oldLfuCacheEntry.getFrequency()+1));
-            return new KVMessageImpl(key, oldLfuCacheEntry.getValue(), KVMessage.StatusType.GET_SUCCESS);
-        }
-        else {
-            // Cache miss.... Forward request to KVPersistenceEngine.
-            KVMessageImpl result = persistence.get(key);
-            if (result.getStatus().equals(KVMessage.StatusType.GET_SUCCESS)) {
-                // Key found in persistence file. Put it in cache too.
-                if (!isFull()) {
-                    map.put(key, new LfuCacheEntry(result.getValue(), 0));
-                }
-                else {
-                    // Find victim, write it to persistence and
-                    String victimKey = findVictimKey();
-
-                    // Write victim to persistence
-                    // Then delete it from cache and add new (k,v)
-                    if (!victimKey.isEmpty()) {
-                        String victimValue = map.get(victimKey).getValue();
-                        map.remove(victimKey);
-                        map.put(key, new LfuCacheEntry(result.getValue(), 0));
-                        persistence.put(victimKey, victimValue);
-                    }
-                    else {
-                        logger.error("Couldn't find cache victim");
-                        return new KVMessageImpl("", "", KVMessage.StatusType.GET_ERROR);
-                    }
-                }
-            }
-            else {
-                result = new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR );
-            }
-
-            return result;
+    public LFUCache(long capacity, Weigher weigher) {
+        this.cacheSize = capacity;
+        this.weigher = weigher;
+    }
 
+    /**
+     *
+     * @param key key of the Cache Entry to be accessed
+     * @return the cached value, or null on a cache miss
+     */
+    @Override
+    public String get(String key) {
+        LfuCacheEntry entry = map.get(key);
+        if (entry == null) {
+            return null;
         }
-        /*if (map.containsKey(key))  // cache hit
-        {
-            LfuCacheEntry temp = map.get(key);
-            temp.frequency++;
-            map.put(key, temp);
-            return temp.value;
-        }
-        return null; // cache miss*/
+        promote(entry);
+        return entry.getValue();
     }
 
     /**
-     * Add a new KV pair in Cache
+     * Add a new KV pair in Cache, or update it
      * @param key key of the Cache Entry to be inserted
      * @param value value of the Cache Entry to be inserted
-     * @return
-     */
-    public KVMessageImpl addLfuCacheEntry(String key, String value) {
-
-        // "This" does the job
-        if (value.equals("null")) {
-            map.remove(key);
-            return persistence.remove(key);
-        }
-        else {
-            if (map.containsKey(key)) {
-                // Cache has the key
-                LfuCacheEntry oldEntry = map.get(key);
-                map.put(key, new LfuCacheEntry(value, oldEntry.getFrequency()+1));
-                //return persistence.put(key, value); // Write-through policy
-                return new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
-            } else {
-                // Cache miss.... Forward request to KVPersistenceEngine.
-                KVMessageImpl result = persistence.put(key, value);
-                if (result.getStatus().equals(KVMessage.StatusType.PUT_SUCCESS) || result.getStatus().equals(KVMessage.StatusType.PUT_UPDATE)) {
-                    // Key was written in persistence file. Put it in cache too.
-                    // Or key found and updated in persistence file. Put it in cache too. :-)
-
-                    // The rest for Write-allocate policy
-                    if (!isFull()) {
-                        map.put(key, new LfuCacheEntry(value, 0));
-                    } else {
-                        // Find victim, write it to persistence and
-                        String victimKey = findVictimKey();
-
-                        // Write victim to persistence
-                        // Then delete it from cache and add new (k,v)
-                        if (!key.isEmpty()) {
-                            LfuCacheEntry victimEntry = map.get(victimKey);
-                            map.remove(victimKey);
-                            map.put(key, new LfuCacheEntry(result.getValue(), 0));
-                            persistence.put(victimKey, victimEntry.getValue());
-                        } else {
-                            logger.error("Couldn't find cache victim");
-                            return new KVMessageImpl("", "", KVMessage.StatusType.PUT_ERROR);
-                        }
-                    }
-                } else {
-                    logger.error("Error while putting value to persistence");
-                }
-
-                return result;
-
+     */
+    @Override
+    public void put(String key, String value) {
+        int entryWeight = weigher.weigh(key, value);
+        if (entryWeight > cacheSize) {
+            // Too heavy to be cached, leave the other entries alone
+            remove(key);
+            return;
+        }
+        LfuCacheEntry entry = map.get(key);
+        if (entry != null) {
+            // Cache has the key
+            weight += entryWeight - weigher.weigh(key, entry.getValue());
+            entry.setValue(value);
+            promote(entry);
+            while (weight > cacheSize) {
+                evict();
             }
+            return;
         }
+        while (lowest != null && weight + entryWeight > cacheSize) {
+            // Drop the victim, it is already persisted
+            evict();
+        }
+        weight += entryWeight;
+        entry = new LfuCacheEntry(key, value);
+        if (lowest == null || lowest.priority != age) {
+            Bucket bucket = new Bucket(age);
+            insertAfter(null, bucket);
+        }
+        append(lowest, entry);
+        map.put(key, entry);
     }
 
     /**
-     *
-     * @return the value of the key of the Victim KV pair
+     * Removes a KV pair from the Cache
+     * @param key key of the Cache Entry to be removed
      */
-    public String findVictimKey() {
-        String key = new String();
-        Integer minFreq = Integer.MAX_VALUE;
-
-        for (Map.Entry<String, LfuCacheEntry> entry : map.entrySet()) {
-            if (minFreq > entry.getValue().getFrequency()) {
-                key = entry.getKey();
-                minFreq = entry.getValue().getFrequency();
-            }
+    @Override
+    public void remove(String key) {
+        LfuCacheEntry entry = map.remove(key);
+        if (entry != null) {
+            weight -= weigher.weigh(key, entry.getValue());
+            unlink(entry);
         }
+    }
 
-        return key;
+    /**
+     *
+     * @return the key of the Victim KV pair, or an empty string if the cache is empty
+     */
+    public String findVictimKey() {
+        return lowest == null ? "" : lowest.head.key;
     }
 
     /**
      *
      * @return true if Cache is full else false
      */
-    public static boolean isFull() {
-        if (map.size() == cacheSize)
-            return true;
+    @Override
+    public boolean isFull() {
+        return weight >= cacheSize;
+    }
 
-        return false;
+    @Override
+    public long weight() {
+        return weight;
     }
 
-    public synchronized Collection<Map.Entry<String, LfuCacheEntry>> getAll() {
+    public Collection<Map.Entry<String, LfuCacheEntry>> getAll() {
 
         return new ArrayList<Map.Entry<String, LfuCacheEntry>>(map.entrySet());
 
     }
 
+    /**
+     * Copies the entries, from the next victim to the most valuable entry
+     * @return the entries
+     */
+    @Override
+    public LinkedHashMap<String, String> snapshot() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        for (Bucket bucket = lowest; bucket != null; bucket = bucket.next) {
+            for (LfuCacheEntry entry = bucket.head; entry != null; entry = entry.next) {
+                entries.put(entry.key, entry.getValue());
+            }
+        }
+        return entries;
+    }
 
     /**
      * Simple print of the LFU Cache
      */
     public void printLFUCache() {
-
-        Set set = map.entrySet();
-        Iterator i = set.iterator();
-
-        // Display elements
-        while (i.hasNext()) {
-            Map.Entry me = (Map.Entry) i.next();
-            System.out.print(me.getKey() + ": ");
-            LfuCacheEntry x = (LfuCacheEntry) me.getValue();
-            System.out.println(x.getValue());
+        for (Map.Entry<String, String> entry : snapshot().entrySet()) {
+            System.out.print(entry.getKey() + ": ");
+            System.out.println(entry.getValue());
         }
     }
 
     /**
      *
-     * @return the LinkedHashMap representing the Cache
+     * @return the map of the keys to the Cache entries
      */
-    public LinkedHashMap<String, LfuCacheEntry> getCacheMap(){
-        return map;
+    public Map<String, LfuCacheEntry> getCacheMap(){
+        return Collections.unmodifiableMap(map);
     }
 
     /**
-     * Clears the lru cache
+     * Clears the lfu cache
      */
-    public void cleanUp() {
+    @Override
+    public void clear() {
         map.clear();
+        lowest = null;
+        age = 0;
+        weight = 0;
+    }
+
+    /**
+     * Counts a hit, moving the entry to the bucket of the next priority
+     */
+    private void promote(LfuCacheEntry entry) {
+        entry.access();
+        Bucket bucket = entry.bucket;
+        Bucket target = bucket.next;
+        if (target == null || target.priority != bucket.priority + 1) {
+            target = new Bucket(bucket.priority + 1);
+            insertAfter(bucket, target);
+        }
+        unlink(entry);
+        append(target, entry);
+    }
+
+    /**
+     * Drops the eldest entry of the lowest bucket
+     */
+    private void evict() {
+        LfuCacheEntry victim = lowest.head;
+        age = lowest.priority;
+        map.remove(victim.key);
+        weight -= weigher.weigh(victim.key, victim.getValue());
+        unlink(victim);
+    }
+
+    private void append(Bucket bucket, LfuCacheEntry entry) {
+        entry.bucket = bucket;
+        entry.prev = bucket.tail;
+        entry.next = null;
+        if (bucket.tail == null) {
+            bucket.head = entry;
+        } else {
+            bucket.tail.next = entry;
+        }
+        bucket.tail = entry;
     }
 
+    /**
+     * Takes an entry out of its bucket, dropping the bucket once it is empty
+     */
+    private void unlink(LfuCacheEntry entry) {
+        Bucket bucket = entry.bucket;
+        if (entry.prev == null) {
+            bucket.head = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            bucket.tail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.bucket = null;
+        entry.prev = entry.next = null;
+        if (bucket.head == null) {
+            if (bucket.prev == null) {
+                lowest = bucket.next;
+            } else {
+                bucket.prev.next = bucket.next;
+            }
+            if (bucket.next != null) {
+                bucket.next.prev = bucket.prev;
+            }
+        }
+    }
+
+    /**
+     * Links a bucket after another one, or first if there is none
+     */
+    private void insertAfter(Bucket previous, Bucket bucket) {
+        bucket.prev = previous;
+        bucket.next = previous == null ? lowest : previous.next;
+        if (bucket.next != null) {
+            bucket.next.prev = bucket;
+        }
+        if (previous == null) {
+            lowest = bucket;
+        } else {
+            previous.next = bucket;
+        }
+    }
 }
@@ -0,0 +1,890 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import helpers.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM-tree storage engine.
+ *
+ * Writes go to a concurrent skip-list memtable (and, in durable mode, to a
+ * write-ahead log first). A full memtable is flushed in the background to
+ * an immutable SortedRun file at level 0. Once a level holds `fanout` runs
+ * they are merged into one run of the next level (tiered merging), so a
+ * lookup reads at most one block from a bounded number of runs, most of
+ * which it skips through their Bloom filters.
+ *
+ * Everything is ordered by ring position (key hash followed by the key),
+ * so range operations read only the part of every run inside the range.
+ *
+ * Runs are ordered newest first (lower level first, then higher id first),
+ * so the first record found for a key is its latest one. The live runs are
+ * listed in a manifest file that is replaced atomically after every flush
+ * and merge; run files not listed there are leftovers and get removed.
+ *
+ * Reads and writes share a read lock and proceed concurrently; the lock is
+ * taken exclusively only to swap in a new memtable or new runs.
+ */
+public class LSMStorageEngine implements StorageEngine {
+
+    private static final String RUN_SUFFIX = ".run";
+    private static final String WAL_SUFFIX = ".wal";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final String fileNamePrefix = "data.store";
+    private final String fileName;
+    private final boolean durable;
+    private final boolean syncing;
+    private final long memtableSize;
+    private final int fanout;
+    private final double falsePositiveRate;
+    private final Compression compression;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock walLock = new ReentrantLock();
+    private volatile ConcurrentSkipListMap<String, LogRecord> memtable = new ConcurrentSkipListMap<>();
+    private volatile List<ConcurrentSkipListMap<String, LogRecord>> frozen = Collections.emptyList();
+    private final Map<ConcurrentSkipListMap<String, LogRecord>, LogSegment> frozenWals = new IdentityHashMap<>();
+    private volatile List<SortedRun> runs = Collections.emptyList();
+    private final AtomicLong memtableBytes = new AtomicLong();
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private LogSegment wal;
+    private int walId;
+    private int flushedWalId;
+    private int nextRunId = 1;
+    private GroupCommitter committer;
+    private ExecutorService maintenance;
+    private volatile boolean closed;
+    private static Logger logger = Logger.getLogger(LSMStorageEngine.class);
+
+    private static final ThreadLocal<MD5Hash> md5 = new ThreadLocal<MD5Hash>() {
+        @Override
+        protected MD5Hash initialValue() {
+            return new MD5Hash();
+        }
+    };
+
+    private static final Comparator<SortedRun> NEWEST_FIRST = new Comparator<SortedRun>() {
+        @Override
+        public int compare(SortedRun run1, SortedRun run2) {
+            if (run1.getLevel() != run2.getLevel()) {
+                return run1.getLevel() < run2.getLevel() ? -1 : 1;
+            }
+            return run1.getId() > run2.getId() ? -1 : (run1.getId() == run2.getId() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Constructor
+     * @param suffix the suffix of the store file names
+     * @param config the storage options
+     * @throws StorageException if the store cannot be opened
+     */
+    public LSMStorageEngine(String suffix, StorageConfig config) throws StorageException {
+        this.fileName = fileNamePrefix + suffix;
+        this.durable = config.isDurable();
+        this.syncing = durable && config.getSyncPolicy() != GroupCommitter.Policy.NONE;
+        this.memtableSize = config.getMemtableSize();
+        this.fanout = Math.max(2, config.getLsmFanout());
+        this.compression = config.getCompression();
+        this.falsePositiveRate = config.getBloomFalsePositiveRate() > 0 ? config.getBloomFalsePositiveRate() : 0.01;
+        try {
+            if (durable) {
+                long start = System.currentTimeMillis();
+                recover();
+                logger.info("Recovered " + runs.size() + " runs and " + memtable.size() + " logged writes of "
+                        + fileName + " in " + (System.currentTimeMillis() - start) + " ms");
+                walId++;
+                wal = new LogSegment(walFile(walId), walId, syncing);
+            } else {
+                deleteStoreFiles();
+            }
+        } catch (IOException e) {
+            logger.error("Cannot initialize persistence file", e);
+            throw new StorageException("Cannot initialize persistence file");
+        }
+        final String name = new File(fileName).getName();
+        committer = new GroupCommitter(durable ? config.getSyncPolicy() : GroupCommitter.Policy.NONE,
+                config.getSyncInterval(), name, nextSequence.get() - 1);
+        committer.start();
+        maintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Maintenance-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public KVMessageImpl get(String key) {
+        String position = position(key);
+        lock.readLock().lock();
+        try {
+            LogRecord record = lookup(position);
+            if (record != null && !record.isDelete())
+                return new KVMessageImpl(key, record.getValue(), KVMessage.StatusType.GET_SUCCESS);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        } catch (IOException e) {
+            logger.error("Cannot read from persistence file", e);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes an entry. PUT_SUCCESS and PUT_UPDATE are told apart through a
+     * lookup, so concurrent puts of the same new key should be serialized
+     * by the caller (the cache does) to get exact statuses.
+     */
+    @Override
+    public KVMessageImpl put(String key, String value) {
+        String position = position(key);
+        KVMessageImpl response;
+        lock.readLock().lock();
+        try {
+            LogRecord current = lookup(position);
+            write(LogRecord.PUT, position, value);
+            response = current == null || current.isDelete()
+                    ? new KVMessageImpl(key, value, KVMessage.StatusType.PUT_SUCCESS)
+                    : new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
+        } catch (IOException e) {
+            logger.error("Cannot write to persistence file", e);
+            response = new KVMessageImpl(key, "", KVMessage.StatusType.PUT_ERROR);
+        } finally {
+            lock.readLock().unlock();
+        }
+        scheduleFlushIfFull();
+        return response;
+    }
+
+    @Override
+    public KVMessageImpl remove(String key) {
+        String position = position(key);
+        KVMessageImpl response;
+        lock.readLock().lock();
+        try {
+            LogRecord current = lookup(position);
+            if (current == null || current.isDelete()) {
+                response = new KVMessageImpl(key, null, KVMessage.StatusType.DELETE_ERROR);
+            } else {
+                write(LogRecord.DELETE, position, null);
+                response = new KVMessageImpl(key, current.getValue(), KVMessage.StatusType.DELETE_SUCCESS);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot remove entry from persistence file", e);
+            response = new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
+        } finally {
+            lock.readLock().unlock();
+        }
+        scheduleFlushIfFull();
+        return response;
+    }
+
+    @Override
+    public KVMessageImpl remove(KVRange range) {
+        logger.info("Starting range removal for range " + range.getLow() + ":" + range.getHigh());
+        for (KVPair pair : get(range)) {
+            if (remove(pair.getKey()).getStatus().equals(KVMessage.StatusType.DELETE_ERROR))
+                return new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
+        }
+        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    @Override
+    public List<KVPair> get(KVRange range) {
+        List<KVPair> pairs = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String[] interval : RingIndex.intervals(range)) {
+                // Newest sources first, the first record of a position wins
+                TreeMap<String, LogRecord> found = new TreeMap<>();
+                collect(memtable.subMap(interval[0], true, interval[1], true), found);
+                for (ConcurrentSkipListMap<String, LogRecord> table : frozen) {
+                    collect(table.subMap(interval[0], true, interval[1], true), found);
+                }
+                for (SortedRun run : runs) {
+                    run.collect(interval[0], interval[1], found);
+                }
+                for (LogRecord record : found.values()) {
+                    if (!record.isDelete())
+                        pairs.add(new KVPair(RingIndex.keyOf(record.getKey()), record.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Cannot read from persistence file", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return pairs;
+    }
+
+    /**
+     * Checks the memtables and the Bloom filters of the runs. Reads nothing
+     * from disk and takes no lock: the memtable is replaced only after it
+     * was added to the frozen ones, and those are dropped only after their
+     * run was added, so a key is always found in one of them.
+     */
+    @Override
+    public boolean mightContain(String key) {
+        String position = position(key);
+        if (memtable.containsKey(position)) {
+            return true;
+        }
+        for (ConcurrentSkipListMap<String, LogRecord> table : frozen) {
+            if (table.containsKey(position)) {
+                return true;
+            }
+        }
+        for (SortedRun run : runs) {
+            if (run.mightContain(position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the memtables and the runs as one stream, up to the first
+     * record that is not a deletion
+     */
+    @Override
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            List<SortedRun.Reader> sources = new ArrayList<>();
+            sources.add(reader(memtable.values().iterator()));
+            for (ConcurrentSkipListMap<String, LogRecord> table : frozen) {
+                sources.add(reader(table.values().iterator()));
+            }
+            sources.addAll(readers(runs));
+            return mergeReader(sources, true).next() == null;
+        } catch (IOException e) {
+            logger.error("Cannot read from persistence file", e);
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitDurable() {
+        return committer.awaitDurable();
+    }
+
+    @Override
+    public void close() {
+        shutDownMaintenance();
+        lock.writeLock().lock();
+        try {
+            committer.close();
+            if (wal != null) {
+                wal.close();
+            }
+            for (LogSegment log : frozenWals.values()) {
+                if (log != null) {
+                    log.close();
+                }
+            }
+            for (SortedRun run : runs) {
+                run.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void cleanUp() {
+        shutDownMaintenance();
+        lock.writeLock().lock();
+        try {
+            committer.close();
+            if (wal != null) {
+                wal.delete();
+                wal = null;
+            }
+            for (SortedRun run : runs) {
+                run.delete();
+            }
+            runs = Collections.emptyList();
+            frozen = Collections.emptyList();
+            frozenWals.clear();
+            memtable = new ConcurrentSkipListMap<>();
+            memtableBytes.set(0);
+            deleteStoreFiles();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Run count getter
+     * @return the number of runs a lookup may have to check
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Disk usage getter
+     * @return the total size of the runs, in bytes
+     */
+    public long getDiskBytes() {
+        long total = 0;
+        for (SortedRun run : runs) {
+            total += run.size();
+        }
+        return total;
+    }
+
+    /**
+     * Raw size getter
+     * @return the total size of the records of the runs before compression, in bytes
+     */
+    public long getRawBytes() {
+        long total = 0;
+        for (SortedRun run : runs) {
+            total += run.getRawSize();
+        }
+        return total;
+    }
+
+    /**
+     * Flushes the memtable into a run right away, and merges the levels
+     * that became full. Runs on the maintenance thread.
+     * @throws IOException if the flush or a merge fails
+     */
+    public void flush() throws IOException {
+        try {
+            maintenance.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushMemtable();
+                }
+            }).get();
+        } catch (Exception e) {
+            throw new IOException("Flush failed", e);
+        }
+    }
+
+    /**
+     * Finds the latest record of a position. Must hold the read lock.
+     * @param position the ring position of the key
+     * @return the record (possibly a tombstone), or null if the key was never written
+     * @throws IOException if a run cannot be read
+     */
+    private LogRecord lookup(String position) throws IOException {
+        LogRecord record = memtable.get(position);
+        if (record != null) {
+            return record;
+        }
+        for (ConcurrentSkipListMap<String, LogRecord> table : frozen) {
+            record = table.get(position);
+            if (record != null) {
+                return record;
+            }
+        }
+        for (SortedRun run : runs) {
+            record = run.find(position);
+            if (record != null) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs a write and applies it to the memtable. Must hold the read lock.
+     * @param type PUT or DELETE
+     * @param position the ring position of the key
+     * @param value the value, null for a DELETE
+     * @throws IOException if the write-ahead log cannot be written
+     */
+    private void write(byte type, String position, String value) throws IOException {
+        LogRecord record;
+        walLock.lock();
+        try {
+            long sequence = nextSequence.getAndIncrement();
+            record = new LogRecord(type, sequence, position, value == null ? "" : value);
+            if (wal != null) {
+                wal.append(LogRecord.encode(type, sequence, position, value));
+                committer.appended(wal, sequence);
+            }
+        } finally {
+            walLock.unlock();
+        }
+        insert(memtable, record);
+        memtableBytes.addAndGet(2L * (position.length() + record.getValue().length()) + ENTRY_OVERHEAD);
+    }
+
+    /**
+     * Puts a record into a memtable unless it already holds a newer one
+     * @param table the memtable
+     * @param record the record, keyed by ring position
+     */
+    private static void insert(ConcurrentSkipListMap<String, LogRecord> table, LogRecord record) {
+        while (true) {
+            LogRecord existing = table.putIfAbsent(record.getKey(), record);
+            if (existing == null || existing.getSequence() > record.getSequence()) {
+                return;
+            }
+            if (table.replace(record.getKey(), existing, record)) {
+                return;
+            }
+        }
+    }
+
+    private static void collect(Map<String, LogRecord> part, Map<String, LogRecord> into) {
+        for (Map.Entry<String, LogRecord> entry : part.entrySet()) {
+            if (!into.containsKey(entry.getKey())) {
+                into.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void scheduleFlushIfFull() {
+        if (memtableBytes.get() >= memtableSize && !closed && flushScheduled.compareAndSet(false, true)) {
+            maintenance.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushMemtable();
+                }
+            });
+        }
+    }
+
+    /**
+     * Freezes the memtable, writes the frozen memtables as level 0 runs,
+     * oldest first, and merges full levels. A memtable whose run cannot be
+     * written stays frozen with the newer ones and is retried by the next
+     * flush; the logs are dropped only up to the oldest one still frozen.
+     */
+    private void flushMemtable() {
+        lock.writeLock().lock();
+        try {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            if (!memtable.isEmpty()) {
+                LogSegment oldWal = wal;
+                if (durable) {
+                    walLock.lock();
+                    try {
+                        oldWal.sync();
+                        LogSegment newWal = new LogSegment(walFile(walId + 1), walId + 1, syncing);
+                        walId++;
+                        wal = newWal;
+                        committer.appended(wal, nextSequence.get() - 1);
+                    } finally {
+                        walLock.unlock();
+                    }
+                }
+                frozenWals.put(memtable, oldWal);
+                List<ConcurrentSkipListMap<String, LogRecord>> tables = new ArrayList<>();
+                tables.add(memtable);
+                tables.addAll(frozen);
+                frozen = Collections.unmodifiableList(tables);
+                memtable = new ConcurrentSkipListMap<>();
+                memtableBytes.set(0);
+            }
+        } catch (IOException e) {
+            // Nothing was frozen, the memtable keeps taking writes into its log
+            logger.error("Cannot start a new write-ahead log for " + fileName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<ConcurrentSkipListMap<String, LogRecord>> pending = frozen;
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (!flushFrozen(pending.get(i))) {
+                return;
+            }
+        }
+        try {
+            mergeFullLevels();
+        } catch (IOException e) {
+            logger.error("Cannot merge runs of " + fileName, e);
+        }
+    }
+
+    /**
+     * Writes a frozen memtable as a level 0 run, then drops it and its log.
+     * Older frozen memtables must have been written already.
+     * @param table the frozen memtable
+     * @return false if the run cannot be written
+     */
+    private boolean flushFrozen(ConcurrentSkipListMap<String, LogRecord> table) {
+        int runId = nextRunId++;
+        try {
+            SortedRun run = SortedRun.write(runFile(runId), runId, 0, reader(table.values().iterator()),
+                    table.size(), falsePositiveRate, compression);
+            LogSegment log;
+            lock.writeLock().lock();
+            try {
+                List<SortedRun> newRuns = new ArrayList<>(runs);
+                newRuns.add(run);
+                Collections.sort(newRuns, NEWEST_FIRST);
+                runs = Collections.unmodifiableList(newRuns);
+                List<ConcurrentSkipListMap<String, LogRecord>> tables = new ArrayList<>(frozen);
+                tables.remove(table);
+                frozen = Collections.unmodifiableList(tables);
+                log = frozenWals.remove(table);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (durable) {
+                flushedWalId = log.getId();
+                writeManifest();
+                log.close();
+                deleteWals(flushedWalId);
+            }
+            return true;
+        } catch (IOException e) {
+            // The memtable stays frozen in memory and in its log
+            logger.error("Cannot flush memtable of " + fileName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Merges every level holding `fanout` runs into one run of the next level
+     * @throws IOException if a merge fails
+     */
+    private void mergeFullLevels() throws IOException {
+        for (int level = 0; !closed; level++) {
+            List<SortedRun> current = runs;
+            List<SortedRun> inputs = new ArrayList<>();
+            boolean deeper = false;
+            for (SortedRun run : current) {
+                if (run.getLevel() == level) {
+                    inputs.add(run);
+                } else if (run.getLevel() > level) {
+                    deeper = true;
+                }
+            }
+            if (inputs.size() >= fanout) {
+                merge(inputs, level + 1, !deeper);
+            } else if (!deeper) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges runs into a new run and swaps it in
+     * @param inputs the runs to merge, newest first
+     * @param level the level of the new run
+     * @param bottom true if no older data exists, so tombstones can be dropped
+     * @throws IOException if the merge fails
+     */
+    private void merge(List<SortedRun> inputs, int level, boolean bottom) throws IOException {
+        long start = System.currentTimeMillis();
+        long records = 0;
+        long inputBytes = 0;
+        for (SortedRun input : inputs) {
+            records += input.getRecordCount();
+            inputBytes += input.size();
+        }
+        int runId = nextRunId++;
+        SortedRun merged = SortedRun.write(runFile(runId), runId, level, mergeReader(readers(inputs), bottom),
+                records, falsePositiveRate, compression);
+        lock.writeLock().lock();
+        try {
+            List<SortedRun> newRuns = new ArrayList<>(runs);
+            newRuns.removeAll(inputs);
+            newRuns.add(merged);
+            Collections.sort(newRuns, NEWEST_FIRST);
+            runs = Collections.unmodifiableList(newRuns);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (durable) {
+            writeManifest();
+        }
+        for (SortedRun input : inputs) {
+            input.delete();
+        }
+        logger.info("Merged " + inputs.size() + " runs of " + fileName + " into level " + level + ": "
+                + inputBytes + " -> " + merged.size() + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static SortedRun.Reader reader(final Iterator<LogRecord> records) {
+        return new SortedRun.Reader() {
+            @Override
+            public LogRecord next() {
+                return records.hasNext() ? records.next() : null;
+            }
+        };
+    }
+
+    /**
+     * Head record of one merge input
+     */
+    private static class MergeHead {
+        final SortedRun.Reader reader;
+        final int rank;
+        LogRecord record;
+
+        MergeHead(SortedRun.Reader reader, int rank) {
+            this.reader = reader;
+            this.rank = rank;
+        }
+    }
+
+    private static List<SortedRun.Reader> readers(List<SortedRun> runs) {
+        List<SortedRun.Reader> readers = new ArrayList<>(runs.size());
+        for (SortedRun run : runs) {
+            readers.add(run.reader());
+        }
+        return readers;
+    }
+
+    /**
+     * Reads several sources as one sorted stream, keeping the newest record
+     * of every position
+     * @param inputs the readers of the sources, newest first
+     * @param dropTombstones true to leave deletions out of the stream
+     * @return the merged reader
+     * @throws IOException if a run cannot be read
+     */
+    private static SortedRun.Reader mergeReader(List<SortedRun.Reader> inputs, final boolean dropTombstones) throws IOException {
+        final PriorityQueue<MergeHead> queue = new PriorityQueue<>(Math.max(1, inputs.size()), new Comparator<MergeHead>() {
+            @Override
+            public int compare(MergeHead head1, MergeHead head2) {
+                int order = head1.record.getKey().compareTo(head2.record.getKey());
+                return order != 0 ? order : Integer.compare(head1.rank, head2.rank);
+            }
+        });
+        for (int i = 0; i < inputs.size(); i++) {
+            MergeHead head = new MergeHead(inputs.get(i), i);
+            head.record = head.reader.next();
+            if (head.record != null) {
+                queue.add(head);
+            }
+        }
+        return new SortedRun.Reader() {
+            @Override
+            public LogRecord next() throws IOException {
+                while (!queue.isEmpty()) {
+                    MergeHead head = queue.poll();
+                    LogRecord record = head.record;
+                    advance(head);
+                    while (!queue.isEmpty() && queue.peek().record.getKey().equals(record.getKey())) {
+                        advance(queue.poll());
+                    }
+                    if (!(dropTombstones && record.isDelete())) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            private void advance(MergeHead head) throws IOException {
+                head.record = head.reader.next();
+                if (head.record != null) {
+                    queue.add(head);
+                }
+            }
+        };
+    }
+
+    /**
+     * Loads the runs listed in the manifest and replays the write-ahead
+     * logs that were not flushed into a run yet
+     * @throws IOException if the store files cannot be read
+     */
+    private void recover() throws IOException {
+        Map<Integer, Integer> levels = readManifest();
+        long maxSequence = 0;
+        List<SortedRun> loaded = new ArrayList<>();
+        for (File file : storeFiles(RUN_SUFFIX)) {
+            int id = fileId(file, RUN_SUFFIX);
+            nextRunId = Math.max(nextRunId, id + 1);
+            if (!levels.containsKey(id)) {
+                // Written by a flush or merge that did not complete
+                file.delete();
+                continue;
+            }
+            SortedRun run = SortedRun.open(file, id, levels.get(id), falsePositiveRate);
+            maxSequence = Math.max(maxSequence, run.getMaxSequence());
+            loaded.add(run);
+        }
+        Collections.sort(loaded, NEWEST_FIRST);
+        runs = Collections.unmodifiableList(loaded);
+
+        File[] logs = storeFiles(WAL_SUFFIX);
+        Arrays.sort(logs);
+        walId = flushedWalId;
+        for (File file : logs) {
+            int id = fileId(file, WAL_SUFFIX);
+            if (id <= flushedWalId) {
+                file.delete();
+                continue;
+            }
+            walId = Math.max(walId, id);
+            LogSegment log = new LogSegment(file, id);
+            final long[] logSequence = { 0 };
+            long validEnd = log.scan(0, new LogSegment.RecordVisitor() {
+                @Override
+                public void visit(LogRecord record, long offset, int length) {
+                    insert(memtable, record);
+                    memtableBytes.addAndGet(2L * (record.getKey().length() + record.getValue().length()) + ENTRY_OVERHEAD);
+                    logSequence[0] = Math.max(logSequence[0], record.getSequence());
+                }
+            });
+            if (validEnd < log.size()) {
+                logger.warn("Dropping " + (log.size() - validEnd) + " trailing bytes of " + file.getName());
+                log.truncate(validEnd);
+            }
+            log.close();
+            maxSequence = Math.max(maxSequence, logSequence[0]);
+        }
+        nextSequence.set(maxSequence + 1);
+    }
+
+    /**
+     * Reads the manifest
+     * @return the level of every live run, by run id
+     * @throws IOException if the manifest cannot be read
+     */
+    private Map<Integer, Integer> readManifest() throws IOException {
+        Map<Integer, Integer> levels = new HashMap<>();
+        File manifest = new File(fileName + MANIFEST_SUFFIX);
+        if (!manifest.exists()) {
+            return levels;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split(" ");
+                if (tokens[0].equals("wal")) {
+                    flushedWalId = Integer.parseInt(tokens[1]);
+                } else if (tokens[0].equals("run")) {
+                    levels.put(Integer.parseInt(tokens[2]), Integer.parseInt(tokens[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return levels;
+    }
+
+    /**
+     * Replaces the manifest with the current list of runs
+     * @throws IOException if the manifest cannot be written
+     */
+    private void writeManifest() throws IOException {
+        File manifest = new File(fileName + MANIFEST_SUFFIX);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, LogRecord.CHARSET));
+            writer.write("wal " + flushedWalId + "\n");
+            for (SortedRun run : runs) {
+                writer.write("run " + run.getLevel() + " " + run.getId() + "\n");
+            }
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            manifest.delete();
+            if (!tmp.renameTo(manifest)) {
+                throw new IOException("Cannot install manifest " + manifest.getName());
+            }
+        }
+    }
+
+    private void shutDownMaintenance() {
+        closed = true;
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String position(String key) {
+        return RingIndex.position(md5.get(), key);
+    }
+
+    private File runFile(int id) {
+        return new File(String.format("%s.%06d%s", fileName, id, RUN_SUFFIX));
+    }
+
+    private File walFile(int id) {
+        return new File(String.format("%s.%06d%s", fileName, id, WAL_SUFFIX));
+    }
+
+    private int fileId(File file, String suffix) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(new File(fileName).getName().length() + 1,
+                    name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void deleteWals(int upTo) {
+        for (File file : storeFiles(WAL_SUFFIX)) {
+            if (fileId(file, WAL_SUFFIX) <= upTo) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes all files of the store
+     */
+    private void deleteStoreFiles() {
+        for (String suffix : new String[] { RUN_SUFFIX, WAL_SUFFIX }) {
+            for (File file : storeFiles(suffix)) {
+                file.delete();
+            }
+        }
+        new File(fileName + MANIFEST_SUFFIX).delete();
+    }
+
+    /**
+     * Lists the files of a kind belonging to this engine
+     * @param suffix the file name suffix of the kind
+     * @return the files found in the working directory
+     */
+    private File[] storeFiles(final String suffix) {
+        final String prefix = new File(fileName).getName() + ".";
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+}
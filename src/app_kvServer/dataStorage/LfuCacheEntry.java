@@ -3,21 +3,30 @@ package app_kvServer.dataStorage;
 /**
  * Value Entry type in an LFU Cache
  * KV pair <Key, <Value,Frequency>>
+ *
+ * An entry is a node of the list of its frequency bucket in the LFUCache,
+ * and is updated in place on every hit.
  */
 public class LfuCacheEntry {
 
 
+    final String key;
     private String value;
-    private Integer frequency;
+    private int frequency;
+
+    // Position in the LFUCache, maintained by the cache
+    LFUCache.Bucket bucket;
+    LfuCacheEntry prev, next;
 
     /**
      *
+     * @param key key of the KV pair
      * @param value value of the KV pair
-     * @param frequency frequency of the respective key
      */
-    public LfuCacheEntry(String value, Integer frequency) {
+    LfuCacheEntry(String key, String value) {
+        this.key = key;
         this.value = value;
-        this.frequency = frequency;
+        this.frequency = 0;
     }
 
     /**
@@ -32,24 +41,23 @@ public class LfuCacheEntry {
      * Set value field in KV pair
      * @param value
      */
-    private void setValue(String value) {
+    void setValue(String value) {
         this.value = value;
     }
 
     /**
      *
-     * @return frequency of the KV pair
+     * @return frequency of the KV pair, the number of accesses after the first put
      */
-    public Integer getFrequency() {
+    public int getFrequency() {
         return frequency;
     }
 
     /**
-     * Set value in frequency
-     * @param frequency
+     * Counts an access
      */
-    private void setFrequency(Integer frequency) {
-        this.frequency = frequency;
+    void access() {
+        frequency++;
     }
 
 
@@ -0,0 +1,93 @@
+package app_kvServer.dataStorage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU or FIFO cache segment, based on LinkedHashMap.
+ *
+ * In access order the eldest entry is the least recently used one, in
+ * insertion order it is the first one added, so both policies drop the
+ * eldest entries until the segment is within its capacity.
+ */
+public class LinkedCacheSegment implements CacheSegment {
+
+    private final long capacity;
+    private final Weigher weigher;
+    private final LinkedHashMap<String, String> map;
+    private long weight = 0;
+
+    /**
+     * Constructor
+     * @param capacity the maximum number of entries
+     * @param accessOrder true for LRU, false for FIFO
+     */
+    public LinkedCacheSegment(final int capacity, boolean accessOrder) {
+        this(capacity, accessOrder, Weigher.ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the maximum total weight of the entries
+     * @param accessOrder true for LRU, false for FIFO
+     * @param weigher the weight of an entry
+     */
+    public LinkedCacheSegment(long capacity, boolean accessOrder, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.map = new LinkedHashMap<>(16, 0.75F, accessOrder);
+    }
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        int entryWeight = weigher.weigh(key, value);
+        if (entryWeight > capacity) {
+            // Too heavy to be cached, leave the other entries alone
+            remove(key);
+            return;
+        }
+        String old = map.put(key, value);
+        weight += entryWeight - (old == null ? 0 : weigher.weigh(key, old));
+        Iterator<Map.Entry<String, String>> eldest = map.entrySet().iterator();
+        while (weight > capacity) {
+            Map.Entry<String, String> victim = eldest.next();
+            weight -= weigher.weigh(victim.getKey(), victim.getValue());
+            eldest.remove();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        String old = map.remove(key);
+        if (old != null) {
+            weight -= weigher.weigh(key, old);
+        }
+    }
+
+    @Override
+    public boolean isFull() {
+        return weight >= capacity;
+    }
+
+    @Override
+    public long weight() {
+        return weight;
+    }
+
+    @Override
+    public LinkedHashMap<String, String> snapshot() {
+        return new LinkedHashMap<>(map);
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        weight = 0;
+    }
+}
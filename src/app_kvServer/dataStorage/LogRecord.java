@@ -0,0 +1,248 @@
+package app_kvServer.dataStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A single entry of the append-only storage log.
+ *
+ * On disk a record is laid out as
+ * <pre>
+ *   crc(4) | type(1) | sequence(8) | keyLength(4) | valueLength(4) | key | value
+ * </pre>
+ * where the CRC32 covers everything after the crc field itself.
+ * A DELETE record (tombstone) carries an empty value.
+ *
+ * Values of at least MIN_COMPRESSED_LENGTH bytes may be stored deflated.
+ * Such a record has the COMPRESSED flag set in its type, and its value
+ * field holds the uncompressed length (4 bytes) followed by the deflated
+ * bytes. Decoding hides the flag: the record reads like any other.
+ */
+public class LogRecord {
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    static final byte COMPRESSED = 0x40;
+    static final int MIN_COMPRESSED_LENGTH = 64;
+
+    public static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final byte type;
+    private final long sequence;
+    private final String key;
+    private final String value;
+
+    /**
+     * Constructor
+     * @param type the record type (PUT or DELETE)
+     * @param sequence the sequence number of the write that produced the record
+     * @param key the key of the record
+     * @param value the value of the record (empty for a DELETE)
+     */
+    public LogRecord(byte type, long sequence, String key, String value) {
+        this.type = type;
+        this.sequence = sequence;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Serializes a record into a buffer ready to be appended to a segment
+     * @param type the record type
+     * @param sequence the sequence number of the record
+     * @param key the key of the record
+     * @param value the value of the record, may be null for a DELETE
+     * @return a buffer positioned at 0 holding the encoded record
+     */
+    public static ByteBuffer encode(byte type, long sequence, String key, String value) {
+        return encode(type, sequence, key, value, Compression.NONE);
+    }
+
+    /**
+     * Serializes a record, compressing its value if that makes it smaller
+     * @param type the record type
+     * @param sequence the sequence number of the record
+     * @param key the key of the record
+     * @param value the value of the record, may be null for a DELETE
+     * @param compression the codec for values of at least MIN_COMPRESSED_LENGTH bytes
+     * @return a buffer positioned at 0 holding the encoded record
+     */
+    public static ByteBuffer encode(byte type, long sequence, String key, String value, Compression compression) {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(CHARSET);
+        if (compression != Compression.NONE && valueBytes.length >= MIN_COMPRESSED_LENGTH) {
+            byte[] deflated = compression.compress(valueBytes, 0, valueBytes.length);
+            if (deflated != null && deflated.length + 4 < valueBytes.length) {
+                valueBytes = ByteBuffer.allocate(4 + deflated.length)
+                        .putInt(valueBytes.length).put(deflated).array();
+                type |= COMPRESSED;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putLong(sequence);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.putInt(0, checksum(buffer.array(), 4, buffer.capacity() - 4));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Deserializes the record found at the current position of the buffer.
+     * The buffer position is advanced past the record on success.
+     * @param buffer the buffer holding the record
+     * @return the decoded record, or null if the buffer holds an incomplete
+     *         or corrupted record
+     */
+    public static LogRecord decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int crc = buffer.getInt(start);
+        byte type = buffer.get(start + 4);
+        long sequence = buffer.getLong(start + 5);
+        int keyLength = buffer.getInt(start + 13);
+        int valueLength = buffer.getInt(start + 17);
+        if (!isValidType(type) || keyLength < 0 || valueLength < 0
+                || buffer.remaining() < HEADER_SIZE + keyLength + valueLength) {
+            return null;
+        }
+        int length = HEADER_SIZE + keyLength + valueLength;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        if (checksum(bytes, 4, length - 4) != crc) {
+            buffer.position(start);
+            return null;
+        }
+        String key = new String(bytes, HEADER_SIZE, keyLength, CHARSET);
+        boolean compressed = (type & COMPRESSED) != 0;
+        try {
+            String value = value(bytes, HEADER_SIZE + keyLength, valueLength, compressed);
+            return new LogRecord((byte) (type & ~COMPRESSED), sequence, key, value);
+        } catch (IOException e) {
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes only the value of an encoded record, verifying its checksum
+     * @param bytes the array holding the record, starting at index 0
+     * @param length the encoded length of the record
+     * @return the value, or null if the record is corrupted or not a PUT
+     */
+    public static String decodeValue(byte[] bytes, int length) {
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes, 0, length);
+        int keyLength = header.getInt(13);
+        int valueLength = header.getInt(17);
+        if ((bytes[4] & ~COMPRESSED) != PUT || keyLength < 0 || valueLength < 0
+                || HEADER_SIZE + keyLength + valueLength != length
+                || checksum(bytes, 4, length - 4) != header.getInt(0)) {
+            return null;
+        }
+        try {
+            return value(bytes, HEADER_SIZE + keyLength, valueLength, (bytes[4] & COMPRESSED) != 0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Peeks at the header of the record found at the current position of the
+     * buffer, without moving the position.
+     * @param buffer the buffer holding the record
+     * @return the total encoded length of the record, -1 if the buffer does not
+     *         hold a complete header yet, or 0 if the header is not valid
+     */
+    public static int encodedLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        byte type = buffer.get(start + 4);
+        int keyLength = buffer.getInt(start + 13);
+        int valueLength = buffer.getInt(start + 17);
+        if (!isValidType(type) || keyLength < 0 || valueLength < 0
+                || (long) keyLength + valueLength > Integer.MAX_VALUE - HEADER_SIZE) {
+            return 0;
+        }
+        return HEADER_SIZE + keyLength + valueLength;
+    }
+
+    private static boolean isValidType(byte type) {
+        byte base = (byte) (type & ~COMPRESSED);
+        return base == PUT || (base == DELETE && type == DELETE);
+    }
+
+    private static String value(byte[] bytes, int offset, int length, boolean compressed) throws IOException {
+        if (!compressed) {
+            return new String(bytes, offset, length, CHARSET);
+        }
+        if (length < 4) {
+            throw new IOException("Truncated compressed value");
+        }
+        int rawLength = ByteBuffer.wrap(bytes, offset, 4).getInt();
+        if (rawLength < 0) {
+            throw new IOException("Invalid compressed value length " + rawLength);
+        }
+        byte[] raw = Compression.DEFLATE.decompress(bytes, offset + 4, length - 4, rawLength);
+        return new String(raw, CHARSET);
+    }
+
+    static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Type getter
+     * @return the record type (PUT or DELETE)
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Sequence getter
+     * @return the sequence number of the record
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Key getter
+     * @return the key of the record
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Value getter
+     * @return the value of the record
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Tombstone check
+     * @return true if the record marks a deletion
+     */
+    public boolean isDelete() {
+        return type == DELETE;
+    }
+}
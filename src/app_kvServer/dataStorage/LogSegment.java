@@ -0,0 +1,331 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One append-only file of the storage log.
+ * Records are only ever appended at the end of the segment; the segment
+ * is never rewritten in place.
+ *
+ * A buffered segment collects appended records in memory and writes them
+ * to the file in one call on flush (or sync), so that a batch of records
+ * costs a single write. Reads see the buffered records as well.
+ *
+ * A sealed segment can be memory-mapped. Reads are then served straight
+ * from the OS page cache, without a system call, and the mapped data
+ * does not count against the heap. A mapping is released by the garbage
+ * collector once the segment is dropped.
+ */
+public class LogSegment {
+
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static Logger logger = Logger.getLogger(LogSegment.class);
+
+    /**
+     * Callback receiving the records of a segment during a scan
+     */
+    public interface RecordVisitor {
+        /**
+         * Called for every valid record, in file order
+         * @param record the decoded record
+         * @param offset the offset of the record inside the segment
+         * @param length the encoded length of the record
+         */
+        void visit(LogRecord record, long offset, int length);
+    }
+
+    private final int id;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean buffered;
+    // A lock rather than a monitor, since appends and flushes write to the file
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer pending;
+    private MappedByteBuffer mapped;
+    private long flushedSize;
+    private long size;
+
+    /**
+     * Opens (or creates) an unbuffered segment file
+     * @param file the segment file
+     * @param id the id of the segment
+     * @throws IOException if the file cannot be opened
+     */
+    public LogSegment(File file, int id) throws IOException {
+        this(file, id, false);
+    }
+
+    /**
+     * Opens (or creates) a segment file
+     * @param file the segment file
+     * @param id the id of the segment
+     * @param buffered true if appended records are kept in memory until flushed
+     * @throws IOException if the file cannot be opened
+     */
+    public LogSegment(File file, int id, boolean buffered) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+        this.flushedSize = size;
+        this.buffered = buffered;
+        if (buffered) {
+            this.pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Appends an encoded record at the end of the segment
+     * @param record the encoded record
+     * @return the offset at which the record was written
+     * @throws IOException if the write fails
+     */
+    public long append(ByteBuffer record) throws IOException {
+        lock.lock();
+        try {
+            long offset = size;
+            if (buffered) {
+                if (pending.remaining() < record.remaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + record.remaining()));
+                    pending.flip();
+                    larger.put(pending);
+                    pending = larger;
+                }
+                size += record.remaining();
+                pending.put(record);
+                return offset;
+            }
+            long position = size;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            size = position;
+            flushedSize = position;
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file, in a single call
+     * @throws IOException if the write fails
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (!buffered || flushedSize == size) {
+                return;
+            }
+            pending.flip();
+            long position = flushedSize;
+            while (pending.hasRemaining()) {
+                position += channel.write(pending, position);
+            }
+            pending.clear();
+            flushedSize = position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a record from the segment
+     * @param offset the offset of the record
+     * @param target the array receiving the record bytes
+     * @param length the encoded length of the record
+     * @throws IOException if the read fails or the segment is too short
+     */
+    public void read(long offset, byte[] target, int length) throws IOException {
+        MappedByteBuffer mapping;
+        lock.lock();
+        try {
+            if (offset >= flushedSize) {
+                // Still in the write buffer
+                System.arraycopy(pending.array(), (int) (offset - flushedSize), target, 0, length);
+                return;
+            }
+            mapping = mapped;
+        } finally {
+            lock.unlock();
+        }
+        if (mapping != null && offset + length <= mapping.limit()) {
+            ByteBuffer view = mapping.duplicate();
+            view.position((int) offset);
+            view.get(target, 0, length);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(target, 0, length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment " + file.getName());
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Maps the segment into memory. Only done for sealed segments,
+     * since records appended later would not be part of the mapping.
+     * @throws IOException if the segment cannot be mapped
+     */
+    public void map() throws IOException {
+        lock.lock();
+        try {
+            flush();
+            if (size > 0 && size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the segment sequentially, in large chunks, handing every valid
+     * record to the visitor. The scan stops at the end of the segment or at
+     * the first incomplete or corrupted record.
+     * @param fromOffset the offset of the first record to read
+     * @param visitor the callback receiving the records
+     * @return the offset right after the last valid record
+     * @throws IOException if the segment cannot be read
+     */
+    public long scan(long fromOffset, RecordVisitor visitor) throws IOException {
+        long end = size();
+        long readPosition = fromOffset;
+        long bufferStart = fromOffset;
+        long validEnd = fromOffset;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        buffer.flip();
+        while (true) {
+            int length = LogRecord.encodedLength(buffer);
+            if (length == 0) {
+                break;
+            }
+            if (length > 0 && buffer.remaining() >= length) {
+                long offset = bufferStart + buffer.position();
+                LogRecord record = LogRecord.decode(buffer);
+                if (record == null) {
+                    break;
+                }
+                visitor.visit(record, offset, length);
+                validEnd = offset + length;
+                continue;
+            }
+            if (readPosition >= end) {
+                break;
+            }
+            bufferStart += buffer.position();
+            if (length > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(length);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                buffer.flip();
+                break;
+            }
+            readPosition += read;
+            buffer.flip();
+        }
+        return validEnd;
+    }
+
+    /**
+     * Cuts the segment at the given size, dropping a torn tail
+     * @param newSize the new size of the segment
+     * @throws IOException if the file cannot be truncated
+     */
+    public void truncate(long newSize) throws IOException {
+        lock.lock();
+        try {
+            flush();
+            mapped = null;
+            channel.truncate(newSize);
+            size = newSize;
+            flushedSize = newSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records and forces them to the disk
+     * @throws IOException if the sync fails
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Size getter
+     * @return the number of bytes written to the segment
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Id getter
+     * @return the id of the segment
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * File getter
+     * @return the file backing the segment
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes the underlying file
+     */
+    public void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("Cannot write the buffered records of segment " + file, e);
+        }
+        mapped = null;
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            // Nothing to do, the segment is being discarded
+        }
+    }
+
+    /**
+     * Closes and removes the segment file
+     * @return true if the file was deleted
+     */
+    public boolean delete() {
+        close();
+        return file.delete();
+    }
+}
@@ -0,0 +1,90 @@
+package app_kvServer.dataStorage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU set of keys that a store recently did not have.
+ *
+ * A miss may only be added if no write invalidated any key since the
+ * lookup began: the caller takes the version before it asks the store
+ * and passes it to add, so a miss racing with a write of the key is
+ * never remembered. Every write of a key must invalidate it, after the
+ * value is visible in the store.
+ *
+ * This class is thread-safe.
+ */
+public class NegativeCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, Boolean> misses;
+    private long version = 0;
+    private long hits = 0;
+
+    /**
+     * Constructor
+     * @param capacity the maximum number of remembered misses, 0 to remember none
+     */
+    public NegativeCache(final int capacity) {
+        this.capacity = capacity;
+        this.misses = new LinkedHashMap<String, Boolean>(16, 0.75F, true) {
+            // (an anonymous inner class)
+            private static final long serialVersionUID = 1;
+            @Override protected boolean removeEldestEntry (Map.Entry<String, Boolean> eldest) {
+                return size() > capacity; }};
+    }
+
+    /**
+     * @param key the key
+     * @return true if the key is a remembered miss
+     */
+    public synchronized boolean contains(String key) {
+        if (capacity == 0 || misses.get(key) == null) {
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * @return the version to pass to add after the lookup
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Remembers a miss, unless a write came in since the version was taken
+     * @param key the key
+     * @param version the version taken before the lookup
+     */
+    public synchronized void add(String key, long version) {
+        if (capacity > 0 && version == this.version) {
+            misses.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Forgets a key that was written
+     * @param key the key
+     */
+    public synchronized void invalidate(String key) {
+        version++;
+        misses.remove(key);
+    }
+
+    /**
+     * Forgets all keys, e.g. after data was moved in
+     */
+    public synchronized void clear() {
+        version++;
+        misses.clear();
+    }
+
+    /**
+     * @return the number of lookups answered by a remembered miss
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+}
@@ -0,0 +1,172 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import helpers.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The original storage engine: all entries in a java.util.Properties
+ * table that is rewritten to the store file after every write.
+ *
+ * Every write costs a full rewrite of the file, so this engine is only
+ * kept as a baseline for benchmarks and for reading stores written by
+ * older servers. The file is kept across restarts in durable mode only.
+ */
+public class PropertiesStorageEngine implements StorageEngine {
+
+    private final String fileNamePrefix = "data.store";
+    private final String fileName;
+    private final Properties prop = new Properties();
+    private final MD5Hash md5 = new MD5Hash();
+    private static Logger logger = Logger.getLogger(PropertiesStorageEngine.class);
+
+    /**
+     * Constructor
+     * @param suffix the suffix of the store file name
+     * @param config the storage options
+     * @throws StorageException if the store file cannot be accessed
+     */
+    public PropertiesStorageEngine(String suffix, StorageConfig config) throws StorageException {
+        fileName = fileNamePrefix + suffix;
+        try {
+            File storeFile = new File(fileName);
+            if (storeFile.exists() && !config.isDurable()) {
+                storeFile.delete();
+            }
+            if (storeFile.exists()) {
+                InputStream input = new FileInputStream(storeFile);
+                try {
+                    prop.load(input);
+                } finally {
+                    input.close();
+                }
+            } else {
+                storeFile.createNewFile();
+            }
+        } catch (IOException e) {
+            logger.error("Cannot initialize persistence file", e);
+            throw new StorageException("Cannot initialize persistence file");
+        }
+    }
+
+    @Override
+    public synchronized KVMessageImpl get(String key) {
+        String resultValue = prop.getProperty(key);
+        if (resultValue != null)
+            return new KVMessageImpl(key, resultValue, KVMessage.StatusType.GET_SUCCESS);
+        return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+    }
+
+    @Override
+    public synchronized KVMessageImpl put(String key, String value) {
+        String oldValue = prop.getProperty(key);
+        prop.setProperty(key, value);
+        try {
+            store();
+        } catch (IOException e) {
+            logger.error("Cannot write to persistence file", e);
+            restore(key, oldValue);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.PUT_ERROR);
+        }
+        return oldValue == null ? new KVMessageImpl(key, value, KVMessage.StatusType.PUT_SUCCESS)
+                : new KVMessageImpl(key, value, KVMessage.StatusType.PUT_UPDATE);
+    }
+
+    @Override
+    public synchronized KVMessageImpl remove(String key) {
+        String resultValue = (String) prop.remove(key);
+        if (resultValue == null)
+            return new KVMessageImpl(key, null, KVMessage.StatusType.DELETE_ERROR);
+        try {
+            store();
+        } catch (IOException e) {
+            logger.error("Cannot remove entry from persistence file", e);
+            restore(key, resultValue);
+            return new KVMessageImpl(key, "", KVMessage.StatusType.DELETE_ERROR);
+        }
+        return new KVMessageImpl(key, resultValue, KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    @Override
+    public synchronized KVMessageImpl remove(KVRange range) {
+        logger.info("Starting range removal for range " + range.getLow() + ":" + range.getHigh());
+        for (String key : prop.stringPropertyNames()) {
+            if (range.isIndexInRange(md5.hash(key)))
+                prop.remove(key);
+        }
+        try {
+            store();
+        } catch (IOException e) {
+            logger.error("Cannot remove range from persistence file", e);
+            return new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
+        }
+        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    @Override
+    public synchronized List<KVPair> get(KVRange range) {
+        List<KVPair> pairs = new ArrayList<>();
+        for (String key : prop.stringPropertyNames()) {
+            if (range.isIndexInRange(md5.hash(key)))
+                pairs.add(new KVPair(key, prop.getProperty(key)));
+        }
+        return pairs;
+    }
+
+    /**
+     * Properties is a Hashtable, so this only takes the table monitor
+     * for the lookup and does not wait for a file rewrite.
+     */
+    @Override
+    public boolean mightContain(String key) {
+        return prop.containsKey(key);
+    }
+
+    /**
+     * Every write is in the file when it returns, but never forced to disk
+     */
+    @Override
+    public synchronized boolean isEmpty() {
+        return prop.isEmpty();
+    }
+
+    @Override
+    public boolean awaitDurable() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized void cleanUp() {
+        prop.clear();
+        new File(fileName).delete();
+    }
+
+    private void store() throws IOException {
+        OutputStream output = new FileOutputStream(fileName);
+        try {
+            prop.store(output, null);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void restore(String key, String oldValue) {
+        if (oldValue == null)
+            prop.remove(key);
+        else
+            prop.setProperty(key, oldValue);
+    }
+}
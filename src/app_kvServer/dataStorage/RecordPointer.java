@@ -0,0 +1,59 @@
+package app_kvServer.dataStorage;
+
+/**
+ * In-memory index entry pointing at the latest record of a key
+ * inside one of the storage log segments.
+ */
+public class RecordPointer {
+
+    private final int segmentId;
+    private final long offset;
+    private final int length;
+    private final long sequence;
+
+    /**
+     * Constructor
+     * @param segmentId the id of the segment holding the record
+     * @param offset the byte offset of the record inside the segment
+     * @param length the total encoded length of the record
+     * @param sequence the sequence number of the record
+     */
+    public RecordPointer(int segmentId, long offset, int length, long sequence) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Segment id getter
+     * @return the id of the segment holding the record
+     */
+    public int getSegmentId() {
+        return segmentId;
+    }
+
+    /**
+     * Offset getter
+     * @return the byte offset of the record inside its segment
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Length getter
+     * @return the total encoded length of the record
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sequence getter
+     * @return the sequence number of the record
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
@@ -0,0 +1,125 @@
+package app_kvServer.dataStorage;
+
+import common.utils.KVRange;
+import hashing.MD5Hash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Keys of a store ordered by their position on the hash ring.
+ *
+ * Every key is kept as its MD5 hash (32 upper case hex digits) followed by
+ * the key itself, so the set is sorted by ring position and a KVRange maps
+ * to one or, when it wraps around, two contiguous parts of it. A range
+ * query only touches the keys inside the range and hashes nothing.
+ *
+ * This class is not thread-safe, the engine owning it synchronizes access.
+ */
+public class RingIndex {
+
+    private static final int HASH_LENGTH = 32;
+    private static final char AFTER_ANY_KEY = Character.MAX_VALUE;
+    private static final String LAST_POSITION = String.valueOf(AFTER_ANY_KEY);
+
+    private final TreeSet<String> positions = new TreeSet<>();
+    private final MD5Hash md5 = new MD5Hash();
+
+    /**
+     * Adds a key
+     * @param key the key to add
+     */
+    public void add(String key) {
+        positions.add(position(md5, key));
+    }
+
+    /**
+     * Removes a key
+     * @param key the key to remove
+     */
+    public void remove(String key) {
+        positions.remove(position(md5, key));
+    }
+
+    /**
+     * Adds all the given keys
+     * @param keys the keys to add
+     */
+    public void addAll(Collection<String> keys) {
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Removes all keys
+     */
+    public void clear() {
+        positions.clear();
+    }
+
+    /**
+     * Finds the keys whose hash falls into a range of the ring
+     * @param range the range, bounds included
+     * @return the keys inside the range, in ring order
+     */
+    public List<String> keysIn(KVRange range) {
+        List<String> keys = new ArrayList<>();
+        for (String[] interval : intervals(range)) {
+            collect(positions.subSet(interval[0], true, interval[1], true), keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Ring position of a key: its hash followed by the key itself
+     * @param md5 the hash function to use
+     * @param key the key
+     * @return the position, sorting by hash first
+     */
+    static String position(MD5Hash md5, String key) {
+        return md5.hash(key) + key;
+    }
+
+    /**
+     * Key of a ring position
+     * @param position the ring position
+     * @return the key
+     */
+    static String keyOf(String position) {
+        return position.substring(HASH_LENGTH);
+    }
+
+    /**
+     * Translates a range of the ring into intervals of ring positions
+     * @param range the range, bounds included
+     * @return one [from, to] interval, or two when the range wraps around
+     */
+    static List<String[]> intervals(KVRange range) {
+        String low = MD5Hash.normalize(range.getLow(), HASH_LENGTH);
+        String high = MD5Hash.normalize(range.getHigh(), HASH_LENGTH);
+        String lowest = MD5Hash.normalize("0", HASH_LENGTH);
+        String end = high + AFTER_ANY_KEY;
+        List<String[]> intervals = new ArrayList<>();
+        int order = low.compareTo(high);
+        if (order == 0) {
+            // A single node owns the whole ring
+            intervals.add(new String[] { lowest, LAST_POSITION });
+        } else if (order < 0) {
+            intervals.add(new String[] { low, end });
+        } else {
+            intervals.add(new String[] { low, LAST_POSITION });
+            intervals.add(new String[] { lowest, end });
+        }
+        return intervals;
+    }
+
+    private static void collect(NavigableSet<String> part, List<String> keys) {
+        for (String position : part) {
+            keys.add(keyOf(position));
+        }
+    }
+}
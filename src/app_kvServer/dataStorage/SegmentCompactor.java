@@ -0,0 +1,199 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Background compaction of the storage log.
+ *
+ * Sealed segments with enough garbage (overwritten values and deletions)
+ * are merged into one new segment holding only their live records. The
+ * copy runs without holding the engine lock and is rate limited, so gets
+ * and puts keep being served; only the final swap of the new segment for
+ * the old ones takes the lock.
+ *
+ * A tombstone can only be dropped when no older record of its key can
+ * be found on disk after a crash. The merged segment is installed before
+ * the older victims are deleted, so that only holds for the tombstones
+ * of the oldest segment, whose older records are in the same file. The
+ * other tombstones are copied over, and dropped by a later compaction
+ * once the segment holding them has become the oldest one.
+ */
+public class SegmentCompactor implements Runnable {
+
+    static final String OUTPUT_SUFFIX = ".compact";
+
+    private final KVPersistenceEngine engine;
+    private final double garbageThreshold;
+    private final long bytesPerSecond;
+    private long runs;
+    private long reclaimedBytes;
+    private static Logger logger = Logger.getLogger(SegmentCompactor.class);
+
+    /**
+     * The segments selected for one compaction
+     */
+    static class Plan {
+        final List<LogSegment> victims;
+        final int outputId;
+        final int tombstoneHorizon;
+
+        /**
+         * Constructor
+         * @param victims the sealed segments to merge, in id order
+         * @param outputId the id the merged segment takes over
+         * @param tombstoneHorizon tombstones of segments up to this id can be dropped
+         */
+        Plan(List<LogSegment> victims, int outputId, int tombstoneHorizon) {
+            this.victims = victims;
+            this.outputId = outputId;
+            this.tombstoneHorizon = tombstoneHorizon;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param engine the engine whose log is compacted
+     * @param garbageThreshold the share of garbage that makes a segment worth compacting
+     * @param bytesPerSecond the maximum rate at which segments are read, 0 for no limit
+     */
+    public SegmentCompactor(KVPersistenceEngine engine, double garbageThreshold, long bytesPerSecond) {
+        this.engine = engine;
+        this.garbageThreshold = garbageThreshold;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void run() {
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.error("Compaction failed", e);
+        } catch (RuntimeException e) {
+            // Keep the periodic task alive
+            logger.error("Compaction failed", e);
+        }
+    }
+
+    /**
+     * Runs one compaction, if any segment is worth it
+     * @return true if segments were compacted
+     * @throws IOException if the segments cannot be read or written
+     */
+    public boolean compact() throws IOException {
+        Plan plan = engine.planCompaction(garbageThreshold);
+        if (plan == null) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        double amplificationBefore = engine.getSpaceAmplification();
+        long sizeBefore = 0;
+        for (LogSegment victim : plan.victims) {
+            sizeBefore += victim.size();
+        }
+
+        File output = new File(plan.victims.get(plan.victims.size() - 1).getFile().getPath() + OUTPUT_SUFFIX);
+        final LogSegment merged = new LogSegment(output, plan.outputId, true);
+        final Map<String, RecordPointer[]> moved = new HashMap<>();
+        long tombstoneBytes = 0;
+        long readBytes = 0;
+        byte[] copy = new byte[4096];
+        try {
+            for (LogSegment victim : plan.victims) {
+                final List<LogRecord> records = new ArrayList<>();
+                final List<RecordPointer> pointers = new ArrayList<>();
+                final int victimId = victim.getId();
+                victim.scan(0, new LogSegment.RecordVisitor() {
+                    @Override
+                    public void visit(LogRecord record, long offset, int length) {
+                        records.add(record);
+                        pointers.add(new RecordPointer(victimId, offset, length, record.getSequence()));
+                    }
+                });
+                for (int i = 0; i < records.size(); i++) {
+                    LogRecord record = records.get(i);
+                    RecordPointer pointer = pointers.get(i);
+                    boolean keep;
+                    if (record.isDelete()) {
+                        keep = victimId > plan.tombstoneHorizon && engine.isDeleted(record.getKey());
+                    } else {
+                        keep = engine.isCurrent(record.getKey(), pointer);
+                    }
+                    if (keep) {
+                        // The stored bytes are copied as they are, so the copy has the length of the original
+                        if (copy.length < pointer.getLength()) {
+                            copy = new byte[pointer.getLength()];
+                        }
+                        victim.read(pointer.getOffset(), copy, pointer.getLength());
+                        long offset = merged.append(ByteBuffer.wrap(copy, 0, pointer.getLength()));
+                        if (record.isDelete()) {
+                            tombstoneBytes += pointer.getLength();
+                        } else {
+                            moved.put(record.getKey(), new RecordPointer[] { pointer,
+                                    new RecordPointer(plan.outputId, offset, pointer.getLength(), pointer.getSequence()) });
+                        }
+                    }
+                    readBytes += pointer.getLength();
+                    throttle(readBytes, start);
+                }
+            }
+            merged.sync();
+        } catch (IOException e) {
+            merged.delete();
+            throw e;
+        }
+        merged.close();
+        long sizeAfter = merged.size();
+
+        if (!engine.installCompaction(plan, output, moved, tombstoneBytes)) {
+            output.delete();
+            return false;
+        }
+        runs++;
+        reclaimedBytes += sizeBefore - sizeAfter;
+        logger.info("Compacted " + plan.victims.size() + " segments into segment " + plan.outputId + ": "
+                + sizeBefore + " -> " + sizeAfter + " bytes in " + (System.currentTimeMillis() - start)
+                + " ms, space amplification " + String.format("%.2f -> %.2f", amplificationBefore, engine.getSpaceAmplification()));
+        return true;
+    }
+
+    /**
+     * Sleeps as long as the compaction is ahead of the allowed read rate
+     * @param readBytes bytes read so far
+     * @param start the start time of the compaction
+     */
+    private void throttle(long readBytes, long start) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long ahead = readBytes * 1000 / bytesPerSecond - (System.currentTimeMillis() - start);
+        if (ahead > 0) try {
+            Thread.sleep(ahead);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs getter
+     * @return the number of compactions done so far
+     */
+    public long getRuns() {
+        return runs;
+    }
+
+    /**
+     * Reclaimed space getter
+     * @return the disk space freed by the compactions so far, in bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+}
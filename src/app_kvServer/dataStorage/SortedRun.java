@@ -0,0 +1,413 @@
+package app_kvServer.dataStorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable file of records sorted by ring position, as written by the
+ * LSM engine when it flushes a memtable or merges runs.
+ *
+ * The records use the log record layout with the ring position as key.
+ * They are grouped into blocks of about BLOCK_SIZE bytes, each stored as
+ * <pre>
+ *   crc(4) | codec(1) | rawLength(4) | storedLength(4) | stored bytes
+ * </pre>
+ * where the stored bytes are the records, compressed by the codec when
+ * that makes them smaller, and the CRC32 covers everything after itself.
+ * The run keeps a sparse index with the first position of every block,
+ * so a lookup reads and decompresses a single block, and a Bloom filter,
+ * so most lookups of absent keys read nothing at all.
+ */
+public class SortedRun {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_HEADER_SIZE = 4 + 1 + 4 + 4;
+    private static final int FLUSH_SIZE = 1024 * 1024;
+
+    /**
+     * Sequential reader over the records of a run
+     */
+    public interface Reader {
+        /**
+         * Reads the next record
+         * @return the record, or null at the end of the run
+         * @throws IOException if the run cannot be read
+         */
+        LogRecord next() throws IOException;
+    }
+
+    private final int id;
+    private final int level;
+    private final LogSegment file;
+    private final String[] blockPositions;
+    private final long[] blockOffsets;
+    private final BloomFilter filter;
+    private final long recordCount;
+    private final long maxSequence;
+    private final long rawSize;
+
+    private SortedRun(int id, int level, LogSegment file, List<String> positions, List<Long> offsets,
+                      BloomFilter filter, long recordCount, long maxSequence, long rawSize) {
+        this.id = id;
+        this.level = level;
+        this.file = file;
+        this.blockPositions = positions.toArray(new String[positions.size()]);
+        this.blockOffsets = new long[offsets.size()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = offsets.get(i);
+        }
+        this.filter = filter;
+        this.recordCount = recordCount;
+        this.maxSequence = maxSequence;
+        this.rawSize = rawSize;
+    }
+
+    /**
+     * Writes a new run and syncs it to the disk
+     * @param path the run file
+     * @param id the id of the run
+     * @param level the level of the run
+     * @param records the records, sorted by position, one per position
+     * @param expectedRecords the number of records, used to size the Bloom filter
+     * @param falsePositiveRate the false positive rate of the Bloom filter
+     * @param compression the codec for the blocks
+     * @return the run, open for reading
+     * @throws IOException if the run cannot be written
+     */
+    public static SortedRun write(File path, int id, int level, Reader records, long expectedRecords,
+                                  double falsePositiveRate, Compression compression) throws IOException {
+        LogSegment file = new LogSegment(path, id, true);
+        List<String> positions = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        BloomFilter filter = new BloomFilter(expectedRecords, falsePositiveRate);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+        long count = 0;
+        long maxSequence = 0;
+        long rawSize = 0;
+        long flushed = 0;
+        try {
+            LogRecord record;
+            while ((record = records.next()) != null) {
+                ByteBuffer encoded = LogRecord.encode(record.getType(), record.getSequence(),
+                        record.getKey(), record.getValue());
+                if (block.size() == 0) {
+                    positions.add(record.getKey());
+                }
+                block.write(encoded.array(), 0, encoded.limit());
+                filter.add(record.getKey());
+                maxSequence = Math.max(maxSequence, record.getSequence());
+                count++;
+                if (block.size() >= BLOCK_SIZE) {
+                    rawSize += block.size();
+                    offsets.add(appendBlock(file, block, compression));
+                    if (file.size() - flushed >= FLUSH_SIZE) {
+                        file.flush();
+                        flushed = file.size();
+                    }
+                }
+            }
+            if (block.size() > 0) {
+                rawSize += block.size();
+                offsets.add(appendBlock(file, block, compression));
+            }
+            file.sync();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return new SortedRun(id, level, file, positions, offsets, filter, count, maxSequence, rawSize);
+    }
+
+    /**
+     * Opens an existing run, rebuilding its index and Bloom filter
+     * @param path the run file
+     * @param id the id of the run
+     * @param level the level of the run
+     * @param falsePositiveRate the false positive rate of the Bloom filter
+     * @return the run
+     * @throws IOException if the run cannot be read or is corrupted
+     */
+    public static SortedRun open(File path, int id, int level, double falsePositiveRate) throws IOException {
+        LogSegment file = new LogSegment(path, id);
+        List<String> keys = new ArrayList<>();
+        List<String> positions = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long maxSequence = 0;
+        long rawSize = 0;
+        byte[] header = new byte[BLOCK_HEADER_SIZE];
+        try {
+            long offset = 0;
+            while (offset < file.size()) {
+                if (file.size() - offset < BLOCK_HEADER_SIZE) {
+                    throw new IOException("Corrupted run " + path.getName() + " at offset " + offset);
+                }
+                file.read(offset, header, BLOCK_HEADER_SIZE);
+                int length = BLOCK_HEADER_SIZE + ByteBuffer.wrap(header).getInt(9);
+                if (length < BLOCK_HEADER_SIZE || file.size() - offset < length) {
+                    throw new IOException("Corrupted run " + path.getName() + " at offset " + offset);
+                }
+                byte[] frame = new byte[length];
+                file.read(offset, frame, length);
+                List<LogRecord> records = decodeBlock(frame, path.getName(), offsets.size());
+                positions.add(records.get(0).getKey());
+                offsets.add(offset);
+                for (LogRecord record : records) {
+                    keys.add(record.getKey());
+                    maxSequence = Math.max(maxSequence, record.getSequence());
+                }
+                rawSize += ByteBuffer.wrap(header).getInt(5);
+                offset += length;
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        BloomFilter filter = new BloomFilter(keys.size(), falsePositiveRate);
+        for (String key : keys) {
+            filter.add(key);
+        }
+        return new SortedRun(id, level, file, positions, offsets, filter, keys.size(), maxSequence, rawSize);
+    }
+
+    /**
+     * Appends a block and empties the block buffer
+     * @return the offset of the block in the file
+     */
+    private static long appendBlock(LogSegment file, ByteArrayOutputStream block, Compression compression)
+            throws IOException {
+        byte[] raw = block.toByteArray();
+        block.reset();
+        byte[] compressed = compression.compress(raw, 0, raw.length);
+        Compression codec = compressed == null ? Compression.NONE : compression;
+        byte[] stored = compressed == null ? raw : compressed;
+        ByteBuffer frame = ByteBuffer.allocate(BLOCK_HEADER_SIZE + stored.length);
+        frame.putInt(0);
+        frame.put(codec.code());
+        frame.putInt(raw.length);
+        frame.putInt(stored.length);
+        frame.put(stored);
+        frame.putInt(0, LogRecord.checksum(frame.array(), 4, frame.capacity() - 4));
+        frame.flip();
+        return file.append(frame);
+    }
+
+    /**
+     * Verifies, decompresses and decodes a block
+     * @param frame the stored block, header included
+     * @param name the run file name, for error messages
+     * @param block the index of the block, for error messages
+     * @return the records of the block
+     * @throws IOException if the block is corrupted
+     */
+    private static List<LogRecord> decodeBlock(byte[] frame, String name, int block) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        int storedLength = header.getInt(9);
+        if (frame.length != BLOCK_HEADER_SIZE + storedLength
+                || LogRecord.checksum(frame, 4, frame.length - 4) != header.getInt(0)) {
+            throw new IOException("Corrupted block " + block + " in run " + name);
+        }
+        Compression codec = Compression.fromCode(frame[4]);
+        byte[] raw = codec.decompress(frame, BLOCK_HEADER_SIZE, storedLength, header.getInt(5));
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        List<LogRecord> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            LogRecord record = LogRecord.decode(buffer);
+            if (record == null) {
+                throw new IOException("Corrupted block " + block + " in run " + name);
+            }
+            records.add(record);
+        }
+        if (records.isEmpty()) {
+            throw new IOException("Empty block " + block + " in run " + name);
+        }
+        return records;
+    }
+
+    /**
+     * Looks up the record of a position
+     * @param position the ring position of the key
+     * @return the record (possibly a tombstone), or null if the run does not hold the key
+     * @throws IOException if the run cannot be read
+     */
+    public LogRecord find(String position) throws IOException {
+        if (!filter.mightContain(position)) {
+            return null;
+        }
+        int block = blockOf(position);
+        if (block < 0) {
+            return null;
+        }
+        for (LogRecord record : readBlock(block)) {
+            int order = record.getKey().compareTo(position);
+            if (order == 0) {
+                return record;
+            }
+            if (order > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the records of an interval of positions. Positions already
+     * present in the map, which come from newer sources, are kept.
+     * @param from the first position, included
+     * @param to the last position, included
+     * @param into the records found so far, by position
+     * @throws IOException if the run cannot be read
+     */
+    public void collect(String from, String to, Map<String, LogRecord> into) throws IOException {
+        int block = Math.max(0, blockOf(from));
+        for (; block < blockOffsets.length; block++) {
+            if (blockPositions[block].compareTo(to) > 0) {
+                return;
+            }
+            for (LogRecord record : readBlock(block)) {
+                String position = record.getKey();
+                if (position.compareTo(to) > 0) {
+                    return;
+                }
+                if (position.compareTo(from) >= 0 && !into.containsKey(position)) {
+                    into.put(position, record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a sequential reader over all records of the run
+     * @return the reader
+     */
+    public Reader reader() {
+        return new Reader() {
+            private int block = 0;
+            private Iterator<LogRecord> records = new ArrayList<LogRecord>().iterator();
+
+            @Override
+            public LogRecord next() throws IOException {
+                while (!records.hasNext()) {
+                    if (block >= blockOffsets.length) {
+                        return null;
+                    }
+                    records = readBlock(block++).iterator();
+                }
+                return records.next();
+            }
+        };
+    }
+
+    /**
+     * Checks the Bloom filter of the run
+     * @param position the ring position of the key
+     * @return false if the run certainly does not hold the key
+     */
+    public boolean mightContain(String position) {
+        return filter.mightContain(position);
+    }
+
+    /**
+     * Finds the block that would hold a position
+     * @param position the ring position
+     * @return the index of the last block starting at or before the position, -1 if none
+     */
+    private int blockOf(String position) {
+        int low = 0;
+        int high = blockPositions.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockPositions[middle].compareTo(position) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private List<LogRecord> readBlock(int block) throws IOException {
+        long start = blockOffsets[block];
+        long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : file.size();
+        byte[] frame = new byte[(int) (end - start)];
+        file.read(start, frame, frame.length);
+        return decodeBlock(frame, file.getFile().getName(), block);
+    }
+
+    /**
+     * Id getter
+     * @return the id of the run, higher for newer runs
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Level getter
+     * @return the level of the run, lower for newer data
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Record count getter
+     * @return the number of records in the run
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Sequence getter
+     * @return the highest sequence number found in the run
+     */
+    public long getMaxSequence() {
+        return maxSequence;
+    }
+
+    /**
+     * Size getter
+     * @return the size of the run file in bytes
+     */
+    public long size() {
+        return file.size();
+    }
+
+    /**
+     * Raw size getter
+     * @return the size of the records of the run before compression, in bytes
+     */
+    public long getRawSize() {
+        return rawSize;
+    }
+
+    /**
+     * File getter
+     * @return the run file
+     */
+    public File getFile() {
+        return file.getFile();
+    }
+
+    /**
+     * Closes the run file
+     */
+    public void close() {
+        file.close();
+    }
+
+    /**
+     * Closes and removes the run file
+     */
+    public void delete() {
+        file.delete();
+    }
+}
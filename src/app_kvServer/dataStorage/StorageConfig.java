@@ -0,0 +1,285 @@
+package app_kvServer.dataStorage;
+
+import common.utils.Utilities;
+import helpers.Constants;
+import org.apache.log4j.Logger;
+
+import java.util.Properties;
+
+/**
+ * Storage options of a server.
+ *
+ * The options are read from conf/storage.config. A server may override
+ * any of them in conf/storage-[port].config, so that the storage setup
+ * can be selected per server even when all servers share one directory.
+ * Missing options fall back to the defaults below.
+ */
+public class StorageConfig {
+
+    public static final String DURABLE = "storage.durable";
+    public static final String SYNC = "storage.sync";
+    public static final String SYNC_INTERVAL = "storage.sync.interval.ms";
+    public static final String SEGMENT_SIZE = "storage.segment.size";
+    public static final String COMPACTION_INTERVAL = "storage.compaction.interval.ms";
+    public static final String COMPACTION_THRESHOLD = "storage.compaction.threshold";
+    public static final String COMPACTION_RATE = "storage.compaction.rate";
+    public static final String MMAP = "storage.mmap";
+    public static final String BLOOM_FPP = "storage.bloom.fpp";
+    public static final String ENGINE = "storage.engine";
+    public static final String COMPRESSION = "storage.compression";
+    public static final String LSM_MEMTABLE_SIZE = "storage.lsm.memtable.size";
+    public static final String LSM_FANOUT = "storage.lsm.fanout";
+    public static final String TTL_REAP_INTERVAL = "storage.ttl.reap.interval.ms";
+    public static final String CACHE_MAX_BYTES = "cache.max.bytes";
+    public static final String CACHE_WRITEBACK = "cache.writeback";
+    public static final String CACHE_WRITEBACK_QUEUE = "cache.writeback.queue";
+    public static final String CACHE_NEGATIVE_SIZE = "cache.negative.size";
+    public static final String CACHE_WARMUP_SIZE = "cache.warmup.size";
+
+    private final Properties properties;
+    private static Logger logger = Logger.getLogger(StorageConfig.class);
+
+    /**
+     * Constructor
+     * @param properties the storage options
+     */
+    public StorageConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Creates a configuration holding only the defaults
+     * @return the default storage configuration
+     */
+    public static StorageConfig defaults() {
+        return new StorageConfig(new Properties());
+    }
+
+    /**
+     * Loads the storage configuration of a server
+     * @param port the port of the server, used to find its override file
+     * @return the storage configuration
+     */
+    public static StorageConfig load(int port) {
+        Properties properties = Utilities.loadConfig(Constants.STORAGE_CONFIG, port);
+        return new StorageConfig(properties);
+    }
+
+    /**
+     * Durable mode getter
+     * @return true if the store files are kept and reopened across restarts,
+     *         false if every start begins with an empty store
+     */
+    public boolean isDurable() {
+        return getBoolean(DURABLE, false);
+    }
+
+    /**
+     * Sync policy getter
+     * @return when the log is forced to the disk, see GroupCommitter
+     */
+    public GroupCommitter.Policy getSyncPolicy() {
+        String value = getString(SYNC, "none");
+        try {
+            return GroupCommitter.Policy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid value for storage option " + SYNC + ": " + value);
+            return GroupCommitter.Policy.NONE;
+        }
+    }
+
+    /**
+     * Sync interval getter
+     * @return the milliseconds between two syncs under the INTERVAL policy
+     */
+    public long getSyncInterval() {
+        return getLong(SYNC_INTERVAL, 100);
+    }
+
+    /**
+     * Segment size getter
+     * @return the size at which the active log segment is sealed, in bytes
+     */
+    public long getSegmentSize() {
+        return getLong(SEGMENT_SIZE, 16 * 1024 * 1024);
+    }
+
+    /**
+     * Compaction interval getter
+     * @return the milliseconds between two compaction runs, 0 to disable compaction
+     */
+    public long getCompactionInterval() {
+        return getLong(COMPACTION_INTERVAL, 30000);
+    }
+
+    /**
+     * Compaction threshold getter
+     * @return the share of garbage (0 to 1) that makes a segment worth compacting
+     */
+    public double getCompactionThreshold() {
+        return getDouble(COMPACTION_THRESHOLD, 0.5);
+    }
+
+    /**
+     * Compaction rate getter
+     * @return the maximum rate at which the compactor reads segments,
+     *         in bytes per second, 0 for no limit
+     */
+    public long getCompactionRate() {
+        return getLong(COMPACTION_RATE, 16 * 1024 * 1024);
+    }
+
+    /**
+     * Memory mapping getter
+     * @return true if sealed segments are memory-mapped for reads
+     */
+    public boolean isMemoryMapped() {
+        return getBoolean(MMAP, false);
+    }
+
+    /**
+     * Bloom filter precision getter
+     * @return the target false positive rate of the key filter, 0 to disable it
+     */
+    public double getBloomFalsePositiveRate() {
+        return getDouble(BLOOM_FPP, 0.01);
+    }
+
+    /**
+     * Compression getter
+     * @return the codec for stored values
+     */
+    public Compression getCompression() {
+        String value = getString(COMPRESSION, "none");
+        try {
+            return Compression.parse(value);
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid value for storage option " + COMPRESSION + ": " + value);
+            return Compression.NONE;
+        }
+    }
+
+    /**
+     * Engine getter
+     * @return the name of the storage engine, see StorageEngines
+     */
+    public String getEngine() {
+        return getString(ENGINE, StorageEngines.LOG).toLowerCase();
+    }
+
+    /**
+     * Memtable size getter
+     * @return the size at which the LSM engine flushes its memtable, in bytes
+     */
+    public long getMemtableSize() {
+        return getLong(LSM_MEMTABLE_SIZE, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Fanout getter
+     * @return the number of runs of a level the LSM engine merges into one run of the next level
+     */
+    public int getLsmFanout() {
+        return (int) getLong(LSM_FANOUT, 4);
+    }
+
+    /**
+     * Reap interval getter
+     * @return the milliseconds between two runs of the reaper of expired values,
+     *         each over 1/256 of the ring, 0 to disable it
+     */
+    public long getReapInterval() {
+        return getLong(TTL_REAP_INTERVAL, 250);
+    }
+
+    /**
+     * Cache size getter
+     * @return the maximum size of the KVCache in bytes, or 0 to bound it
+     *         by the number of entries given in the INIT message
+     */
+    public long getCacheMaxBytes() {
+        return getLong(CACHE_MAX_BYTES, 0);
+    }
+
+    /**
+     * Write-back mode getter
+     * @return true if the KVCache writes back in the background, false if it
+     *         writes through before answering
+     */
+    public boolean isCacheWriteBack() {
+        return getBoolean(CACHE_WRITEBACK, false);
+    }
+
+    /**
+     * Write-back queue size getter
+     * @return the maximum number of dirty keys queued for the flusher
+     */
+    public int getWriteBackQueueSize() {
+        return (int) getLong(CACHE_WRITEBACK_QUEUE, 10000);
+    }
+
+    /**
+     * Negative cache size getter
+     * @return the maximum number of recent GET misses remembered by the
+     *         KVCache and the replica store each, or 0 to remember none
+     */
+    public int getNegativeCacheSize() {
+        return (int) getLong(CACHE_NEGATIVE_SIZE, 10000);
+    }
+
+    /**
+     * Warm-up size getter
+     * @return the maximum number of hot keys sent first with moved data and
+     *         saved for a restart, or 0 to warm up no cache
+     */
+    public int getWarmUpSize() {
+        return (int) getLong(CACHE_WARMUP_SIZE, 10000);
+    }
+
+    /**
+     * Generic option setter, mostly useful for tests
+     * @param key the option name
+     * @param value the option value
+     * @return this configuration
+     */
+    public StorageConfig set(String key, String value) {
+        properties.setProperty(key, value);
+        return this;
+    }
+
+    protected String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    protected boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    protected long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid value for storage option " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    protected double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid value for storage option " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
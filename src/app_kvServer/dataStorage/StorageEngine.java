@@ -0,0 +1,82 @@
+package app_kvServer.dataStorage;
+
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+
+import java.util.List;
+
+/**
+ * Persistent key-value store behind the cache of a server.
+ *
+ * Implementations are selected with the storage.engine option, see
+ * StorageEngines. All of them are thread-safe.
+ */
+public interface StorageEngine {
+
+    /**
+     * Retrieves an entry
+     * @param key the key of the KV pair to be retrieved
+     * @return GET_SUCCESS with the value, or GET_ERROR if the key is not stored
+     */
+    KVMessageImpl get(String key);
+
+    /**
+     * Stores an entry
+     * @param key the key of the KV pair
+     * @param value the value, associated with the specified key
+     * @return PUT_SUCCESS for a new key, PUT_UPDATE for an existing one, or PUT_ERROR
+     */
+    KVMessageImpl put(String key, String value);
+
+    /**
+     * Removes an entry
+     * @param key the key of the KV pair to be removed
+     * @return DELETE_SUCCESS with the old value, or DELETE_ERROR if the key is not stored
+     */
+    KVMessageImpl remove(String key);
+
+    /**
+     * Removes all entries whose key hash falls into a range
+     * @param range the range of keys to be removed
+     * @return DELETE_SUCCESS or DELETE_ERROR
+     */
+    KVMessageImpl remove(KVRange range);
+
+    /**
+     * Retrieves all entries whose key hash falls into a range
+     * @param range the range of keys to be retrieved
+     * @return the key-value pairs of the range
+     */
+    List<KVPair> get(KVRange range);
+
+    /**
+     * Checks cheaply, without waiting for writers, whether a key may be stored
+     * @param key the key to check
+     * @return false if the key is certainly not stored
+     */
+    boolean mightContain(String key);
+
+    /**
+     * Checks whether the store holds no entry, without reading all values
+     * @return true if no key is stored
+     */
+    boolean isEmpty();
+
+    /**
+     * Waits until the writes made so far are durable under the sync policy.
+     * Must not be called while holding a lock other writers need.
+     * @return false if the writes could not be made durable
+     */
+    boolean awaitDurable();
+
+    /**
+     * Closes the store, keeping its files
+     */
+    void close();
+
+    /**
+     * Closes the store and removes its files
+     */
+    void cleanUp();
+}
@@ -0,0 +1,63 @@
+package app_kvServer.dataStorage;
+
+import app_kvServer.SocketServer;
+import helpers.StorageException;
+
+/**
+ * Creates the storage engine selected by the storage.engine option,
+ * which the ECS may also set per server in the INIT message:
+ * "log" for the log-structured hash engine (KVPersistenceEngine),
+ * "lsm" for the LSM-tree engine (LSMStorageEngine),
+ * "memory" for a heap-only store (InMemoryStorageEngine) or
+ * "properties" for the original Properties file (PropertiesStorageEngine).
+ */
+public class StorageEngines {
+
+    public static final String LOG = "log";
+    public static final String LSM = "lsm";
+    public static final String MEMORY = "memory";
+    public static final String PROPERTIES = "properties";
+
+    /**
+     * Checks an engine name
+     * @param engine the name, in any case
+     * @return true if an engine of that name exists
+     */
+    public static boolean isKnown(String engine) {
+        String name = engine.toLowerCase();
+        return name.equals(LOG) || name.equals(LSM) || name.equals(MEMORY) || name.equals(PROPERTIES);
+    }
+
+    /**
+     * Opens the main store of a server
+     * @param server the server owning the store
+     * @return the storage engine
+     * @throws StorageException if the store cannot be opened
+     */
+    public static StorageEngine open(SocketServer server) throws StorageException {
+        return open(String.valueOf(server.getInfo().getServerPort()), server.getStorageConfig());
+    }
+
+    /**
+     * Opens a store
+     * @param suffix the suffix of the store file names
+     * @param config the storage options
+     * @return the storage engine
+     * @throws StorageException if the store cannot be opened
+     */
+    public static StorageEngine open(String suffix, StorageConfig config) throws StorageException {
+        String engine = config.getEngine();
+        switch (engine) {
+            case LOG:
+                return new KVPersistenceEngine(suffix, config);
+            case LSM:
+                return new LSMStorageEngine(suffix, config);
+            case MEMORY:
+                return new InMemoryStorageEngine();
+            case PROPERTIES:
+                return new PropertiesStorageEngine(suffix, config);
+            default:
+                throw new StorageException("Unknown storage engine " + engine);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package app_kvServer.dataStorage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU cache segment.
+ *
+ * New entries go into a small LRU admission window (WINDOW_PERCENT of the
+ * capacity, which like the regions below bounds the weight of entries). The entry the window drops is a candidate for the main
+ * region, a segmented LRU: it enters the probation part, and a hit there
+ * promotes it to the protected part (PROTECTED_PERCENT of the main
+ * region), whose least recently used entries fall back to probation.
+ * When the main region is full, the candidate is only admitted if a
+ * FrequencySketch of all accesses estimates it more frequent than the
+ * victim, the least recently used entry of probation.
+ *
+ * A scan, such as the keys of a range moved in by MOVE_DATA, passes
+ * through the window and is then rejected, because every scanned key is
+ * seen once, so the frequent keys of the main region stay cached.
+ */
+public class TinyLfuCacheSegment implements CacheSegment {
+
+    static final int WINDOW_PERCENT = 1;
+    static final int PROTECTED_PERCENT = 80;
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final long mainCapacity;
+    private final Weigher weigher;
+    private final LinkedHashMap<String, String> window;
+    private final LinkedHashMap<String, String> probation;
+    private final LinkedHashMap<String, String> protectedPart;
+    private final FrequencySketch sketch;
+    private long windowWeight = 0, probationWeight = 0, protectedWeight = 0;
+
+    /**
+     * Constructor
+     * @param capacity the maximum number of entries
+     */
+    public TinyLfuCacheSegment(int capacity) {
+        this(capacity, capacity, Weigher.ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the maximum total weight of the entries
+     * @param expectedEntries the number of entries the capacity is expected to hold,
+     *                        which sizes the frequency sketch
+     * @param weigher the weight of an entry
+     */
+    public TinyLfuCacheSegment(long capacity, int expectedEntries, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.mainCapacity = Math.max(0, capacity - windowCapacity);
+        this.protectedCapacity = mainCapacity * PROTECTED_PERCENT / 100;
+        this.window = new LinkedHashMap<>(16, 0.75F, true);
+        this.probation = new LinkedHashMap<>(16, 0.75F, true);
+        this.protectedPart = new LinkedHashMap<>(16, 0.75F, true);
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public String get(String key) {
+        // A miss is counted by the put that loads the value
+        String value = window.get(key);
+        if (value == null) {
+            value = protectedPart.get(key);
+        }
+        if (value == null) {
+            value = probation.remove(key);
+            if (value != null) {
+                probationWeight -= weigher.weigh(key, value);
+                promote(key, value);
+            }
+        }
+        if (value != null) {
+            sketch.increment(key);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        sketch.increment(key);
+        int entryWeight = weigher.weigh(key, value);
+        String old;
+        if ((old = window.get(key)) != null) {
+            window.put(key, value);
+            windowWeight += entryWeight - weigher.weigh(key, old);
+        } else if ((old = protectedPart.get(key)) != null) {
+            protectedPart.put(key, value);
+            protectedWeight += entryWeight - weigher.weigh(key, old);
+            demoteProtected();
+        } else if ((old = probation.remove(key)) != null) {
+            probationWeight -= weigher.weigh(key, old);
+            promote(key, value);
+        } else {
+            window.put(key, value);
+            windowWeight += entryWeight;
+        }
+        while (windowWeight > windowCapacity) {
+            String candidate = eldest(window);
+            String candidateValue = window.remove(candidate);
+            windowWeight -= weigher.weigh(candidate, candidateValue);
+            admit(candidate, candidateValue);
+        }
+        // Updates may have grown the main region
+        while (probationWeight + protectedWeight > mainCapacity) {
+            evictMain();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        String old;
+        if ((old = window.remove(key)) != null) {
+            windowWeight -= weigher.weigh(key, old);
+        } else if ((old = probation.remove(key)) != null) {
+            probationWeight -= weigher.weigh(key, old);
+        } else if ((old = protectedPart.remove(key)) != null) {
+            protectedWeight -= weigher.weigh(key, old);
+        }
+    }
+
+    @Override
+    public boolean isFull() {
+        return weight() >= capacity;
+    }
+
+    @Override
+    public long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    /**
+     * Copies the entries: the window, then probation, then the protected part,
+     * each from least to most recently used
+     * @return the entries
+     */
+    @Override
+    public LinkedHashMap<String, String> snapshot() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>(window);
+        entries.putAll(probation);
+        entries.putAll(protectedPart);
+        return entries;
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedPart.clear();
+        windowWeight = probationWeight = protectedWeight = 0;
+    }
+
+    /**
+     * Moves an entry hit in probation to the protected part
+     */
+    private void promote(String key, String value) {
+        protectedPart.put(key, value);
+        protectedWeight += weigher.weigh(key, value);
+        demoteProtected();
+    }
+
+    /**
+     * Moves the least recently used entries of the protected part to
+     * probation while the protected part is above its capacity
+     */
+    private void demoteProtected() {
+        while (protectedWeight > protectedCapacity) {
+            String demoted = eldest(protectedPart);
+            String value = protectedPart.remove(demoted);
+            int demotedWeight = weigher.weigh(demoted, value);
+            protectedWeight -= demotedWeight;
+            probation.put(demoted, value);
+            probationWeight += demotedWeight;
+        }
+    }
+
+    /**
+     * Lets an entry dropped by the window into probation, if there is room
+     * or if it is more frequent than the victim of probation, which is then
+     * dropped with as many further victims as needed to make room
+     */
+    private void admit(String candidate, String value) {
+        int candidateWeight = weigher.weigh(candidate, value);
+        if (candidateWeight > mainCapacity) {
+            // Also no main region in a tiny segment
+            return;
+        }
+        if (probationWeight + protectedWeight + candidateWeight > mainCapacity) {
+            String victim = eldest(probation.isEmpty() ? protectedPart : probation);
+            if (sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                return;
+            }
+            while (probationWeight + protectedWeight + candidateWeight > mainCapacity) {
+                evictMain();
+            }
+        }
+        probation.put(candidate, value);
+        probationWeight += candidateWeight;
+    }
+
+    /**
+     * Drops the least recently used entry of probation, or of the protected
+     * part if probation is empty
+     */
+    private void evictMain() {
+        if (!probation.isEmpty()) {
+            String victim = eldest(probation);
+            probationWeight -= weigher.weigh(victim, probation.remove(victim));
+        } else {
+            String victim = eldest(protectedPart);
+            protectedWeight -= weigher.weigh(victim, protectedPart.remove(victim));
+        }
+    }
+
+    private static String eldest(LinkedHashMap<String, String> map) {
+        Iterator<String> keys = map.keySet().iterator();
+        return keys.next();
+    }
+}
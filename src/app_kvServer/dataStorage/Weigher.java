@@ -0,0 +1,40 @@
+package app_kvServer.dataStorage;
+
+/**
+ * Weight of a cache entry, which the capacity of a CacheSegment bounds.
+ *
+ * ENTRIES gives every entry the weight 1, so the capacity is a number of
+ * entries. BYTES estimates the heap footprint of the entry in a 64-bit
+ * JVM with compressed references: both strings with their char arrays,
+ * plus ENTRY_OVERHEAD for the nodes the segment keeps per entry.
+ */
+public interface Weigher {
+
+    int ENTRY_OVERHEAD = 64;
+
+    Weigher ENTRIES = new Weigher() {
+        @Override
+        public int weigh(String key, String value) {
+            return 1;
+        }
+    };
+
+    Weigher BYTES = new Weigher() {
+        @Override
+        public int weigh(String key, String value) {
+            return ENTRY_OVERHEAD + stringSize(key) + stringSize(value);
+        }
+
+        private int stringSize(String string) {
+            // String object, then the char array header and its chars, 8-byte aligned
+            return 24 + 16 + (2 * string.length() + 7) / 8 * 8;
+        }
+    };
+
+    /**
+     * @param key the key
+     * @param value the value
+     * @return the weight of the entry, at least 1
+     */
+    int weigh(String key, String value);
+}
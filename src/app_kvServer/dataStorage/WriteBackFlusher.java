@@ -0,0 +1,151 @@
+package app_kvServer.dataStorage;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background writer of the dirty entries of a write-back cache.
+ *
+ * The cache enqueues a key when it becomes dirty, and only then, so
+ * further writes to a key that is still queued are coalesced into one
+ * write of its latest value. The queue is bounded: once it is full,
+ * enqueue blocks the writer until the flusher catches up, which bounds
+ * the number of dirty entries as well. A key that cannot be written is
+ * queued again after a pause that doubles with every failure in a row.
+ */
+public class WriteBackFlusher implements Runnable {
+
+    /**
+     * A cache whose dirty entries can be flushed
+     */
+    public interface Target {
+
+        /**
+         * Writes the dirty value of a key to the persistence, if it is
+         * still dirty, and marks it clean
+         * @param key the key
+         * @return false if the value could not be written and the key stays dirty
+         */
+        boolean flush(String key);
+
+        /**
+         * Waits until the flushed values are durable, called whenever
+         * the queue runs empty
+         */
+        void sync();
+    }
+
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 10000;
+
+    private final String name;
+    private final Target target;
+    private final BlockingQueue<String> queue;
+    private Thread thread;
+    private volatile boolean stopped = false;
+    private static Logger logger = Logger.getLogger(WriteBackFlusher.class);
+
+    /**
+     * Constructor
+     * @param name the name of the cache, used for the thread name
+     * @param target the cache to flush
+     * @param capacity the maximum number of queued keys
+     */
+    public WriteBackFlusher(String name, Target target, int capacity) {
+        this.name = name;
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Starts flushing in the background
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "Flusher-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops flushing, waiting for a running flush to finish. Keys still
+     * queued are left to the caller.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Queues a key that became dirty, waiting while the queue is full
+     * @param key the key
+     * @return false if interrupted before the key was queued
+     */
+    public boolean enqueue(String key) {
+        try {
+            queue.put(key);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Flushes queued keys until stopped
+     */
+    @Override
+    public void run() {
+        long backoff = 0;
+        String retry = null;
+        while (!stopped) {
+            String key = retry;
+            retry = null;
+            if (key == null) {
+                try {
+                    key = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            boolean flushed = false;
+            try {
+                flushed = target.flush(key);
+                if (flushed && queue.isEmpty()) {
+                    target.sync();
+                }
+            } catch (RuntimeException e) {
+                logger.error("Cannot flush key " + key + " of " + name, e);
+            }
+            if (flushed) {
+                backoff = 0;
+                continue;
+            }
+            backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, 2 * backoff));
+            logger.warn("Retrying to flush key " + key + " of " + name + " in " + backoff + " ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                // Stopped, the key stays dirty and is left to the caller
+                continue;
+            }
+            if (!queue.offer(key)) {
+                // The queue filled up in the meantime, retry the key right away
+                retry = key;
+            }
+        }
+    }
+}
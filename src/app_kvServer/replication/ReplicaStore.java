@@ -0,0 +1,475 @@
+package app_kvServer.replication;
+
+import app_kvServer.dataStorage.Expiry;
+import app_kvServer.dataStorage.ExpiryReaper;
+import app_kvServer.dataStorage.NegativeCache;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngine;
+import app_kvServer.dataStorage.StorageEngines;
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import helpers.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replicated data of a server, partitioned by coordinator range.
+ *
+ * Every coordinator range gets a store of its own, so gossip for different
+ * coordinators is written without contention, and a REMOVE_DATA or
+ * RESTORE_DATA of a whole coordinator range drops that store's files
+ * instead of scanning the data of all coordinators.
+ *
+ * Data whose hash is outside all known coordinator ranges goes to a
+ * catch-all partition, which uses the file names of the former single
+ * replica store. When the coordinator ranges change, a new partition
+ * takes over its range from the partitions that no longer match a
+ * coordinator (stale ones), so only the moved range is copied. Stale
+ * partitions keep the rest of their data until the ECS removes it.
+ *
+ * Replicated pairs keep the expiry time they were put with, and expired
+ * ones are reaped in the background like in the main store.
+ *
+ * Recent misses are remembered in a NegativeCache, so that clients polling
+ * for keys that do not exist yet do not probe every partition each time.
+ * Gossip forgets the misses of its keys, and a change of the coordinator
+ * ranges forgets all of them, since data moves between partitions.
+ */
+public class ReplicaStore implements ExpiryReaper.Target {
+
+    private static final String PREFIX = "_replica_";
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * The store of one key range
+     */
+    static class Partition {
+        final KVRange range;
+        final StorageEngine store;
+        // Serializes the batches and range operations on the store
+        final ReentrantLock lock = new ReentrantLock();
+
+        Partition(KVRange range, StorageEngine store) {
+            this.range = range;
+            this.store = store;
+        }
+    }
+
+    private final String suffix;
+    private final StorageConfig config;
+    private final List<Partition> partitions = new ArrayList<>();
+    private List<KVRange> coordinatorRanges = new ArrayList<>();
+    private final MD5Hash md5 = new MD5Hash();
+    private final ExpiryReaper reaper;
+    private final NegativeCache misses;
+    // Guards the partitions and the coordinator ranges
+    private final ReentrantLock lock = new ReentrantLock();
+    private static final Logger logger = Logger.getLogger(ReplicaStore.class);
+
+    /**
+     * Constructor. In durable mode the partitions left by the previous run are reopened.
+     * @param port the port of the server, part of the store file names
+     * @param config the storage options
+     * @throws StorageException if a partition cannot be opened
+     */
+    public ReplicaStore(int port, StorageConfig config) throws StorageException {
+        this.suffix = PREFIX + port;
+        this.config = config;
+        this.misses = new NegativeCache(config.getNegativeCacheSize());
+        if (config.isDurable()) {
+            reopen();
+        }
+        reaper = new ExpiryReaper(suffix, this);
+        reaper.start(config.getReapInterval());
+    }
+
+    /**
+     * Sets the ranges of the current coordinators. Partitions are created for
+     * new ranges and take over the data of their range from stale partitions.
+     * @param ranges the key ranges of the coordinators of the server
+     */
+    public void setCoordinatorRanges(List<KVRange> ranges) {
+        lock.lock();
+        try {
+            coordinatorRanges = new ArrayList<>(ranges);
+            for (KVRange range : coordinatorRanges) {
+                if (find(range) != null) {
+                    continue;
+                }
+                try {
+                    Partition partition = open(range);
+                    for (Partition stale : stalePartitions()) {
+                        if (stale != partition) {
+                            takeOver(partition, stale);
+                        }
+                    }
+                } catch (StorageException e) {
+                    logger.error("Cannot create replica partition for range " + range, e);
+                }
+            }
+            // A GET during a take over may have missed a pair on its way
+            misses.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores replicated pairs, each in the partition of its coordinator
+     * @param pairs the pairs to store
+     * @return true if all pairs were stored and are durable
+     */
+    public boolean put(List<KVPair> pairs) {
+        Map<Partition, List<KVPair>> batches = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (KVPair pair : pairs) {
+                Partition partition;
+                try {
+                    partition = partitionFor(md5.hash(pair.getKey()));
+                } catch (StorageException e) {
+                    logger.error("Cannot open replica partition", e);
+                    return false;
+                }
+                List<KVPair> batch = batches.get(partition);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(partition, batch);
+                }
+                batch.add(pair);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Partition, List<KVPair>> batch : batches.entrySet()) {
+            Partition partition = batch.getKey();
+            StorageEngine store = partition.store;
+            partition.lock.lock();
+            try {
+                for (KVPair pair : batch.getValue()) {
+                    String stored = Expiry.wrap(pair.getValue(), pair.getExpiresAt());
+                    KVMessage.StatusType status = store.put(pair.getKey(), stored).getStatus();
+                    misses.invalidate(pair.getKey());
+                    if (status != KVMessage.StatusType.PUT_SUCCESS && status != KVMessage.StatusType.PUT_UPDATE)
+                        return false;
+                }
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        for (Partition partition : batches.keySet()) {
+            if (!partition.store.awaitDurable())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a key, in the partition of its current coordinator first
+     * @param key the key
+     * @return GET_SUCCESS with the value, or GET_ERROR if it is not stored or expired
+     */
+    public KVMessageImpl get(String key) {
+        // Taken before the lookup, so that gossip racing with it keeps the miss from being remembered
+        long missVersion = misses.version();
+        if (misses.contains(key)) {
+            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+        }
+        String hash;
+        List<Partition> current;
+        List<Partition> stale;
+        lock.lock();
+        try {
+            hash = md5.hash(key);
+            stale = stalePartitions();
+            current = new ArrayList<>(partitions);
+            current.removeAll(stale);
+        } finally {
+            lock.unlock();
+        }
+        for (List<Partition> candidates : Arrays.asList(current, stale)) {
+            for (Partition partition : candidates) {
+                if (partition.range.isIndexInRange(hash) && partition.store.mightContain(key)) {
+                    KVMessageImpl response = partition.store.get(key);
+                    if (response.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+                        if (Expiry.isExpired(response.getValue(), System.currentTimeMillis()))
+                            return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+                        response.setValue(Expiry.unwrap(response.getValue()));
+                        return response;
+                    }
+                }
+            }
+        }
+        misses.add(key, missVersion);
+        return new KVMessageImpl(key, "", KVMessage.StatusType.GET_ERROR);
+    }
+
+    /**
+     * Collects the pairs of a range from all partitions, leaving out expired ones
+     * @param range the range
+     * @return the pairs, with their expiry times
+     */
+    public List<KVPair> get(KVRange range) {
+        List<KVPair> pairs = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Partition partition : snapshot()) {
+            partition.lock.lock();
+            try {
+                pairs.addAll(Expiry.visible(partition.store.get(range), now));
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Removes a range. A partition of exactly that range is dropped with its
+     * files; the other partitions only remove the keys inside the range.
+     * @param range the range
+     * @return DELETE_SUCCESS or DELETE_ERROR
+     */
+    public KVMessageImpl remove(KVRange range) {
+        List<Partition> dropped = new ArrayList<>();
+        List<Partition> others = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Partition partition : partitions) {
+                (partition.range.equals(range) ? dropped : others).add(partition);
+            }
+            partitions.removeAll(dropped);
+        } finally {
+            lock.unlock();
+        }
+        for (Partition partition : dropped) {
+            logger.info("Dropping replica partition " + partition.range);
+            partition.lock.lock();
+            try {
+                partition.store.cleanUp();
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        for (Partition partition : others) {
+            partition.lock.lock();
+            try {
+                if (partition.store.remove(range).getStatus() == KVMessage.StatusType.DELETE_ERROR)
+                    return new KVMessageImpl(KVMessage.StatusType.DELETE_ERROR);
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        return new KVMessageImpl(KVMessage.StatusType.DELETE_SUCCESS);
+    }
+
+    /**
+     * Removes the expired pairs of a slice of the ring from all partitions
+     * @param slice the slice of the ring to walk
+     * @param now the current time in milliseconds
+     * @return the number of removed pairs
+     */
+    @Override
+    public int reapExpired(KVRange slice, long now) {
+        int reaped = 0;
+        for (Partition partition : snapshot()) {
+            partition.lock.lock();
+            try {
+                reaped += ExpiryReaper.reap(partition.store, slice, now).size();
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Partition count getter
+     * @return the number of partitions
+     */
+    public int getPartitionCount() {
+        lock.lock();
+        try {
+            return partitions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes all partitions, keeping their files
+     */
+    public void close() {
+        reaper.stop();
+        for (Partition partition : snapshot()) {
+            partition.lock.lock();
+            try {
+                partition.store.close();
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes all partitions and removes their files
+     */
+    public void cleanUp() {
+        reaper.stop();
+        List<Partition> all;
+        lock.lock();
+        try {
+            all = new ArrayList<>(partitions);
+            partitions.clear();
+        } finally {
+            lock.unlock();
+        }
+        misses.clear();
+        for (Partition partition : all) {
+            partition.lock.lock();
+            try {
+                partition.store.cleanUp();
+            } finally {
+                partition.lock.unlock();
+            }
+        }
+    }
+
+    private List<Partition> snapshot() {
+        lock.lock();
+        try {
+            return new ArrayList<>(partitions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the partition for new data of a hash, opening it if needed
+     */
+    private Partition partitionFor(String hash) throws StorageException {
+        for (KVRange range : coordinatorRanges) {
+            if (range.isIndexInRange(hash)) {
+                Partition partition = find(range);
+                return partition != null ? partition : open(range);
+            }
+        }
+        Partition catchAll = find(new KVRange());
+        return catchAll != null ? catchAll : open(new KVRange());
+    }
+
+    private Partition find(KVRange range) {
+        for (Partition partition : partitions) {
+            if (partition.range.equals(range))
+                return partition;
+        }
+        return null;
+    }
+
+    private List<Partition> stalePartitions() {
+        List<Partition> stale = new ArrayList<>();
+        for (Partition partition : partitions) {
+            boolean current = false;
+            for (KVRange range : coordinatorRanges) {
+                current |= partition.range.equals(range);
+            }
+            if (!current)
+                stale.add(partition);
+        }
+        return stale;
+    }
+
+    /**
+     * Moves the data of a partition's range out of a stale partition,
+     * and drops the stale partition once it is empty
+     */
+    private void takeOver(Partition partition, Partition stale) {
+        List<KVPair> moved;
+        stale.lock.lock();
+        try {
+            moved = stale.store.get(partition.range);
+            if (moved.isEmpty()) {
+                return;
+            }
+            partition.lock.lock();
+            try {
+                for (KVPair pair : moved) {
+                    partition.store.put(pair.getKey(), pair.getValue());
+                }
+                partition.store.awaitDurable();
+            } finally {
+                partition.lock.unlock();
+            }
+            stale.store.remove(partition.range);
+            logger.info("Moved " + moved.size() + " replicated pairs of range " + partition.range
+                    + " out of partition " + stale.range);
+            if (stale.store.isEmpty()) {
+                partitions.remove(stale);
+                stale.store.cleanUp();
+            }
+        } finally {
+            stale.lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the partition of a range and registers it
+     */
+    private Partition open(KVRange range) throws StorageException {
+        Partition partition = new Partition(range, StorageEngines.open(fileSuffix(range), config));
+        partitions.add(partition);
+        return partition;
+    }
+
+    /**
+     * Store file name suffix of a partition: the one of the former single
+     * replica store for the catch-all partition, else extended by the range
+     */
+    private String fileSuffix(KVRange range) {
+        if (range.equals(new KVRange())) {
+            return suffix;
+        }
+        return suffix + "_" + MD5Hash.normalize(range.getLow(), HASH_LENGTH)
+                + "_" + MD5Hash.normalize(range.getHigh(), HASH_LENGTH);
+    }
+
+    /**
+     * Reopens the partitions whose files are found in the working directory
+     */
+    private void reopen() throws StorageException {
+        final String storePrefix = "data.store" + suffix;
+        File[] files = new File(".").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(storePrefix);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Set<String> ranges = new TreeSet<>();
+        boolean catchAll = false;
+        for (File file : files) {
+            String rest = file.getName().substring(storePrefix.length());
+            if (rest.isEmpty() || rest.startsWith(".")) {
+                catchAll = true;
+            } else if (rest.length() >= 2 * HASH_LENGTH + 2 && rest.charAt(0) == '_'
+                    && rest.charAt(HASH_LENGTH + 1) == '_') {
+                ranges.add(rest.substring(1, 2 * HASH_LENGTH + 2));
+            }
+        }
+        if (catchAll) {
+            open(new KVRange());
+        }
+        for (String range : ranges) {
+            open(new KVRange(range.substring(0, HASH_LENGTH), range.substring(HASH_LENGTH + 1)));
+        }
+        logger.info("Reopened " + partitions.size() + " replica partitions of " + storePrefix);
+    }
+}
@@ -1,6 +1,5 @@
 package app_kvServer.replication;
 
-import app_kvServer.dataStorage.KVPersistenceEngine;
 import app_kvServer.SocketServer;
 import common.ServerInfo;
 import common.messages.*;
@@ -22,7 +21,7 @@ public class ReplicationHandler {
     private HashMap<String, Replica> replicas;
     private ExecutorService timeoutThreadpool;
 
-    private final KVPersistenceEngine replicatedData;
+    private final ReplicaStore replicatedData;
     private final SocketServer server;
 
     private final long heartbeatPeriod;
@@ -43,7 +42,7 @@ public class ReplicationHandler {
     public ReplicationHandler(SocketServer server, List<ServerInfo> metadata, KVRange range, long heartbeatPeriod) throws StorageException {
         this.server = server;
         this.heartbeatPeriod = heartbeatPeriod;
-        this.replicatedData = new KVPersistenceEngine("_replica_"+server.getInfo().getServerPort());
+        this.replicatedData = new ReplicaStore(server.getInfo().getServerPort(), server.getStorageConfig());
         findCoordinatorsAndReplicas(metadata, range);
     }
 
@@ -92,11 +91,15 @@ public class ReplicationHandler {
     private void findAndRegisterCoordinators(List<ServerInfo> metadata, KVRange range) {
         List<ServerInfo> coords = Utilities.getCoordinators(metadata, server.getInfo());
         logger.info(server.getInfo().getID() + ": Found my coordinators");
+        List<KVRange> coordinatorRanges = new ArrayList<>();
         for (ServerInfo coordInfo: coords) {
             logger.info(server.getInfo().getID() + ": COORDINATOR : " + coordInfo.getID());
             String coordID = coordInfo.getID();
             coordinators.put(coordID, new Coordinator(coordID, coordInfo, heartbeatPeriod, this));
+            if (coordInfo.getServerRange() != null)
+                coordinatorRanges.add(coordInfo.getServerRange());
         }
+        replicatedData.setCoordinatorRanges(coordinatorRanges);
     }
 
     /**
@@ -156,16 +159,12 @@ public class ReplicationHandler {
 
     // Used from REPLICATE and GOSSIP message
     public boolean insertReplicatedData(List<KVPair> kvPairs) {
-        synchronized (replicatedData) {
-            for (KVPair pair : kvPairs) {
-                logger.info(server.getInfo().getID() + " : Inserting gossip pair ::: " + pair.getKey() +
-                        " , " + pair.getValue());
-                KVMessageImpl status = replicatedData.put(pair.getKey(), pair.getValue());
-                if ( ! (status.getStatus().equals(KVMessage.StatusType.PUT_SUCCESS) ||
-                        status.getStatus().equals(KVMessage.StatusType.PUT_UPDATE)) )
-                    return false;
-            }
+        for (KVPair pair : kvPairs) {
+            logger.info(server.getInfo().getID() + " : Inserting gossip pair ::: " + pair.getKey() +
+                    " , " + pair.getValue());
         }
+        if (!replicatedData.put(kvPairs))
+            return false;
         logger.info(server.getInfo().getID() + " : All gossips inserted!");
         return true;
     }
@@ -176,9 +175,7 @@ public class ReplicationHandler {
      * @return the server message response
      */
     public KVMessageImpl removeRange(KVRange range) {
-        synchronized (replicatedData) {
-            return replicatedData.remove(range);
-        }
+        return replicatedData.remove(range);
     }
 
     ///////////////////////////////////////////
@@ -192,9 +189,7 @@ public class ReplicationHandler {
      */
     public KVMessageImpl get(String key) {
         logger.info(server.getInfo().getID() + " : Getting key from replicated data (" + key + ")");
-        synchronized (replicatedData) {
-            return replicatedData.get(key);
-        }
+        return replicatedData.get(key);
     }
 
     /**
@@ -204,9 +199,7 @@ public class ReplicationHandler {
      * @return the value corresponding to the given key
      */
     public List<KVPair> getData(KVRange range) {
-        synchronized (replicatedData) {
-            return replicatedData.get(range);
-        }
+        return replicatedData.get(range);
     }
 
     /**
@@ -324,6 +317,15 @@ public class ReplicationHandler {
         replicatedData.cleanUp();
     }
 
+    /**
+     * Closes the replicated data store, keeping its files
+     * (used when the server shuts down in durable mode)
+     */
+    public synchronized void close() {
+        shutdownHeartbeats();
+        replicatedData.close();
+    }
+
 
 
 }
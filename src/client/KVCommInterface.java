@@ -31,6 +31,23 @@ public interface KVCommInterface {
 	 */
 	public KVMessage put(String key, String value) throws Exception;
 
+	/**
+	 * Inserts a key-value pair into the KVServer that expires after a time
+	 * to live. An expired pair is no longer returned by get.
+	 * 
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @param ttl
+	 *            the seconds after which the pair expires, 0 for never.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception
+	 *             if put command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage put(String key, String value, long ttl) throws Exception;
+
 	/**
 	 * Retrieves the value for a given key from the KVServer.
 	 * 
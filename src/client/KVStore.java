@@ -1,10 +1,10 @@
 package client;
 
-import common.Serializer;
 import common.ServerInfo;
 import common.messages.KVMessage;
 import common.messages.KVMessageImpl;
 import common.utils.KVRange;
+import common.utils.MessageStream;
 import common.utils.Utilities;
 import hashing.MD5Hash;
 import helpers.*;
@@ -130,13 +130,11 @@ public class KVStore implements KVCommInterface {
         ServerConnection serverConnection = null;
         try {
             serverConnection = getServerConnection(key, false);
-            byte[] response;
-            response = send(kvMessage.getMsgBytes(), serverConnection);
-            if (response[0] == -1) {
-                logger.error(String.format("Subscribe request not successful. Got -1 as response. Key: %s, Coordinator: %s", key, serverConnection.getAddress()));
+            KVMessageImpl responseMessage = send(kvMessage, serverConnection);
+            if (responseMessage == null) {
+                logger.error(String.format("Subscribe request not successful. Connection closed by the server. Key: %s, Coordinator: %s", key, serverConnection.getAddress()));
                 disconnect(false);
             } else {
-                KVMessageImpl responseMessage = (KVMessageImpl) Serializer.toObject(response);
                 if (responseMessage.getStatus().equals(KVMessage.StatusType.SUBSCRIBE_SUCCESS)) {
                     memoryCache.put(key, responseMessage.getValue());
                     kvMessage = responseMessage;
@@ -169,13 +167,11 @@ public class KVStore implements KVCommInterface {
         ServerConnection serverConnection = null;
         try {
             serverConnection = getServerConnection(key, false);
-            byte[] response;
-            response = send(kvMessage.getMsgBytes(), serverConnection);
-            if (response[0] == -1) {
-                logger.error(String.format("Unsubscribe request not successful. Got -1 as response. Key: %s, Coordinator: %s", key, serverConnection.getAddress()));
+            KVMessageImpl responseMessage = send(kvMessage, serverConnection);
+            if (responseMessage == null) {
+                logger.error(String.format("Unsubscribe request not successful. Connection closed by the server. Key: %s, Coordinator: %s", key, serverConnection.getAddress()));
                 disconnect(false);
             } else {
-                KVMessageImpl responseMessage = (KVMessageImpl) Serializer.toObject(response);
                 if (responseMessage.getStatus().equals(KVMessage.StatusType.UNSUBSCRIBE_SUCCESS)) {
                     kvMessage = responseMessage;
                     memoryCache.remove(key);
@@ -202,12 +198,27 @@ public class KVStore implements KVCommInterface {
      */
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
+        return put(key, value, 0);
+    }
+
+    /**
+     * Puts an entry into the server that expires after a time to live.
+     *
+     * @param key the key that identifies the given value.
+     * @param value the value that is indexed by the given key.
+     * @param ttl the seconds after which the entry expires, 0 for never
+     * @return
+     * @throws Exception
+     */
+	@Override
+	public KVMessage put(String key, String value, long ttl) throws Exception {
         if (!isConnected()) {
             throw new Exception("Client not Connected to server");
         }
         // TODO: Perform key validation.
         boolean resendRequest = true;
         KVMessageImpl kvMessage = new KVMessageImpl(key, value, KVMessage.StatusType.PUT);
+        kvMessage.setTtl(ttl);
         try {
             while (resendRequest) {
                 ServerConnection connection = getServerConnection(key, false);
@@ -216,10 +227,10 @@ public class KVStore implements KVCommInterface {
                     throw new Exception("Client is disconnected");
                 }
                 logger.debug(String.format("Sending message PUT: %s, value %s", kvMessage.getKey(),kvMessage.getValue()));
-                byte[] response;
+                KVMessageImpl kvMessageFromServer;
                 try {
-                    response = send(kvMessage.getMsgBytes(), connection);
-                    if (response[0] == -1) {
+                    kvMessageFromServer = send(kvMessage, connection);
+                    if (kvMessageFromServer == null) {
                         disconnect(false);
                         continue;
                     }
@@ -229,7 +240,6 @@ public class KVStore implements KVCommInterface {
                     continue;
                 }
                 logger.info("Sent PUT message to : " + connection.getAddress() + ":" + connection.getServerPort() + " with key: " + kvMessage.getKey() + " value: " + kvMessage.getValue());
-                KVMessageImpl kvMessageFromServer = (KVMessageImpl) Serializer.toObject(response);
                 if (kvMessageFromServer.getStatus().equals(KVMessage.StatusType.PUT_SUCCESS)
                         || kvMessageFromServer.getStatus().equals(KVMessage.StatusType.PUT_UPDATE)
                         || kvMessageFromServer.getStatus().equals(KVMessage.StatusType.DELETE_SUCCESS)) {
@@ -294,10 +304,10 @@ public class KVStore implements KVCommInterface {
                         throw new Exception("Client is disconnected");
                     }
                     logger.debug(String.format("Sending (GET) message: %s to %s:%s", kvMessage.toString(), connection.getAddress(), connection.getServerPort()));
-                    byte[] response;
+                    KVMessageImpl kvMessageFromServer;
                     try {
-                        response = send(kvMessage.getMsgBytes(), connection);
-                        if (response[0] == -1) {
+                        kvMessageFromServer = send(kvMessage, connection);
+                        if (kvMessageFromServer == null) {
                             disconnect(false);
                             continue;
                         }
@@ -306,7 +316,6 @@ public class KVStore implements KVCommInterface {
                         continue;
                     }
 
-                    KVMessageImpl kvMessageFromServer = (KVMessageImpl) Serializer.toObject(response);
                     if (kvMessageFromServer.getStatus().equals(KVMessage.StatusType.GET_SUCCESS)) {
                         resendRequest = false;
                         kvMessage = kvMessageFromServer;
@@ -335,15 +344,17 @@ public class KVStore implements KVCommInterface {
 	}
 
     /**
-     * This function sends a message to the server using the established connection.
+     * This function sends a message to the server using the established connection,
+     * in the protocol version negotiated on it.
      *
      * @param msg
+     * @return the response of the server, or null if it closed the connection
      * @throws CannotConnectException
      */
-    public byte[] send(byte[] msg, ServerConnection serverConnection) throws CannotConnectException, IOException {
-        Utilities.send(msg, serverConnection.getOutStream());
-        byte[] answer = Utilities.receive(serverConnection.getInStream());
-        return answer;
+    public KVMessageImpl send(KVMessageImpl msg, ServerConnection serverConnection) throws CannotConnectException, IOException {
+        MessageStream messageStream = serverConnection.getMessageStream();
+        messageStream.send(msg);
+        return (KVMessageImpl) messageStream.receiveMessage();
     }
 
     /**
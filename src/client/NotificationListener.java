@@ -4,11 +4,11 @@ import common.Serializer;
 import common.messages.KVMessage;
 import common.messages.KVMessageImpl;
 import common.utils.Utilities;
-import helpers.CannotConnectException;
 import helpers.Constants;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -49,7 +49,7 @@ public class NotificationListener implements Runnable {
                 logger.debug("Notification Listener: Waiting for incoming connection");
                 clientSocket = serverSocket.accept();
                 logger.debug(String.format("Received notification from %s", clientSocket.getInetAddress().getHostAddress()));
-                byte[] msgBytes = Utilities.receive(clientSocket.getInputStream());
+                byte[] msgBytes = Utilities.receive(new BufferedInputStream(clientSocket.getInputStream()));
                 KVMessageImpl kvMessage = (KVMessageImpl) Serializer.toObject(msgBytes);
                 if (kvMessage.getStatus().equals(KVMessage.StatusType.NOTIFICATION_KEY_DELETED)
                         && (memoryCache.containsKey(kvMessage.getKey())) && kvMessage.getValue().equals("null")) {
@@ -64,8 +64,6 @@ public class NotificationListener implements Runnable {
                 }
             } catch (IOException e) {
                 logger.error("NotificationListener: IOException while receiving notifications", e);
-            } catch (CannotConnectException e) {
-                logger.error("NotificationListener: Unrecognized exception while receiving notifications", e);
             } catch (ClassCastException e) {
                 logger.error("NotificationListener: Unexpected message from coordinator", e);
             }
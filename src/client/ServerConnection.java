@@ -1,6 +1,7 @@
 package client;
 
 import common.ServerInfo;
+import common.utils.MessageStream;
 import helpers.CannotConnectException;
 import helpers.Constants;
 import helpers.ErrorMessages;
@@ -22,6 +23,7 @@ public class ServerConnection extends ServerInfo {
     private boolean isConnected;
     private InputStream inStream;
     private OutputStream outStream;
+    private MessageStream messageStream;
     private Socket clientSocket;
     private static Logger logger = Logger.getLogger(ServerConnection.class);
 
@@ -31,10 +33,13 @@ public class ServerConnection extends ServerInfo {
         try {
             InetAddress address = InetAddress.getByName(hostname);
             try {
-                clientSocket = new Socket(address, port);
-                inStream = clientSocket.getInputStream();
-                outStream = clientSocket.getOutputStream();
-                logger.info("KVServer connection established");
+                open(address, port);
+                if (!messageStream.negotiate()) {
+                    // A server of the first protocol version closes the connection
+                    clientSocket.close();
+                    open(address, port);
+                }
+                logger.info("KVServer connection established, protocol version " + messageStream.getVersion());
                 isConnected = true;
             }  catch (IOException e) {
                 logger.error(String.format("Error while connecting to the server. Server: %s:%s", hostname, port), e);
@@ -46,6 +51,14 @@ public class ServerConnection extends ServerInfo {
         }
     }
 
+    private void open(InetAddress address, Integer port) throws IOException {
+        clientSocket = new Socket(address, port);
+        clientSocket.setTcpNoDelay(true);
+        inStream = clientSocket.getInputStream();
+        outStream = clientSocket.getOutputStream();
+        messageStream = new MessageStream(inStream, outStream);
+    }
+
     public void closeConnections() {
         if (isConnected) {
             try {
@@ -70,4 +83,8 @@ public class ServerConnection extends ServerInfo {
     public InputStream getInStream() {
         return inStream;
     }
+
+    public MessageStream getMessageStream() {
+        return messageStream;
+    }
 }
@@ -0,0 +1,506 @@
+package common;
+
+import app_kvServer.ClientSubscription;
+import common.messages.*;
+import common.utils.KVRange;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary message serializer, for connections that negotiated
+ * MessageStream.VERSION_BINARY.
+ *
+ * A message is a type byte, a status byte and then all fields of its
+ * class in a fixed order, whatever the status. Numbers are zigzag
+ * varints, strings the varint of their UTF-8 length plus one (0 for
+ * null) followed by their bytes, and lists and maps the varint of their
+ * size plus one followed by their elements. No value can break the
+ * fields apart like the delimiters of the text format, and messages are
+ * written and read field by field, without building or splitting the
+ * whole message as a String.
+ */
+public class BinarySerializer {
+
+    // As the message types of the text format
+    private static final byte ECS_MESSAGE = 0;
+    private static final byte CLIENT_MESSAGE = 1;
+    private static final byte SERVER_MESSAGE = 2;
+    // values() copies the array on every call
+    private static final KVMessage.StatusType[] CLIENT_STATUSES = KVMessage.StatusType.values();
+    private static final KVAdminMessage.StatusType[] ADMIN_STATUSES = KVAdminMessage.StatusType.values();
+    private static final KVServerMessage.StatusType[] SERVER_STATUSES = KVServerMessage.StatusType.values();
+
+    /**
+     * @param message an outgoing message
+     * @return the binary representation of the message
+     */
+    public static byte[] toByteArray(AbstractMessage message) {
+        switch (message.getMessageType()) {
+            case CLIENT_MESSAGE:
+                return toByteArray((KVMessageImpl) message);
+            case ECS_MESSAGE:
+                return toByteArray((KVAdminMessageImpl) message);
+            default:
+                return toByteArray((KVServerMessageImpl) message);
+        }
+    }
+
+    /**
+     * Client message serializer
+     * @param message client message to be sent
+     * @return the binary representation of the message
+     */
+    public static byte[] toByteArray(KVMessageImpl message) {
+        String key = message.getKey();
+        String value = message.getValue();
+        Writer writer = new Writer(32 + (key == null ? 0 : key.length()) + (value == null ? 0 : value.length()));
+        writer.writeByte(CLIENT_MESSAGE);
+        writer.writeStatus(message.getStatus());
+        writer.writeString(key);
+        writer.writeString(value);
+        writer.writeString(message.getAddress());
+        writer.writeInteger(message.getPort());
+        writer.writeLong(message.getTtl());
+        writer.writeServers(message.getMetadata());
+        return writer.toByteArray();
+    }
+
+    /**
+     * Admin (ECS) message serializer
+     * @param message admin message to be sent
+     * @return the binary representation of the message
+     */
+    public static byte[] toByteArray(KVAdminMessageImpl message) {
+        Writer writer = new Writer(64);
+        writer.writeByte(ECS_MESSAGE);
+        writer.writeStatus(message.getStatus());
+        writer.writeServers(message.getMetadata());
+        writer.writeInteger(message.getCacheSize());
+        writer.writeString(message.getDisplacementStrategy());
+        writer.writeString(message.getStorageEngine());
+        writer.writeString(message.getStats());
+        writer.writeRange(message.getRange());
+        writer.writeServer(message.getServerInfo());
+        writer.writeServer(message.getFailedServerInfo());
+        return writer.toByteArray();
+    }
+
+    /**
+     * Server-to-server message serializer
+     * @param message server message to be sent
+     * @return the binary representation of the message
+     */
+    public static byte[] toByteArray(KVServerMessageImpl message) {
+        List<KVPair> pairs = message.getKVPairs();
+        Writer writer = new Writer(64 + (pairs == null ? 0 : 32 * pairs.size()));
+        writer.writeByte(SERVER_MESSAGE);
+        writer.writeStatus(message.getStatus());
+        if (pairs == null) {
+            writer.writeSize(-1);
+        } else {
+            writer.writeSize(pairs.size());
+            for (KVPair pair : pairs) {
+                writer.writeString(pair.getKey());
+                writer.writeString(pair.getValue());
+                writer.writeLong(pair.getExpiresAt());
+            }
+        }
+        writer.writeInteger(message.getHotCount());
+        Map<String, ArrayList<ClientSubscription>> subscribers = message.getSubscribers();
+        if (subscribers == null) {
+            writer.writeSize(-1);
+        } else {
+            writer.writeSize(subscribers.size());
+            for (Map.Entry<String, ArrayList<ClientSubscription>> entry : subscribers.entrySet()) {
+                writer.writeString(entry.getKey());
+                writer.writeSize(entry.getValue().size());
+                for (ClientSubscription subscription : entry.getValue()) {
+                    writer.writeString(subscription.getAddress());
+                    writer.writeInteger(subscription.getPort());
+                    writer.writeInteger(subscription.getInterestsOrdinal());
+                }
+            }
+        }
+        writer.writeString(message.getReplicaID());
+        Date time = message.getTimeOfSendingMsg();
+        writer.writeInteger(time == null ? null : time.getTime());
+        return writer.toByteArray();
+    }
+
+    /**
+     * Message deserializer
+     * @param bytes the binary representation of an incoming message
+     * @return an abstract message that can be downcasted to a more specific message type
+     * @throws UnsupportedDataTypeException if the message is not a valid binary message
+     */
+    public static AbstractMessage toObject(byte[] bytes) throws UnsupportedDataTypeException {
+        return toObject(bytes, null);
+    }
+
+    /**
+     * Message deserializer that decodes client messages into a message of
+     * the caller, for a connection that handles one message at a time
+     * @param bytes the binary representation of an incoming message
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return an abstract message that can be downcasted to a more specific message type
+     * @throws UnsupportedDataTypeException if the message is not a valid binary message
+     */
+    public static AbstractMessage toObject(byte[] bytes, KVMessageImpl reuse) throws UnsupportedDataTypeException {
+        return toObject(bytes, bytes.length, reuse);
+    }
+
+    /**
+     * Message deserializer for a message at the start of a larger buffer
+     * @param bytes the buffer holding the binary representation of an incoming message
+     * @param length the length of the message
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return an abstract message that can be downcasted to a more specific message type
+     * @throws UnsupportedDataTypeException if the message is not a valid binary message
+     */
+    public static AbstractMessage toObject(byte[] bytes, int length, KVMessageImpl reuse) throws UnsupportedDataTypeException {
+        Reader reader = new Reader(bytes, length);
+        AbstractMessage message;
+        switch (reader.readByte()) {
+            case CLIENT_MESSAGE:
+                message = readClientMessage(reader, reuse);
+                break;
+            case ECS_MESSAGE:
+                message = readAdminMessage(reader);
+                break;
+            case SERVER_MESSAGE:
+                message = readServerMessage(reader);
+                break;
+            default:
+                throw new UnsupportedDataTypeException("Unsupported message type");
+        }
+        if (reader.position != length) {
+            throw new UnsupportedDataTypeException("Trailing bytes after message");
+        }
+        return message;
+    }
+
+    private static KVMessageImpl readClientMessage(Reader reader, KVMessageImpl message) throws UnsupportedDataTypeException {
+        KVMessage.StatusType status = reader.readStatus(CLIENT_STATUSES);
+        if (message == null) {
+            message = new KVMessageImpl(status);
+        } else {
+            message.setStatus(status);
+        }
+        message.setKey(reader.readString());
+        message.setValue(reader.readString());
+        message.setAddress(reader.readString());
+        message.setPort(toInteger(reader.readInteger()));
+        message.setTtl(reader.readLong());
+        message.setMetadata(reader.readServers());
+        return message;
+    }
+
+    private static KVAdminMessageImpl readAdminMessage(Reader reader) throws UnsupportedDataTypeException {
+        KVAdminMessageImpl message = new KVAdminMessageImpl(reader.readStatus(ADMIN_STATUSES));
+        message.setMetadata(reader.readServers());
+        message.setCacheSize(toInteger(reader.readInteger()));
+        message.setDisplacementStrategy(reader.readString());
+        message.setStorageEngine(reader.readString());
+        message.setStats(reader.readString());
+        KVRange range = reader.readRange();
+        if (range != null) {
+            message.setLow(range.getLow());
+            message.setHigh(range.getHigh());
+        }
+        message.setServerInfo(reader.readServer());
+        message.setFailedServerInfo(reader.readServer());
+        return message;
+    }
+
+    private static KVServerMessageImpl readServerMessage(Reader reader) throws UnsupportedDataTypeException {
+        KVServerMessageImpl message = new KVServerMessageImpl(reader.readStatus(SERVER_STATUSES));
+        int pairCount = reader.readSize();
+        if (pairCount >= 0) {
+            ArrayList<KVPair> pairs = new ArrayList<>(pairCount);
+            for (int i = 0; i < pairCount; i++) {
+                pairs.add(new KVPair(reader.readString(), reader.readString(), reader.readLong()));
+            }
+            message.setKVPairs(pairs);
+        }
+        Long hotCount = reader.readInteger();
+        message.setHotCount(hotCount == null ? 0 : hotCount.intValue());
+        int keyCount = reader.readSize();
+        if (keyCount >= 0) {
+            Map<String, ArrayList<ClientSubscription>> subscribers = new HashMap<>();
+            for (int i = 0; i < keyCount; i++) {
+                String key = reader.readString();
+                int subscriptionCount = Math.max(0, reader.readSize());
+                ArrayList<ClientSubscription> subscriptions = new ArrayList<>(subscriptionCount);
+                for (int j = 0; j < subscriptionCount; j++) {
+                    String address = reader.readString();
+                    Integer port = toInteger(reader.readInteger());
+                    Integer interest = toInteger(reader.readInteger());
+                    // Subscriptions without any interest are dropped
+                    if (interest != null && interest >= 0 && interest < ClientSubscription.Interest.values().length) {
+                        subscriptions.add(new ClientSubscription(address, port == null ? 0 : port,
+                                ClientSubscription.Interest.values()[interest]));
+                    }
+                }
+                subscribers.put(key, subscriptions);
+            }
+            message.setSubscribers(subscribers);
+        }
+        message.setReplicaID(reader.readString());
+        Long time = reader.readInteger();
+        message.setTimeOfSendingMsg(time == null ? null : new Date(time));
+        return message;
+    }
+
+    private static Integer toInteger(Long value) {
+        return value == null ? null : value.intValue();
+    }
+
+    /**
+     * Growing buffer the fields of an outgoing message are written to
+     */
+    private static final class Writer {
+
+        private byte[] bytes;
+        private int length = 0;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes a number that may be null
+         */
+        void writeInteger(Number value) {
+            if (value == null) {
+                writeVarLong(0);
+            } else {
+                long number = value.longValue();
+                writeVarLong(((number << 1) ^ (number >> 63)) + 1);
+            }
+        }
+
+        /**
+         * Writes the size of a list or map, -1 for null
+         */
+        void writeSize(int size) {
+            writeVarLong(size + 1L);
+        }
+
+        void writeStatus(Enum<?> status) {
+            writeByte(status == null ? 0 : status.ordinal() + 1);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            int chars = value.length();
+            int utf8Length = 0;
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (!Character.isSurrogate(c)) {
+                    utf8Length += 3;
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    // Unpaired surrogate, written as '?' like String.getBytes does
+                    utf8Length++;
+                }
+            }
+            writeVarLong(utf8Length + 1L);
+            ensure(utf8Length);
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xC0 | (c >> 6));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    bytes[length++] = (byte) (0xE0 | (c >> 12));
+                    bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    bytes[length++] = '?';
+                }
+            }
+        }
+
+        void writeRange(KVRange range) {
+            writeString(range == null ? null : range.getLow());
+            writeString(range == null ? null : range.getHigh());
+        }
+
+        void writeServer(ServerInfo server) {
+            if (server == null) {
+                writeByte(0);
+                return;
+            }
+            writeByte(1);
+            writeString(server.getAddress());
+            writeInteger(server.getServerPort());
+            writeRange(server.getServerRange());
+        }
+
+        void writeServers(List<ServerInfo> servers) {
+            if (servers == null) {
+                writeSize(-1);
+                return;
+            }
+            writeSize(servers.size());
+            for (ServerInfo server : servers) {
+                writeServer(server);
+            }
+        }
+
+        byte[] toByteArray() {
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Reads the fields of an incoming message in order
+     */
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private final int limit;
+        private int position = 0;
+
+        Reader(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+        }
+
+        int readByte() throws UnsupportedDataTypeException {
+            if (position >= limit) {
+                throw new UnsupportedDataTypeException("Truncated binary message");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarLong() throws UnsupportedDataTypeException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new UnsupportedDataTypeException("Malformed varint in binary message");
+        }
+
+        long readLong() throws UnsupportedDataTypeException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        Long readInteger() throws UnsupportedDataTypeException {
+            long value = readVarLong();
+            if (value == 0) {
+                return null;
+            }
+            value--;
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * @return the size of a list or map, -1 for null
+         */
+        int readSize() throws UnsupportedDataTypeException {
+            long size = readVarLong() - 1;
+            // Every element takes at least a byte
+            if (size < -1 || size > limit - position) {
+                throw new UnsupportedDataTypeException("Truncated binary message");
+            }
+            return (int) size;
+        }
+
+        <E extends Enum<E>> E readStatus(E[] values) throws UnsupportedDataTypeException {
+            int status = readByte();
+            if (status > values.length) {
+                throw new UnsupportedDataTypeException("Unsupported status " + (status - 1));
+            }
+            return status == 0 ? null : values[status - 1];
+        }
+
+        String readString() throws UnsupportedDataTypeException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length < 0 || length > limit - position) {
+                throw new UnsupportedDataTypeException("Truncated binary message");
+            }
+            String value = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+
+        KVRange readRange() throws UnsupportedDataTypeException {
+            String low = readString();
+            String high = readString();
+            return low == null && high == null ? null : new KVRange(low, high);
+        }
+
+        ServerInfo readServer() throws UnsupportedDataTypeException {
+            if (readByte() == 0) {
+                return null;
+            }
+            String address = readString();
+            Integer port = toInteger(readInteger());
+            return new ServerInfo(address, port, readRange());
+        }
+
+        List<ServerInfo> readServers() throws UnsupportedDataTypeException {
+            int count = readSize();
+            if (count < 0) {
+                return null;
+            }
+            List<ServerInfo> servers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                servers.add(readServer());
+            }
+            return servers;
+        }
+    }
+}
@@ -8,7 +8,6 @@ import helpers.Constants;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
-import javax.activation.UnsupportedDataTypeException;
 import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -16,6 +15,8 @@ import java.util.*;
 
 public class Serializer {
     private static final char RETURN = 0x0D;
+    // values() copies the array on every call
+    private static final KVMessage.StatusType[] CLIENT_STATUSES = KVMessage.StatusType.values();
     private static final DateFormat df = new SimpleDateFormat("dd/MM/yyyy kk:mm:ss.SSS z");
     private static Logger logger = Logger.getLogger(KVMessageImpl.class);
 
@@ -30,9 +31,15 @@ public class Serializer {
      * @return
      */
     public static byte[] toByteArray(KVMessageImpl message) {
-        StringBuilder messageStr = new StringBuilder(Constants.CLIENT_MESSAGE + Constants.HEAD_DLM +message.getStatus().ordinal() + Constants.HEAD_DLM
-                + message.getKey() + Constants.HEAD_DLM + message.getValue() +Constants.HEAD_DLM + message.getAddress() + Constants.HEAD_DLM + message.getPort().toString());
+        String value = message.getValue();
+        StringBuilder messageStr = new StringBuilder(64 + (value == null ? 0 : value.length()));
+        messageStr.append(Constants.CLIENT_MESSAGE).append(Constants.HEAD_DLM).append(message.getStatus().ordinal()).append(Constants.HEAD_DLM)
+                .append(message.getKey()).append(Constants.HEAD_DLM).append(value).append(Constants.HEAD_DLM)
+                .append(message.getAddress()).append(Constants.HEAD_DLM).append(message.getPort().intValue());
 
+        if (message.getStatus() == KVMessage.StatusType.PUT && message.getTtl() > 0) {
+            messageStr.append(Constants.HEAD_DLM).append(message.getTtl());
+        }
         if (message.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE){
             // add metadata
             messageStr.append(Constants.HEAD_DLM);
@@ -41,12 +48,7 @@ public class Serializer {
                 messageStr.append(Constants.SUB_DLM2);
             }
         }
-        byte[] bytes = messageStr.toString().getBytes();
-        byte[] ctrBytes = new byte[] { RETURN };
-        byte[] tmp = new byte[bytes.length + ctrBytes.length];
-        System.arraycopy(bytes, 0, tmp, 0, bytes.length);
-        System.arraycopy(ctrBytes, 0, tmp, bytes.length, ctrBytes.length);
-        return tmp;
+        return messageStr.append(RETURN).toString().getBytes();
     }
 
     /**
@@ -61,8 +63,14 @@ public class Serializer {
                 || message.getStatus().equals(KVServerMessage.StatusType.GOSSIP)
                 || message.getStatus().equals(KVServerMessage.StatusType.REPLICATE)) {
             messageStr.append(Constants.HEAD_DLM).append(message.getKVPairs().size());
+            if (message.getHotCount() > 0) {
+                messageStr.append(Constants.SUB_DLM1).append(message.getHotCount());
+            }
             for (KVPair pair : message.getKVPairs()) {
                 messageStr.append(Constants.HEAD_DLM).append(pair.getKey()).append(Constants.SUB_DLM1).append(pair.getValue());
+                if (pair.getExpiresAt() != 0) {
+                    messageStr.append(Constants.SUB_DLM1).append(pair.getExpiresAt());
+                }
             }
             // non empty list of subscribers
             if (!message.getSubscribers().isEmpty()){
@@ -125,6 +133,10 @@ public class Serializer {
                 msg.append(Constants.HEAD_DLM);
                 msg.append(message.getDisplacementStrategy());
                 msg.append(Constants.HEAD_DLM);
+                if (message.getStorageEngine() != null) {
+                    msg.append(message.getStorageEngine());
+                    msg.append(Constants.HEAD_DLM);
+                }
             }
 
         } else if (message.getStatus() == KVAdminMessage.StatusType.MOVE_DATA
@@ -136,6 +148,10 @@ public class Serializer {
             //Message_Data = Information for the move server
             msg.append(Constants.HEAD_DLM).append(message.getRange().getLow()).append(Constants.HEAD_DLM).append(message.getRange().getHigh()).append(Constants.HEAD_DLM).append(server.getAddress()).append(Constants.HEAD_DLM).append(server.getServerPort());
 
+        } else if (message.getStatus() == KVAdminMessage.StatusType.STATS && message.getStats() != null) {
+            // the statistics of the reply
+            msg.append(Constants.HEAD_DLM).append(message.getStats());
+
         } else if (message.getStatus() == KVAdminMessage.StatusType.SERVER_FAILURE) {
             // add the failed message server details
             ServerInfo server = message.getFailedServerInfo();
@@ -161,18 +177,59 @@ public class Serializer {
      * @throws UnsupportedDataTypeException
      */
     public static AbstractMessage toObject(byte[] objectByteStream) throws UnsupportedDataTypeException {
-        String message = new String(objectByteStream).trim();
+        return toObject(objectByteStream, null);
+    }
+
+    /**
+     * Message deserializer that decodes client messages into a message of
+     * the caller, for a connection that handles one message at a time.
+     * Client messages are scanned straight from the bytes; the other
+     * message types are rare and split into tokens.
+     *
+     * @param objectByteStream the byte array corresponding to the incoming message
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return an abstract message that can be downcasted to a more specific message type
+     * @throws UnsupportedDataTypeException
+     */
+    public static AbstractMessage toObject(byte[] objectByteStream, KVMessageImpl reuse) throws UnsupportedDataTypeException {
+        return toObject(objectByteStream, objectByteStream.length, reuse);
+    }
+
+    /**
+     * Message deserializer for a message at the start of a larger buffer
+     *
+     * @param objectByteStream the buffer holding the incoming message
+     * @param length the length of the message
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return an abstract message that can be downcasted to a more specific message type
+     * @throws UnsupportedDataTypeException
+     */
+    public static AbstractMessage toObject(byte[] objectByteStream, int length, KVMessageImpl reuse) throws UnsupportedDataTypeException {
+        // The bounds of the message as String.trim() would leave them
+        int from = 0;
+        int to = length;
+        while (from < to && (objectByteStream[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (objectByteStream[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Decoding message: " + new String(objectByteStream, from, to - from));
+        }
+        if (to - from > 2 && objectByteStream[from + 1] == '#' && objectByteStream[from + 2] == '#'
+                && objectByteStream[from] == Constants.CLIENT_MESSAGE.charAt(0)) {
+            return readClientMessage(objectByteStream, from + 3, to, reuse);
+        }
+        String message = new String(objectByteStream, from, to - from);
         String[] tokens = message.split(Constants.HEAD_DLM);
         AbstractMessage retrievedMessage = null;
-        logger.info("Decrypting message... : " + message);
         // tokens[0] => message_type
         if (tokens[0] != null) {
             AbstractMessage.MessageType messageType = toMessageType(tokens[0]);
-            logger.info("Found message type");
             switch (messageType) {
                 case CLIENT_MESSAGE:
-                    retrievedMessage = new KVMessageImpl(tokens);
-                    break;
+                    throw new UnsupportedDataTypeException("Client message without key");
                 case ECS_MESSAGE:
                     retrievedMessage = new KVAdminMessageImpl(tokens);
                     break;
@@ -185,10 +242,175 @@ public class Serializer {
                     break;
             }
         }
-        logger.info("Returning message");
         return retrievedMessage;
     }
 
+    /**
+     * Decodes the fields of a client message in one pass over the bytes:
+     * <status>##<key>##<value>##<address>##<port>[##<ttl or metadata>].
+     * Trailing empty fields are dropped like String.split does, and the
+     * value, address and port are trimmed. A key or address equal to the
+     * one already in the message is kept rather than decoded again.
+     *
+     * @param bytes the message
+     * @param from the start of the status, after the message type
+     * @param to the end of the trimmed message
+     * @param message the message to decode into, all of whose fields are set, or null for a new one
+     * @return the message
+     * @throws UnsupportedDataTypeException if a field is missing or malformed
+     */
+    private static KVMessageImpl readClientMessage(byte[] bytes, int from, int to, KVMessageImpl message)
+            throws UnsupportedDataTypeException {
+        int statusEnd = 0, keyFrom = 0, keyEnd = 0, valueFrom = 0, valueEnd = 0;
+        int addressFrom = 0, addressEnd = 0, portFrom = 0, portEnd = 0, lastFrom = 0, lastEnd = 0;
+        // The number of fields before the trailing empty ones, status included
+        int fields = 0;
+        int field = 0;
+        int start = from;
+        while (field < 6) {
+            int end = nextDelimiter(bytes, start, to);
+            switch (field) {
+                case 0: statusEnd = end; break;
+                case 1: keyFrom = start; keyEnd = end; break;
+                case 2: valueFrom = start; valueEnd = end; break;
+                case 3: addressFrom = start; addressEnd = end; break;
+                case 4: portFrom = start; portEnd = end; break;
+                default: lastFrom = start; lastEnd = end; break;
+            }
+            field++;
+            if (end > start) {
+                fields = field;
+            }
+            if (end == to) {
+                break;
+            }
+            start = end + 2;
+        }
+        if (field == 6 && lastEnd < to && !onlyDelimiters(bytes, lastEnd, to)) {
+            // Fields after the ttl or metadata are ignored, but count
+            fields = 6;
+        }
+        if (fields < 2) {
+            throw new UnsupportedDataTypeException("Client message without key");
+        }
+        int status = (int) parseLong(bytes, from, statusEnd);
+        if (status < 0 || status >= CLIENT_STATUSES.length) {
+            throw new UnsupportedDataTypeException("Unsupported status " + status);
+        }
+        if (message == null) {
+            message = new KVMessageImpl(CLIENT_STATUSES[status]);
+        } else {
+            message.setStatus(CLIENT_STATUSES[status]);
+        }
+        message.setKey(text(bytes, keyFrom, keyEnd, message.getKey()));
+        message.setTtl(0);
+        message.setMetadata(null);
+        if (fields < 3) {
+            message.setValue(null);
+            message.setAddress("localhost");
+            message.setPort(0);
+            return message;
+        }
+        if (fields < 5) {
+            throw new UnsupportedDataTypeException("Client message without address or port");
+        }
+        message.setValue(trimmedText(bytes, valueFrom, valueEnd, null));
+        message.setAddress(trimmedText(bytes, addressFrom, addressEnd, message.getAddress()));
+        message.setPort((int) parseLong(bytes, portFrom, portEnd));
+        if (fields > 5) {
+            if (message.getStatus() == KVMessage.StatusType.PUT) {
+                message.setTtl(parseLong(bytes, lastFrom, lastEnd));
+            } else {
+                message.setMetadata(getMetaData(new String(bytes, lastFrom, lastEnd - lastFrom).trim()));
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the position of the next head delimiter from the start, or the end
+     */
+    private static int nextDelimiter(byte[] bytes, int start, int to) {
+        for (int i = start; i < to - 1; i++) {
+            if (bytes[i] == '#' && bytes[i + 1] == '#') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return whether the bytes split into empty fields only
+     */
+    private static boolean onlyDelimiters(byte[] bytes, int from, int to) {
+        if ((to - from) % 2 != 0) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal number, ignoring surrounding whitespace
+     */
+    private static long parseLong(byte[] bytes, int from, int to) throws UnsupportedDataTypeException {
+        while (from < to && (bytes[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        boolean negative = from < to && bytes[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18) {
+            throw new UnsupportedDataTypeException("Malformed number in client message");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new UnsupportedDataTypeException("Malformed number in client message");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static String trimmedText(byte[] bytes, int from, int to, String previous) {
+        while (from < to && (bytes[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return text(bytes, from, to, previous);
+    }
+
+    /**
+     * Decodes a field, or returns the previous string of the field if it
+     * is the same ASCII text, as the address of a client mostly is
+     * @param previous the previous string of the field, or null to always decode
+     */
+    private static String text(byte[] bytes, int from, int to, String previous) {
+        if (to == from) {
+            return "";
+        }
+        if (previous != null && previous.length() == to - from) {
+            int i = 0;
+            while (i < to - from && bytes[from + i] >= 0 && bytes[from + i] == previous.charAt(i)) {
+                i++;
+            }
+            if (i == to - from) {
+                return previous;
+            }
+        }
+        return new String(bytes, from, to - from);
+    }
+
     /**
      * Extracts the abstract message type from the string representing it in the
      * incoming message
@@ -0,0 +1,22 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * Signals a message that cannot be parsed.
+ *
+ * Takes the place of javax.activation.UnsupportedDataTypeException,
+ * which is no longer part of the JDK since Java 11.
+ */
+public class UnsupportedDataTypeException extends IOException {
+
+    private static final long serialVersionUID = 1;
+
+    public UnsupportedDataTypeException() {
+        super();
+    }
+
+    public UnsupportedDataTypeException(String message) {
+        super(message);
+    }
+}
@@ -25,7 +25,8 @@ public interface KVAdminMessage extends AbstractMessage {
         SERVER_FAILURE,         /* Message to ECSInterface informing about a possible server failure */
         REPLICATE_DATA,         /* Replicate subrange to another server and notify ECSCore when complete */
         REMOVE_DATA,
-        RESTORE_DATA
+        RESTORE_DATA,
+        STATS                   /* Statistics of the server, requested by the ECSInterface and returned with its values */
     }
 
     /**r
@@ -65,6 +66,31 @@ public interface KVAdminMessage extends AbstractMessage {
      */
     void setDisplacementStrategy(String strategy);
 
+    /**
+     *
+     * @return the storage engine that is associated with this message,
+     *         null to use the one of the server's storage configuration
+     */
+    String getStorageEngine();
+
+    /**
+     * Storage engine setter
+     * @param engine the name of the storage engine to be set
+     */
+    void setStorageEngine(String engine);
+
+    /**
+     *
+     * @return the statistics of a STATS reply, as comma separated name=value pairs
+     */
+    String getStats();
+
+    /**
+     * Statistics setter
+     * @param stats the statistics, as comma separated name=value pairs
+     */
+    void setStats(String stats);
+
     /**
      *
      * @return the range that is associated to the message
@@ -20,6 +20,8 @@ public class KVAdminMessageImpl implements KVAdminMessage, Serializable {
     List<ServerInfo> metadata = new ArrayList<ServerInfo>();
     Integer cacheSize;
     String displacementStrategy;
+    String storageEngine;
+    String stats;
     KVRange range = new KVRange();
     ServerInfo serverInfo;
     KVAdminMessage.StatusType status;
@@ -57,6 +59,9 @@ public class KVAdminMessageImpl implements KVAdminMessage, Serializable {
             if (tokens.length>= 5 && tokens[4] != null) {
                 this.setDisplacementStrategy(tokens[4]);
             }
+            if (tokens.length>= 6 && tokens[5] != null && !tokens[5].trim().isEmpty()) {
+                this.setStorageEngine(tokens[5].trim());
+            }
         } else if (this.getStatus() == (KVAdminMessage.StatusType.MOVE_DATA)
                 || this.getStatus() == (KVAdminMessage.StatusType.REPLICATE_DATA)
                 || this.getStatus() == (KVAdminMessage.StatusType.RESTORE_DATA)
@@ -71,6 +76,10 @@ public class KVAdminMessageImpl implements KVAdminMessage, Serializable {
                 ServerInfo toNode = new ServerInfo(tokens[4],Integer.parseInt(tokens[5]));
                 this.setServerInfo(toNode);
             }
+        } else if (this.getStatus() == (KVAdminMessage.StatusType.STATS)) {
+            if (tokens.length>= 3 && tokens[2] != null) {
+                this.setStats(tokens[2].trim());
+            }
         } else if (this.getStatus() == (KVAdminMessage.StatusType.SERVER_FAILURE)) {
             KVRange range = new KVRange();
             if (tokens.length>= 3 && tokens[2] != null) {
@@ -182,6 +191,26 @@ public class KVAdminMessageImpl implements KVAdminMessage, Serializable {
         this.displacementStrategy = strategy;
     }
 
+    @Override
+    public String getStorageEngine() {
+        return storageEngine;
+    }
+
+    @Override
+    public void setStorageEngine(String engine) {
+        this.storageEngine = engine;
+    }
+
+    @Override
+    public String getStats() {
+        return stats;
+    }
+
+    @Override
+    public void setStats(String stats) {
+        this.stats = stats;
+    }
+
     @Override
     public KVRange getRange() {
         return range;
@@ -56,6 +56,12 @@ public interface KVMessage extends AbstractMessage {
 	 */
 	StatusType getStatus();
 
+	/**
+	 * @return the seconds after which the value of a PUT expires,
+	 * 		0 if it never expires.
+	 */
+	long getTtl();
+
 	/**
 	 * Status setter
 	 * @param statusType
@@ -26,6 +26,7 @@ public class KVMessageImpl implements KVMessage {
     StatusType status;
     String address = "localhost";
     Integer port = 0;
+    long ttl = 0;
 
 
     public String getAddress() {
@@ -53,30 +54,6 @@ public class KVMessageImpl implements KVMessage {
         PropertyConfigurator.configure(Constants.LOG_FILE_CONFIG);
     }
 
-    public KVMessageImpl(String[] tokens) {
-        if (tokens[1] != null) {// status
-            int statusNum = Integer.parseInt(tokens[1]);
-            this.setStatus( KVMessage.StatusType.values()[statusNum] );
-        }
-        if (tokens[2] != null) { // key
-            this.setKey(tokens[2]);
-        }
-        if (tokens.length >= 4) {
-            if (tokens[3] != null) { // value
-                this.setValue(tokens[3].trim());
-            }
-            if (tokens[4] != null) { // address
-                this.setAddress(tokens[4].trim());
-            }
-            if (tokens[5] != null) { // port
-                this.setPort(Integer.parseInt(tokens[5].trim()));
-            }
-        }
-        if (tokens.length > 6) {List<ServerInfo> metaData = Serializer.getMetaData(tokens[6].trim());
-            this.setMetadata(metaData);
-        }
-    }
-
     public KVMessageImpl (StatusType status) {
         this.status = status;
     }
@@ -161,6 +138,23 @@ public class KVMessageImpl implements KVMessage {
         this.value = value;
     }
 
+    /**
+     * Time to live getter
+     * @return the seconds after which a PUT value expires, 0 for never
+     */
+    @Override
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Time to live setter
+     * @param ttl the seconds after which a PUT value expires, 0 for never
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
     /**
      * Status setter
      * @param status status to set in Message
@@ -6,9 +6,22 @@ package common.messages;
  */
 public class KVPair {
     private String key, value;
+    private long expiresAt;
+
     public KVPair(String key, String value) {
+        this(key, value, 0);
+    }
+
+    /**
+     * Constructor
+     * @param key the key
+     * @param value the value
+     * @param expiresAt the time the pair expires in milliseconds since the epoch, 0 for never
+     */
+    public KVPair(String key, String value, long expiresAt) {
         this.key = key;
         this.value = value;
+        this.expiresAt = expiresAt;
     }
 
     /**
@@ -28,4 +41,13 @@ public class KVPair {
     public String getValue() {
         return value;
     }
+
+    /**
+     * Expiry time getter
+     *
+     * @return the time the pair expires in milliseconds since the epoch, 0 for never
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
 }
@@ -54,6 +54,13 @@ public interface KVServerMessage extends AbstractMessage {
 
     Map<String, ArrayList<ClientSubscription>> getSubscriptions();
 
+    /**
+     * The number of leading pairs of a MOVE_DATA message that were hot in
+     * the cache of the sender, so that the receiver caches them
+     * @return the hot count, 0 if none is known
+     */
+    int getHotCount();
+
     Date getTimeOfSendingMsg();
     void setTimeOfSendingMsg(Date timeOfSendingMsg);
 }
@@ -2,11 +2,11 @@ package common.messages;
 
 import app_kvServer.ClientSubscription;
 import common.Serializer;
+import common.UnsupportedDataTypeException;
 import helpers.Constants;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
-import javax.activation.UnsupportedDataTypeException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -22,6 +22,8 @@ public class KVServerMessageImpl implements KVServerMessage {
     private static final DateFormat df = new SimpleDateFormat("dd/MM/yyyy kk:mm:ss.SSS z");
     //Map: <key><List of subscribers IPs>
     private Map<String, ArrayList<ClientSubscription>> subscribers =  new HashMap<>();
+    // Number of leading pairs of a MOVE_DATA that were hot at the sender
+    private int hotCount = 0;
 
     /**
      * Information related to heartbeat messages
@@ -67,8 +69,12 @@ public class KVServerMessageImpl implements KVServerMessage {
         } else if ((this.getStatus() == (KVServerMessage.StatusType.GOSSIP))
                 || (this.getStatus() == (KVServerMessage.StatusType.REPLICATE))
                 || (this.getStatus() == (KVServerMessage.StatusType.MOVE_DATA))) {
-            if (tokens[2] != null) { // Data length and data
-                int dataLength = Integer.parseInt(tokens[2]);
+            if (tokens[2] != null) { // Data length, optionally with the hot count, and data
+                String[] counts = tokens[2].split(Constants.SUB_DLM1);
+                int dataLength = Integer.parseInt(counts[0]);
+                if (counts.length == 2) {
+                    this.setHotCount(Integer.parseInt(counts[1].trim()));
+                }
                 ArrayList<KVPair> kvPairs = new ArrayList<>(dataLength);
                 if (tokens.length >= dataLength + 3) {
                     int i = 0;
@@ -76,6 +82,8 @@ public class KVServerMessageImpl implements KVServerMessage {
                         String[] kv = tokens[i + 3].split(Constants.SUB_DLM1);
                         if (kv.length == 2) {
                             kvPairs.add(new KVPair(kv[0], kv[1]));
+                        } else if (kv.length == 3) {
+                            kvPairs.add(new KVPair(kv[0], kv[1], Long.parseLong(kv[2].trim())));
                         }
                     }
                     if (tokens.length == dataLength + 4){
@@ -190,6 +198,19 @@ public class KVServerMessageImpl implements KVServerMessage {
         return this.subscribers;
     }
 
+    @Override
+    public int getHotCount() {
+        return hotCount;
+    }
+
+    /**
+     * Hot count setter
+     * @param hotCount the number of leading pairs that were hot in the sender's cache
+     */
+    public void setHotCount(int hotCount) {
+        this.hotCount = hotCount;
+    }
+
     public Map<String, ArrayList<ClientSubscription>> getSubscribers() {
         return subscribers;
     }
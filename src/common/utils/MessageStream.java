@@ -0,0 +1,326 @@
+package common.utils;
+
+import common.BinarySerializer;
+import common.Serializer;
+import common.UnsupportedDataTypeException;
+import common.messages.AbstractMessage;
+import common.messages.KVAdminMessageImpl;
+import common.messages.KVMessageImpl;
+import common.messages.KVServerMessageImpl;
+import helpers.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The messages of one connection, read and written through buffers.
+ *
+ * A connection starts in the text framing of the first protocol version,
+ * where every message ends with a carriage return. A client may offer a
+ * newer version with a protocol message as its first message; a server
+ * that knows protocol messages answers with the version both sides
+ * speak, and from VERSION_FRAMED on every message is a frame: its length
+ * as a 4-byte big-endian int, then its bytes, without carriage return.
+ * From VERSION_BINARY on, the frames carry the messages of the
+ * BinarySerializer instead of those of the Serializer. A server of the
+ * first version does not know protocol messages and closes the
+ * connection, so the client connects again and stays with the text
+ * framing.
+ *
+ * Messages are passed in and out either as objects, serialized for the
+ * version of the connection, or as the bytes serialize produces. Frames
+ * are received into a buffer of the stream that is kept across messages,
+ * so a connection does not allocate for every frame. A stream is used by
+ * one thread at a time.
+ */
+public class MessageStream {
+
+    public static final int VERSION_TEXT = 1;
+    public static final int VERSION_FRAMED = 2;
+    public static final int VERSION_BINARY = 3;
+    public static final int CURRENT_VERSION = VERSION_BINARY;
+    // Larger messages are refused in either framing
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Larger frames get a buffer of their own, dropped after the message
+    private static final int MAX_KEPT_FRAME_SIZE = 1024 * 1024;
+    private static final byte RETURN = 0x0D;
+    private static final String PROTOCOL_PREFIX = Constants.PROTOCOL_MESSAGE + Constants.HEAD_DLM;
+
+    private final DataInputStream input;
+    private final OutputStream output;
+    private int version = VERSION_TEXT;
+    private byte[] frameBuffer = new byte[BUFFER_SIZE];
+    private byte[] frame = frameBuffer;
+
+    /**
+     * Constructor, in the text framing
+     * @param input the input stream of the connection
+     * @param output the output stream of the connection
+     */
+    public MessageStream(InputStream input, OutputStream output) {
+        this.input = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+    }
+
+    /**
+     * @return the protocol version of the connection
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Offers the current version to the server, as the first message of
+     * the connection
+     * @return false if the server closed the connection instead of
+     *         answering, i.e. it only speaks the first version and the
+     *         connection has to be opened again
+     * @throws IOException if the connection fails otherwise
+     */
+    public boolean negotiate() throws IOException {
+        send(protocolMessage(CURRENT_VERSION));
+        byte[] reply;
+        try {
+            reply = receive();
+        } catch (IOException e) {
+            // Reset by a server that does not know protocol messages
+            return false;
+        }
+        if (reply.length == 1 && reply[0] == -1) {
+            return false;
+        }
+        int accepted = offeredVersion(reply);
+        if (accepted < VERSION_TEXT || accepted > CURRENT_VERSION) {
+            throw new IOException("Unexpected answer to protocol offer: " + new String(reply, StandardCharsets.US_ASCII));
+        }
+        version = accepted;
+        return true;
+    }
+
+    /**
+     * Answers the protocol offer of a client, if the message is one. Only
+     * the first message of a connection may be a protocol offer.
+     * @param message the first message received on the connection
+     * @return true if the message was a protocol offer and has been answered
+     * @throws IOException if the answer cannot be sent
+     */
+    public boolean answer(byte[] message) throws IOException {
+        int offered = offeredVersion(message);
+        if (offered < 0) {
+            return false;
+        }
+        int accepted = acceptedVersion(offered);
+        send(protocolMessage(accepted));
+        version = accepted;
+        return true;
+    }
+
+    /**
+     * Receives and deserializes the next message
+     * @return the message, or null if the connection was closed
+     * @throws IOException if the connection fails or the message is invalid
+     */
+    public AbstractMessage receiveMessage() throws IOException {
+        int length = receiveFrame();
+        if (length < 0) {
+            return null;
+        }
+        return deserialize(frame, length, version, null);
+    }
+
+    /**
+     * Serializes and sends a message
+     * @param message the message
+     * @throws IOException if the connection fails
+     */
+    public void send(AbstractMessage message) throws IOException {
+        send(serialize(message, version));
+    }
+
+    /**
+     * Receives the next message
+     * @return the message, or {-1} if the connection was closed
+     * @throws IOException if the connection fails or the message is too large
+     */
+    public byte[] receive() throws IOException {
+        int length = receiveFrame();
+        if (length < 0) {
+            return new byte[]{-1};
+        }
+        return Arrays.copyOf(frame, length);
+    }
+
+    /**
+     * Receives the next message into the buffer of the stream, see getFrame
+     * @return the length of the message, or -1 if the connection was closed
+     * @throws IOException if the connection fails or the message is too large
+     */
+    public int receiveFrame() throws IOException {
+        if (version == VERSION_TEXT) {
+            frame = Utilities.receive(input);
+            return frame.length == 1 && frame[0] == -1 ? -1 : frame.length;
+        }
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Frame of " + length + " bytes");
+        }
+        if (length > frameBuffer.length) {
+            if (length <= MAX_KEPT_FRAME_SIZE) {
+                frameBuffer = new byte[Math.max(length, Math.min(2 * frameBuffer.length, MAX_KEPT_FRAME_SIZE))];
+                frame = frameBuffer;
+            } else {
+                frame = new byte[length];
+            }
+        } else {
+            frame = frameBuffer;
+        }
+        input.readFully(frame, 0, length);
+        return length;
+    }
+
+    /**
+     * @return the buffer holding the message of the last receiveFrame, at
+     *         its start; overwritten by the next message
+     */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Sends a message, in one write to the connection unless it is larger
+     * than the buffer
+     * @param message the message as serialized for the version of the connection
+     * @throws IOException if the connection fails
+     */
+    public void send(byte[] message) throws IOException {
+        output.write(frame(message, version));
+        output.flush();
+    }
+
+    /**
+     * @param message a message
+     * @param version the protocol version of the connection
+     * @return the message serialized for the version
+     */
+    public static byte[] serialize(AbstractMessage message, int version) {
+        if (version >= VERSION_BINARY) {
+            return BinarySerializer.toByteArray(message);
+        }
+        switch (message.getMessageType()) {
+            case CLIENT_MESSAGE:
+                return Serializer.toByteArray((KVMessageImpl) message);
+            case ECS_MESSAGE:
+                return Serializer.toByteArray((KVAdminMessageImpl) message);
+            default:
+                return Serializer.toByteArray((KVServerMessageImpl) message);
+        }
+    }
+
+    /**
+     * @param message a received message, without framing
+     * @param version the protocol version of the connection
+     * @return the deserialized message
+     * @throws UnsupportedDataTypeException if the message is invalid
+     */
+    public static AbstractMessage deserialize(byte[] message, int version) throws UnsupportedDataTypeException {
+        return deserialize(message, version, null);
+    }
+
+    /**
+     * @param message a received message, without framing
+     * @param version the protocol version of the connection
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return the deserialized message
+     * @throws UnsupportedDataTypeException if the message is invalid
+     */
+    public static AbstractMessage deserialize(byte[] message, int version, KVMessageImpl reuse)
+            throws UnsupportedDataTypeException {
+        return deserialize(message, message.length, version, reuse);
+    }
+
+    /**
+     * @param buffer a buffer holding a received message, without framing, at its start
+     * @param length the length of the message
+     * @param version the protocol version of the connection
+     * @param reuse the message to decode a client message into, or null for a new one
+     * @return the deserialized message
+     * @throws UnsupportedDataTypeException if the message is invalid
+     */
+    public static AbstractMessage deserialize(byte[] buffer, int length, int version, KVMessageImpl reuse)
+            throws UnsupportedDataTypeException {
+        return version >= VERSION_BINARY ? BinarySerializer.toObject(buffer, length, reuse)
+                : Serializer.toObject(buffer, length, reuse);
+    }
+
+    /**
+     * Frames a message for the wire
+     * @param message the message as serialized for the version
+     * @param version the protocol version of the connection
+     * @return the bytes to write
+     */
+    public static byte[] frame(byte[] message, int version) {
+        if (version == VERSION_TEXT) {
+            return message;
+        }
+        // The carriage return of a text message is left to the framing
+        int length = version == VERSION_FRAMED && message.length > 0 && message[message.length - 1] == RETURN
+                ? message.length - 1 : message.length;
+        byte[] frame = new byte[4 + length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(message, 0, frame, 4, length);
+        return frame;
+    }
+
+    /**
+     * @param version the offered or accepted version
+     * @return the protocol message, ending with a carriage return
+     */
+    public static byte[] protocolMessage(int version) {
+        return (PROTOCOL_PREFIX + version + (char) RETURN).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param offered the version offered by a client
+     * @return the version to answer with: the offered one, or the
+     *         current one if the client offers a newer version
+     */
+    public static int acceptedVersion(int offered) {
+        return Math.max(VERSION_TEXT, Math.min(offered, CURRENT_VERSION));
+    }
+
+    /**
+     * @param message a received message
+     * @return the version of a protocol message, or -1 for any other message
+     */
+    public static int offeredVersion(byte[] message) {
+        if (message.length < PROTOCOL_PREFIX.length() || message.length > PROTOCOL_PREFIX.length() + 12
+                || message[0] != PROTOCOL_PREFIX.charAt(0)) {
+            return -1;
+        }
+        String text = new String(message, StandardCharsets.US_ASCII).trim();
+        if (!text.startsWith(PROTOCOL_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(text.substring(PROTOCOL_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -9,6 +9,8 @@ import helpers.ErrorMessages;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -17,13 +19,13 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 
 
 public class Utilities {
 
     private static Logger logger = Logger.getLogger(Utilities.class);
     private static final int BUFFER_SIZE = 1024;
-    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
     private static final char LINE_FEED = 0x0A;
     private static final char RETURN = 0x0D;
 
@@ -65,65 +67,33 @@ public class Utilities {
     }
 
     /**
-     * Receives an array of bytes over the connection.
+     * Receives an array of bytes over the connection, up to the next
+     * carriage return. The stream is read byte by byte, so it should be
+     * buffered (see MessageStream).
      *
-     * @return
-     * @throws CannotConnectException
+     * @return the message without its carriage return, or {-1} if the
+     *         connection was closed
+     * @throws IOException if the connection fails or the message is
+     *         larger than MessageStream.MAX_MESSAGE_SIZE
      */
-    public static byte[] receive(InputStream input) throws CannotConnectException, IOException {
-
+    public static byte[] receive(InputStream input) throws IOException {
+        byte[] msgBytes = new byte[BUFFER_SIZE];
         int index = 0;
-        byte[] msgBytes = null, tmp;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-		/* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-        while(read != 13 && reading) {/* carriage return */
+        int read = input.read();
+        while (read != RETURN) {
             if (read == -1) {
                 return new byte[]{-1};
             }
-			/* if buffer filled, copy to msg array */
-            if(index == BUFFER_SIZE) {
-                if(msgBytes == null){
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
+            if (index == msgBytes.length) {
+                if (index >= MessageStream.MAX_MESSAGE_SIZE) {
+                    throw new IOException("Message of more than " + MessageStream.MAX_MESSAGE_SIZE + " bytes");
                 }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
+                msgBytes = Arrays.copyOf(msgBytes, Math.min(2 * index, MessageStream.MAX_MESSAGE_SIZE));
             }
-
-			/* only read valid characters, i.e. letters and constants */
-            bufferBytes[index] = read;
-            index++;
-
-			/* stop reading is DROP_SIZE is reached */
-            if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
-            }
-
-			/* read next char from stream */
-            read = (byte) input.read();
+            msgBytes[index++] = (byte) read;
+            read = input.read();
         }
-        if(msgBytes == null){
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-        }
-
-        return tmp;
-
+        return Arrays.copyOf(msgBytes, index);
     }
 
     /**
@@ -217,4 +187,41 @@ public class Utilities {
 
     }
 
+    /**
+     * Loads a configuration file and the override file of one server,
+     * named like the file with "-[port]" before its extension. Missing
+     * files are skipped, so missing options fall back to the caller's
+     * defaults.
+     *
+     * @param fileName the shared configuration file
+     * @param port the port of the server, used to find its override file
+     * @return the options of both files, the override file winning
+     */
+    public static Properties loadConfig(String fileName, int port) {
+        Properties properties = new Properties();
+        loadConfigFile(properties, fileName);
+        loadConfigFile(properties, fileName.replace(".config", "-" + port + ".config"));
+        return properties;
+    }
+
+    private static void loadConfigFile(Properties properties, String fileName) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return;
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            properties.load(input);
+        } catch (IOException e) {
+            logger.error("Cannot read configuration " + fileName, e);
+        } finally {
+            if (input != null) try {
+                input.close();
+            } catch (IOException e) {
+                logger.error("Cannot close configuration " + fileName, e);
+            }
+        }
+    }
+
 }
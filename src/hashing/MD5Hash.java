@@ -1,19 +1,17 @@
 package hashing;
 
-import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class MD5Hash {
     MessageDigest md5;
-    private HexBinaryAdapter adapt;
     private static int base = 16;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     public MD5Hash() {
         try {
             md5 = MessageDigest.getInstance("MD5");
-            adapt = new HexBinaryAdapter();
         } catch (NoSuchAlgorithmException e) {
             System.err.println("Not such algorithm.");
         }
@@ -29,8 +27,14 @@ public class MD5Hash {
      */
     public String hash(String key) {
         byte[] array = md5.digest(key.getBytes());
-        String hex = adapt.marshal(array);
-        return hex;
+        // Upper case hex, like javax.xml.bind's HexBinaryAdapter, which
+        // is no longer part of the JDK since Java 11
+        char[] hex = new char[array.length * 2];
+        for (int i = 0; i < array.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(array[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[array[i] & 0xF];
+        }
+        return new String(hex);
     }
 
     /*
@@ -48,10 +52,56 @@ public class MD5Hash {
     }
     */
 
+    /**
+     * Compares two hex ids as numbers. Ids of the same length, like
+     * the hashes produced above, are compared digit by digit without
+     * any allocation.
+     *
+     * @param id1 the first id
+     * @param id2 the second id
+     * @return negative, zero or positive as id1 is less than, equal to
+     *         or greater than id2
+     */
     public static int compareIds(String id1, String id2) {
+        if (id1.length() == id2.length()) {
+            int i = 0;
+            for (; i < id1.length(); i++) {
+                int digit1 = Character.digit(id1.charAt(i), base);
+                int digit2 = Character.digit(id2.charAt(i), base);
+                if (digit1 < 0 || digit2 < 0) {
+                    break;
+                }
+                if (digit1 != digit2) {
+                    return digit1 < digit2 ? -1 : 1;
+                }
+            }
+            if (i == id1.length()) {
+                return 0;
+            }
+        }
         BigInteger value1 = new BigInteger(id1, base);
         BigInteger value2 = new BigInteger(id2, base);
         return value1.compareTo(value2);
     }
 
+    /**
+     * Brings a hex id to the form of the hashes produced above: upper
+     * case and left padded with zeros, so that ids compare as strings.
+     *
+     * @param id the id
+     * @param length the number of digits of a hash
+     * @return the normalized id
+     */
+    public static String normalize(String id, int length) {
+        String upper = id.trim().toUpperCase();
+        if (upper.length() >= length) {
+            return upper;
+        }
+        StringBuilder padded = new StringBuilder(length);
+        for (int i = upper.length(); i < length; i++) {
+            padded.append('0');
+        }
+        return padded.append(upper).toString();
+    }
+
 }
\ No newline at end of file
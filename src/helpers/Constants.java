@@ -6,6 +6,8 @@ package helpers;
 public class Constants {
 
     public static final String LOG_FILE_CONFIG = "conf/log.config";
+    public static final String STORAGE_CONFIG = "conf/storage.config";
+    public static final String SERVER_CONFIG = "conf/server.config";
     public static final String DEFAULT_ENCODING = "US-ASCII";
     public static final String CLIENT_PROMPT = "Client> ";
     public static final Integer NOTIFICATION_LISTEN_PORT = 8082;
@@ -13,6 +15,8 @@ public class Constants {
     public static final String ECS_MESSAGE = "0";
     public static final String CLIENT_MESSAGE = "1";
     public static final String SERVER_MESSAGE = "2";
+    // offers or accepts a protocol version, see MessageStream
+    public static final String PROTOCOL_MESSAGE = "3";
     // delimiters
     public static final String HEAD_DLM = "##";
     public static final String SUB_DLM1 = "&&";
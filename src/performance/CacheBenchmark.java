@@ -0,0 +1,116 @@
+package performance;
+
+import app_kvServer.dataStorage.KVCache;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngines;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Throughput of the KVCache under concurrent clients.
+ *
+ * For every policy and thread count, the threads run a mix of GETs and
+ * PUTs on skewed keys against a cache in front of the heap-only store,
+ * so that the cache itself and its locks are measured and not the disk.
+ * Every measurement follows a warm-up of the same length, and the
+ * operations of all threads are counted over the measurement only.
+ *
+ * Usage: CacheBenchmark [cache size] [keys] [put percentage] [seconds]
+ */
+public class CacheBenchmark {
+
+    private static final String[] POLICIES = { "LRU", "FIFO", "LFU", "TINYLFU", "ARC", "CLOCKPRO" };
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int putPercentage = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        System.out.println("policy, threads, cache size, keys, puts (%), ops/s");
+        for (String policy : POLICIES) {
+            for (int threads : THREADS) {
+                StorageConfig config = StorageConfig.defaults().set(StorageConfig.ENGINE, StorageEngines.MEMORY);
+                KVCache cache = new KVCache(cacheSize, policy, StorageEngines.open("_bench_cache_", config));
+                try {
+                    for (int i = 0; i < keys; i++) {
+                        cache.put(key(i), value(i));
+                    }
+                    run(cache, threads, keys, putPercentage, seconds);
+                    long ops = run(cache, threads, keys, putPercentage, seconds);
+                    System.out.println(String.format("%s, %d, %d, %d, %d, %d",
+                            policy, threads, cacheSize, keys, putPercentage, ops / seconds));
+                } finally {
+                    cache.cleanUp();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the clients for a while
+     * @return the number of operations of all clients
+     */
+    private static long run(final KVCache cache, int threads, final int keys, final int putPercentage,
+                            int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] counts = new long[threads];
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int client = t;
+            clients[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(client);
+                    long ops = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (running.get()) {
+                        int i = skewed(random, keys);
+                        if (random.nextInt(100) < putPercentage) {
+                            cache.put(key(i), value(i));
+                        } else if (cache.get(key(i)).getValue().isEmpty()) {
+                            throw new IllegalStateException("Lost key " + key(i));
+                        }
+                        ops++;
+                    }
+                    counts[client] = ops;
+                }
+            });
+            clients[t].start();
+        }
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            clients[t].join();
+            total += counts[t];
+        }
+        return total;
+    }
+
+    /**
+     * A key index with a skew like that of a real workload: about 80%
+     * of the accesses go to 20% of the keys
+     */
+    private static int skewed(Random random, int keys) {
+        int hot = Math.max(1, keys / 5);
+        return random.nextInt(100) < 80 ? random.nextInt(hot) : random.nextInt(keys);
+    }
+
+    private static String key(int i) {
+        return "user:" + i;
+    }
+
+    private static String value(int i) {
+        return "{\"id\":" + i + ",\"status\":\"active\"}";
+    }
+}
@@ -0,0 +1,128 @@
+package performance;
+
+import app_kvServer.dataStorage.ArcCacheSegment;
+import app_kvServer.dataStorage.CacheSegment;
+import app_kvServer.dataStorage.ClockProCacheSegment;
+import app_kvServer.dataStorage.LFUCache;
+import app_kvServer.dataStorage.LinkedCacheSegment;
+import app_kvServer.dataStorage.TinyLfuCacheSegment;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Trace-driven hit ratio comparison of the cache policies.
+ *
+ * Every policy replays the same trace of GETs and PUTs against one cache
+ * segment the way the KVCache uses it: a GET that misses loads the value
+ * with a put (write-allocate), and a PUT always puts. Only GETs count for
+ * the hit ratio.
+ *
+ * Without a trace file, the trace is generated: Zipfian GETs over a key
+ * space, interrupted by scans of fresh keys that are only written once,
+ * like the keys of a range moved in with MOVE_DATA. A trace file has one
+ * request per line, either a key (GET) or "put" and a key.
+ *
+ * Usage: CacheTraceBenchmark [cache size] [keys] [GETs] [zipf exponent] [scan length] [trace file]
+ */
+public class CacheTraceBenchmark {
+
+    private static final String[] POLICIES = { "LRU", "FIFO", "LFU", "TINYLFU", "ARC", "CLOCKPRO" };
+    private static final int SCAN_EVERY = 20000;
+
+    public static void main(String[] args) throws IOException {
+        int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int gets = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 0.99;
+        int scanLength = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+
+        List<String> trace = args.length > 5
+                ? readTrace(args[5])
+                : generateTrace(keys, gets, exponent, scanLength);
+
+        System.out.println("policy, cache size, requests, hit ratio");
+        for (String policy : POLICIES) {
+            CacheSegment cache = newCache(policy, cacheSize);
+            long reads = 0;
+            long hits = 0;
+            for (String request : trace) {
+                if (request.startsWith("put ")) {
+                    cache.put(request.substring(4), "value");
+                } else {
+                    reads++;
+                    if (cache.get(request) != null) {
+                        hits++;
+                    } else {
+                        cache.put(request, "value");
+                    }
+                }
+            }
+            System.out.println(String.format("%s, %d, %d, %.4f", policy, cacheSize, trace.size(), (double) hits / reads));
+        }
+    }
+
+    private static CacheSegment newCache(String policy, int capacity) {
+        switch (policy) {
+            case "LRU":
+                return new LinkedCacheSegment(capacity, true);
+            case "FIFO":
+                return new LinkedCacheSegment(capacity, false);
+            case "LFU":
+                return new LFUCache(capacity);
+            case "TINYLFU":
+                return new TinyLfuCacheSegment(capacity);
+            case "ARC":
+                return new ArcCacheSegment(capacity);
+            default:
+                return new ClockProCacheSegment(capacity);
+        }
+    }
+
+    /**
+     * Zipfian GETs with a scan of fresh keys every SCAN_EVERY GETs
+     */
+    private static List<String> generateTrace(int keys, int gets, double exponent, int scanLength) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(42);
+        List<String> trace = new ArrayList<>(gets);
+        int scanned = 0;
+        for (int get = 1; get <= gets; get++) {
+            if (scanLength > 0 && get % SCAN_EVERY == 0) {
+                for (int i = 0; i < scanLength; i++) {
+                    trace.add("put scan:" + scanned++);
+                }
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace.add("key:" + (rank < 0 ? -rank - 1 : rank));
+        }
+        return trace;
+    }
+
+    private static List<String> readTrace(String fileName) throws IOException {
+        List<String> trace = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    trace.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,92 @@
+package performance;
+
+import app_kvServer.dataStorage.KVPersistenceEngine;
+import app_kvServer.dataStorage.LSMStorageEngine;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngine;
+import app_kvServer.dataStorage.StorageEngines;
+
+import java.util.Random;
+
+/**
+ * Compression ratio versus GET latency of the storage engines.
+ *
+ * For every engine and codec the benchmark stores the same small,
+ * repetitive values, measures the bytes on disk, and then times random
+ * GETs straight on the engine (no cache in front). The first results
+ * line of every engine, without compression, is the baseline.
+ *
+ * Usage: CompressionBenchmark [keys] [gets]
+ */
+public class CompressionBenchmark {
+
+    private static final String[] ENGINES = { StorageEngines.LOG, StorageEngines.LSM };
+    private static final String[] CODECS = { "none", "deflate" };
+    private static final int WARM_UP_GETS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int gets = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        System.out.println("engine, compression, keys, disk bytes, ratio, GET latency (us)");
+        for (String engine : ENGINES) {
+            long baseline = 0;
+            for (String codec : CODECS) {
+                StorageConfig config = StorageConfig.defaults()
+                        .set(StorageConfig.ENGINE, engine)
+                        .set(StorageConfig.COMPRESSION, codec)
+                        .set(StorageConfig.COMPACTION_INTERVAL, "0");
+                StorageEngine store = StorageEngines.open("_bench_compression_", config);
+                try {
+                    for (int i = 0; i < keys; i++) {
+                        store.put(key(i), value(i));
+                    }
+                    long diskBytes = diskBytes(store);
+                    if (baseline == 0) {
+                        baseline = diskBytes;
+                    }
+
+                    Random random = new Random(42);
+                    for (int i = 0; i < WARM_UP_GETS; i++) {
+                        store.get(key(random.nextInt(keys)));
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < gets; i++) {
+                        if (store.get(key(random.nextInt(keys))).getValue().isEmpty()) {
+                            throw new IllegalStateException("Lost a value in " + engine + "/" + codec);
+                        }
+                    }
+                    double latency = (System.nanoTime() - start) / 1000.0 / gets;
+
+                    System.out.println(String.format("%s, %s, %d, %d, %.2f, %.2f",
+                            engine, codec, keys, diskBytes, (double) baseline / diskBytes, latency));
+                } finally {
+                    store.cleanUp();
+                }
+            }
+        }
+    }
+
+    private static long diskBytes(StorageEngine store) throws Exception {
+        if (store instanceof LSMStorageEngine) {
+            LSMStorageEngine lsm = (LSMStorageEngine) store;
+            lsm.flush();
+            return lsm.getDiskBytes();
+        }
+        return ((KVPersistenceEngine) store).getDiskBytes();
+    }
+
+    private static String key(int i) {
+        return "user:" + i;
+    }
+
+    /**
+     * A small JSON document like the ones of our workload: mostly the
+     * same field names and a few distinct values
+     */
+    private static String value(int i) {
+        return "{\"id\":" + i + ",\"status\":\"" + (i % 3 == 0 ? "active" : "inactive")
+                + "\",\"country\":\"DE\",\"plan\":\"basic\",\"tags\":[\"newsletter\",\"beta\"],"
+                + "\"created\":\"2015-11-" + (10 + i % 20) + "T12:00:00Z\"}";
+    }
+}
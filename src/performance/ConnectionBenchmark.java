@@ -0,0 +1,219 @@
+package performance;
+
+import app_kvServer.ConnectionHandler;
+import app_kvServer.KVConnectionHandler;
+import app_kvServer.NioConnectionHandler;
+import app_kvServer.ServerConfig;
+import app_kvServer.SocketServer;
+import app_kvServer.VirtualConnectionHandler;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngines;
+import common.ServerInfo;
+import common.Serializer;
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.utils.KVRange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection scaling of the connection handlers.
+ *
+ * For every handler and number of connections, an in-process server on
+ * the heap-only store accepts that many client connections, and a few
+ * driver threads then send GETs of one key over all of them in turn, so
+ * that most connections are idle at any time, like the clients of a
+ * real deployment. Reported are the live platform threads of the JVM
+ * with all connections open (virtual threads are not counted), the time
+ * to open them, and the GETs per second.
+ *
+ * Both ends of every connection are in this JVM, so the open files limit
+ * (ulimit -n) must be more than twice the number of connections. The
+ * clients bind to 127.0.0.2 and up, so that they are not limited by the
+ * ephemeral ports of a single address. The virtual handler is only run
+ * on a Java 21 or later runtime.
+ *
+ * Usage: ConnectionBenchmark [connections,...] [drivers] [seconds]
+ */
+public class ConnectionBenchmark {
+
+    private static final String[] HANDLERS = {
+            ServerConfig.HANDLER_THREADS, ServerConfig.HANDLER_NIO, ServerConfig.HANDLER_VIRTUAL };
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+    private static final byte RETURN = 0x0D;
+
+    public static void main(String[] args) throws Exception {
+        String[] connections = (args.length > 0 ? args[0] : "1000,10000,50000").split(",");
+        int drivers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println("handler, connections, threads, connect (ms), GET ops/s");
+        int port = 50300;
+        for (String handler : HANDLERS) {
+            if (handler.equals(ServerConfig.HANDLER_VIRTUAL) && !VirtualConnectionHandler.isSupported()) {
+                System.out.println(handler + ", skipped, no virtual threads in this JVM");
+                continue;
+            }
+            for (String count : connections) {
+                int n = Integer.parseInt(count.trim());
+                SocketServer server = startServer(handler, port++);
+                List<Socket> clients = new ArrayList<>(n);
+                try {
+                    long start = System.nanoTime();
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            clients.add(open(server, i));
+                        }
+                    } catch (IOException e) {
+                        System.out.println(String.format("%s, %d, failed after %d connections: %s",
+                                handler, n, clients.size(), e.getMessage()));
+                        continue;
+                    }
+                    long connectMillis = (System.nanoTime() - start) / 1000000;
+                    send(clients.get(0), new KVMessageImpl("user:1", "{\"id\":1}", KVMessage.StatusType.PUT));
+                    Thread.sleep(500);
+                    int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+                    long ops = run(clients, drivers, seconds);
+                    System.out.println(String.format("%s, %d, %d, %d, %d",
+                            handler, n, threads, connectMillis, ops / seconds));
+                } finally {
+                    for (Socket client : clients) {
+                        client.close();
+                    }
+                    stopServer(server);
+                }
+            }
+        }
+    }
+
+    private static SocketServer startServer(String handlerName, int port) throws IOException {
+        final SocketServer server = new SocketServer(new ServerInfo("127.0.0.1", port));
+        server.getStorageConfig().set(StorageConfig.ENGINE, StorageEngines.MEMORY);
+        ConnectionHandler handler;
+        if (handlerName.equals(ServerConfig.HANDLER_NIO)) {
+            handler = new NioConnectionHandler(server, server.getServerConfig().getIoThreads(),
+                    server.getServerConfig().getWorkers());
+        } else if (handlerName.equals(ServerConfig.HANDLER_VIRTUAL)) {
+            handler = new VirtualConnectionHandler(server);
+        } else {
+            handler = new KVConnectionHandler(server);
+        }
+        server.addConnectionHandler(handler);
+        ArrayList<ServerInfo> metadata = new ArrayList<>();
+        metadata.add(new ServerInfo("127.0.0.1", port, new KVRange()));
+        server.initKVServer(metadata, 1000, "LRU");
+        server.connect();
+        server.startServing();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    // Closed by stopServer
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private static void stopServer(SocketServer server) {
+        server.stop();
+        server.getConnectionHandler().shutDown();
+        server.cleanUp();
+    }
+
+    /**
+     * Opens the i-th client connection, from a local address of its own
+     * every CONNECTIONS_PER_ADDRESS connections
+     */
+    private static Socket open(SocketServer server, int i) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.bind(new InetSocketAddress("127.0.0." + (2 + i / CONNECTIONS_PER_ADDRESS), 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", server.getInfo().getServerPort()));
+        return socket;
+    }
+
+    /**
+     * Runs the drivers for a while, each sending GETs over its share of
+     * the connections in turn
+     * @return the number of GETs of all drivers
+     */
+    private static long run(final List<Socket> clients, final int drivers, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] counts = new long[drivers];
+        final byte[] request = Serializer.toByteArray(new KVMessageImpl("user:1", "", KVMessage.StatusType.GET));
+        Thread[] threads = new Thread[drivers];
+        for (int t = 0; t < drivers; t++) {
+            final int driver = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    long ops = 0;
+                    try {
+                        start.await();
+                        int i = driver;
+                        while (running.get()) {
+                            Socket client = clients.get(i);
+                            client.getOutputStream().write(request);
+                            readResponse(client.getInputStream(), buffer);
+                            ops++;
+                            i += drivers;
+                            if (i >= clients.size()) {
+                                i = driver;
+                            }
+                        }
+                    } catch (InterruptedException | IOException e) {
+                        throw new IllegalStateException("Driver " + driver + " failed", e);
+                    }
+                    counts[driver] = ops;
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        long total = 0;
+        for (int t = 0; t < drivers; t++) {
+            threads[t].join();
+            total += counts[t];
+        }
+        return total;
+    }
+
+    private static void send(Socket client, KVMessageImpl message) throws IOException {
+        OutputStream output = client.getOutputStream();
+        output.write(Serializer.toByteArray(message));
+        readResponse(client.getInputStream(), new byte[4096]);
+    }
+
+    /**
+     * Reads one response, up to its carriage return
+     */
+    private static void readResponse(InputStream input, byte[] buffer) throws IOException {
+        while (true) {
+            int read = input.read(buffer);
+            if (read == -1) {
+                throw new IOException("Connection closed by the server");
+            }
+            if (buffer[read - 1] == RETURN) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package performance;
+
+import app_kvServer.ClientSubscription;
+import common.messages.AbstractMessage;
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.messages.KVServerMessage;
+import common.messages.KVServerMessageImpl;
+import common.utils.MessageStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Cost of the text and the binary message formats.
+ *
+ * For a few typical messages, every format serializes and deserializes
+ * the message in a loop, as a server does with every request and
+ * response. Reported are the size of the message, the nanoseconds of
+ * one round trip through the format, and the nanoseconds and heap bytes
+ * of decoding the received message alone, into a reused message for
+ * client messages as the request handler does. Every measurement follows
+ * a warm-up of the same length.
+ *
+ * Usage: SerializerBenchmark [seconds]
+ */
+public class SerializerBenchmark {
+
+    private static final int[] VERSIONS = { MessageStream.VERSION_FRAMED, MessageStream.VERSION_BINARY };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        String[] names = { "GET", "PUT 100 B", "GET_SUCCESS 1 KB", "MOVE_DATA 1000 x 100 B" };
+        AbstractMessage[] messages = {
+                new KVMessageImpl("user:1234", "", KVMessage.StatusType.GET),
+                new KVMessageImpl("user:1234", new RandomString(100).nextString(), KVMessage.StatusType.PUT),
+                new KVMessageImpl("user:1234", new RandomString(1024).nextString(), KVMessage.StatusType.GET_SUCCESS),
+                moveData(1000, 100) };
+
+        // The text parser logs every message. The message classes configure
+        // the logging when they are loaded, so once they all are, it is quietened.
+        for (AbstractMessage message : messages) {
+            for (int version : VERSIONS) {
+                MessageStream.deserialize(withoutReturn(MessageStream.serialize(message, version), version), version);
+            }
+        }
+        Logger.getLogger("common").setLevel(Level.WARN);
+        Logger.getLogger("common.messages").setLevel(Level.WARN);
+
+        System.out.println("message, format, bytes, round trip ns/op, decode ns/op, decode B/op");
+        for (int m = 0; m < messages.length; m++) {
+            for (int version : VERSIONS) {
+                int bytes = MessageStream.serialize(messages[m], version).length;
+                run(messages[m], version, seconds);
+                double nanos = run(messages[m], version, seconds);
+                decode(messages[m], version, seconds);
+                double[] decoding = decode(messages[m], version, seconds);
+                System.out.println(String.format("%s, %s, %d, %.0f, %.0f, %.0f", names[m],
+                        version == MessageStream.VERSION_BINARY ? "binary" : "text", bytes, nanos,
+                        decoding[0], decoding[1]));
+            }
+        }
+    }
+
+    /**
+     * Decodes the received message for a while
+     * @return the nanoseconds and the allocated bytes per message
+     */
+    private static double[] decode(AbstractMessage message, int version, int seconds) throws Exception {
+        byte[] received = withoutReturn(MessageStream.serialize(message, version), version);
+        KVMessageImpl reuse = message instanceof KVMessageImpl ? new KVMessageImpl(KVMessage.StatusType.GET) : null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long ops = 0;
+        long sink = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < 100; i++) {
+                sink += MessageStream.deserialize(received, version, reuse).hashCode();
+            }
+            ops += 100;
+            now = System.nanoTime();
+        } while (now < end);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return new double[] { (double) (now - start) / ops, (double) allocated / ops };
+    }
+
+    /**
+     * Serializes and deserializes the message for a while
+     * @return the nanoseconds per round trip
+     */
+    private static double run(AbstractMessage message, int version, int seconds) throws Exception {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long ops = 0;
+        long sink = 0;
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < 100; i++) {
+                byte[] bytes = MessageStream.serialize(message, version);
+                sink += MessageStream.deserialize(withoutReturn(bytes, version), version).hashCode();
+            }
+            ops += 100;
+            now = System.nanoTime();
+        } while (now < end);
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) (now - start) / ops;
+    }
+
+    /**
+     * The receiving side gets the text message without its carriage return
+     */
+    private static byte[] withoutReturn(byte[] bytes, int version) {
+        if (version >= MessageStream.VERSION_BINARY) {
+            return bytes;
+        }
+        byte[] message = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, message, 0, message.length);
+        return message;
+    }
+
+    private static KVServerMessageImpl moveData(int pairs, int valueLength) {
+        RandomString values = new RandomString(valueLength);
+        ArrayList<KVPair> kvPairs = new ArrayList<>(pairs);
+        for (int i = 0; i < pairs; i++) {
+            kvPairs.add(new KVPair("user:" + i, values.nextString()));
+        }
+        return new KVServerMessageImpl(kvPairs, new HashMap<String, ArrayList<ClientSubscription>>(),
+                KVServerMessage.StatusType.MOVE_DATA);
+    }
+}
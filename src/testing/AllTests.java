@@ -69,7 +69,12 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class);
 		clientSuite.addTestSuite(AdditionalTest.class);
-//		clientSuite.addTestSuite(KVCacheTest.class);
+		clientSuite.addTestSuite(KVCacheTest.class);
+		clientSuite.addTestSuite(KVPersistenceEngineTest.class);
+		clientSuite.addTestSuite(LSMStorageEngineTest.class);
+		clientSuite.addTestSuite(StorageEngineTest.class);
+		clientSuite.addTestSuite(ReplicaStoreTest.class);
+		clientSuite.addTestSuite(MessageStreamTest.class);
 //		clientSuite.addTestSuite(KVServiceBasicTest.class);
 //		clientSuite.addTestSuite(KVServiceStressTest.class);
 		return clientSuite;
@@ -1,13 +1,35 @@
 package testing;
 
 
+import app_kvServer.dataStorage.ArcCacheSegment;
+import app_kvServer.dataStorage.CacheSegment;
+import app_kvServer.dataStorage.ClockProCacheSegment;
+import app_kvServer.dataStorage.HotKeyFile;
+import app_kvServer.dataStorage.InMemoryStorageEngine;
 import app_kvServer.dataStorage.KVCache;
+import app_kvServer.dataStorage.LFUCache;
+import app_kvServer.dataStorage.LinkedCacheSegment;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngine;
+import app_kvServer.dataStorage.StorageEngines;
 import app_kvServer.dataStorage.LfuCacheEntry;
+import app_kvServer.dataStorage.TinyLfuCacheSegment;
+import app_kvServer.dataStorage.Weigher;
+import common.messages.KVMessage;
 import common.messages.KVMessageImpl;
+import common.messages.KVPair;
 import helpers.StorageException;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Test Class for KVCache
  */
@@ -162,4 +184,351 @@ public class KVCacheTest extends TestCase{
 
     }
 
+    /**
+     * Test that concurrent writers and readers of a cache with several
+     * segments see the latest values, and that the cache stays in its size
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+
+        final KVCache kvCache = new KVCache(256, policy);
+        final int keys = 1000;
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = thread; i < keys; i += threads.length) {
+                            kvCache.put("key" + i, "value" + round + "_" + i);
+                            if (!kvCache.get("key" + i).getValue().equals("value" + round + "_" + i))
+                                errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertTrue(kvCache.getCacheMap().size() <= 256);
+        for (int i = 0; i < keys; i++) {
+            assertEquals("value4_" + i, kvCache.get("key" + i).getValue());
+        }
+        kvCache.cleanUp();
+    }
+
+    /**
+     * Test that the LFU cache drops the least frequently used key, and that
+     * a key hot in the past is dropped once newer keys caught up with it
+     */
+    @Test
+    public void testLFUAging() {
+
+        LFUCache lfu = new LFUCache(3);
+        lfu.put("hot", "1");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("1", lfu.get("hot"));
+        }
+        lfu.put("a", "a");
+        lfu.put("b", "b");
+        lfu.get("a");
+        lfu.put("c", "c");
+        assertNull(lfu.get("b"));
+        assertEquals(10, lfu.getCacheMap().get("hot").getFrequency());
+
+        // Every new key is hit once, then replaced by the next one
+        int round = 0;
+        while (lfu.getCacheMap().containsKey("hot") && round < 100) {
+            lfu.put("new" + round, "x");
+            lfu.get("new" + round);
+            lfu.get("new" + round);
+            round++;
+        }
+        assertTrue(round < 100);
+        assertEquals(3, lfu.snapshot().size());
+    }
+
+    /**
+     * Test that a scan of keys seen once does not flush the frequently
+     * used keys out of a W-TinyLFU cache
+     */
+    @Test
+    public void testTinyLFUScanResistance() {
+
+        TinyLfuCacheSegment cache = new TinyLfuCacheSegment(100);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) == null)
+                    cache.put("hot" + i, "value");
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i, "value");
+        }
+        int cached = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null)
+                cached++;
+        }
+        assertEquals(50, cached);
+        assertTrue(cache.isFull());
+    }
+
+    /**
+     * ARC and CLOCK-Pro keep a reused working set through a scan, and stay
+     * within their capacity under random puts, gets and removes
+     */
+    @Test
+    public void testAdaptivePolicies() {
+
+        CacheSegment[] caches = { new ArcCacheSegment(100), new ClockProCacheSegment(100) };
+        for (CacheSegment cache : caches) {
+            // Scans that never come back let CLOCK-Pro give more room to hot entries
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 50; i++) {
+                    if (cache.get("hot" + i) == null)
+                        cache.put("hot" + i, "value");
+                }
+                for (int i = 0; i < 40; i++) {
+                    cache.put("scan" + round + ":" + i, "value");
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                cache.put("scan" + i, "value");
+            }
+            int cached = 0;
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) != null)
+                    cached++;
+            }
+            assertEquals(cache.getClass().getSimpleName(), 50, cached);
+
+            Random random = new Random(7);
+            for (int i = 0; i < 100000; i++) {
+                String key = "key" + random.nextInt(300);
+                int operation = random.nextInt(10);
+                if (operation < 6) {
+                    if (cache.get(key) == null)
+                        cache.put(key, "value");
+                } else if (operation < 9) {
+                    cache.put(key, "value" + i);
+                } else {
+                    cache.remove(key);
+                }
+                assertTrue(cache.snapshot().size() <= 100);
+            }
+            cache.clear();
+            assertEquals(0, cache.snapshot().size());
+        }
+    }
+
+    /**
+     * Segments bounded in bytes keep the total weight of their entries
+     * within the capacity, and do not keep an entry heavier than it
+     */
+    @Test
+    public void testByteCapacity() {
+
+        long capacity = 16 * 1024;
+        CacheSegment[] caches = {
+                new LinkedCacheSegment(capacity, true, Weigher.BYTES),
+                new LinkedCacheSegment(capacity, false, Weigher.BYTES),
+                new LFUCache(capacity, Weigher.BYTES),
+                new TinyLfuCacheSegment(capacity, 64, Weigher.BYTES),
+                new ArcCacheSegment(capacity, Weigher.BYTES),
+                new ClockProCacheSegment(capacity, Weigher.BYTES) };
+        for (CacheSegment cache : caches) {
+            Random random = new Random(3);
+            for (int i = 0; i < 5000; i++) {
+                String key = "key" + random.nextInt(500);
+                StringBuilder value = new StringBuilder();
+                for (int length = random.nextInt(1000); length > 0; length--)
+                    value.append('v');
+                if (random.nextInt(10) < 6) {
+                    if (cache.get(key) == null)
+                        cache.put(key, value.toString());
+                } else {
+                    cache.put(key, value.toString());
+                }
+                long weight = 0;
+                for (Map.Entry<String, String> entry : cache.snapshot().entrySet())
+                    weight += Weigher.BYTES.weigh(entry.getKey(), entry.getValue());
+                assertEquals(cache.getClass().getSimpleName(), weight, cache.weight());
+                assertTrue(cache.weight() <= capacity);
+            }
+            assertTrue(cache.weight() > capacity / 2);
+
+            long before = cache.weight();
+            char[] huge = new char[(int) capacity];
+            cache.put("huge", new String(huge));
+            assertNull(cache.get("huge"));
+            assertEquals(cache.getClass().getSimpleName(), before, cache.weight());
+        }
+    }
+
+    /**
+     * A write-back cache answers from its dirty values, evicted or not,
+     * and the store holds the latest values once they are flushed
+     */
+    @Test
+    public void testWriteBack() throws StorageException {
+
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.ENGINE, StorageEngines.MEMORY)
+                .set(StorageConfig.CACHE_WRITEBACK, "true")
+                .set(StorageConfig.CACHE_WRITEBACK_QUEUE, "16");
+        StorageEngine store = StorageEngines.open("_writeback", config);
+        KVCache kvCache = new KVCache(10, "LRU", store, config);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 200; i++) {
+                KVMessage.StatusType status = kvCache.put("key" + i, "value" + round + "_" + i).getStatus();
+                assertEquals(round == 0 ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE, status);
+            }
+        }
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, kvCache.put("key7", "null").getStatus());
+        assertEquals(KVMessage.StatusType.DELETE_ERROR, kvCache.put("key7", "null").getStatus());
+        for (int i = 0; i < 200; i++) {
+            KVMessageImpl answer = kvCache.get("key" + i);
+            if (i == 7) {
+                assertEquals(KVMessage.StatusType.GET_ERROR, answer.getStatus());
+            } else {
+                assertEquals("value2_" + i, answer.getValue());
+            }
+        }
+
+        kvCache.flushAll();
+        assertEquals(KVMessage.StatusType.GET_ERROR, store.get("key7").getStatus());
+        assertEquals("value2_199", store.get("key199").getValue());
+        kvCache.cleanUp();
+    }
+
+    /**
+     * A write-back value that the store refuses stays dirty and is
+     * written once the store accepts writes again
+     */
+    @Test
+    public void testWriteBackRetry() throws Exception {
+
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.CACHE_WRITEBACK, "true")
+                .set(StorageConfig.CACHE_WRITEBACK_QUEUE, "16");
+        final boolean[] failing = { true };
+        StorageEngine store = new InMemoryStorageEngine() {
+            @Override
+            public KVMessageImpl put(String key, String value) {
+                synchronized (failing) {
+                    if (failing[0])
+                        return new KVMessageImpl(key, "", KVMessage.StatusType.PUT_ERROR);
+                }
+                return super.put(key, value);
+            }
+        };
+        KVCache kvCache = new KVCache(10, "LRU", store, config);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, kvCache.put("key", "value").getStatus());
+        Thread.sleep(300);
+        assertEquals(KVMessage.StatusType.GET_ERROR, store.get("key").getStatus());
+        assertEquals("value", kvCache.get("key").getValue());
+
+        synchronized (failing) {
+            failing[0] = false;
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.get("key").getStatus() != KVMessage.StatusType.GET_SUCCESS
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("value", store.get("key").getValue());
+        kvCache.cleanUp();
+    }
+
+    /**
+     * Test that repeated GETs of a missing key are answered by the negative
+     * cache, and that a PUT of the key makes it visible again
+     * @throws StorageException
+     */
+    @Test
+    public void testNegativeCache() throws StorageException {
+
+        StorageConfig config = StorageConfig.defaults();
+        StorageEngine store = StorageEngines.open("_negative", config);
+        KVCache kvCache = new KVCache(10, "LRU", store, config);
+        // A deleted key stays in the filter of the store, so its GETs probe the store
+        for (int i = 0; i < 20; i++) {
+            kvCache.put("key" + i, "value" + i);
+            kvCache.put("key" + i, "null");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(KVMessage.StatusType.GET_ERROR, kvCache.get("key" + i).getStatus());
+            }
+        }
+        assertEquals(80, kvCache.getNegativeHits());
+
+        kvCache.put("key3", "again");
+        assertEquals("again", kvCache.get("key3").getValue());
+        kvCache.put("key3", "null");
+        assertEquals(KVMessage.StatusType.GET_ERROR, kvCache.get("key3").getStatus());
+        kvCache.cleanUp();
+
+        config.set(StorageConfig.CACHE_NEGATIVE_SIZE, "0");
+        kvCache = new KVCache(10, "LRU", StorageEngines.open("_negative", config), config);
+        kvCache.put("key0", "value0");
+        kvCache.put("key0", "null");
+        assertEquals(KVMessage.StatusType.GET_ERROR, kvCache.get("key0").getStatus());
+        assertEquals(KVMessage.StatusType.GET_ERROR, kvCache.get("key0").getStatus());
+        assertEquals(0, kvCache.getNegativeHits());
+        kvCache.cleanUp();
+    }
+
+    /**
+     * Test that moved data is sent hottest first and only the hot pairs are
+     * cached at the receiver, and that saved hot keys warm up a new cache
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+
+        StorageConfig config = StorageConfig.defaults().set(StorageConfig.ENGINE, StorageEngines.MEMORY);
+        StorageEngine store = StorageEngines.open("_warmup", config);
+        KVCache sender = new KVCache(100, "LRU", store, config);
+        for (int i = 0; i < 50; i++) {
+            sender.put("key" + i, "value" + i);
+        }
+        for (int i = 10; i < 20; i++) {
+            sender.get("key" + i);
+        }
+        assertEquals(Arrays.asList("key19", "key18", "key17"), sender.hotKeys(3));
+
+        List<KVPair> pairs = new ArrayList<>(Arrays.asList(new KVPair("uncached", "value"),
+                new KVPair("key0", "value0"), new KVPair("key12", "value12"), new KVPair("key15", "value15")));
+        assertEquals(3, sender.moveHotFirst(pairs));
+        assertEquals("key15", pairs.get(0).getKey());
+        assertEquals("key12", pairs.get(1).getKey());
+        assertEquals("key0", pairs.get(2).getKey());
+        assertEquals("uncached", pairs.get(3).getKey());
+
+        KVCache receiver = new KVCache(100, "LRU", StorageEngines.open("_warmup", config), config);
+        for (int i = pairs.size() - 1; i >= 0; i--) {
+            receiver.put(pairs.get(i).getKey(), pairs.get(i).getValue(), 0, i < 1);
+        }
+        assertEquals(1, receiver.getCacheMap().size());
+        assertTrue(receiver.getCacheMap().containsKey("key15"));
+        assertEquals("value0", receiver.get("key0").getValue());
+
+        File file = File.createTempFile("hotkeys", ".hot");
+        HotKeyFile.write(file, sender.hotKeys(20));
+        List<String> hot = HotKeyFile.read(file);
+        assertEquals(20, hot.size());
+        file.delete();
+        KVCache restarted = new KVCache(100, "LRU", store, config);
+        assertEquals(20, restarted.warmUp(hot));
+        assertEquals(Arrays.asList("key19", "key18", "key17"), restarted.hotKeys(3));
+    }
+
 }
@@ -0,0 +1,354 @@
+package testing;
+
+import app_kvServer.dataStorage.KVPersistenceEngine;
+import app_kvServer.dataStorage.StorageConfig;
+import common.messages.KVMessage;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import helpers.StorageException;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test Class for the log-structured KVPersistenceEngine
+ */
+public class KVPersistenceEngineTest extends TestCase {
+
+    private KVPersistenceEngine persistence;
+
+    public void setUp() throws StorageException {
+        persistence = new KVPersistenceEngine("_test_");
+    }
+
+    public void tearDown() {
+        persistence.cleanUp();
+    }
+
+    /**
+     * Test put, update and get operations
+     */
+    @Test
+    public void testPutAndGet() {
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, persistence.put("foo", "bar").getStatus());
+        assertEquals("bar", persistence.get("foo").getValue());
+
+        assertEquals(KVMessage.StatusType.PUT_UPDATE, persistence.put("foo", "baz").getStatus());
+        assertEquals("baz", persistence.get("foo").getValue());
+
+        assertEquals(KVMessage.StatusType.GET_ERROR, persistence.get("missing").getStatus());
+    }
+
+    /**
+     * Test remove operation
+     */
+    @Test
+    public void testRemove() {
+        persistence.put("foo", "bar");
+        KVMessage response = persistence.remove("foo");
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, response.getStatus());
+        assertEquals("bar", response.getValue());
+        assertEquals(KVMessage.StatusType.GET_ERROR, persistence.get("foo").getStatus());
+        assertEquals(KVMessage.StatusType.DELETE_ERROR, persistence.remove("foo").getStatus());
+    }
+
+    /**
+     * Test range retrieval and removal
+     */
+    @Test
+    public void testRangeOperations() {
+        for (int i = 0; i < 100; i++) {
+            persistence.put("key" + i, "value" + i);
+        }
+        KVRange all = new KVRange();
+        List<KVPair> pairs = persistence.get(all);
+        assertEquals(100, pairs.size());
+
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, persistence.remove(all).getStatus());
+        assertTrue(persistence.get(all).isEmpty());
+    }
+
+    /**
+     * Test that a durable store keeps its data across restarts,
+     * both after a clean close and when the log tail has to be replayed
+     */
+    @Test
+    public void testDurableRestart() throws StorageException {
+        StorageConfig config = StorageConfig.defaults().set(StorageConfig.DURABLE, "true");
+        KVPersistenceEngine durable = new KVPersistenceEngine("_test_durable_", config);
+        try {
+            for (int i = 0; i < 100; i++) {
+                durable.put("key" + i, "value" + i);
+            }
+            durable.remove("key0");
+            durable.close();
+
+            durable = new KVPersistenceEngine("_test_durable_", config);
+            assertEquals(KVMessage.StatusType.GET_ERROR, durable.get("key0").getStatus());
+            assertEquals("value99", durable.get("key99").getValue());
+            durable.put("key1", "updated");
+
+            // Reopen without closing: the update is only found in the log tail
+            durable = new KVPersistenceEngine("_test_durable_", config);
+            assertEquals("updated", durable.get("key1").getValue());
+            assertEquals(99, durable.get(new KVRange()).size());
+        } finally {
+            durable.cleanUp();
+        }
+    }
+
+    /**
+     * Test concurrent writers under the batch sync policy: every
+     * acknowledged write must be durable and readable
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.DURABLE, "true")
+                .set(StorageConfig.SYNC, "batch");
+        final KVPersistenceEngine synced = new KVPersistenceEngine("_test_sync_", config);
+        final AtomicInteger failures = new AtomicInteger();
+        try {
+            Thread[] writers = new Thread[8];
+            for (int t = 0; t < writers.length; t++) {
+                final int writer = t;
+                writers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 200; i++) {
+                            synced.put("key" + writer + "_" + i, "value" + i);
+                            if (!synced.awaitDurable())
+                                failures.incrementAndGet();
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(0, failures.get());
+
+            KVPersistenceEngine reopened = new KVPersistenceEngine("_test_sync_", config);
+            assertEquals(1600, reopened.get(new KVRange()).size());
+            assertEquals("value199", reopened.get("key7_199").getValue());
+            reopened.close();
+        } finally {
+            synced.cleanUp();
+        }
+    }
+
+    /**
+     * Test that compaction reclaims overwritten and deleted records
+     * without losing data, also across a restart
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.DURABLE, "true")
+                .set(StorageConfig.SEGMENT_SIZE, "4096")
+                .set(StorageConfig.COMPACTION_INTERVAL, "0")
+                .set(StorageConfig.COMPACTION_RATE, "0");
+        KVPersistenceEngine compacted = new KVPersistenceEngine("_test_compaction_", config);
+        try {
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 100; i++) {
+                    compacted.put("key" + i, "value" + round + "_" + i);
+                }
+            }
+            for (int i = 0; i < 50; i++) {
+                compacted.remove("key" + i);
+            }
+            double before = compacted.getSpaceAmplification();
+            while (compacted.compact()) {
+                // Compact until no segment is worth it
+            }
+            assertTrue(compacted.getSpaceAmplification() < before);
+            assertTrue(compacted.getCompactor().getReclaimedBytes() > 0);
+            assertEquals(KVMessage.StatusType.GET_ERROR, compacted.get("key0").getStatus());
+            assertEquals("value9_99", compacted.get("key99").getValue());
+            compacted.close();
+
+            compacted = new KVPersistenceEngine("_test_compaction_", config);
+            assertEquals(50, compacted.get(new KVRange()).size());
+            assertEquals("value9_50", compacted.get("key50").getValue());
+        } finally {
+            compacted.cleanUp();
+        }
+    }
+
+    /**
+     * Test that a compaction keeps the tombstones shadowing records of an
+     * older victim, so that a deleted key does not come back when a crash
+     * leaves that victim on disk
+     */
+    @Test
+    public void testCompactionKeepsTombstones() throws Exception {
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.DURABLE, "true")
+                .set(StorageConfig.SEGMENT_SIZE, "4096")
+                .set(StorageConfig.COMPACTION_THRESHOLD, "0")
+                .set(StorageConfig.COMPACTION_INTERVAL, "0")
+                .set(StorageConfig.COMPACTION_RATE, "0");
+        String filler = String.format("%0100d", 0);
+        KVPersistenceEngine compacted = new KVPersistenceEngine("_test_tombstones_", config);
+        try {
+            compacted.put("deleted", "value");
+            for (int i = 0; i < 40; i++) {
+                compacted.put("filler", filler);
+            }
+            compacted.remove("deleted");
+            for (int i = 0; i < 40; i++) {
+                compacted.put("filler", filler);
+            }
+            File first = new File("data.store_test_tombstones_.000001.log");
+            byte[] firstBytes = Files.readAllBytes(first.toPath());
+            assertTrue(compacted.compact());
+            assertFalse(first.exists());
+            compacted.close();
+
+            // As if the deletion of the first segment had not reached the disk
+            Files.write(first.toPath(), firstBytes);
+            new File("data.store_test_tombstones_.checkpoint").delete();
+            compacted = new KVPersistenceEngine("_test_tombstones_", config);
+            assertEquals(KVMessage.StatusType.GET_ERROR, compacted.get("deleted").getStatus());
+            assertEquals(filler, compacted.get("filler").getValue());
+        } finally {
+            compacted.cleanUp();
+        }
+    }
+
+    /**
+     * Test that range queries on the hash-ordered index return exactly
+     * the keys a full scan would, for plain and wrapping ranges
+     */
+    @Test
+    public void testHashRanges() {
+        MD5Hash md5 = new MD5Hash();
+        for (int i = 0; i < 500; i++) {
+            persistence.put("key" + i, "value" + i);
+        }
+        String first = md5.hash("127.0.0.1:50000");
+        String second = md5.hash("127.0.0.1:50001");
+        KVRange[] ranges = { new KVRange(first, second), new KVRange(second, first) };
+        for (KVRange range : ranges) {
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < 500; i++) {
+                if (range.isIndexInRange(md5.hash("key" + i)))
+                    expected.add("key" + i);
+            }
+            Set<String> found = new HashSet<>();
+            for (KVPair pair : persistence.get(range)) {
+                found.add(pair.getKey());
+            }
+            assertEquals(expected, found);
+        }
+        assertEquals(500, persistence.get(ranges[0]).size() + persistence.get(ranges[1]).size());
+
+        persistence.remove(ranges[0]);
+        assertTrue(persistence.get(ranges[0]).isEmpty());
+        assertEquals(persistence.get(ranges[1]).size(), persistence.get(new KVRange()).size());
+    }
+
+    /**
+     * Test reads served from memory-mapped sealed segments
+     */
+    @Test
+    public void testMemoryMappedReads() throws Exception {
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.DURABLE, "true")
+                .set(StorageConfig.MMAP, "true")
+                .set(StorageConfig.SEGMENT_SIZE, "4096")
+                .set(StorageConfig.COMPACTION_INTERVAL, "0");
+        KVPersistenceEngine mapped = new KVPersistenceEngine("_test_mmap_", config);
+        try {
+            for (int i = 0; i < 300; i++) {
+                mapped.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 300; i += 2) {
+                mapped.put("key" + i, "updated" + i);
+            }
+            assertEquals("value1", mapped.get("key1").getValue());
+            assertEquals("updated298", mapped.get("key298").getValue());
+            mapped.compact();
+            assertEquals("value3", mapped.get("key3").getValue());
+            mapped.close();
+
+            mapped = new KVPersistenceEngine("_test_mmap_", config);
+            assertEquals("value299", mapped.get("key299").getValue());
+            assertEquals("updated0", mapped.get("key0").getValue());
+        } finally {
+            mapped.cleanUp();
+        }
+    }
+
+    /**
+     * Test that the key filter never rules out a stored key and
+     * rules out most absent ones, also after removals and a rebuild
+     */
+    @Test
+    public void testKeyFilter() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            persistence.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 2500; i++) {
+            persistence.remove("key" + i);
+        }
+        Thread.sleep(200); // let the background rebuild finish
+        for (int i = 2500; i < 5000; i++) {
+            assertTrue(persistence.mightContain("key" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            if (persistence.mightContain("absent" + i))
+                assertEquals(KVMessage.StatusType.GET_ERROR, persistence.get("absent" + i).getStatus());
+        }
+        assertTrue(persistence.getFilterFalsePositiveRate() < 0.05);
+    }
+
+    /**
+     * Test that compressed values read back unchanged, also after
+     * compaction and a restart, and take less disk space
+     */
+    @Test
+    public void testCompression() throws Exception {
+        StorageConfig config = StorageConfig.defaults()
+                .set(StorageConfig.DURABLE, "true")
+                .set(StorageConfig.COMPRESSION, "deflate")
+                .set(StorageConfig.SEGMENT_SIZE, "4096")
+                .set(StorageConfig.COMPACTION_INTERVAL, "0")
+                .set(StorageConfig.COMPACTION_RATE, "0");
+        KVPersistenceEngine compressed = new KVPersistenceEngine("_test_compression_", config);
+        try {
+            StringBuilder repetitive = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                repetitive.append("{\"status\":\"active\",\"count\":").append(i).append("}");
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 100; i++) {
+                    compressed.put("key" + i, repetitive + "_" + round + "_" + i);
+                }
+            }
+            compressed.put("short", "tiny");
+            assertTrue(compressed.getDiskBytes() < 300 * repetitive.length() / 2);
+            while (compressed.compact()) {
+                // Compacted records keep their compressed form
+            }
+            assertEquals(repetitive + "_2_7", compressed.get("key7").getValue());
+            compressed.close();
+
+            compressed = new KVPersistenceEngine("_test_compression_", config);
+            assertEquals(repetitive + "_2_99", compressed.get("key99").getValue());
+            assertEquals("tiny", compressed.get("short").getValue());
+            assertEquals(101, compressed.get(new KVRange()).size());
+        } finally {
+            compressed.cleanUp();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package testing;
+
+import app_kvServer.dataStorage.LSMStorageEngine;
+import app_kvServer.dataStorage.StorageConfig;
+import common.messages.KVMessage;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import hashing.MD5Hash;
+import helpers.StorageException;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test Class for the LSMStorageEngine
+ */
+public class LSMStorageEngineTest extends TestCase {
+
+    private StorageConfig config;
+    private LSMStorageEngine lsm;
+
+    public void setUp() throws StorageException {
+        // Tiny memtables, so that the tests go through many flushes and merges
+        config = StorageConfig.defaults()
+                .set(StorageConfig.ENGINE, "lsm")
+                .set(StorageConfig.LSM_MEMTABLE_SIZE, "8192")
+                .set(StorageConfig.LSM_FANOUT, "3");
+        lsm = new LSMStorageEngine("_test_lsm_", config);
+    }
+
+    public void tearDown() {
+        lsm.cleanUp();
+    }
+
+    /**
+     * Test put, update, get and remove, with values spread over the
+     * memtable and several levels of runs
+     */
+    @Test
+    public void testOperations() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 200; i++) {
+                KVMessage.StatusType expected = round == 0
+                        ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE;
+                assertEquals(expected, lsm.put("key" + i, "value" + round + "_" + i).getStatus());
+            }
+            lsm.flush();
+        }
+        assertTrue(lsm.getRunCount() < 5);
+        for (int i = 0; i < 200; i += 2) {
+            KVMessage response = lsm.remove("key" + i);
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS, response.getStatus());
+            assertEquals("value4_" + i, response.getValue());
+        }
+        lsm.flush();
+
+        assertEquals(KVMessage.StatusType.GET_ERROR, lsm.get("key0").getStatus());
+        assertEquals(KVMessage.StatusType.DELETE_ERROR, lsm.remove("key0").getStatus());
+        assertEquals("value4_1", lsm.get("key1").getValue());
+        assertEquals(KVMessage.StatusType.GET_ERROR, lsm.get("missing").getStatus());
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, lsm.put("key0", "again").getStatus());
+        assertEquals("again", lsm.get("key0").getValue());
+        assertTrue(lsm.mightContain("key0"));
+    }
+
+    /**
+     * Test that range reads match the keys hashing into the range
+     */
+    @Test
+    public void testRanges() throws Exception {
+        Map<String, String> stored = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            lsm.put("key" + i, "value" + i);
+            stored.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 500; i += 5) {
+            lsm.remove("key" + i);
+            stored.remove("key" + i);
+        }
+        lsm.flush();
+        assertEquals(stored.size(), lsm.get(new KVRange()).size());
+
+        MD5Hash md5 = new MD5Hash();
+        KVRange[] ranges = {
+                new KVRange("40000000000000000000000000000000", "bfffffffffffffffffffffffffffffff"),
+                new KVRange("c0000000000000000000000000000000", "3fffffffffffffffffffffffffffffff")
+        };
+        int total = 0;
+        for (KVRange range : ranges) {
+            int expected = 0;
+            for (String key : stored.keySet()) {
+                if (range.isIndexInRange(md5.hash(key)))
+                    expected++;
+            }
+            for (KVPair pair : lsm.get(range)) {
+                assertTrue(range.isIndexInRange(md5.hash(pair.getKey())));
+                assertEquals(stored.get(pair.getKey()), pair.getValue());
+            }
+            assertEquals(expected, lsm.get(range).size());
+            total += expected;
+        }
+        assertEquals(stored.size(), total);
+
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, lsm.remove(ranges[0]).getStatus());
+        assertEquals(0, lsm.get(ranges[0]).size());
+        assertEquals(lsm.get(ranges[1]).size(), lsm.get(new KVRange()).size());
+    }
+
+    /**
+     * Test that runs and logged writes are recovered after a restart
+     */
+    @Test
+    public void testDurableRestart() throws Exception {
+        config.set(StorageConfig.DURABLE, "true");
+        LSMStorageEngine durable = new LSMStorageEngine("_test_lsm_durable_", config);
+        try {
+            for (int i = 0; i < 300; i++) {
+                durable.put("key" + i, "value" + i);
+            }
+            durable.flush();
+            durable.remove("key0");
+            durable.put("key1", "updated");
+            durable.close();
+
+            // The last writes are only in the write-ahead log
+            durable = new LSMStorageEngine("_test_lsm_durable_", config);
+            assertEquals("updated", durable.get("key1").getValue());
+            assertEquals(KVMessage.StatusType.GET_ERROR, durable.get("key0").getStatus());
+            assertEquals(299, durable.get(new KVRange()).size());
+            durable.put("key0", "back");
+            durable.flush();
+            durable.close();
+
+            durable = new LSMStorageEngine("_test_lsm_durable_", config);
+            assertEquals("back", durable.get("key0").getValue());
+            assertEquals(300, durable.get(new KVRange()).size());
+        } finally {
+            durable.cleanUp();
+        }
+    }
+
+    /**
+     * Test that compressed runs read back unchanged and are smaller
+     * than their records
+     */
+    @Test
+    public void testCompression() throws Exception {
+        config.set(StorageConfig.COMPRESSION, "deflate");
+        LSMStorageEngine compressed = new LSMStorageEngine("_test_lsm_compression_", config);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                compressed.put("key" + i, "{\"status\":\"active\",\"id\":" + i + "}");
+            }
+            compressed.flush();
+            assertTrue(compressed.getDiskBytes() < compressed.getRawBytes() / 2);
+            assertEquals("{\"status\":\"active\",\"id\":7}", compressed.get("key7").getValue());
+            assertEquals(1000, compressed.get(new KVRange()).size());
+        } finally {
+            compressed.cleanUp();
+        }
+    }
+}
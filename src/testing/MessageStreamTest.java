@@ -0,0 +1,294 @@
+package testing;
+
+import app_kvServer.ConnectionHandler;
+import app_kvServer.KVConnectionHandler;
+import app_kvServer.NioConnectionHandler;
+import app_kvServer.ServerConfig;
+import app_kvServer.SocketServer;
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngines;
+import client.ServerConnection;
+import common.Serializer;
+import common.UnsupportedDataTypeException;
+import common.ServerInfo;
+import common.messages.AbstractMessage;
+import common.messages.KVAdminMessage;
+import common.messages.KVAdminMessageImpl;
+import common.messages.KVMessage;
+import common.messages.KVMessageImpl;
+import common.messages.KVPair;
+import common.messages.KVServerMessage;
+import common.messages.KVServerMessageImpl;
+import common.utils.KVRange;
+import common.utils.MessageStream;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test Class for the framing and formats of messages and the protocol handshake
+ */
+public class MessageStreamTest extends TestCase {
+
+    private static final int PORT = 59990;
+
+    /**
+     * Test that both framings carry messages larger than the former
+     * 128 KB limit, and report the end of the connection
+     */
+    @Test
+    public void testFramings() throws Exception {
+        byte[] large = message(new KVMessageImpl("key", value(300 * 1024), KVMessage.StatusType.PUT));
+        byte[] small = message(new KVMessageImpl("key", "", KVMessage.StatusType.GET));
+        for (int version : new int[] { MessageStream.VERSION_TEXT, MessageStream.VERSION_FRAMED }) {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            wire.write(MessageStream.frame(large, version));
+            wire.write(MessageStream.frame(small, version));
+            MessageStream stream = new MessageStream(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+            if (version == MessageStream.VERSION_FRAMED) {
+                assertTrue(stream.answer(MessageStream.protocolMessage(version)));
+            }
+            assertTrue(Arrays.equals(withoutReturn(large), stream.receive()));
+            assertTrue(Arrays.equals(withoutReturn(small), stream.receive()));
+            assertTrue(Arrays.equals(new byte[]{-1}, stream.receive()));
+        }
+    }
+
+    /**
+     * Test that frames are received into one buffer, kept across messages
+     */
+    @Test
+    public void testFrameBuffer() throws Exception {
+        int version = MessageStream.VERSION_BINARY;
+        byte[] first = MessageStream.serialize(new KVMessageImpl("key", value(20 * 1024), KVMessage.StatusType.PUT), version);
+        byte[] second = MessageStream.serialize(new KVMessageImpl("key", "", KVMessage.StatusType.GET), version);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(MessageStream.frame(first, version));
+        wire.write(MessageStream.frame(second, version));
+        wire.write(MessageStream.frame(first, version));
+        MessageStream stream = new MessageStream(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        assertTrue(stream.answer(MessageStream.protocolMessage(version)));
+
+        assertEquals(first.length, stream.receiveFrame());
+        byte[] buffer = stream.getFrame();
+        assertTrue(Arrays.equals(first, Arrays.copyOf(buffer, first.length)));
+        assertEquals(second.length, stream.receiveFrame());
+        assertSame(buffer, stream.getFrame());
+        KVMessageImpl message = (KVMessageImpl) MessageStream.deserialize(buffer, second.length, version, null);
+        assertEquals(KVMessage.StatusType.GET, message.getStatus());
+        assertEquals(first.length, stream.receiveFrame());
+        assertSame(buffer, stream.getFrame());
+        assertEquals(-1, stream.receiveFrame());
+    }
+
+    /**
+     * Test that the binary messages of all types carry values that the
+     * delimiters of the text format cannot
+     */
+    @Test
+    public void testBinaryMessages() throws Exception {
+        String value = "a##b&&c" + (char) 0x0D + "\u00e9\u6771\ud83d\ude00" + value(200);
+        KVMessageImpl client = new KVMessageImpl("key&&1", value, KVMessage.StatusType.PUT);
+        client.setTtl(-5L);
+        KVMessageImpl decodedClient = (KVMessageImpl) roundTrip(client);
+        assertEquals(client.getStatus(), decodedClient.getStatus());
+        assertEquals("key&&1", decodedClient.getKey());
+        assertEquals(value, decodedClient.getValue());
+        assertEquals(-5L, decodedClient.getTtl());
+
+        ArrayList<ServerInfo> metadata = new ArrayList<>();
+        metadata.add(new ServerInfo("127.0.0.1", 50000, new KVRange("00", "ff")));
+        KVAdminMessageImpl admin = new KVAdminMessageImpl(KVAdminMessage.StatusType.INIT, metadata, 100, "LRU");
+        KVAdminMessageImpl decodedAdmin = (KVAdminMessageImpl) roundTrip(admin);
+        assertEquals(KVAdminMessage.StatusType.INIT, decodedAdmin.getStatus());
+        assertEquals(Integer.valueOf(100), decodedAdmin.getCacheSize());
+        assertEquals("LRU", decodedAdmin.getDisplacementStrategy());
+        assertEquals(50000, (int) decodedAdmin.getMetadata().get(0).getServerPort());
+        assertEquals("ff", decodedAdmin.getMetadata().get(0).getServerRange().getHigh());
+
+        ArrayList<KVPair> pairs = new ArrayList<>();
+        pairs.add(new KVPair("key##2", value, 1234L));
+        KVServerMessageImpl server = new KVServerMessageImpl(pairs, KVServerMessage.StatusType.MOVE_DATA);
+        KVServerMessageImpl decodedServer = (KVServerMessageImpl) roundTrip(server);
+        assertEquals(KVServerMessage.StatusType.MOVE_DATA, decodedServer.getStatus());
+        assertEquals("key##2", decodedServer.getKVPairs().get(0).getKey());
+        assertEquals(value, decodedServer.getKVPairs().get(0).getValue());
+        assertEquals(1234L, decodedServer.getKVPairs().get(0).getExpiresAt());
+    }
+
+    /**
+     * Test that the text parser decodes client messages as splitting them
+     * into tokens did, into the message it is given
+     */
+    @Test
+    public void testTextParser() throws Exception {
+        KVMessageImpl reused = new KVMessageImpl(KVMessage.StatusType.GET);
+        KVMessageImpl put = new KVMessageImpl("key", " padded value ", KVMessage.StatusType.PUT);
+        put.setTtl(60L);
+        put.setAddress("127.0.0.1");
+        put.setPort(50000);
+        assertSame(reused, Serializer.toObject(withoutReturn(message(put)), reused));
+        assertEquals(KVMessage.StatusType.PUT, reused.getStatus());
+        assertEquals("key", reused.getKey());
+        assertEquals("padded value", reused.getValue());
+        assertEquals(50000, (int) reused.getPort());
+        assertEquals(60L, reused.getTtl());
+        String address = reused.getAddress();
+        assertEquals("127.0.0.1", address);
+
+        KVMessageImpl get = new KVMessageImpl("other", "", KVMessage.StatusType.GET);
+        get.setAddress("127.0.0.1");
+        Serializer.toObject(message(get), reused);
+        assertEquals(KVMessage.StatusType.GET, reused.getStatus());
+        assertEquals("other", reused.getKey());
+        assertEquals("", reused.getValue());
+        assertEquals(0L, reused.getTtl());
+        assertSame(address, reused.getAddress());
+
+        // Trailing empty fields are dropped, like String.split does
+        KVMessageImpl bare = (KVMessageImpl) Serializer.toObject("1##0##key####".getBytes());
+        assertEquals("key", bare.getKey());
+        assertNull(bare.getValue());
+        assertEquals("localhost", bare.getAddress());
+
+        ArrayList<ServerInfo> metadata = new ArrayList<>();
+        metadata.add(new ServerInfo("127.0.0.1", 50000, new KVRange("00", "ff")));
+        KVMessageImpl notResponsible = new KVMessageImpl("key", "", metadata, KVMessage.StatusType.SERVER_NOT_RESPONSIBLE);
+        KVMessageImpl decoded = (KVMessageImpl) Serializer.toObject(message(notResponsible));
+        assertEquals(1, decoded.getMetadata().size());
+        assertEquals("ff", decoded.getMetadata().get(0).getToIndex());
+
+        for (String invalid : new String[] { "1##0", "1##x##key", "1##0##key##value##" }) {
+            try {
+                Serializer.toObject(invalid.getBytes());
+                fail("Parsed " + invalid);
+            } catch (UnsupportedDataTypeException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test that a client falls back to the text framing when the server
+     * closes the connection on the protocol offer, like a server of the
+     * first version does
+     */
+    @Test
+    public void testOfferToFirstVersion() throws Exception {
+        final ServerSocket server = new ServerSocket(PORT);
+        Thread oldServer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    socket.getInputStream().read();
+                    socket.close();
+                } catch (IOException e) {
+                    // The test fails on the client side
+                }
+            }
+        });
+        oldServer.start();
+        Socket socket = new Socket("127.0.0.1", PORT);
+        try {
+            MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+            assertFalse(stream.negotiate());
+            assertEquals(MessageStream.VERSION_TEXT, stream.getVersion());
+        } finally {
+            socket.close();
+            oldServer.join();
+            server.close();
+        }
+    }
+
+    /**
+     * Test that both connection handlers serve binary and text clients
+     */
+    @Test
+    public void testHandlers() throws Exception {
+        for (String handler : new String[] { ServerConfig.HANDLER_THREADS, ServerConfig.HANDLER_NIO }) {
+            SocketServer server = startServer(handler, PORT + 1);
+            try {
+                String value = value(1024 * 1024);
+                ServerConnection framed = new ServerConnection("127.0.0.1", PORT + 1);
+                assertEquals(MessageStream.VERSION_BINARY, framed.getMessageStream().getVersion());
+                assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                        request(framed.getMessageStream(), new KVMessageImpl("key", value, KVMessage.StatusType.PUT)).getStatus());
+                assertEquals(value, request(framed.getMessageStream(), new KVMessageImpl("key", "", KVMessage.StatusType.GET)).getValue());
+                String binaryValue = "a##b&&c" + (char) 0x0D + "d";
+                request(framed.getMessageStream(), new KVMessageImpl("other", binaryValue, KVMessage.StatusType.PUT));
+                assertEquals(binaryValue, request(framed.getMessageStream(), new KVMessageImpl("other", "", KVMessage.StatusType.GET)).getValue());
+                framed.closeConnections();
+
+                Socket socket = new Socket("127.0.0.1", PORT + 1);
+                MessageStream text = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+                assertEquals(value, request(text, new KVMessageImpl("key", "", KVMessage.StatusType.GET)).getValue());
+                socket.close();
+            } finally {
+                server.stop();
+                server.getConnectionHandler().shutDown();
+                server.cleanUp();
+            }
+        }
+    }
+
+    private static SocketServer startServer(String handlerName, int port) throws IOException {
+        final SocketServer server = new SocketServer(new ServerInfo("127.0.0.1", port));
+        server.getStorageConfig().set(StorageConfig.ENGINE, StorageEngines.MEMORY);
+        ConnectionHandler handler = handlerName.equals(ServerConfig.HANDLER_NIO)
+                ? new NioConnectionHandler(server, 1, 2) : new KVConnectionHandler(server);
+        server.addConnectionHandler(handler);
+        ArrayList<ServerInfo> metadata = new ArrayList<>();
+        metadata.add(new ServerInfo("127.0.0.1", port, new KVRange()));
+        server.initKVServer(metadata, 100, "LRU");
+        server.connect();
+        server.startServing();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    // Closed at the end of the test
+                }
+            }
+        }).start();
+        return server;
+    }
+
+    private static KVMessageImpl request(MessageStream stream, KVMessageImpl message) throws IOException {
+        stream.send(message);
+        return (KVMessageImpl) stream.receiveMessage();
+    }
+
+    private static AbstractMessage roundTrip(AbstractMessage message) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(MessageStream.frame(MessageStream.serialize(message, MessageStream.VERSION_BINARY), MessageStream.VERSION_BINARY));
+        MessageStream stream = new MessageStream(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        assertTrue(stream.answer(MessageStream.protocolMessage(MessageStream.VERSION_BINARY)));
+        return stream.receiveMessage();
+    }
+
+    private static byte[] message(KVMessageImpl message) {
+        return Serializer.toByteArray(message);
+    }
+
+    private static byte[] withoutReturn(byte[] message) {
+        return Arrays.copyOf(message, message.length - 1);
+    }
+
+    private static String value(int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        return value.toString();
+    }
+}
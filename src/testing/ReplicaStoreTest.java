@@ -0,0 +1,144 @@
+package testing;
+
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.replication.ReplicaStore;
+import common.messages.KVMessage;
+import common.messages.KVPair;
+import common.utils.KVRange;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test Class for the partitioned replica store
+ */
+public class ReplicaStoreTest extends TestCase {
+
+    private static final int PORT = 59999;
+    private static final KVRange FIRST = new KVRange("00000000000000000000000000000000", "7fffffffffffffffffffffffffffffff");
+    private static final KVRange SECOND = new KVRange("80000000000000000000000000000000", "ffffffffffffffffffffffffffffffff");
+
+    private StorageConfig config;
+    private ReplicaStore store;
+
+    public void setUp() throws Exception {
+        config = StorageConfig.defaults().set(StorageConfig.DURABLE, "true");
+        store = new ReplicaStore(PORT, config);
+    }
+
+    public void tearDown() {
+        store.cleanUp();
+    }
+
+    /**
+     * Test that data is split by coordinator range and that removing a
+     * whole range drops its partition and files only
+     */
+    @Test
+    public void testPartitions() throws Exception {
+        store.setCoordinatorRanges(Arrays.asList(FIRST, SECOND));
+        assertTrue(store.put(pairs(0, 200)));
+        assertEquals(2, store.getPartitionCount());
+        int inFirst = store.get(FIRST).size();
+        assertTrue(inFirst > 0 && inFirst < 200);
+        assertEquals("value7", store.get("key7").getValue());
+
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, store.remove(FIRST).getStatus());
+        assertEquals(1, store.getPartitionCount());
+        assertEquals(0, store.get(FIRST).size());
+        assertEquals(200 - inFirst, store.get(new KVRange()).size());
+        assertEquals(0, storeFiles(FIRST.getLow()).length);
+    }
+
+    /**
+     * Test that data stored before the coordinators are known moves to
+     * their partitions, and that partitions survive a restart
+     */
+    @Test
+    public void testTakeOverAndRestart() throws Exception {
+        assertTrue(store.put(pairs(0, 100)));
+        assertEquals(1, store.getPartitionCount());
+
+        store.setCoordinatorRanges(Arrays.asList(FIRST, SECOND));
+        assertEquals(2, store.getPartitionCount());
+        assertEquals(100, store.get(new KVRange()).size());
+        assertEquals("value42", store.get("key42").getValue());
+        store.close();
+
+        store = new ReplicaStore(PORT, config);
+        assertEquals(2, store.getPartitionCount());
+        assertEquals(100, store.get(new KVRange()).size());
+        assertEquals("value99", store.get("key99").getValue());
+        assertEquals(KVMessage.StatusType.GET_ERROR, store.get("missing").getStatus());
+    }
+
+    /**
+     * Test that expired pairs are invisible at once and that reaping the
+     * slices of the ring removes them from the partitions
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        store.setCoordinatorRanges(Arrays.asList(FIRST, SECOND));
+        List<KVPair> pairs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            pairs.add(new KVPair("session" + i, "value" + i, i % 2 == 0 ? now - 1000 : now + 60000));
+        }
+        pairs.add(new KVPair("plain", "\u0000looks wrapped"));
+        assertTrue(store.put(pairs));
+
+        assertEquals(KVMessage.StatusType.GET_ERROR, store.get("session0").getStatus());
+        assertEquals("value1", store.get("session1").getValue());
+        assertEquals("\u0000looks wrapped", store.get("plain").getValue());
+        List<KVPair> visible = store.get(new KVRange());
+        assertEquals(51, visible.size());
+        for (KVPair pair : visible) {
+            assertEquals(pair.getKey().equals("plain") ? 0 : now + 60000, pair.getExpiresAt());
+        }
+
+        int reaped = 0;
+        for (int slice = 0; slice < 256; slice++) {
+            String prefix = String.format("%02X", slice);
+            reaped += store.reapExpired(new KVRange(prefix + "000000000000000000000000000000",
+                    prefix + "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"), now);
+        }
+        assertEquals(50, reaped);
+        assertEquals(0, store.reapExpired(new KVRange(), now + 1000));
+        assertEquals(51, store.get(new KVRange()).size());
+    }
+
+    /**
+     * Test that a remembered miss is forgotten when the key is gossiped
+     */
+    @Test
+    public void testMissThenGossip() throws Exception {
+        store.setCoordinatorRanges(Arrays.asList(FIRST, SECOND));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(KVMessage.StatusType.GET_ERROR, store.get("key5").getStatus());
+        }
+        assertTrue(store.put(pairs(0, 10)));
+        assertEquals("value5", store.get("key5").getValue());
+    }
+
+    private static List<KVPair> pairs(int from, int to) {
+        List<KVPair> pairs = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            pairs.add(new KVPair("key" + i, "value" + i));
+        }
+        return pairs;
+    }
+
+    private static File[] storeFiles(final String low) {
+        return new File(".").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("data.store_replica_" + PORT + "_" + low);
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+package testing;
+
+import app_kvServer.dataStorage.StorageConfig;
+import app_kvServer.dataStorage.StorageEngine;
+import app_kvServer.dataStorage.StorageEngines;
+import common.Serializer;
+import common.ServerInfo;
+import common.messages.KVAdminMessage;
+import common.messages.KVAdminMessageImpl;
+import common.messages.KVMessage;
+import common.utils.KVRange;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test Class for the storage engine selection and the engines
+ * without a test class of their own
+ */
+public class StorageEngineTest extends TestCase {
+
+    /**
+     * Test the basic operations on every engine
+     */
+    @Test
+    public void testEngines() throws Exception {
+        for (String name : new String[] { StorageEngines.LOG, StorageEngines.LSM,
+                StorageEngines.MEMORY, StorageEngines.PROPERTIES }) {
+            StorageConfig config = StorageConfig.defaults().set(StorageConfig.ENGINE, name);
+            StorageEngine engine = StorageEngines.open("_test_engine_", config);
+            try {
+                assertTrue(name, engine.isEmpty());
+                assertEquals(name, KVMessage.StatusType.PUT_SUCCESS, engine.put("foo", "bar").getStatus());
+                assertEquals(name, KVMessage.StatusType.PUT_UPDATE, engine.put("foo", "baz").getStatus());
+                assertEquals(name, "baz", engine.get("foo").getValue());
+                assertTrue(name, engine.mightContain("foo"));
+                for (int i = 0; i < 50; i++) {
+                    engine.put("key" + i, "value" + i);
+                }
+                assertEquals(name, 51, engine.get(new KVRange()).size());
+                assertEquals(name, "baz", engine.remove("foo").getValue());
+                assertEquals(name, KVMessage.StatusType.GET_ERROR, engine.get("foo").getStatus());
+                assertEquals(name, KVMessage.StatusType.DELETE_ERROR, engine.remove("foo").getStatus());
+
+                KVRange half = new KVRange("00000000000000000000000000000000", "7fffffffffffffffffffffffffffffff");
+                int inHalf = engine.get(half).size();
+                engine.remove(half);
+                assertEquals(name, 0, engine.get(half).size());
+                assertEquals(name, 50 - inHalf, engine.get(new KVRange()).size());
+                assertFalse(name, engine.isEmpty());
+                engine.remove(new KVRange());
+                assertTrue(name, engine.isEmpty());
+                assertTrue(name, engine.awaitDurable());
+            } finally {
+                engine.cleanUp();
+            }
+        }
+    }
+
+    /**
+     * Test that the storage engine travels in the INIT message
+     */
+    @Test
+    public void testInitMessage() throws Exception {
+        List<ServerInfo> metadata = new ArrayList<>();
+        metadata.add(new ServerInfo("127.0.0.1", 50000, new KVRange()));
+        KVAdminMessageImpl init = new KVAdminMessageImpl(KVAdminMessage.StatusType.INIT, metadata, 10, "LRU");
+        init.setStorageEngine(StorageEngines.LSM);
+        KVAdminMessageImpl received = (KVAdminMessageImpl) Serializer.toObject(init.getMsgBytes());
+        assertEquals(10, received.getCacheSize().intValue());
+        assertEquals("LRU", received.getDisplacementStrategy());
+        assertEquals(StorageEngines.LSM, received.getStorageEngine());
+
+        init.setStorageEngine(null);
+        received = (KVAdminMessageImpl) Serializer.toObject(init.getMsgBytes());
+        assertEquals("LRU", received.getDisplacementStrategy());
+        assertNull(received.getStorageEngine());
+    }
+}